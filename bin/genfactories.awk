@@ -0,0 +1,9 @@
+function printFactoryRegistration(errorName) {
+	print "FACTORIES.put(\"" errorName "\", new ExceptionFactory() {"
+	print "    public S3ServerException newException (String message, String requestId, String hostId) {"
+	print "        return new", errorName "Exception(message, requestId, hostId);"
+	print "    }"
+	print "});"
+}
+
+printFactoryRegistration(substr($1, 1, length($1) - 1))
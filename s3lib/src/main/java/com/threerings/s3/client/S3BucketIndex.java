@@ -0,0 +1,585 @@
+/* 
+ * S3BucketIndex vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Date;
+
+/**
+ * A persistent, memory-mapped, sorted index of a bucket's keys, sizes and
+ * modification times. Once created, existence and size queries are answered
+ * locally with a binary search over the mapped file, without issuing HEAD or
+ * GET bucket requests.
+ *
+ * An index may be refreshed incrementally: {@link #refresh(S3Connection)} lists
+ * only the keys that sort after the last indexed key, using it as the
+ * listObjects marker. This is well suited to buckets whose keys are written in
+ * increasing order (timestamped logs, backups, etc). Keys that are inserted
+ * before the last indexed key, or deleted, are only picked up by re-creating
+ * the index with {@link #create(S3Connection, String, String, File)}.
+ *
+ * File format (big-endian):
+ * <pre>
+ *  header:  magic, version, entry count, key heap length, bucket name, prefix
+ *  entries: count * (key offset, key length, size, last modified)
+ *  keys:    UTF-8 key heap
+ * </pre>
+ *
+ * The entry table is mapped in windows of WINDOW_ENTRIES entries, so that it
+ * may exceed the 2GB limit of a single mapping; the key heap is limited to 2GB.
+ *
+ * Keys are compared as unsigned UTF-8 bytes, which matches S3's listing order.
+ * Index instances are immutable, and are safe for concurrent use.
+ */
+public class S3BucketIndex {
+    /**
+     * List the given bucket and write a new index to the given file, replacing
+     * any existing file.
+     *
+     * @param connection S3 connection used to list the bucket.
+     * @param bucketName Bucket to index.
+     * @param prefix Only index keys beginning with this prefix. Specify null
+     *  for no prefix.
+     * @param file Index file.
+     */
+    public static S3BucketIndex create (S3Connection connection, String bucketName, String prefix,
+        File file)
+        throws S3Exception, IOException
+    {
+        Writer writer = new Writer(file, bucketName, prefix);
+        try {
+            writer.addListing(connection, null);
+            return writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Open and map an existing index file.
+     */
+    public static S3BucketIndex open (File file)
+        throws IOException
+    {
+        return new S3BucketIndex(file, WINDOW_ENTRIES);
+    }
+
+    /**
+     * List any keys sorting after the last indexed key, and write them to the
+     * index file, along with all existing entries. Returns the refreshed index;
+     * this instance remains valid, but will not reflect the new entries.
+     */
+    public S3BucketIndex refresh (S3Connection connection)
+        throws S3Exception, IOException
+    {
+        Writer writer = new Writer(_file, _bucketName, _prefix);
+        try {
+            writer.addIndex(this);
+            writer.addListing(connection, _count > 0 ? getKey(_count - 1) : null);
+            return writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Returns the indexed bucket name. */
+    public String getBucketName () {
+        return _bucketName;
+    }
+
+    /** Returns the indexed key prefix, or null if none. */
+    public String getPrefix () {
+        return _prefix;
+    }
+
+    /** Returns the number of indexed keys. */
+    public int size () {
+        return _count;
+    }
+
+    /** Returns true if the given key is indexed. */
+    public boolean contains (String key) {
+        return find(key) >= 0;
+    }
+
+    /** Returns the size of the given key in bytes, or -1 if the key is not indexed. */
+    public long getSize (String key) {
+        int index = find(key);
+        return index >= 0 ? getSize(index) : -1L;
+    }
+
+    /**
+     * Search for the given key. Returns the key's index if it is found; otherwise,
+     * (-(insertion point) - 1), as per {@link java.util.Arrays#binarySearch(Object[], Object)}.
+     */
+    public int find (String key) {
+        byte[] encoded = encode(key);
+        int index = lowerBound(encoded);
+        if (index < _count && compareKey(index, encoded) == 0) {
+            return index;
+        }
+        return -index - 1;
+    }
+
+    /**
+     * Returns the index of the first key beginning with the given prefix, or
+     * the index at which such a key would be inserted.
+     */
+    public int startOf (String prefix) {
+        return lowerBound(encode(prefix));
+    }
+
+    /**
+     * Returns the index following the last key beginning with the given prefix.
+     * Keys within [startOf(prefix), endOf(prefix)) all begin with the prefix.
+     */
+    public int endOf (String prefix) {
+        byte[] successor = encode(prefix);
+        int length = successor.length;
+
+        /* The smallest key greater than all keys with this prefix. */
+        while (length > 0 && successor[length - 1] == (byte) 0xFF) {
+            length--;
+        }
+
+        if (length == 0) {
+            return _count;
+        }
+
+        byte[] bound = new byte[length];
+        System.arraycopy(successor, 0, bound, 0, length);
+        bound[length - 1]++;
+        return lowerBound(bound);
+    }
+
+    /** Returns the key at the given index. */
+    public String getKey (int index) {
+        checkIndex(index);
+        ByteBuffer window = window(index);
+        int record = record(index);
+        int offset = window.getInt(record);
+        int length = window.getInt(record + 4);
+
+        byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = _keys.get(offset + i);
+        }
+
+        try {
+            return new String(key, KEY_ENCODING);
+        } catch (UnsupportedEncodingException uee) {
+            // UTF-8 must always be supported.
+            throw new RuntimeException("Missing UTF8 encoding");
+        }
+    }
+
+    /** Returns the size in bytes of the key at the given index. */
+    public long getSize (int index) {
+        checkIndex(index);
+        return window(index).getLong(record(index) + 8);
+    }
+
+    /** Returns the modification time, in milliseconds since the epoch, of the key at the given index. */
+    public long getLastModified (int index) {
+        checkIndex(index);
+        return window(index).getLong(record(index) + 16);
+    }
+
+    /**
+     * Map the given index file, with windowEntries entries per entry table
+     * mapping.
+     */
+    S3BucketIndex (File file, int windowEntries)
+        throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+
+            /* Read and validate the header. */
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a bucket index file: " + file);
+            }
+
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported bucket index version " + version + ": " + file);
+            }
+
+            _count = input.readInt();
+            long keysLength = input.readLong();
+            _bucketName = input.readUTF();
+            _prefix = input.readBoolean() ? input.readUTF() : null;
+
+            /* Map the entry table and key heap. */
+            long entriesOffset = input.getFilePointer();
+            long entriesLength = (long) _count * RECORD_SIZE;
+            if (entriesOffset + entriesLength + keysLength != channel.size()) {
+                throw new IOException("Truncated bucket index file: " + file);
+            }
+
+            _windowEntries = windowEntries;
+            _entries = new ByteBuffer[(int) ((_count + (long) windowEntries - 1) / windowEntries)];
+            for (int i = 0; i < _entries.length; i++) {
+                long offset = (long) i * windowEntries * RECORD_SIZE;
+                long length = Math.min((long) windowEntries * RECORD_SIZE, entriesLength - offset);
+                _entries[i] = channel.map(FileChannel.MapMode.READ_ONLY, entriesOffset + offset, length);
+            }
+            _keys = channel.map(FileChannel.MapMode.READ_ONLY, entriesOffset + entriesLength, keysLength);
+            _file = file;
+        } finally {
+            /* The mappings remain valid after the channel is closed. */
+            input.close();
+        }
+    }
+
+    /** Returns the entry table window holding the given index. */
+    private ByteBuffer window (int index) {
+        return _entries[index / _windowEntries];
+    }
+
+    /** Returns the offset of the given index's record within its window. */
+    private int record (int index) {
+        return (index % _windowEntries) * RECORD_SIZE;
+    }
+
+    /** Returns the index of the first key >= the given UTF-8 key. */
+    private int lowerBound (byte[] key) {
+        int low = 0;
+        int high = _count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Compare the indexed key at the given index to the given UTF-8 key, as unsigned bytes. */
+    private int compareKey (int index, byte[] key) {
+        ByteBuffer window = window(index);
+        int record = record(index);
+        int offset = window.getInt(record);
+        int length = window.getInt(record + 4);
+        int max = Math.min(length, key.length);
+
+        for (int i = 0; i < max; i++) {
+            int a = _keys.get(offset + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    /** Throw an IndexOutOfBoundsException if the index is invalid. */
+    private void checkIndex (int index) {
+        if (index < 0 || index >= _count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _count);
+        }
+    }
+
+    /** Encode a key as UTF-8. */
+    private static byte[] encode (String key) {
+        try {
+            return key.getBytes(KEY_ENCODING);
+        } catch (UnsupportedEncodingException uee) {
+            // UTF-8 must always be supported.
+            throw new RuntimeException("Missing UTF8 encoding");
+        }
+    }
+
+    /**
+     * Streams entries into temporary entry table and key heap files, then
+     * assembles and atomically installs the final index file.
+     */
+    static class Writer {
+        public Writer (File file, String bucketName, String prefix)
+            throws IOException
+        {
+            _file = file;
+            _bucketName = bucketName;
+            _prefix = prefix;
+
+            File dir = file.getAbsoluteFile().getParentFile();
+            _entriesFile = File.createTempFile(file.getName(), ".entries", dir);
+            _keysFile = File.createTempFile(file.getName(), ".keys", dir);
+            _entriesOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_entriesFile), BUFFER_SIZE));
+            _keysOutput = new BufferedOutputStream(new FileOutputStream(_keysFile), BUFFER_SIZE);
+        }
+
+        /** Append all entries of an existing index. */
+        public void addIndex (S3BucketIndex index)
+            throws IOException
+        {
+            ByteBuffer keys = index._keys.duplicate();
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            /* The copied key offsets remain valid, as the existing key heap is
+             * copied to the start of the new heap. */
+            for (ByteBuffer window : index._entries) {
+                ByteBuffer entries = window.duplicate();
+                entries.clear();
+                while (entries.hasRemaining()) {
+                    int count = Math.min(buffer.length, entries.remaining());
+                    entries.get(buffer, 0, count);
+                    _entriesOutput.write(buffer, 0, count);
+                }
+            }
+
+            keys.clear();
+            while (keys.hasRemaining()) {
+                int count = Math.min(buffer.length, keys.remaining());
+                keys.get(buffer, 0, count);
+                _keysOutput.write(buffer, 0, count);
+            }
+
+            _count += index._count;
+            _keysLength += keys.capacity();
+            if (index._count > 0) {
+                _lastKey = encode(index.getKey(index._count - 1));
+            }
+        }
+
+        /** List the bucket, starting after the given marker, and append all entries. */
+        public void addListing (S3Connection connection, String marker)
+            throws S3Exception, IOException
+        {
+            S3ObjectListing listing;
+
+            do {
+                listing = connection.listObjects(_bucketName, _prefix, marker, LIST_PAGE_SIZE, null);
+                for (S3ObjectEntry entry : listing.getEntries()) {
+                    add(entry);
+                }
+                marker = listing.getNextMarker();
+            } while (listing.truncated());
+        }
+
+        /** Append a single entry. Entries must be added in sorted order. */
+        public void add (S3ObjectEntry entry)
+            throws IOException
+        {
+            byte[] key = encode(entry.getKey());
+
+            if (_lastKey != null && compare(_lastKey, key) >= 0) {
+                throw new IOException("Bucket index keys must be unique and sorted: " + entry.getKey());
+            }
+
+            if (_keysLength + key.length > Integer.MAX_VALUE) {
+                throw new IOException("Bucket index key heap exceeds 2GB");
+            }
+
+            Date lastModified = entry.getLastModified();
+            _entriesOutput.writeInt((int) _keysLength);
+            _entriesOutput.writeInt(key.length);
+            _entriesOutput.writeLong(entry.getSize());
+            _entriesOutput.writeLong(lastModified != null ? lastModified.getTime() : 0L);
+            _keysOutput.write(key);
+
+            _keysLength += key.length;
+            _count++;
+            _lastKey = key;
+        }
+
+        /** Write the final index file, and map it. */
+        public S3BucketIndex finish ()
+            throws IOException
+        {
+            _entriesOutput.close();
+            _keysOutput.close();
+
+            File tmpFile = File.createTempFile(_file.getName(), ".tmp", _file.getAbsoluteFile().getParentFile());
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+                try {
+                    /* Header */
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeInt(_count);
+                    output.writeLong(_keysLength);
+                    output.writeUTF(_bucketName);
+                    output.writeBoolean(_prefix != null);
+                    if (_prefix != null) {
+                        output.writeUTF(_prefix);
+                    }
+
+                    /* Entries and keys */
+                    copy(_entriesFile, output);
+                    copy(_keysFile, output);
+                } finally {
+                    output.close();
+                }
+
+                /* Install the new index, replacing any existing file. The
+                 * temporary file shares its directory, so the move is a rename. */
+                Files.move(tmpFile.toPath(), _file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmpFile.delete();
+            }
+
+            return S3BucketIndex.open(_file);
+        }
+
+        /** Release the temporary files. */
+        public void close () {
+            try {
+                _entriesOutput.close();
+                _keysOutput.close();
+            } catch (IOException ioe) {
+                // Nothing to be done
+            }
+            _entriesFile.delete();
+            _keysFile.delete();
+        }
+
+        /** Copy the contents of the given file to the output. */
+        private static void copy (File file, DataOutputStream output)
+            throws IOException
+        {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int nread;
+                while ((nread = input.read(buffer)) > 0) {
+                    output.write(buffer, 0, nread);
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+        /** Compare two UTF-8 keys as unsigned bytes. */
+        private static int compare (byte[] a, byte[] b) {
+            int max = Math.min(a.length, b.length);
+            for (int i = 0; i < max; i++) {
+                int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return a.length - b.length;
+        }
+
+        /** Destination index file. */
+        private final File _file;
+
+        /** Indexed bucket. */
+        private final String _bucketName;
+
+        /** Indexed prefix. */
+        private final String _prefix;
+
+        /** Temporary entry table file. */
+        private final File _entriesFile;
+
+        /** Temporary key heap file. */
+        private final File _keysFile;
+
+        /** Entry table output. */
+        private final DataOutputStream _entriesOutput;
+
+        /** Key heap output. */
+        private final BufferedOutputStream _keysOutput;
+
+        /** Number of entries written. */
+        private int _count = 0;
+
+        /** Number of key heap bytes written. */
+        private long _keysLength = 0;
+
+        /** Last key written. */
+        private byte[] _lastKey = null;
+    }
+
+    /** Index file. */
+    private final File _file;
+
+    /** Indexed bucket. */
+    private final String _bucketName;
+
+    /** Indexed prefix, or null. */
+    private final String _prefix;
+
+    /** Number of entries. */
+    private final int _count;
+
+    /** Mapped entry table windows. */
+    private final ByteBuffer[] _entries;
+
+    /** Number of entries per entry table window. */
+    private final int _windowEntries;
+
+    /** Mapped key heap. */
+    private final ByteBuffer _keys;
+
+    /** Index file magic ("S3IX"). */
+    private static final int MAGIC = 0x53334958;
+
+    /** Index file format version. */
+    private static final int VERSION = 1;
+
+    /** Entry record size: key offset, key length, size, last modified. */
+    private static final int RECORD_SIZE = 24;
+
+    /** Entries per entry table mapping; 96MB windows. */
+    private static final int WINDOW_ENTRIES = 4 * 1024 * 1024;
+
+    /** Maximum keys per listObjects request. */
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    /** File I/O buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Key character encoding. */
+    private static final String KEY_ENCODING = "utf-8";
+}
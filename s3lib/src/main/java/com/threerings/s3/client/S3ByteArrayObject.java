@@ -108,6 +108,11 @@ public class S3ByteArrayObject extends S3Object {
         return _length;
     }
 
+    @Override // From S3Object
+    public boolean isReplayable () {
+        return true;
+    }
+
     /** Backing byte array. */
     private byte[] _data;
     
@@ -0,0 +1,159 @@
+/* 
+ * S3ByteBufferObject vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A representation of a ByteBuffer-backed object stored in S3. Both heap
+ * and direct buffers are supported, and the data is never copied.
+ */
+public class S3ByteBufferObject extends S3Object {
+
+    /**
+     * Instantiate an S3 buffer object with the given key and data, computing
+     * its MD5 digest. The data between the buffer's position and limit is
+     * used; the buffer's position, limit and contents must not be modified
+     * while the object is in use.
+     *
+     * @param key S3 object key.
+     * @param data Object data.
+     */
+    public S3ByteBufferObject (String key, ByteBuffer data) {
+        this(key, data, null);
+    }
+
+    /**
+     * Instantiate an S3 buffer object with a pre-computed MD5 digest.
+     *
+     * @param key S3 object key.
+     * @param data Object data.
+     * @param md5 MD5 digest of the data, or null to compute it.
+     */
+    public S3ByteBufferObject (String key, ByteBuffer data, byte[] md5) {
+        super(key, S3Object.DEFAULT_MIME_TYPE);
+        _data = data.slice();
+
+        if (md5 == null) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("md5");
+            } catch (NoSuchAlgorithmException nsa) {
+                // If MD5 isn't available, we're in trouble.
+                throw new RuntimeException(nsa);
+            }
+
+            md.update(_data.duplicate());
+            md5 = md.digest();
+        }
+        _md5 = md5;
+    }
+
+    @Override // From S3Object
+    public InputStream getInputStream ()
+    {
+        return new ByteBufferInputStream(_data.duplicate());
+    }
+
+    @Override // From S3Object
+    public byte[] getMD5 ()
+    {
+        return _md5;
+    }
+
+    @Override // From S3Object
+    public long length () {
+        return _data.remaining();
+    }
+
+    @Override // From S3Object
+    public boolean isReplayable () {
+        return true;
+    }
+
+    /**
+     * Reads from a ByteBuffer.
+     */
+    protected static class ByteBufferInputStream extends InputStream {
+        public ByteBufferInputStream (ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override // From InputStream
+        public int read () {
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+            return _buffer.get() & 0xFF;
+        }
+
+        @Override // From InputStream
+        public int read (byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override // From InputStream
+        public long skip (long n) {
+            int skipped = (int)Math.max(0, Math.min(n, _buffer.remaining()));
+            _buffer.position(_buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override // From InputStream
+        public int available () {
+            return _buffer.remaining();
+        }
+
+        /** Source buffer. */
+        private final ByteBuffer _buffer;
+    }
+
+    /** Object data. */
+    private final ByteBuffer _data;
+
+    /** MD5 Digest. */
+    private final byte[] _md5;
+}
@@ -0,0 +1,412 @@
+/* 
+ * S3CircuitBreaker vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A circuit breaker that fails requests immediately while an S3 endpoint is
+ * unhealthy, rather than leaving callers blocked on requests that are likely
+ * to time out.
+ *
+ * Breakers are tracked per endpoint, and optionally per bucket. Each breaker
+ * records the outcome of the most recent requests. A request counts as
+ * failed if it encountered a network error or a server-side (5xx) error, and
+ * as slow if it took longer than the slow call threshold. Once enough requests
+ * have been recorded, the breaker opens if either the failure rate or the slow
+ * call rate reaches its threshold.
+ *
+ * While open, requests are rejected with an
+ * {@link S3ClientException.CircuitOpenException}. After the open duration has
+ * elapsed, the breaker becomes half-open, and admits a small number of probe
+ * requests. If every probe succeeds promptly, the breaker closes; if any probe
+ * fails or is slow, the breaker opens again.
+ *
+ * S3CircuitBreaker instances are thread-safe, and are normally installed on
+ * an S3Connection with {@link S3Connection#setCircuitBreaker(S3CircuitBreaker)}.
+ */
+public class S3CircuitBreaker {
+    /** Breaker states. */
+    public static enum State {
+        /** Requests are admitted, and their outcomes recorded. */
+        CLOSED,
+
+        /** Requests are rejected. */
+        OPEN,
+
+        /** A limited number of probe requests are admitted. */
+        HALF_OPEN
+    }
+
+    /**
+     * Create a per-endpoint circuit breaker with the default thresholds: the
+     * breaker opens when half of the last 20 or more requests failed, or when
+     * 80% took longer than 10 seconds. It remains open for 30 seconds, and is
+     * then probed with 3 requests.
+     */
+    public S3CircuitBreaker () {
+        this(false, DEFAULT_FAILURE_RATE, DEFAULT_SLOW_CALL_THRESHOLD, DEFAULT_SLOW_CALL_RATE,
+            DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_REQUESTS, DEFAULT_OPEN_DURATION, DEFAULT_PROBES);
+    }
+
+    /**
+     * Create a new circuit breaker.
+     *
+     * @param perBucket If true, each bucket on an endpoint is tracked separately.
+     * @param failureRate Failure rate, from 0.0 to 1.0, at which the breaker opens.
+     * @param slowCallThreshold Latency, in milliseconds, above which a request is slow.
+     * @param slowCallRate Slow request rate, from 0.0 to 1.0, at which the breaker opens.
+     * @param windowSize Number of recent requests considered.
+     * @param minimumRequests Number of requests that must be recorded before the
+     *  breaker may open.
+     * @param openDuration Time, in milliseconds, that the breaker remains open
+     *  before admitting probes.
+     * @param probes Number of successful probes required to close the breaker.
+     */
+    public S3CircuitBreaker (boolean perBucket, double failureRate, long slowCallThreshold,
+        double slowCallRate, int windowSize, int minimumRequests, long openDuration, int probes)
+    {
+        if (failureRate <= 0 || failureRate > 1 || slowCallRate <= 0 || slowCallRate > 1 ||
+            slowCallThreshold <= 0 || windowSize < 1 || minimumRequests < 1 ||
+            minimumRequests > windowSize || openDuration < 0 || probes < 1)
+        {
+            throw new IllegalArgumentException("Invalid circuit breaker configuration");
+        }
+
+        _perBucket = perBucket;
+        _failureRate = failureRate;
+        _slowCallThreshold = slowCallThreshold * 1000L * 1000L;
+        _slowCallRate = slowCallRate;
+        _windowSize = windowSize;
+        _minimumRequests = minimumRequests;
+        _openDuration = openDuration * 1000L * 1000L;
+        _probes = probes;
+    }
+
+    /**
+     * Admit a request to the given endpoint and bucket. The returned call
+     * must be completed once the request finishes.
+     *
+     * @param endpoint The endpoint (eg, host URL).
+     * @param bucketName The target bucket, or null.
+     * @throws S3ClientException.CircuitOpenException If the breaker is open, or
+     *  half-open with all probes in flight.
+     */
+    public Call acquire (String endpoint, String bucketName)
+        throws S3ClientException.CircuitOpenException
+    {
+        return getBreaker(endpoint, bucketName).acquire();
+    }
+
+    /**
+     * Returns the state of the breaker for the given endpoint and bucket.
+     */
+    public State getState (String endpoint, String bucketName) {
+        return getBreaker(endpoint, bucketName).getState();
+    }
+
+    /**
+     * Returns true if the exception indicates an unhealthy endpoint: a network
+     * failure, or a server-side error. Other S3 errors are responses to
+     * invalid requests, and indicate a healthy endpoint.
+     */
+    public static boolean isFailure (S3Exception e) {
+        if (e instanceof S3ClientException.NetworkException) {
+            return true;
+        }
+
+        return e instanceof S3ServerException.InternalErrorException ||
+            e instanceof S3ServerException.ServiceUnavailableException ||
+            e instanceof S3ServerException.SlowDownException ||
+            e.getClass() == S3ServerException.class;
+    }
+
+    /**
+     * Find or create the breaker for the given endpoint and bucket.
+     */
+    private Breaker getBreaker (String endpoint, String bucketName) {
+        String name = endpoint;
+        if (_perBucket && bucketName != null) {
+            name = endpoint + "/" + bucketName;
+        }
+
+        Breaker breaker = _breakers.get(name);
+        if (breaker == null) {
+            breaker = new Breaker(name);
+            Breaker existing = _breakers.putIfAbsent(name, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * A single admitted request.
+     */
+    public static class Call {
+        Call (Breaker breaker, long generation, boolean probe, long started) {
+            _breaker = breaker;
+            _generation = generation;
+            _probe = probe;
+            _started = started;
+        }
+
+        /**
+         * Record the request's outcome. Subsequent calls have no effect.
+         *
+         * @param error The request's failure, or null if it succeeded.
+         */
+        public void complete (S3Exception error) {
+            complete(error != null && isFailure(error), System.nanoTime());
+        }
+
+        /**
+         * Record the request's outcome, as of the given System.nanoTime() value.
+         */
+        void complete (boolean failed, long now) {
+            synchronized (this) {
+                if (_completed) {
+                    return;
+                }
+                _completed = true;
+            }
+            _breaker.record(this, failed, now - _started > _breaker.getSlowCallThreshold(), now);
+        }
+
+        /** Owning breaker. */
+        private final Breaker _breaker;
+
+        /** Breaker generation in which the call was admitted. */
+        private final long _generation;
+
+        /** True if the call is a half-open probe. */
+        private final boolean _probe;
+
+        /** System.nanoTime() at which the call was admitted. */
+        private final long _started;
+
+        /** True once completed. */
+        private boolean _completed;
+    }
+
+    /**
+     * Breaker state for a single endpoint or bucket.
+     */
+    private class Breaker {
+        public Breaker (String name) {
+            _name = name;
+            _failed = new boolean[_windowSize];
+            _slow = new boolean[_windowSize];
+        }
+
+        /** Admit a call, or throw if open. */
+        public synchronized Call acquire ()
+            throws S3ClientException.CircuitOpenException
+        {
+            long now = System.nanoTime();
+
+            if (_state == State.OPEN) {
+                if (now - _openedAt < _openDuration) {
+                    throw new S3ClientException.CircuitOpenException("Circuit breaker for " + _name +
+                        " is open");
+                }
+                transition(State.HALF_OPEN, now);
+            }
+
+            if (_state == State.HALF_OPEN) {
+                if (_probesIssued >= _probes) {
+                    throw new S3ClientException.CircuitOpenException("Circuit breaker for " + _name +
+                        " is half-open, awaiting probes");
+                }
+                _probesIssued++;
+                return new Call(this, _generation, true, now);
+            }
+
+            return new Call(this, _generation, false, now);
+        }
+
+        /** Record a completed call. */
+        public synchronized void record (Call call, boolean failed, boolean slow, long now) {
+            /* Ignore calls admitted before the last state change. */
+            if (call._generation != _generation) {
+                return;
+            }
+
+            if (_state == State.HALF_OPEN) {
+                if (failed || slow) {
+                    transition(State.OPEN, now);
+                } else if (++_probesSucceeded >= _probes) {
+                    transition(State.CLOSED, now);
+                }
+                return;
+            }
+
+            /* Closed. Replace the oldest outcome in the window. */
+            int index = _next;
+            if (_count == _windowSize) {
+                if (_failed[index]) {
+                    _failures--;
+                }
+                if (_slow[index]) {
+                    _slowCalls--;
+                }
+            } else {
+                _count++;
+            }
+
+            _failed[index] = failed;
+            _slow[index] = slow;
+            if (failed) {
+                _failures++;
+            }
+            if (slow) {
+                _slowCalls++;
+            }
+            _next = (index + 1) % _windowSize;
+
+            if (_count >= _minimumRequests &&
+                (_failures >= _failureRate * _count || _slowCalls >= _slowCallRate * _count))
+            {
+                transition(State.OPEN, now);
+            }
+        }
+
+        public synchronized State getState () {
+            if (_state == State.OPEN && System.nanoTime() - _openedAt >= _openDuration) {
+                return State.HALF_OPEN;
+            }
+            return _state;
+        }
+
+        public long getSlowCallThreshold () {
+            return _slowCallThreshold;
+        }
+
+        /** Enter the given state, resetting all recorded outcomes. */
+        private void transition (State state, long now) {
+            _state = state;
+            _generation++;
+            _openedAt = now;
+            _probesIssued = 0;
+            _probesSucceeded = 0;
+            _count = 0;
+            _next = 0;
+            _failures = 0;
+            _slowCalls = 0;
+        }
+
+        /** Endpoint and bucket. */
+        private final String _name;
+
+        /** Failure flags of recent calls, as a ring buffer. */
+        private final boolean[] _failed;
+
+        /** Slow call flags of recent calls, as a ring buffer. */
+        private final boolean[] _slow;
+
+        /** Number of recorded calls. */
+        private int _count;
+
+        /** Next ring buffer index. */
+        private int _next;
+
+        /** Number of recorded failures. */
+        private int _failures;
+
+        /** Number of recorded slow calls. */
+        private int _slowCalls;
+
+        /** Current state. */
+        private State _state = State.CLOSED;
+
+        /** Incremented on every state change. */
+        private long _generation;
+
+        /** System.nanoTime() of the last state change. */
+        private long _openedAt;
+
+        /** Probes admitted in the half-open state. */
+        private int _probesIssued;
+
+        /** Probes succeeded in the half-open state. */
+        private int _probesSucceeded;
+    }
+
+    /** If true, buckets are tracked separately. */
+    private final boolean _perBucket;
+
+    /** Failure rate at which the breaker opens. */
+    private final double _failureRate;
+
+    /** Slow call threshold, in nanoseconds. */
+    private final long _slowCallThreshold;
+
+    /** Slow call rate at which the breaker opens. */
+    private final double _slowCallRate;
+
+    /** Number of recent calls considered. */
+    private final int _windowSize;
+
+    /** Minimum recorded calls before the breaker may open. */
+    private final int _minimumRequests;
+
+    /** Open duration, in nanoseconds. */
+    private final long _openDuration;
+
+    /** Number of half-open probes. */
+    private final int _probes;
+
+    /** Breakers, by endpoint and (optionally) bucket. */
+    private final ConcurrentHashMap<String,Breaker> _breakers = new ConcurrentHashMap<String,Breaker>();
+
+    /** Default failure rate threshold. */
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+
+    /** Default slow call threshold, in milliseconds. */
+    public static final long DEFAULT_SLOW_CALL_THRESHOLD = 10 * 1000;
+
+    /** Default slow call rate threshold. */
+    public static final double DEFAULT_SLOW_CALL_RATE = 0.8;
+
+    /** Default number of recent calls considered. */
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    /** Default minimum recorded calls. */
+    public static final int DEFAULT_MINIMUM_REQUESTS = 20;
+
+    /** Default open duration, in milliseconds. */
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+
+    /** Default number of half-open probes. */
+    public static final int DEFAULT_PROBES = 3;
+}
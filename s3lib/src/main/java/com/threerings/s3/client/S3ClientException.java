@@ -62,4 +62,20 @@ public class S3ClientException extends S3Exception
             super(message, cause);
         }
     }
-}
\ No newline at end of file
+
+    /** The request was not issued, as its bucket and key prefix were at their
+      * S3ConcurrencyLimiter limit. */
+    public static class ConcurrencyLimitException extends S3ClientException {
+        public ConcurrencyLimitException (String message) {
+            super(message);
+        }
+    }
+
+    /** The request was not issued, as the S3CircuitBreaker for its endpoint
+      * (or bucket) is open. */
+    public static class CircuitOpenException extends S3ClientException {
+        public CircuitOpenException (String message) {
+            super(message);
+        }
+    }
+}
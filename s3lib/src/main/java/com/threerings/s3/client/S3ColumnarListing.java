@@ -0,0 +1,670 @@
+/* 
+ * S3ColumnarListing vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, column-oriented container for very large bucket listings.
+ *
+ * Rather than retaining an {@link S3ObjectEntry} (and its Date, ETag, storage class
+ * and owner instances) per key, each attribute is stored in its own column:
+ * <ul>
+ * <li>Sizes and modification times in primitive long arrays.</li>
+ * <li>ETags as packed 16 byte binary digests. ETags that are not plain MD5 hex
+ *     digests (eg, multipart ETags) are retained as strings.</li>
+ * <li>Owners and storage classes as indexes into small dictionaries.</li>
+ * <li>Keys as front-coded (prefix-compressed) UTF-8 in a paged byte heap, with a
+ *     restart point every {@link #RESTART_INTERVAL} keys. Listings are returned
+ *     in lexicographic order, so adjacent keys generally share long prefixes.</li>
+ * </ul>
+ *
+ * Entries are read with a re-usable {@link Cursor}, which decodes each entry in
+ * place without allocating per-entry objects. S3ObjectEntry instances remain
+ * available on demand via {@link #getEntry(int)} and {@link #asEntryList()}.
+ *
+ * Instances are not thread-safe. Once fully populated, a listing may be read
+ * concurrently by any number of cursors.
+ */
+public class S3ColumnarListing {
+    /** Number of keys between front-coding restart points. */
+    public static final int RESTART_INTERVAL = 16;
+
+    /**
+     * Create a new, empty listing.
+     */
+    public S3ColumnarListing () {
+        this(DEFAULT_PAGE_SHIFT);
+    }
+
+    /**
+     * Create a new, empty listing with the given key heap page size.
+     * @param pageShift log2 of the key heap page size, in bytes.
+     */
+    S3ColumnarListing (int pageShift) {
+        _pageShift = pageShift;
+        _pageMask = (1 << pageShift) - 1;
+        _pages = new byte[1][];
+        _pages[0] = new byte[1 << pageShift];
+    }
+
+    /**
+     * Append all entries from the given listing page.
+     */
+    public void addAll (S3ObjectListing listing) {
+        for (S3ObjectEntry entry : listing.getEntries()) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Append a single entry.
+     */
+    public void add (S3ObjectEntry entry) {
+        Date lastModified = entry.getLastModified();
+        add(entry.getKey(), lastModified != null ? lastModified.getTime() : 0L, entry.getETag(),
+            entry.getSize(), entry.getStorageClass(), entry.getOwner());
+    }
+
+    /**
+     * Append a single entry.
+     *
+     * @param key Object key.
+     * @param lastModified Modification time, in milliseconds since the epoch.
+     * @param eTag Object ETag, without surrounding quotes.
+     * @param size Object size, in bytes.
+     * @param storageClass Storage class, or null.
+     * @param owner Object owner, or null.
+     */
+    public void add (String key, long lastModified, String eTag, long size,
+        String storageClass, S3Owner owner)
+    {
+        ensureCapacity(_count + 1);
+
+        appendKey(encodeKey(key));
+        _sizes[_count] = size;
+        _lastModified[_count] = lastModified;
+        _storageClasses[_count] = (byte) (storageClassIndex(storageClass) + 1);
+        _owners[_count] = ownerIndex(owner);
+
+        if (!packETag(eTag, _eTags, _count * DIGEST_LENGTH)) {
+            /* Record the ETag's index in the overflow list in place of a digest. */
+            int overflow = _overflowETags.size();
+            int base = _count * DIGEST_LENGTH;
+            _eTags[base] = (byte) (overflow >>> 24);
+            _eTags[base + 1] = (byte) (overflow >>> 16);
+            _eTags[base + 2] = (byte) (overflow >>> 8);
+            _eTags[base + 3] = (byte) overflow;
+            _eTagOverflow.set(_count);
+            _overflowETags.add(eTag);
+        }
+
+        _count++;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size () {
+        return _count;
+    }
+
+    /**
+     * Returns the key at the given index.
+     */
+    public String getKey (int index) {
+        Cursor cursor = cursor();
+        cursor.seek(index);
+        return cursor.getKey();
+    }
+
+    /**
+     * Returns the size, in bytes, of the object at the given index.
+     */
+    public long getSize (int index) {
+        checkIndex(index);
+        return _sizes[index];
+    }
+
+    /**
+     * Returns the modification time, in milliseconds since the epoch, of the
+     * object at the given index.
+     */
+    public long getLastModified (int index) {
+        checkIndex(index);
+        return _lastModified[index];
+    }
+
+    /**
+     * Materialize the entry at the given index as an S3ObjectEntry.
+     */
+    public S3ObjectEntry getEntry (int index) {
+        Cursor cursor = cursor();
+        cursor.seek(index);
+        return cursor.toEntry();
+    }
+
+    /**
+     * Returns a read-only List view of this listing. Entries are materialized
+     * on each access, and are not retained.
+     */
+    public List<S3ObjectEntry> asEntryList () {
+        return new AbstractList<S3ObjectEntry>() {
+            @Override
+            public S3ObjectEntry get (int index) {
+                return getEntry(index);
+            }
+
+            @Override
+            public int size () {
+                return _count;
+            }
+        };
+    }
+
+    /**
+     * Returns a new cursor, positioned before the first entry.
+     */
+    public Cursor cursor () {
+        return new Cursor();
+    }
+
+    /**
+     * Release any unused capacity.
+     */
+    public void trimToSize () {
+        _sizes = copyOf(_sizes, _count);
+        _lastModified = copyOf(_lastModified, _count);
+        _storageClasses = copyOf(_storageClasses, _count);
+        _owners = copyOf(_owners, _count);
+        _eTags = copyOf(_eTags, _count * DIGEST_LENGTH);
+        _overflowETags.trimToSize();
+        _restarts = copyOf(_restarts, (_count + RESTART_INTERVAL - 1) / RESTART_INTERVAL);
+
+        /* Trim the final key heap page. */
+        int lastPage = (int) (_heapLength >>> _pageShift);
+        if (lastPage < _pages.length && _pages[lastPage] != null) {
+            _pages[lastPage] = copyOf(_pages[lastPage], (int) (_heapLength & _pageMask));
+        }
+    }
+
+    /**
+     * A flyweight, forward-iterating view over the listing's entries. The cursor
+     * decodes each entry's key into a re-usable buffer; no objects are allocated
+     * unless requested via {@link #getKey()} or {@link #toEntry()}.
+     */
+    public class Cursor {
+        /**
+         * Advance to the next entry. Returns false if no entries remain.
+         */
+        public boolean next () {
+            if (_index + 1 >= _count) {
+                _index = _count;
+                return false;
+            }
+
+            _index++;
+            decodeKey();
+            return true;
+        }
+
+        /**
+         * Position the cursor on the entry at the given index.
+         */
+        public void seek (int index) {
+            checkIndex(index);
+
+            /* If moving backwards, or beyond the next restart point, jump to the
+             * nearest restart point. Otherwise, decode forward from here. */
+            int restart = index / RESTART_INTERVAL;
+            if (index <= _index || _index < 0 || restart != _index / RESTART_INTERVAL) {
+                _index = restart * RESTART_INTERVAL;
+                _position = _restarts[restart];
+                decodeKey();
+            }
+
+            while (_index < index) {
+                _index++;
+                decodeKey();
+            }
+        }
+
+        /** Returns the index of the current entry. */
+        public int index () {
+            return _index;
+        }
+
+        /** Returns the current entry's key. */
+        public String getKey () {
+            try {
+                return new String(_key, 0, _keyLength, KEY_ENCODING);
+            } catch (UnsupportedEncodingException uee) {
+                // UTF-8 must always be supported.
+                throw new RuntimeException("Missing UTF8 encoding");
+            }
+        }
+
+        /**
+         * Returns the cursor's UTF-8 key buffer. Only the first
+         * {@link #getKeyLength()} bytes are valid, and the buffer contents are
+         * replaced when the cursor is moved.
+         */
+        public byte[] getKeyBytes () {
+            return _key;
+        }
+
+        /** Returns the length of the current entry's UTF-8 key. */
+        public int getKeyLength () {
+            return _keyLength;
+        }
+
+        /** Returns the current entry's size, in bytes. */
+        public long getSize () {
+            return _sizes[_index];
+        }
+
+        /** Returns the current entry's modification time, in milliseconds since the epoch. */
+        public long getLastModified () {
+            return _lastModified[_index];
+        }
+
+        /**
+         * Copy the current entry's binary MD5 ETag into the given buffer. Returns
+         * false if the ETag is not a plain MD5 digest, in which case it is only
+         * available via {@link #getETag()}.
+         */
+        public boolean getETagDigest (byte[] digest, int offset) {
+            if (_eTagOverflow.get(_index)) {
+                return false;
+            }
+
+            System.arraycopy(_eTags, _index * DIGEST_LENGTH, digest, offset, DIGEST_LENGTH);
+            return true;
+        }
+
+        /** Returns the current entry's ETag. */
+        public String getETag () {
+            if (_eTagOverflow.get(_index)) {
+                int base = _index * DIGEST_LENGTH;
+                return _overflowETags.get(((_eTags[base] & 0xFF) << 24) |
+                    ((_eTags[base + 1] & 0xFF) << 16) | ((_eTags[base + 2] & 0xFF) << 8) |
+                    (_eTags[base + 3] & 0xFF));
+            }
+
+            char[] hex = new char[DIGEST_LENGTH * 2];
+            int base = _index * DIGEST_LENGTH;
+            for (int i = 0; i < DIGEST_LENGTH; i++) {
+                int b = _eTags[base + i] & 0xFF;
+                hex[i * 2] = HEX_DIGITS[b >>> 4];
+                hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(hex);
+        }
+
+        /** Returns the current entry's storage class, or null if none. */
+        public String getStorageClass () {
+            int index = (_storageClasses[_index] & 0xFF) - 1;
+            return index < 0 ? null : _storageClassDictionary.get(index);
+        }
+
+        /** Returns the current entry's owner, or null if none. */
+        public S3Owner getOwner () {
+            int index = _owners[_index];
+            return index < 0 ? null : _ownerDictionary.get(index);
+        }
+
+        /** Materialize the current entry as an S3ObjectEntry. */
+        public S3ObjectEntry toEntry () {
+            return new S3ObjectEntry(getKey(), new Date(getLastModified()), getETag(), getSize(),
+                getStorageClass(), getOwner());
+        }
+
+        /** Decode the key at _position, advancing _position to the next key. */
+        private void decodeKey () {
+            int shared = readVarInt();
+            int suffix = readVarInt();
+
+            if (_key.length < shared + suffix) {
+                byte[] key = new byte[Math.max(shared + suffix, _key.length * 2)];
+                System.arraycopy(_key, 0, key, 0, shared);
+                _key = key;
+            }
+
+            readBytes(_position, _key, shared, suffix);
+            _position += suffix;
+            _keyLength = shared + suffix;
+        }
+
+        /** Read a variable-length integer at _position. */
+        private int readVarInt () {
+            int value = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                b = _pages[(int) (_position >>> _pageShift)][(int) (_position & _pageMask)];
+                _position++;
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        /** Current entry index. */
+        private int _index = -1;
+
+        /** Key heap position of the next key. */
+        private long _position = 0;
+
+        /** Current key buffer. */
+        private byte[] _key = new byte[128];
+
+        /** Current key length. */
+        private int _keyLength;
+    }
+
+    /** Encode a key as UTF-8. */
+    private static byte[] encodeKey (String key) {
+        try {
+            return key.getBytes(KEY_ENCODING);
+        } catch (UnsupportedEncodingException uee) {
+            // UTF-8 must always be supported.
+            throw new RuntimeException("Missing UTF8 encoding");
+        }
+    }
+
+    /** Front-code and append the given key to the key heap. */
+    private void appendKey (byte[] key) {
+        int shared = 0;
+
+        if (_count % RESTART_INTERVAL == 0) {
+            /* Restart point; store the complete key. */
+            _restarts[_count / RESTART_INTERVAL] = _heapLength;
+        } else {
+            int max = Math.min(key.length, _previousKey.length);
+            while (shared < max && key[shared] == _previousKey[shared]) {
+                shared++;
+            }
+        }
+
+        writeVarInt(shared);
+        writeVarInt(key.length - shared);
+        writeBytes(key, shared, key.length - shared);
+        _previousKey = key;
+    }
+
+    /** Append a variable-length integer to the key heap. */
+    private void writeVarInt (int value) {
+        while ((value & ~0x7F) != 0) {
+            writeByte((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((byte) value);
+    }
+
+    /** Append a single byte to the key heap. */
+    private void writeByte (byte value) {
+        ensurePage(_heapLength);
+        _pages[(int) (_heapLength >>> _pageShift)][(int) (_heapLength & _pageMask)] = value;
+        _heapLength++;
+    }
+
+    /** Append a byte range to the key heap. */
+    private void writeBytes (byte[] data, int offset, int length) {
+        while (length > 0) {
+            ensurePage(_heapLength);
+            int pageOffset = (int) (_heapLength & _pageMask);
+            int count = Math.min(length, _pageMask + 1 - pageOffset);
+            System.arraycopy(data, offset, _pages[(int) (_heapLength >>> _pageShift)], pageOffset, count);
+            _heapLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /** Copy a byte range out of the key heap. */
+    private void readBytes (long position, byte[] dest, int offset, int length) {
+        while (length > 0) {
+            int pageOffset = (int) (position & _pageMask);
+            int count = Math.min(length, _pageMask + 1 - pageOffset);
+            System.arraycopy(_pages[(int) (position >>> _pageShift)], pageOffset, dest, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /** Ensure that the key heap page containing the given position is allocated. */
+    private void ensurePage (long position) {
+        int page = (int) (position >>> _pageShift);
+        if (page >= _pages.length) {
+            byte[][] pages = new byte[_pages.length * 2][];
+            System.arraycopy(_pages, 0, pages, 0, _pages.length);
+            _pages = pages;
+        }
+
+        /* Allocate the page, or restore its full size if trimToSize() truncated it. */
+        if (_pages[page] == null) {
+            _pages[page] = new byte[_pageMask + 1];
+        } else if (_pages[page].length <= _pageMask) {
+            _pages[page] = copyOf(_pages[page], _pageMask + 1);
+        }
+    }
+
+    /** Grow the column arrays to hold at least the given number of entries. */
+    private void ensureCapacity (int count) {
+        if (count <= _sizes.length) {
+            return;
+        }
+
+        int capacity = Math.max(count, _sizes.length * 2);
+        _sizes = copyOf(_sizes, capacity);
+        _lastModified = copyOf(_lastModified, capacity);
+        _storageClasses = copyOf(_storageClasses, capacity);
+        _owners = copyOf(_owners, capacity);
+        _eTags = copyOf(_eTags, capacity * DIGEST_LENGTH);
+        _restarts = copyOf(_restarts, capacity / RESTART_INTERVAL + 1);
+    }
+
+    /** Return the dictionary index of the given storage class, or -1 if null. */
+    private int storageClassIndex (String storageClass) {
+        if (storageClass == null) {
+            return -1;
+        }
+
+        Integer index = _storageClassIndexes.get(storageClass);
+        if (index == null) {
+            if (_storageClassDictionary.size() >= MAX_STORAGE_CLASSES) {
+                throw new IllegalStateException("Too many distinct storage classes");
+            }
+            index = _storageClassDictionary.size();
+            _storageClassDictionary.add(storageClass);
+            _storageClassIndexes.put(storageClass, index);
+        }
+        return index;
+    }
+
+    /** Return the dictionary index of the given owner, or -1 if null. */
+    private int ownerIndex (S3Owner owner) {
+        if (owner == null) {
+            return -1;
+        }
+
+        String ownerKey = owner.getId() + '\0' + owner.getDisplayName();
+        Integer index = _ownerIndexes.get(ownerKey);
+        if (index == null) {
+            index = _ownerDictionary.size();
+            _ownerDictionary.add(owner);
+            _ownerIndexes.put(ownerKey, index);
+        }
+        return index;
+    }
+
+    /**
+     * Pack a lower-case hex MD5 ETag into the given buffer. Returns false if the
+     * ETag is not a plain MD5 digest.
+     */
+    private static boolean packETag (String eTag, byte[] dest, int offset) {
+        if (eTag == null || eTag.length() != DIGEST_LENGTH * 2) {
+            return false;
+        }
+
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int high = hexValue(eTag.charAt(i * 2));
+            int low = hexValue(eTag.charAt(i * 2 + 1));
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            dest[offset + i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a lower-case hex digit, or -1. Upper-case digits are
+     * rejected so that the ETag string round-trips exactly.
+     */
+    private static int hexValue (char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /** Throw an IndexOutOfBoundsException if the index is invalid. */
+    private void checkIndex (int index) {
+        if (index < 0 || index >= _count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _count);
+        }
+    }
+
+    private static long[] copyOf (long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static int[] copyOf (int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static byte[] copyOf (byte[] array, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /** Number of entries. */
+    private int _count = 0;
+
+    /** Object sizes. */
+    private long[] _sizes = new long[INITIAL_CAPACITY];
+
+    /** Object modification times. */
+    private long[] _lastModified = new long[INITIAL_CAPACITY];
+
+    /** Packed binary MD5 ETags, DIGEST_LENGTH bytes per entry, or an _overflowETags index. */
+    private byte[] _eTags = new byte[INITIAL_CAPACITY * DIGEST_LENGTH];
+
+    /** Set for each entry whose ETag is held in _overflowETags. */
+    private final BitSet _eTagOverflow = new BitSet();
+
+    /** ETags that are not plain MD5 digests, in entry order. */
+    private final ArrayList<String> _overflowETags = new ArrayList<String>();
+
+    /** Storage class dictionary index + 1, or 0 for none. */
+    private byte[] _storageClasses = new byte[INITIAL_CAPACITY];
+
+    /** Owner dictionary index, or -1 for none. */
+    private int[] _owners = new int[INITIAL_CAPACITY];
+
+    /** Storage class dictionary. */
+    private final List<String> _storageClassDictionary = new ArrayList<String>();
+
+    /** Storage class to dictionary index. */
+    private final Map<String,Integer> _storageClassIndexes = new HashMap<String,Integer>();
+
+    /** Owner dictionary. */
+    private final List<S3Owner> _ownerDictionary = new ArrayList<S3Owner>();
+
+    /** Owner id and display name to dictionary index. */
+    private final Map<String,Integer> _ownerIndexes = new HashMap<String,Integer>();
+
+    /** Key heap position of every RESTART_INTERVAL'th key. */
+    private long[] _restarts = new long[INITIAL_CAPACITY / RESTART_INTERVAL + 1];
+
+    /** Key heap pages. */
+    private byte[][] _pages;
+
+    /** Total number of bytes written to the key heap. */
+    private long _heapLength = 0;
+
+    /** Most recently appended key, used for front-coding. */
+    private byte[] _previousKey = new byte[0];
+
+    /** log2 of the key heap page size. */
+    private final int _pageShift;
+
+    /** Key heap page offset mask. */
+    private final int _pageMask;
+
+    /** Default key heap page size (1MB). */
+    private static final int DEFAULT_PAGE_SHIFT = 20;
+
+    /** Initial column capacity. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Length of a binary MD5 digest. */
+    private static final int DIGEST_LENGTH = 16;
+
+    /** Maximum number of distinct storage classes. */
+    private static final int MAX_STORAGE_CLASSES = 255;
+
+    /** Key character encoding. */
+    private static final String KEY_ENCODING = "utf-8";
+
+    /** Lower-case hex digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+}
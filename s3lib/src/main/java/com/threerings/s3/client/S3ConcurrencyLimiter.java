@@ -0,0 +1,465 @@
+/* 
+ * S3ConcurrencyLimiter vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive limit on the number of concurrent requests issued to S3.
+ *
+ * S3 throttles request rates per key-space partition, so limits are tracked
+ * independently for each bucket and key prefix. Each partition's limit is
+ * adjusted with an additive-increase, multiplicative-decrease (AIMD) policy:
+ * while response latency and error rates remain healthy, the limit grows by
+ * roughly one request per round trip. When S3 signals throttling (SlowDown,
+ * ServiceUnavailable) or a request times out, the limit is cut by
+ * BACKOFF_RATIO, at most once per round trip.
+ *
+ * Callers acquire a {@link Permit} before issuing a request and release it with
+ * the request's {@link Outcome}. When a partition is at its limit, callers
+ * either wait for a permit ({@link Policy#QUEUE}) or immediately receive an
+ * {@link S3ClientException.ConcurrencyLimitException} ({@link Policy#FAIL_FAST}).
+ *
+ * Once more than MAX_PARTITIONS partitions are tracked, idle partitions (those
+ * with no requests in flight) are discarded, so that tracking distinct key
+ * prefixes can not grow without bound. A discarded partition's limit starts over
+ * from the initial limit.
+ *
+ * S3ConcurrencyLimiter instances are thread-safe, and are normally shared by
+ * installing them on an S3Connection with
+ * {@link S3Connection#setConcurrencyLimiter(S3ConcurrencyLimiter)}.
+ */
+public class S3ConcurrencyLimiter {
+    /** Behavior when a partition is at its concurrency limit. */
+    public static enum Policy {
+        /** Wait for an in-flight request to complete. */
+        QUEUE,
+
+        /** Throw a ConcurrencyLimitException. */
+        FAIL_FAST
+    }
+
+    /** The result of a request, used to adjust the partition's limit. */
+    public static enum Outcome {
+        /** S3 responded normally. The response latency is considered. */
+        SUCCESS,
+
+        /** The request failed for a reason unrelated to load. */
+        ERROR,
+
+        /** S3 throttled the request, or the request timed out. */
+        DROPPED
+    }
+
+    /**
+     * Create a per-bucket limiter using the QUEUE policy and default limits.
+     */
+    public S3ConcurrencyLimiter () {
+        this(Policy.QUEUE);
+    }
+
+    /**
+     * Create a per-bucket limiter using the given policy and default limits.
+     */
+    public S3ConcurrencyLimiter (Policy policy) {
+        this(policy, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, 0);
+    }
+
+    /**
+     * Create a new limiter.
+     *
+     * @param policy Behavior when a partition is at its limit.
+     * @param initialLimit Starting concurrency limit for each partition.
+     * @param minLimit The limit will never be reduced below this value.
+     * @param maxLimit The limit will never be raised above this value.
+     * @param prefixLength Number of leading object key characters that, along
+     *  with the bucket name, identify a partition. Specify 0 to track each
+     *  bucket as a single partition.
+     */
+    public S3ConcurrencyLimiter (Policy policy, int initialLimit, int minLimit, int maxLimit,
+        int prefixLength)
+    {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits: initial=" + initialLimit +
+                ", min=" + minLimit + ", max=" + maxLimit);
+        }
+
+        if (prefixLength < 0) {
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+        }
+
+        _policy = policy;
+        _initialLimit = initialLimit;
+        _minLimit = minLimit;
+        _maxLimit = maxLimit;
+        _prefixLength = prefixLength;
+    }
+
+    /**
+     * Acquire a permit to issue a request against the given bucket and key. The
+     * returned permit must be released once the request completes.
+     *
+     * @param bucketName Target bucket.
+     * @param objectKey Target object key or listing prefix, or null for
+     *  bucket-level requests.
+     * @throws S3ClientException.ConcurrencyLimitException If the partition is
+     *  at its limit and the FAIL_FAST policy is in use.
+     * @throws S3ClientException If interrupted while waiting for a permit.
+     */
+    public Permit acquire (String bucketName, String objectKey)
+        throws S3ClientException
+    {
+        Permit permit;
+
+        /* Retry if the partition was discarded before the permit was granted. */
+        while ((permit = getPartition(bucketName, objectKey).acquire()) == null) {
+            // Keep trying
+        }
+        return permit;
+    }
+
+    /**
+     * Returns the current concurrency limit for the given bucket and key.
+     */
+    public int getLimit (String bucketName, String objectKey) {
+        return getPartition(bucketName, objectKey).getLimit();
+    }
+
+    /**
+     * Returns the number of in-flight requests for the given bucket and key.
+     */
+    public int getInFlight (String bucketName, String objectKey) {
+        return getPartition(bucketName, objectKey).getInFlight();
+    }
+
+    /**
+     * Classify a failed request's exception. Throttling responses and network
+     * timeouts are DROPPED, other server responses indicate a healthy (if
+     * unhappy) service and are a SUCCESS, and anything else is an ERROR.
+     */
+    public static Outcome outcomeFor (S3Exception e) {
+        if (e instanceof S3ServerException.SlowDownException ||
+            e instanceof S3ServerException.ServiceUnavailableException)
+        {
+            return Outcome.DROPPED;
+        }
+
+        if (e instanceof S3ClientException.NetworkException) {
+            if (e.getCause() instanceof InterruptedIOException) {
+                /* Socket and connect timeouts. */
+                return Outcome.DROPPED;
+            }
+            return Outcome.ERROR;
+        }
+
+        if (e instanceof S3ServerException.InternalErrorException ||
+            e instanceof S3ServerException.RequestTimeoutException)
+        {
+            return Outcome.ERROR;
+        }
+
+        if (e instanceof S3ServerException) {
+            return Outcome.SUCCESS;
+        }
+
+        return Outcome.ERROR;
+    }
+
+    /**
+     * Find or create the partition for the given bucket and key.
+     */
+    private Partition getPartition (String bucketName, String objectKey) {
+        String name;
+        if (_prefixLength == 0 || objectKey == null) {
+            name = bucketName;
+        } else {
+            name = bucketName + "/" + objectKey.substring(0, Math.min(_prefixLength, objectKey.length()));
+        }
+
+        Partition partition = _partitions.get(name);
+        if (partition == null) {
+            partition = new Partition(name);
+            Partition existing = _partitions.putIfAbsent(name, partition);
+            if (existing != null) {
+                partition = existing;
+            } else if (_partitions.size() > MAX_PARTITIONS) {
+                discardIdlePartitions(partition);
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Discard all idle partitions, other than the given newly created partition.
+     */
+    private void discardIdlePartitions (Partition created) {
+        for (Partition partition : _partitions.values()) {
+            if (partition != created && partition.discardIfIdle()) {
+                _partitions.remove(partition.getName(), partition);
+            }
+        }
+    }
+
+    /** Returns the number of tracked partitions. */
+    int getPartitionCount () {
+        return _partitions.size();
+    }
+
+    /**
+     * Permission to issue a single request.
+     */
+    public static class Permit {
+        Permit (Partition partition, long started) {
+            _partition = partition;
+            _started = started;
+        }
+
+        /**
+         * Release the permit, reporting the request's outcome. Subsequent
+         * calls have no effect.
+         */
+        public void release (Outcome outcome) {
+            release(outcome, System.nanoTime());
+        }
+
+        /**
+         * Release the permit as of the given System.nanoTime() value.
+         */
+        void release (Outcome outcome, long now) {
+            synchronized (this) {
+                if (_released) {
+                    return;
+                }
+                _released = true;
+            }
+            _partition.release(_started, now, outcome);
+        }
+
+        /** Owning partition. */
+        private final Partition _partition;
+
+        /** System.nanoTime() at which the permit was granted. */
+        private final long _started;
+
+        /** True once released. */
+        private boolean _released;
+    }
+
+    /**
+     * Limit state for a single bucket and key prefix.
+     */
+    private class Partition {
+        public Partition (String name) {
+            _name = name;
+            _limit = _initialLimit;
+        }
+
+        /**
+         * Acquire a permit, waiting or failing as dictated by the policy.
+         * Returns null if the partition has been discarded.
+         */
+        public synchronized Permit acquire ()
+            throws S3ClientException
+        {
+            while (_inFlight >= (int) _limit) {
+                if (_policy == Policy.FAIL_FAST) {
+                    throw new S3ClientException.ConcurrencyLimitException("Concurrency limit of " +
+                        (int) _limit + " reached for " + _name);
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new S3ClientException("Interrupted waiting for a request permit for " + _name, ie);
+                }
+            }
+
+            /* The partition may have been discarded while we waited. */
+            if (_discarded) {
+                return null;
+            }
+
+            _inFlight++;
+            return new Permit(this, System.nanoTime());
+        }
+
+        /** Return a permit, adjusting the limit for the request's outcome. */
+        public synchronized void release (long started, long now, Outcome outcome) {
+            /* Utilization at the time the request completed, including itself. */
+            int inFlight = _inFlight--;
+
+            switch (outcome) {
+                case SUCCESS:
+                    boolean healthy = updateLatency(now - started);
+                    _errorRate -= _errorRate * ERROR_RATE_WEIGHT;
+
+                    /* Only grow the limit if it's actually being used. */
+                    if (healthy && _errorRate < MAX_ERROR_RATE && inFlight * 2 >= (int) _limit) {
+                        _limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+                    }
+                    break;
+
+                case ERROR:
+                    _errorRate += (1.0 - _errorRate) * ERROR_RATE_WEIGHT;
+                    break;
+
+                case DROPPED:
+                    _errorRate += (1.0 - _errorRate) * ERROR_RATE_WEIGHT;
+
+                    /* Requests issued before the last decrease were sent at the old
+                     * limit, and must not trigger another decrease. */
+                    if (started - _lastDecrease >= 0 || !_decreased) {
+                        _limit = Math.max(_minLimit, _limit * BACKOFF_RATIO);
+                        _lastDecrease = now;
+                        _decreased = true;
+                    }
+                    break;
+            }
+
+            notifyAll();
+        }
+
+        /**
+         * Mark the partition as discarded if no requests are in flight,
+         * returning true if it was.
+         */
+        public synchronized boolean discardIfIdle () {
+            if (_inFlight == 0) {
+                _discarded = true;
+            }
+            return _discarded;
+        }
+
+        public String getName () {
+            return _name;
+        }
+
+        public synchronized int getLimit () {
+            return (int) _limit;
+        }
+
+        public synchronized int getInFlight () {
+            return _inFlight;
+        }
+
+        /**
+         * Fold a response latency into the baseline, returning true if the
+         * latency is within the healthy range. The baseline follows the minimum
+         * observed latency, and slowly drifts upwards to track changing conditions.
+         */
+        private boolean updateLatency (long latency) {
+            if (_baseline == 0 || latency < _baseline) {
+                _baseline = latency;
+                return true;
+            }
+
+            boolean healthy = latency <= _baseline * LATENCY_TOLERANCE + LATENCY_SLACK;
+            _baseline += (latency - _baseline) / BASELINE_DRIFT;
+            return healthy;
+        }
+
+        /** Bucket and key prefix. */
+        private final String _name;
+
+        /** Current limit. Fractional, so that it may grow by less than one request at a time. */
+        private double _limit;
+
+        /** Number of outstanding permits. */
+        private int _inFlight;
+
+        /** Baseline response latency, in nanoseconds. 0 until the first response. */
+        private long _baseline;
+
+        /** Exponentially weighted error rate. */
+        private double _errorRate;
+
+        /** System.nanoTime() of the last limit decrease. */
+        private long _lastDecrease;
+
+        /** True once the limit has been decreased. */
+        private boolean _decreased;
+
+        /** True once the partition has been removed from the partition table. */
+        private boolean _discarded;
+    }
+
+    /** Behavior when a partition is at its limit. */
+    private final Policy _policy;
+
+    /** Starting limit for new partitions. */
+    private final int _initialLimit;
+
+    /** Minimum limit. */
+    private final int _minLimit;
+
+    /** Maximum limit. */
+    private final int _maxLimit;
+
+    /** Number of key characters used to identify a partition. */
+    private final int _prefixLength;
+
+    /** Partitions, by bucket name and key prefix. */
+    private final ConcurrentHashMap<String,Partition> _partitions = new ConcurrentHashMap<String,Partition>();
+
+    /** Default starting limit. */
+    public static final int DEFAULT_INITIAL_LIMIT = 16;
+
+    /** Default minimum limit. */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+
+    /** Default maximum limit. */
+    public static final int DEFAULT_MAX_LIMIT = 256;
+
+    /** Number of partitions above which idle partitions are discarded. */
+    static final int MAX_PARTITIONS = 1024;
+
+    /** Multiplicative decrease applied on throttling. */
+    private static final double BACKOFF_RATIO = 0.5;
+
+    /** Latencies up to this multiple of the baseline (plus LATENCY_SLACK) are healthy. */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /** Absolute latency allowance, in nanoseconds, for very fast baselines. */
+    private static final long LATENCY_SLACK = 10L * 1000L * 1000L;
+
+    /** Rate at which the latency baseline drifts towards slower responses. */
+    private static final long BASELINE_DRIFT = 64;
+
+    /** Weight of each request in the exponentially weighted error rate. */
+    private static final double ERROR_RATE_WEIGHT = 0.05;
+
+    /** The limit is not raised while the error rate exceeds this value. */
+    private static final double MAX_ERROR_RATE = 0.05;
+}
@@ -119,6 +119,21 @@ public class S3Connection {
         this.httpClient.setHttpConnectionManager(manager);
     }
 
+    /**
+     * Create a new S3 client connection that shares the credentials, HTTP client,
+     * concurrency limiter and circuit breaker of an existing connection. Used by
+     * subclasses that decorate an existing connection.
+     *
+     * @param connection The connection to share.
+     */
+    protected S3Connection (S3Connection connection) {
+        this.keyId = connection.keyId;
+        this.secretKey = connection.secretKey;
+        this.httpClient = connection.httpClient;
+        _limiter = connection._limiter;
+        _breaker = connection._breaker;
+    }
+
     /**
      * @deprecated Use {@link S3Connection#S3Connection(String, String, HostConfiguration)}
      */
@@ -159,7 +174,7 @@ public class S3Connection {
         }
 
         try {
-            executeS3Method(method);            
+            executeS3Method(method, bucketName, null);            
         } finally {
             method.releaseConnection();
         }
@@ -208,16 +223,35 @@ public class S3Connection {
     public S3ObjectListing listObjects (String bucketName, String prefix, String marker, int maxKeys, String delimiter)
         throws S3Exception
     {
-        GetMethod method;
+        return listObjects(bucketName, prefix, marker, maxKeys, delimiter, null);
+    }
+
+    /**
+     * List a bucket's contents, delivering each entry and common prefix to the
+     * provided visitor as soon as it is parsed from the response stream. The
+     * returned listing contains only the pagination state (truncation and next
+     * marker); its entry and common prefix lists are empty.
+     *
+     * @param prefix Limits response to keys beginning with the provided prefix.
+     *  Specify null for no prefix.
+     * @param marker Indicates where in the bucket to begin listing. The list
+     *  will only include keys that occur lexicographically after marker.
+     *  Specify null for no marker.
+     * @param maxKeys Maximum number of keys to return. The server may return
+     *  fewer keys, but never more. Specify 0 for no limit.
+     * @param delimiter Keys that contain the same string between the prefix
+     *  and the first occurence of the delimiter will be rolled up into a
+     *  single result element in the CommonPrefixes data. Specify null for no
+     *  delimiter.
+     * @param visitor Receives each entry and common prefix. Specify null to
+     *  retain all entries and common prefixes in the returned listing.
+     */
+    public S3ObjectListing listObjects (String bucketName, String prefix, String marker, int maxKeys,
+        String delimiter, S3ObjectVisitor visitor)
+        throws S3Exception
+    {
         List<NameValuePair> parameters = new ArrayList<NameValuePair>(4);
 
-        try {
-            method = new GetMethod("/" + _urlEncoder.encode(bucketName));
-        } catch (EncoderException e) {
-            throw new S3ClientException.InvalidURIException(
-                "Encoding error for bucket " + bucketName + ": " + e);            
-        }
-    
         if (prefix != null) {
             parameters.add(new NameValuePair(LIST_PREFIX_PARAMETER, prefix));
         }
@@ -234,6 +268,105 @@ public class S3Connection {
             parameters.add(new NameValuePair(LIST_DELIMITER_PARAMETER, delimiter));
         }
 
+        return listObjects(bucketName, prefix, parameters, visitor, false);
+    }
+
+    /**
+     * List a bucket's contents using the version 2 (list-type=2) API, without
+     * owner information.
+     *
+     * @param prefix Limits response to keys beginning with the provided prefix.
+     *  Specify null for no prefix.
+     * @param continuationToken The NextContinuationToken returned by the
+     *  previous request. Specify null to begin a new listing.
+     * @param maxKeys Maximum number of keys to return. The server may return
+     *  fewer keys, but never more. Specify 0 for no limit.
+     * @param delimiter Rolls up keys sharing a common prefix. Specify null for
+     *  no delimiter.
+     */
+    public S3ObjectListing listObjectsV2 (String bucketName, String prefix, String continuationToken,
+        int maxKeys, String delimiter)
+        throws S3Exception
+    {
+        return listObjectsV2(bucketName, prefix, continuationToken, null, maxKeys, delimiter, false, null);
+    }
+
+    /**
+     * List a bucket's contents using the version 2 (list-type=2) API.
+     *
+     * Pagination is driven by the server-supplied continuation token, which
+     * is returned by {@link S3ObjectListing#getNextContinuationToken()} when
+     * the listing is truncated. Unlike a version 1 marker, the token never
+     * needs to be reconstructed from the listed keys.
+     *
+     * @param prefix Limits response to keys beginning with the provided prefix.
+     *  Specify null for no prefix.
+     * @param continuationToken The NextContinuationToken returned by the
+     *  previous request. Specify null to begin a new listing.
+     * @param startAfter The listing will only include keys that occur
+     *  lexicographically after this key. Ignored by the server when a
+     *  continuation token is supplied. Specify null to start at the beginning.
+     * @param maxKeys Maximum number of keys to return. The server may return
+     *  fewer keys, but never more. Specify 0 for no limit.
+     * @param delimiter Rolls up keys sharing a common prefix. Specify null for
+     *  no delimiter.
+     * @param fetchOwner If false, the server omits each entry's owner, and
+     *  {@link S3ObjectEntry#getOwner()} returns null.
+     * @param visitor Receives each entry and common prefix. Specify null to
+     *  retain all entries and common prefixes in the returned listing.
+     */
+    public S3ObjectListing listObjectsV2 (String bucketName, String prefix, String continuationToken,
+        String startAfter, int maxKeys, String delimiter, boolean fetchOwner, S3ObjectVisitor visitor)
+        throws S3Exception
+    {
+        List<NameValuePair> parameters = new ArrayList<NameValuePair>(7);
+
+        parameters.add(new NameValuePair(LIST_TYPE_PARAMETER, "2"));
+
+        if (prefix != null) {
+            parameters.add(new NameValuePair(LIST_PREFIX_PARAMETER, prefix));
+        }
+
+        if (continuationToken != null) {
+            parameters.add(new NameValuePair(LIST_CONTINUATION_TOKEN_PARAMETER, continuationToken));
+        }
+
+        if (startAfter != null) {
+            parameters.add(new NameValuePair(LIST_START_AFTER_PARAMETER, startAfter));
+        }
+
+        if (maxKeys != 0) {
+            parameters.add(new NameValuePair(LIST_MAXKEYS_PARAMETER, Integer.toString(maxKeys)));
+        }
+
+        if (delimiter != null) {
+            parameters.add(new NameValuePair(LIST_DELIMITER_PARAMETER, delimiter));
+        }
+
+        if (fetchOwner) {
+            parameters.add(new NameValuePair(LIST_FETCH_OWNER_PARAMETER, "true"));
+        }
+
+        return listObjects(bucketName, prefix, parameters, visitor, true);
+    }
+
+    /**
+     * Issue a GET bucket request with the given query parameters and parse
+     * the response.
+     */
+    private S3ObjectListing listObjects (String bucketName, String prefix, List<NameValuePair> parameters,
+        S3ObjectVisitor visitor, boolean version2)
+        throws S3Exception
+    {
+        GetMethod method;
+
+        try {
+            method = new GetMethod("/" + _urlEncoder.encode(bucketName));
+        } catch (EncoderException e) {
+            throw new S3ClientException.InvalidURIException(
+                "Encoding error for bucket " + bucketName + ": " + e);            
+        }
+
         if (parameters.size() > 0) {
             method.setQueryString(
                 (NameValuePair[]) parameters.toArray(new NameValuePair[parameters.size()])
@@ -241,8 +374,8 @@ public class S3Connection {
         }
 
         try {
-            executeS3Method(method);
-            return new S3ObjectListing(method.getResponseBodyAsStream());          
+            executeS3Method(method, bucketName, prefix);
+            return new S3ObjectListing(method.getResponseBodyAsStream(), visitor, version2);
         } catch (SAXException se) {
             throw new S3ClientException("Error parsing bucket GET response: " + se.getMessage(), se);
         } catch (IOException ioe) {
@@ -271,7 +404,7 @@ public class S3Connection {
         }
 
         try {
-            executeS3Method(method);            
+            executeS3Method(method, bucketName, null);            
         } finally {
             method.releaseConnection();
         }
@@ -355,7 +488,7 @@ public class S3Connection {
         }
 
         try {
-            executeS3Method(method);            
+            executeS3Method(method, bucketName, object.getKey());            
         } finally {
             method.releaseConnection();
         }
@@ -364,11 +497,12 @@ public class S3Connection {
     /**
      * Retrieve an S3Object, using the provided HttpMethodBase.
      * 
+     * @param bucketName The source bucket.
      * @param objectKey The object key request, used to instantiate the returned S3Object.
      * @param method The HTTP method to execute.
      * @param hasBody Set to true if a response body is expected (eg, for an HTTP GET request)
      */
-    private S3Object getObject (String objectKey, HttpMethodBase method, boolean hasBody)
+    private S3Object getObject (String bucketName, String objectKey, HttpMethodBase method, boolean hasBody)
     	throws S3Exception
     {
         final InputStream response;
@@ -382,7 +516,7 @@ public class S3Connection {
         /* Attempt the GET, and release the held method connection on failure */
         try {
             // Execute the get request and retrieve all metadata from the response
-            executeS3Method(method);
+            executeS3Method(method, bucketName, objectKey);
 
             // Mime type
             mimeType = getResponseHeader(method, CONTENT_TYPE_HEADER, true);
@@ -486,7 +620,39 @@ public class S3Connection {
                 objectKey + ": " + e);
         }
 
-        return getObject(objectKey, method, true);
+        return getObject(bucketName, objectKey, method, true);
+    }
+
+    /**
+     * Retrieve a byte range of an S3Object. The returned object's data and
+     * length are those of the requested range, while its MD5 digest is that
+     * of the complete object, and can not be used to validate the range.
+     *
+     * @param bucketName Source bucket.
+     * @param objectKey Object key.
+     * @param offset Offset of the first byte to retrieve.
+     * @param length Number of bytes to retrieve, or -1 to retrieve the remainder
+     *  of the object.
+     * @throws S3ServerException.InvalidRangeException if the offset is beyond
+     *  the end of the object.
+     */
+    public S3Object getObject (String bucketName, String objectKey, long offset, long length)
+        throws S3Exception
+    {
+        GetMethod method;
+
+        try {
+            method = new GetMethod("/" + _urlEncoder.encode(bucketName) +
+                "/" + _urlEncoder.encode(objectKey));
+        } catch (EncoderException e) {
+            throw new S3ClientException.InvalidURIException(
+                "Encoding error for bucket " + bucketName + " and key " +
+                objectKey + ": " + e);
+        }
+
+        method.setRequestHeader(RANGE_HEADER, "bytes=" + offset + "-" +
+            (length < 0 ? "" : Long.toString(offset + length - 1)));
+        return getObject(bucketName, objectKey, method, true);
     }
 
     /**
@@ -511,7 +677,7 @@ public class S3Connection {
                 objectKey + ": " + e);
         }
 
-        return getObject(objectKey, method, false);
+        return getObject(bucketName, objectKey, method, false);
     }
 
     /**
@@ -534,12 +700,126 @@ public class S3Connection {
         }
 
         try {
-            executeS3Method(method);            
+            executeS3Method(method, bucketName, objectKey);            
         } finally {
             method.releaseConnection();
         }
     }
     
+    /**
+     * Install an adaptive concurrency limiter. All subsequent requests will
+     * acquire a permit for their bucket and key from the limiter before being
+     * issued, and report their outcome on completion.
+     *
+     * @param limiter The limiter, or null to issue requests without limit.
+     */
+    public void setConcurrencyLimiter (S3ConcurrencyLimiter limiter) {
+        _limiter = limiter;
+    }
+
+    /**
+     * Returns the installed concurrency limiter, or null if none.
+     */
+    public S3ConcurrencyLimiter getConcurrencyLimiter () {
+        return _limiter;
+    }
+
+    /**
+     * Install a circuit breaker. While the breaker for this connection's
+     * endpoint (or the request's bucket) is open, requests fail immediately
+     * with an {@link S3ClientException.CircuitOpenException}.
+     *
+     * @param breaker The circuit breaker, or null to always issue requests.
+     */
+    public void setCircuitBreaker (S3CircuitBreaker breaker) {
+        _breaker = breaker;
+    }
+
+    /**
+     * Returns the installed circuit breaker, or null if none.
+     */
+    public S3CircuitBreaker getCircuitBreaker () {
+        return _breaker;
+    }
+
+    /**
+     * Execute the provided method under the circuit breaker and concurrency
+     * limiter, if any, translating any error response into the appropriate
+     * S3Exception.
+     *
+     * The permit is held until the response headers (or error document) have
+     * been received; streaming of a response body is not counted.
+     *
+     * @param method HTTP method to execute.
+     * @param bucketName Target bucket.
+     * @param objectKey Target object key or listing prefix, or null.
+     */
+    private void executeS3Method (HttpMethod method, String bucketName, String objectKey)
+        throws S3Exception
+    {
+        S3CircuitBreaker breaker = _breaker;
+        S3CircuitBreaker.Call call;
+        S3Exception error = null;
+        boolean completed = false;
+
+        if (breaker == null) {
+            executeLimitedS3Method(method, bucketName, objectKey);
+            return;
+        }
+
+        call = breaker.acquire(getEndpoint(), bucketName);
+        try {
+            executeLimitedS3Method(method, bucketName, objectKey);
+            completed = true;
+        } catch (S3Exception e) {
+            error = e;
+            completed = true;
+            throw e;
+        } finally {
+            if (completed) {
+                call.complete(error);
+            } else {
+                /* An unchecked exception escaped; the request failed. */
+                call.complete(true, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Execute the provided method under the concurrency limiter, if any.
+     */
+    private void executeLimitedS3Method (HttpMethod method, String bucketName, String objectKey)
+        throws S3Exception
+    {
+        S3ConcurrencyLimiter limiter = _limiter;
+        S3ConcurrencyLimiter.Permit permit;
+        S3ConcurrencyLimiter.Outcome outcome = S3ConcurrencyLimiter.Outcome.ERROR;
+
+        if (limiter == null) {
+            executeS3Method(method);
+            return;
+        }
+
+        permit = limiter.acquire(bucketName, objectKey);
+        try {
+            executeS3Method(method);
+            outcome = S3ConcurrencyLimiter.Outcome.SUCCESS;
+        } catch (S3Exception e) {
+            outcome = S3ConcurrencyLimiter.outcomeFor(e);
+            throw e;
+        } finally {
+            permit.release(outcome);
+        }
+    }
+
+    /**
+     * Returns the endpoint URL used to key circuit breakers.
+     */
+    private String getEndpoint () {
+        String url = this.httpClient.getHostConfiguration().getHostURL();
+        return url != null ? url : "";
+    }
+
     /**
      * Execute the provided method, translating any error response into the
      * appropriate S3Exception.
@@ -565,25 +845,87 @@ public class S3Connection {
             statusCode < HttpStatus.SC_MULTIPLE_CHOICES)) {
             // Request failed, throw exception
             InputStream stream;
-            byte[] errorDoc = new byte[S3_MAX_ERROR_SIZE];
+            byte[] errorDoc;
 
             try {
+                // HEAD responses never include an error document.
                 stream = method.getResponseBodyAsStream();
-                if (stream == null) {
-                    // We should always receive a response!
-                    throw new S3Exception("S3 failed to return an error " +
-                        "response for HTTP status code: "+ statusCode);
-                }
-
-                stream.read(errorDoc, 0, errorDoc.length);
+                errorDoc = stream == null ? new byte[0] : readErrorDocument(method, stream);
             } catch (IOException ioe) {
                 throw new S3ClientException.NetworkException("Network error receiving S3 error response: " + ioe.getMessage(), ioe);
             }
 
-            throw S3ServerException.exceptionForS3Error(new String(errorDoc).trim());
+            throw exceptionForErrorResponse(statusCode, errorDoc);
         }
     }
 
+    /**
+     * Translate an error response into the appropriate S3Exception. Responses
+     * without an error document are identified by their HTTP status code, so
+     * that they may be handled (and retried) like their documented
+     * counterparts.
+     * @param statusCode The response's HTTP status code.
+     * @param errorDoc The response's error document, or an empty array.
+     */
+    static S3Exception exceptionForErrorResponse (int statusCode, byte[] errorDoc) {
+        if (errorDoc.length == 0) {
+            S3ServerException e = S3ServerException.exceptionForStatus(statusCode);
+            if (e == null) {
+                return new S3Exception("S3 failed to return an error " +
+                    "response for HTTP status code: " + statusCode);
+            }
+            return e;
+        }
+
+        /* Decode the document as a string, so that an unparseable document
+         * is included in the exception's message. */
+        try {
+            return S3ServerException.exceptionForS3Error(new String(errorDoc, "utf-8").trim());
+        } catch (UnsupportedEncodingException uee) {
+            // UTF-8 must always be supported.
+            throw new RuntimeException("Missing UTF8 encoding");
+        }
+    }
+
+    /**
+     * Read an error response body, retaining at most S3_MAX_ERROR_SIZE bytes.
+     * The remainder of the body is drained so that the connection may be
+     * re-used; if the body is unreasonably large, the method is aborted instead.
+     */
+    private static byte[] readErrorDocument (HttpMethod method, InputStream stream)
+        throws IOException
+    {
+        byte[] buffer = new byte[S3_MAX_ERROR_SIZE];
+        int length = 0;
+        long drained = 0;
+        int read;
+
+        /* Read the document, which may arrive in any number of chunks. */
+        while (length < buffer.length && (read = stream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+
+        /* Discard anything beyond it. */
+        if (length == buffer.length) {
+            byte[] discard = new byte[1024];
+            while ((read = stream.read(discard)) != -1) {
+                drained += read;
+                if (drained > S3_MAX_ERROR_DRAIN) {
+                    method.abort();
+                    break;
+                }
+            }
+        }
+
+        if (drained <= S3_MAX_ERROR_DRAIN) {
+            stream.close();
+        }
+
+        byte[] document = new byte[length];
+        System.arraycopy(buffer, 0, document, 0, length);
+        return document;
+    }
+
     /**
      * Pull the header value out of the HTTP method response.
      */
@@ -616,6 +958,12 @@ public class S3Connection {
     /** URL encoder. */
     private final URLCodec _urlEncoder = new URLCodec();
 
+    /** Adaptive concurrency limiter, or null. */
+    private volatile S3ConcurrencyLimiter _limiter;
+
+    /** Circuit breaker, or null. */
+    private volatile S3CircuitBreaker _breaker;
+
     /** Prefix parameter. */
     private static final String LIST_PREFIX_PARAMETER = "prefix";
 
@@ -628,8 +976,25 @@ public class S3Connection {
     /** Delimiter parameter. */
     private static final String LIST_DELIMITER_PARAMETER = "delimiter";
 
-    /** Maximum size of S3's error output. Should never be larger than 2k!!! */
-    private static final int S3_MAX_ERROR_SIZE = 2048;
+    /** List type parameter, used to select the version 2 listing API. */
+    private static final String LIST_TYPE_PARAMETER = "list-type";
+
+    /** Version 2 continuation token parameter. */
+    private static final String LIST_CONTINUATION_TOKEN_PARAMETER = "continuation-token";
+
+    /** Version 2 start-after parameter. */
+    private static final String LIST_START_AFTER_PARAMETER = "start-after";
+
+    /** Version 2 fetch-owner parameter. */
+    private static final String LIST_FETCH_OWNER_PARAMETER = "fetch-owner";
+
+    /** Maximum size of S3's error output that will be parsed. Most errors are
+     * well under 2k, but signature errors include the full string to sign. */
+    private static final int S3_MAX_ERROR_SIZE = 16384;
+
+    /** Maximum number of trailing error response bytes that will be discarded
+     * in order to re-use the connection. Larger responses abort the connection. */
+    private static final int S3_MAX_ERROR_DRAIN = 65536;
 
     /** Header for MD5 checksum validation. */
     private static final String CONTENT_MD5_HEADER = "Content-MD5";
@@ -637,6 +1002,9 @@ public class S3Connection {
     /** Last-Modified date header. */
     private static final String LAST_MODIFIED_HEADER = "Last-Modified";
 
+    /** Byte range request header. */
+    private static final String RANGE_HEADER = "Range";
+
     /** Mime Type Header. */
     private static final String CONTENT_TYPE_HEADER = "Content-Type";
 
@@ -122,6 +122,11 @@ public class S3FileObject extends S3Object {
         return _file.length();
     }
 
+    @Override // From S3Object
+    public boolean isReplayable () {
+        return true;
+    }
+
     /** File path. */
     private final File _file;
 }
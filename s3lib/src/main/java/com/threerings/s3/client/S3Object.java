@@ -135,6 +135,15 @@ public abstract class S3Object {
      * S3 Object.
      */
     public abstract long length ();
+
+    /**
+     * Returns true if getInputStream() may be called any number of times,
+     * each time returning a new stream positioned at the start of the data.
+     * Uploads of replayable objects may be safely retried.
+     */
+    public boolean isReplayable () {
+        return false;
+    }
     
     /** S3 object name. */
     private String _key;
@@ -88,7 +88,8 @@ public class S3ObjectEntry {
     }
 
     /**
-     * Returns the object's S3 Owner.
+     * Returns the object's S3 Owner, or null if the owner was not included in
+     * a version 2 listing.
      */
     public S3Owner getOwner () {
         return _owner;
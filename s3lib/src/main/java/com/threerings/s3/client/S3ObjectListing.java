@@ -32,16 +32,13 @@
 
 package com.threerings.s3.client;
 
-import com.threerings.s3.client.xml.S3ObjectListingHandler;
+import com.threerings.s3.client.xml.S3ObjectListingParser;
 
 import java.io.InputStream;
 import java.io.IOException;
 
 import java.util.List;
 
-import org.xml.sax.InputSource;
-import org.xml.sax.helpers.XMLReaderFactory;
-import org.xml.sax.XMLReader;
 import org.xml.sax.SAXException;
 
 /**
@@ -54,28 +51,66 @@ public class S3ObjectListing {
     public S3ObjectListing (InputStream dataStream)
         throws IOException, SAXException
     {
-        /* Configure our SAX parser. */
-        XMLReader xr = XMLReaderFactory.createXMLReader();
-        S3ObjectListingHandler handler = new S3ObjectListingHandler();
-        xr.setContentHandler(handler);
-        xr.setErrorHandler(handler);
+        this(dataStream, null);
+    }
 
+    /**
+     * Initialize an S3ObjectListing from the S3 XML GET bucket response,
+     * delivering each entry and common prefix to the given visitor as it is
+     * parsed. The entries and common prefixes are not retained; only the
+     * listing's pagination state is available from the returned instance.
+     *
+     * @param visitor Listing visitor, or null to retain all entries and
+     *  common prefixes.
+     */
+    public S3ObjectListing (InputStream dataStream, S3ObjectVisitor visitor)
+        throws IOException, SAXException
+    {
+        this(dataStream, visitor, false);
+    }
+
+    /**
+     * Initialize an S3ObjectListing from either a version 1 or a version 2
+     * (list-type=2) GET bucket response.
+     *
+     * @param visitor Listing visitor, or null to retain all entries and
+     *  common prefixes.
+     * @param version2 If true, the response is a version 2 listing: entries
+     *  need not include an owner, and pagination uses the server-supplied
+     *  continuation token rather than a reconstructed marker.
+     */
+    S3ObjectListing (InputStream dataStream, S3ObjectVisitor visitor, boolean version2)
+        throws IOException, SAXException
+    {
         /* Parse the XML. Will throw a SAXException if it fails. */
-        xr.parse(new InputSource(dataStream));
+        S3ObjectListingParser parser = new S3ObjectListingParser(!version2);
+        parser.parse(dataStream, visitor);
 
         /* Fetch the newly parsed data. */
-        _bucketName = handler.getBucketName();
-        _prefix = handler.getPrefix();
-        _marker = handler.getMarker();
-        _delimiter = handler.getDelimiter();
-        _maxKeys = handler.getMaxKeys();
-        _truncated = handler.getTruncated();
-        _nextMarker = handler.getNextMarker();
-        _entries = handler.getObjectEntries();
-        _commonPrefixes = handler.getCommonPrefixes();
+        _bucketName = parser.getBucketName();
+        _prefix = parser.getPrefix();
+        _marker = parser.getMarker();
+        _delimiter = parser.getDelimiter();
+        _maxKeys = parser.getMaxKeys();
+        _truncated = parser.getTruncated();
+        _nextMarker = parser.getNextMarker();
+        _entries = parser.getObjectEntries();
+        _commonPrefixes = parser.getCommonPrefixes();
+        _keyCount = parser.getKeyCount();
+        _continuationToken = parser.getContinuationToken();
+        _nextContinuationToken = parser.getNextContinuationToken();
+        _startAfter = parser.getStartAfter();
+
+        if (version2) {
+            /* A truncated version 2 listing can only be resumed with its token. */
+            if (_truncated && _nextContinuationToken == null) {
+                throw new SAXException("Truncated listing is missing NextContinuationToken");
+            }
+            return;
+        }
 
         /* Determine the correct nextMarker() value. */
-        determineNextMarker();
+        determineNextMarker(parser.getLastKey(), parser.getLastCommonPrefix());
     }
 
     /** Returns the request-echoed bucket name. */
@@ -112,17 +147,44 @@ public class S3ObjectListing {
         return _truncated;
     }
 
-    /** If the result was truncated, returns the next pagination marker. */
+    /** If the result was truncated, returns the next pagination marker.
+      * Always null for version 2 listings; see getNextContinuationToken(). */
     public String getNextMarker () {
         return _nextMarker;
     }
 
-    /** Returns the retrieved S3 entries. */
+    /** Returns the number of keys and common prefixes in a version 2
+      * listing, or -1 for a version 1 listing. */
+    public int getKeyCount () {
+        return _keyCount;
+    }
+
+    /** Returns the request-echoed continuation token of a version 2
+      * listing, or null. */
+    public String getContinuationToken () {
+        return _continuationToken;
+    }
+
+    /** If a version 2 listing was truncated, returns the opaque token to
+      * pass to the next listObjectsV2() request. Null otherwise. */
+    public String getNextContinuationToken () {
+        return _nextContinuationToken;
+    }
+
+    /** Returns the request-echoed start-after key of a version 2 listing,
+      * or null. */
+    public String getStartAfter () {
+        return _startAfter;
+    }
+
+    /** Returns the retrieved S3 entries. If the listing was delivered to an
+      * S3ObjectVisitor, the list will be empty. */
     public List<S3ObjectEntry> getEntries () {
         return _entries;
     }
 
-    /** Returns a list of common prefixes. */
+    /** Returns a list of common prefixes. If the listing was delivered to an
+      * S3ObjectVisitor, the list will be empty. */
     public List<String> getCommonPrefixes () {
         return _commonPrefixes;
     }
@@ -136,11 +198,11 @@ public class S3ObjectListing {
      *  marker = max(entries, commonPrefixes)
      *
      * See http://docs.amazonwebservices.com/AmazonS3/2006-03-01/ListingKeysPaginated.html
+     *
+     * @param lastKey The last listed object key, or null.
+     * @param lastPrefix The last listed common prefix, or null.
      */
-    private void determineNextMarker () {
-        String lastKey = null;
-        String lastPrefix = null;
-
+    private void determineNextMarker (String lastKey, String lastPrefix) {
         /* If the results were not truncated, we don't need a pagination marker. */
         if (!_truncated) {
             return;
@@ -152,22 +214,10 @@ public class S3ObjectListing {
         }
 
         /* If there are neither entries nor common prefixes, we can't do anything. */
-        if (_entries.size() <= 0 && _commonPrefixes.size() <= 0) {
+        if (lastKey == null && lastPrefix == null) {
             return;
         }
 
-
-        /* Retrieve the last object key */
-        if (_entries.size() > 0) {
-            S3ObjectEntry entry = _entries.get(_entries.size() - 1);
-            lastKey = entry.getKey();                
-        }
-
-        /* Retrieve the last common prefix */
-        if (_commonPrefixes.size() > 0) {
-            lastPrefix = _commonPrefixes.get(_commonPrefixes.size() - 1);
-        }
-
         /* If there are no entries, the prefix is the marker. */
         if (lastKey == null) {
             _nextMarker = lastPrefix;
@@ -219,6 +269,18 @@ public class S3ObjectListing {
      * event that the results are truncated. */
     private String _nextMarker = null;
 
+    /** Version 2 key count, or -1 for version 1 listings. */
+    private int _keyCount = -1;
+
+    /** Version 2 continuation token echoed from the request. */
+    private String _continuationToken = null;
+
+    /** Version 2 token for the next page, if truncated. */
+    private String _nextContinuationToken = null;
+
+    /** Version 2 start-after key echoed from the request. */
+    private String _startAfter = null;
+
     /** The list of object entries. */  
     private List<S3ObjectEntry> _entries;
 
@@ -0,0 +1,142 @@
+/* 
+ * S3RetryBudget vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+/**
+ * A token bucket that limits retries to a fraction of the overall request
+ * volume, so that retries can not amplify an outage.
+ *
+ * Each new operation deposits a fraction of a token, and each retry withdraws
+ * a whole token. Regardless of request volume, the bucket is also refilled at
+ * a small fixed rate, allowing low-volume clients to retry at all. Once the
+ * bucket is empty, retries are refused until it refills.
+ *
+ * A single budget is normally shared by all threads using a connection.
+ * S3RetryBudget instances are thread-safe.
+ */
+public class S3RetryBudget {
+    /**
+     * Create a budget with the default parameters: retries may amount to 10%
+     * of operations, plus one retry per second, with a burst capacity of 100.
+     */
+    public S3RetryBudget () {
+        this(DEFAULT_RETRY_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new retry budget. The budget starts full.
+     *
+     * @param retryRatio Tokens deposited by each operation; ie, the permitted
+     *  ratio of retries to operations.
+     * @param minRetriesPerSecond Tokens deposited per second, independent of
+     *  the operation rate.
+     * @param capacity Maximum number of tokens held.
+     */
+    public S3RetryBudget (double retryRatio, double minRetriesPerSecond, int capacity) {
+        if (retryRatio < 0 || minRetriesPerSecond < 0 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid retry budget: ratio=" + retryRatio +
+                ", minRetriesPerSecond=" + minRetriesPerSecond + ", capacity=" + capacity);
+        }
+
+        _retryRatio = retryRatio;
+        _minRetriesPerSecond = minRetriesPerSecond;
+        _capacity = capacity;
+        _tokens = capacity;
+        _lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Record the start of a new operation.
+     */
+    public synchronized void deposit () {
+        refill();
+        _tokens = Math.min(_capacity, _tokens + _retryRatio);
+    }
+
+    /**
+     * Attempt to withdraw a token for a single retry.
+     *
+     * @return true if the retry may proceed, false if the budget is exhausted.
+     */
+    public synchronized boolean tryWithdraw () {
+        refill();
+        if (_tokens < 1.0) {
+            return false;
+        }
+
+        _tokens -= 1.0;
+        return true;
+    }
+
+    /**
+     * Returns the number of whole tokens currently available.
+     */
+    public synchronized int getAvailable () {
+        refill();
+        return (int) _tokens;
+    }
+
+    /**
+     * Apply the time-based refill.
+     */
+    private void refill () {
+        long now = System.nanoTime();
+        double elapsed = (now - _lastRefill) / 1000000000.0;
+
+        _lastRefill = now;
+        _tokens = Math.min(_capacity, _tokens + elapsed * _minRetriesPerSecond);
+    }
+
+    /** Tokens deposited per operation. */
+    private final double _retryRatio;
+
+    /** Tokens deposited per second. */
+    private final double _minRetriesPerSecond;
+
+    /** Maximum number of tokens. */
+    private final int _capacity;
+
+    /** Available tokens. */
+    private double _tokens;
+
+    /** System.nanoTime() of the last time-based refill. */
+    private long _lastRefill;
+
+    /** Default ratio of retries to operations. */
+    public static final double DEFAULT_RETRY_RATIO = 0.1;
+
+    /** Default fixed retry rate. */
+    public static final double DEFAULT_MIN_RETRIES_PER_SECOND = 1.0;
+
+    /** Default capacity. */
+    public static final int DEFAULT_CAPACITY = 100;
+}
@@ -0,0 +1,252 @@
+/* 
+ * S3RetryPolicy vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.net.UnknownHostException;
+
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Determines whether, and when, a failed S3 operation should be retried.
+ *
+ * Failures are classified by exception type. Throttling, internal server
+ * errors, timeouts and most network failures are transient and are retried;
+ * errors that will not resolve themselves (AccessDenied, NoSuchBucket, a bad
+ * signature, an unknown host) are not.
+ *
+ * Retries are delayed using decorrelated jitter: each delay is chosen at
+ * random between the base delay and three times the previous delay, capped at
+ * the maximum delay. Unlike a fixed delay, this spreads out the retries of
+ * concurrent callers that failed at the same moment.
+ *
+ * Every retry must also be paid for from the policy's {@link S3RetryBudget},
+ * which is shared by all operations using the policy.
+ *
+ * S3RetryPolicy instances are thread-safe; per-operation state is held by
+ * the {@link Operation} returned from {@link #begin()}.
+ */
+public class S3RetryPolicy {
+    /**
+     * Create a retry policy with the default delays and a new default budget.
+     *
+     * @param maxRetries Maximum number of retries per operation.
+     */
+    public S3RetryPolicy (int maxRetries) {
+        this(maxRetries, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, new S3RetryBudget());
+    }
+
+    /**
+     * Create a new retry policy.
+     *
+     * @param maxRetries Maximum number of retries per operation.
+     * @param baseDelay Minimum delay before a retry, in milliseconds.
+     * @param maxDelay Maximum delay before a retry, in milliseconds.
+     * @param budget Retry budget, shared by all operations using this policy.
+     */
+    public S3RetryPolicy (int maxRetries, long baseDelay, long maxDelay, S3RetryBudget budget) {
+        if (maxRetries < 0 || baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("Invalid retry policy: maxRetries=" + maxRetries +
+                ", baseDelay=" + baseDelay + ", maxDelay=" + maxDelay);
+        }
+
+        _maxRetries = maxRetries;
+        _baseDelay = baseDelay;
+        _maxDelay = maxDelay;
+        _budget = budget;
+    }
+
+    /**
+     * Begin a new operation. The operation deposits its share into the
+     * retry budget.
+     */
+    public Operation begin () {
+        _budget.deposit();
+        return new Operation();
+    }
+
+    /** Returns the maximum number of retries per operation. */
+    public int getMaxRetries () {
+        return _maxRetries;
+    }
+
+    /** Returns the shared retry budget. */
+    public S3RetryBudget getBudget () {
+        return _budget;
+    }
+
+    /**
+     * Returns true if the exception represents a transient failure, and the
+     * operation may succeed if retried.
+     */
+    public boolean isRetryable (S3Exception e) {
+        if (e instanceof S3ServerException) {
+            return isRetryable((S3ServerException) e);
+        }
+
+        if (e instanceof S3ClientException.NetworkException) {
+            Throwable cause = e.getCause();
+
+            /* Misconfiguration, not transient failure. */
+            if (cause instanceof UnknownHostException ||
+                cause instanceof SSLHandshakeException ||
+                cause instanceof SSLPeerUnverifiedException)
+            {
+                return false;
+            }
+
+            /* Timeouts, refused and reset connections, truncated responses. */
+            return true;
+        }
+
+        /* Invalid requests, concurrency limits, and malformed responses. */
+        return false;
+    }
+
+    /**
+     * Returns true if the server error is transient.
+     */
+    private boolean isRetryable (S3ServerException e) {
+        if (e instanceof S3ServerException.SlowDownException ||
+            e instanceof S3ServerException.ServiceUnavailableException ||
+            e instanceof S3ServerException.InternalErrorException ||
+            e instanceof S3ServerException.RequestTimeoutException ||
+            e instanceof S3ServerException.OperationAbortedException ||
+            e instanceof S3ServerException.IncompleteBodyException ||
+            e instanceof S3ServerException.BadDigestException)
+        {
+            return true;
+        }
+
+        /* An error code we don't recognize may well be transient. All known codes
+         * that are not listed above are permanent. */
+        return e.getClass() == S3ServerException.class;
+    }
+
+    /**
+     * Returns the delay, in milliseconds, to wait before the next retry.
+     *
+     * @param previousDelay The previous delay, or 0 if this is the first retry.
+     */
+    public long nextDelay (long previousDelay) {
+        long upper = Math.min(_maxDelay, Math.max(_baseDelay, previousDelay) * 3);
+        if (upper <= _baseDelay) {
+            return _baseDelay;
+        }
+
+        return _baseDelay + (long) (_random.nextDouble() * (upper - _baseDelay));
+    }
+
+    /**
+     * Retry state for a single operation.
+     */
+    public class Operation {
+        /**
+         * Decide whether to retry after the given failure. If the operation
+         * may be retried, sleeps for the backoff delay and returns normally.
+         * Otherwise -- because the failure is permanent, the maximum number of
+         * retries has been reached, the retry budget is exhausted, or the
+         * thread was interrupted -- the provided exception is thrown.
+         */
+        public void retryOrThrow (S3Exception exception)
+            throws S3Exception
+        {
+            if (!shouldRetry(exception) || !backoff()) {
+                throw exception;
+            }
+        }
+
+        /**
+         * Returns true if the operation may be retried after the given failure,
+         * in which case the retry is counted and paid for from the budget. The
+         * caller must then call {@link #backoff()} before retrying.
+         */
+        public boolean shouldRetry (S3Exception exception) {
+            if (!isRetryable(exception) || _retries >= _maxRetries || !_budget.tryWithdraw()) {
+                return false;
+            }
+
+            _retries++;
+            _delay = nextDelay(_delay);
+            return true;
+        }
+
+        /**
+         * Sleep for the current backoff delay. Returns false if the thread was
+         * interrupted, leaving the interrupt status set.
+         */
+        public boolean backoff () {
+            try {
+                Thread.sleep(_delay);
+                return true;
+            } catch (InterruptedException e) {
+                /* Give up, leaving the interrupt for the caller. */
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /** Returns the number of retries performed. */
+        public int getRetryCount () {
+            return _retries;
+        }
+
+        /** Number of retries performed. */
+        private int _retries;
+
+        /** Previous delay, in milliseconds. */
+        private long _delay;
+    }
+
+    /** Maximum number of retries per operation. */
+    private final int _maxRetries;
+
+    /** Minimum retry delay, in milliseconds. */
+    private final long _baseDelay;
+
+    /** Maximum retry delay, in milliseconds. */
+    private final long _maxDelay;
+
+    /** Shared retry budget. */
+    private final S3RetryBudget _budget;
+
+    /** Jitter source. */
+    private final Random _random = new Random();
+
+    /** Default minimum retry delay, in milliseconds. */
+    public static final long DEFAULT_BASE_DELAY = 100;
+
+    /** Default maximum retry delay, in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY = 20 * 1000;
+}
@@ -0,0 +1,437 @@
+/* 
+ * S3RetryingConnection vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import com.threerings.s3.client.acl.AccessControlList;
+
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An S3Connection that transparently retries failed requests, according to
+ * an S3RetryPolicy.
+ *
+ * Requests are only retried when doing so is safe: GET, HEAD and DELETE
+ * requests are always retried, as is bucket creation. Object uploads are only
+ * retried if the S3Object's data can be replayed (see
+ * {@link S3Object#isReplayable()}), and listings delivered to an
+ * S3ObjectVisitor are only retried if the failure occurred before any entry
+ * was delivered.
+ *
+ * The latency and outcome of every attempt is recorded in the connection's
+ * {@link Statistics}, and may also be reported to a {@link Listener}.
+ *
+ * Every request is forwarded to the wrapped connection, so any behavior it
+ * adds (including a subclass's overrides) applies to each attempt. The
+ * convenience overloads inherited from S3Connection funnel through the
+ * forwarded methods, and the concurrency limiter and circuit breaker are
+ * those of the wrapped connection. S3RetryingConnection instances are
+ * thread-safe.
+ */
+public class S3RetryingConnection extends S3Connection {
+    /** Request types, used to categorize attempts. */
+    public static enum RequestType {
+        GET, HEAD, PUT, DELETE, LIST
+    }
+
+    /**
+     * Receives notification of every attempt made by the connection.
+     */
+    public static interface Listener {
+        /**
+         * Called on completion of each attempt.
+         *
+         * @param type The request type.
+         * @param bucketName The target bucket.
+         * @param objectKey The target key or listing prefix, or null.
+         * @param latency The attempt's latency, in nanoseconds.
+         * @param error The failure, or null if the attempt succeeded.
+         * @param willRetry True if the request will be retried.
+         */
+        public void attemptCompleted (RequestType type, String bucketName, String objectKey,
+            long latency, S3Exception error, boolean willRetry);
+    }
+
+    /**
+     * Wrap the given connection.
+     *
+     * @param connection The connection to wrap.
+     * @param policy The retry policy.
+     */
+    public S3RetryingConnection (S3Connection connection, S3RetryPolicy policy) {
+        super(connection);
+        _connection = connection;
+        _policy = policy;
+    }
+
+    /** Returns the wrapped connection. */
+    public S3Connection getConnection () {
+        return _connection;
+    }
+
+    /** Returns the retry policy. */
+    public S3RetryPolicy getRetryPolicy () {
+        return _policy;
+    }
+
+    /** Returns the per-attempt statistics. */
+    public Statistics getStatistics () {
+        return _statistics;
+    }
+
+    /**
+     * Returns the number of attempts made by the calling thread's most recent
+     * request through this connection, or 0 if it has made none. A request that
+     * succeeded (or failed) without being retried made a single attempt.
+     */
+    public int getLastAttempts () {
+        Integer attempts = _lastAttempts.get();
+        return attempts == null ? 0 : attempts;
+    }
+
+    /**
+     * Set the attempt listener.
+     * @param listener The listener, or null.
+     */
+    public void setListener (Listener listener) {
+        _listener = listener;
+    }
+
+    @Override // From S3Connection
+    public void createBucket (final String bucketName)
+        throws S3Exception
+    {
+        execute(RequestType.PUT, bucketName, null, new Attempt<Void>() {
+            public Void run () throws S3Exception {
+                _connection.createBucket(bucketName);
+                return null;
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public S3ObjectListing listObjects (final String bucketName, final String prefix, final String marker,
+        final int maxKeys, final String delimiter, S3ObjectVisitor visitor)
+        throws S3Exception
+    {
+        final CountingVisitor counter = visitor == null ? null : new CountingVisitor(visitor);
+        return execute(RequestType.LIST, bucketName, prefix, new Attempt<S3ObjectListing>() {
+            public S3ObjectListing run () throws S3Exception {
+                return _connection.listObjects(bucketName, prefix, marker, maxKeys,
+                    delimiter, counter);
+            }
+
+            @Override
+            public boolean isRetryable () {
+                return counter == null || counter.getCount() == 0;
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public S3ObjectListing listObjectsV2 (final String bucketName, final String prefix,
+        final String continuationToken, final String startAfter, final int maxKeys, final String delimiter,
+        final boolean fetchOwner, S3ObjectVisitor visitor)
+        throws S3Exception
+    {
+        final CountingVisitor counter = visitor == null ? null : new CountingVisitor(visitor);
+        return execute(RequestType.LIST, bucketName, prefix, new Attempt<S3ObjectListing>() {
+            public S3ObjectListing run () throws S3Exception {
+                return _connection.listObjectsV2(bucketName, prefix, continuationToken,
+                    startAfter, maxKeys, delimiter, fetchOwner, counter);
+            }
+
+            @Override
+            public boolean isRetryable () {
+                return counter == null || counter.getCount() == 0;
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public void deleteBucket (final String bucketName)
+        throws S3Exception
+    {
+        execute(RequestType.DELETE, bucketName, null, new Attempt<Void>() {
+            public Void run () throws S3Exception {
+                _connection.deleteBucket(bucketName);
+                return null;
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public void putObject (final String bucketName, final S3Object object,
+        final AccessControlList.StandardPolicy accessPolicy, final Map<String,String> headers)
+        throws S3Exception
+    {
+        execute(RequestType.PUT, bucketName, object.getKey(), new Attempt<Void>() {
+            public Void run () throws S3Exception {
+                _connection.putObject(bucketName, object, accessPolicy, headers);
+                return null;
+            }
+
+            @Override
+            public boolean isRetryable () {
+                return object.isReplayable();
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public S3Object getObject (final String bucketName, final String objectKey)
+        throws S3Exception
+    {
+        return execute(RequestType.GET, bucketName, objectKey, new Attempt<S3Object>() {
+            public S3Object run () throws S3Exception {
+                return _connection.getObject(bucketName, objectKey);
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public S3Object getObject (final String bucketName, final String objectKey, final long offset,
+        final long length)
+        throws S3Exception
+    {
+        return execute(RequestType.GET, bucketName, objectKey, new Attempt<S3Object>() {
+            public S3Object run () throws S3Exception {
+                return _connection.getObject(bucketName, objectKey, offset, length);
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public S3Object getObjectMetadata (final String bucketName, final String objectKey)
+        throws S3Exception
+    {
+        return execute(RequestType.HEAD, bucketName, objectKey, new Attempt<S3Object>() {
+            public S3Object run () throws S3Exception {
+                return _connection.getObjectMetadata(bucketName, objectKey);
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public void deleteObject (final String bucketName, final String objectKey)
+        throws S3Exception
+    {
+        execute(RequestType.DELETE, bucketName, objectKey, new Attempt<Void>() {
+            public Void run () throws S3Exception {
+                _connection.deleteObject(bucketName, objectKey);
+                return null;
+            }
+        });
+    }
+
+    @Override // From S3Connection
+    public void setConcurrencyLimiter (S3ConcurrencyLimiter limiter) {
+        _connection.setConcurrencyLimiter(limiter);
+    }
+
+    @Override // From S3Connection
+    public S3ConcurrencyLimiter getConcurrencyLimiter () {
+        return _connection.getConcurrencyLimiter();
+    }
+
+    @Override // From S3Connection
+    public void setCircuitBreaker (S3CircuitBreaker breaker) {
+        _connection.setCircuitBreaker(breaker);
+    }
+
+    @Override // From S3Connection
+    public S3CircuitBreaker getCircuitBreaker () {
+        return _connection.getCircuitBreaker();
+    }
+
+    /**
+     * Run the attempt until it succeeds, it may no longer be retried, or the
+     * retry policy gives up.
+     */
+    private <T> T execute (RequestType type, String bucketName, String objectKey, Attempt<T> attempt)
+        throws S3Exception
+    {
+        S3RetryPolicy.Operation operation = _policy.begin();
+        int attempts = 0;
+
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                attempts++;
+                try {
+                    T result = attempt.run();
+                    attemptCompleted(type, bucketName, objectKey, System.nanoTime() - start, null, false);
+                    return result;
+                } catch (S3Exception e) {
+                    long latency = System.nanoTime() - start;
+                    boolean willRetry = attempt.isRetryable() && operation.shouldRetry(e);
+
+                    attemptCompleted(type, bucketName, objectKey, latency, e, willRetry);
+                    if (!willRetry || !operation.backoff()) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            _lastAttempts.set(attempts);
+        }
+    }
+
+    /** Record an attempt, and notify the listener. */
+    private void attemptCompleted (RequestType type, String bucketName, String objectKey,
+        long latency, S3Exception error, boolean willRetry)
+    {
+        _statistics.record(type, latency, error != null);
+
+        Listener listener = _listener;
+        if (listener != null) {
+            listener.attemptCompleted(type, bucketName, objectKey, latency, error, willRetry);
+        }
+    }
+
+    /**
+     * A single request attempt.
+     */
+    private static abstract class Attempt<T> {
+        /** Perform the request. */
+        public abstract T run () throws S3Exception;
+
+        /** Returns true if the request may be repeated after a failure. */
+        public boolean isRetryable () {
+            return true;
+        }
+    }
+
+    /**
+     * Passes listing results through to a visitor, counting deliveries.
+     */
+    private static class CountingVisitor implements S3ObjectVisitor {
+        public CountingVisitor (S3ObjectVisitor visitor) {
+            _visitor = visitor;
+        }
+
+        public void visitEntry (S3ObjectEntry entry) {
+            _count++;
+            _visitor.visitEntry(entry);
+        }
+
+        public void visitCommonPrefix (String prefix) {
+            _count++;
+            _visitor.visitCommonPrefix(prefix);
+        }
+
+        public int getCount () {
+            return _count;
+        }
+
+        /** Wrapped visitor. */
+        private final S3ObjectVisitor _visitor;
+
+        /** Number of entries and prefixes delivered. */
+        private int _count;
+    }
+
+    /**
+     * Per-attempt counts and latencies, by request type. Thread-safe.
+     */
+    public static class Statistics {
+        /** Returns the number of attempts made. */
+        public long getAttempts (RequestType type) {
+            return _attempts.get(type.ordinal());
+        }
+
+        /** Returns the number of attempts that failed. */
+        public long getFailures (RequestType type) {
+            return _failures.get(type.ordinal());
+        }
+
+        /** Returns the total latency of all attempts, in nanoseconds. */
+        public long getTotalLatency (RequestType type) {
+            return _totalLatency.get(type.ordinal());
+        }
+
+        /** Returns the mean attempt latency, in nanoseconds, or 0 if no attempts were made. */
+        public long getMeanLatency (RequestType type) {
+            long attempts = getAttempts(type);
+            return attempts == 0 ? 0 : getTotalLatency(type) / attempts;
+        }
+
+        /** Returns the maximum attempt latency, in nanoseconds. */
+        public long getMaxLatency (RequestType type) {
+            return _maxLatency.get(type.ordinal());
+        }
+
+        /** Record a single attempt. */
+        void record (RequestType type, long latency, boolean failed) {
+            int index = type.ordinal();
+
+            _attempts.incrementAndGet(index);
+            if (failed) {
+                _failures.incrementAndGet(index);
+            }
+            _totalLatency.addAndGet(index, latency);
+
+            long max;
+            do {
+                max = _maxLatency.get(index);
+            } while (latency > max && !_maxLatency.compareAndSet(index, max, latency));
+        }
+
+        /** Attempts, by request type. */
+        private final AtomicLongArray _attempts = new AtomicLongArray(RequestType.values().length);
+
+        /** Failed attempts, by request type. */
+        private final AtomicLongArray _failures = new AtomicLongArray(RequestType.values().length);
+
+        /** Total latency, by request type. */
+        private final AtomicLongArray _totalLatency = new AtomicLongArray(RequestType.values().length);
+
+        /** Maximum latency, by request type. */
+        private final AtomicLongArray _maxLatency = new AtomicLongArray(RequestType.values().length);
+    }
+
+    /** Wrapped connection, to which all requests are forwarded. */
+    private final S3Connection _connection;
+
+    /** Retry policy. */
+    private final S3RetryPolicy _policy;
+
+    /** Attempt statistics. */
+    private final Statistics _statistics = new Statistics();
+
+    /** Attempt listener, or null. */
+    private volatile Listener _listener;
+
+    /** Number of attempts made by each thread's most recent request. */
+    private final ThreadLocal<Integer> _lastAttempts = new ThreadLocal<Integer>();
+}
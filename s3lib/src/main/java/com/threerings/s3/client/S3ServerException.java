@@ -34,20 +34,18 @@
 
 package com.threerings.s3.client;
 
-import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 
-import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.apache.commons.httpclient.HttpStatus;
 
 /** 
  * An exception that indicates a generic S3 error.
@@ -77,96 +75,128 @@ public class S3ServerException extends S3Exception
         _hostId = hostId;
     }
 
-    /**
-     * Extract the child node's text.
-     * @param node Paren node.
-     */
-    private static String _extractXmlChildText(Node node)
-    {
-        Node textNode = node.getFirstChild();
-        if (textNode == null)
-            return null;
-        return textNode.getNodeValue();
-    }
-
     /**
      * Convert an S3 XML error document into a S3ServerException instance.
      * @param documentString A string containing the XML error document.
      */
     public static S3ServerException exceptionForS3Error (String documentString) {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        Document doc;
-
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            doc = db.parse(new InputSource(new StringReader(documentString)));
-        } catch (ParserConfigurationException e) {
-            // This should not happen. Return a generic S3 exception
-            return new S3ServerException("Error (" + e + ") parsing S3 error " +
-                "document: '" + documentString + "'");
-        } catch (SAXException e) {
+            return exceptionForS3Error(INPUT_FACTORY.createXMLStreamReader(
+                new StringReader(documentString)));
+        } catch (XMLStreamException e) {
             // Return a generic exception
             return new S3ServerException("Error (" + e + ") parsing S3 error " +
                 "document: '" + documentString + "'");
-        } catch (IOException e) {
-            // This is not really possible
-            return new S3ServerException("I/O error (" + e + ") parsing S3 error " +
-                "document: '" + documentString + "'");
         }
-        
+    }
+
+    /**
+     * Convert an S3 XML error document into a S3ServerException instance,
+     * parsing the document directly from the provided stream. The stream is
+     * not closed.
+     * @param stream The XML error document.
+     */
+    public static S3ServerException exceptionForS3Error (InputStream stream) {
+        try {
+            return exceptionForS3Error(INPUT_FACTORY.createXMLStreamReader(stream));
+        } catch (XMLStreamException e) {
+            // Return a generic exception
+            return new S3ServerException("Error (" + e + ") parsing S3 error document");
+        }
+    }
+
+    /**
+     * Return the S3ServerException for an error response that carried no
+     * error document, as is always the case for HEAD requests, by its HTTP
+     * status code. Returns null if the status code does not identify the error.
+     * @param statusCode The response's HTTP status code.
+     */
+    public static S3ServerException exceptionForStatus (int statusCode) {
+        String message = "S3 returned HTTP status code " + statusCode + " without an error document";
+
+        switch (statusCode) {
+            case HttpStatus.SC_NOT_FOUND:
+                return new NoSuchKeyException(message, null, null);
+            case HttpStatus.SC_FORBIDDEN:
+                return new AccessDeniedException(message, null, null);
+            case HttpStatus.SC_PRECONDITION_FAILED:
+                return new PreconditionFailedException(message, null, null);
+            case HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE:
+                return new InvalidRangeException(message, null, null);
+            case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+                return new InternalErrorException(message, null, null);
+            case HttpStatus.SC_SERVICE_UNAVAILABLE:
+                /* S3 throttles with 503 Slow Down. */
+                return new SlowDownException(message, null, null);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Pull the error data out of the document, and instantiate the matching
+     * exception from the error code table.
+     */
+    private static S3ServerException exceptionForS3Error (XMLStreamReader reader)
+        throws XMLStreamException
+    {
         // Extract the error data. We ignore elements that we don't understand,
         // and the document structure API should be stable.
-        Node node;
         String code = null;
         String errorMessage = null;
         String requestId = null;
         String hostId = null;
 
-        for (node = doc.getDocumentElement().getFirstChild();
-            node != null;
-            node = node.getNextSibling()) {
-            
-            if (node.getNodeName().toLowerCase().equals("code")) {
-                code = _extractXmlChildText(node);
-                continue;
-            }
-            
-            if (node.getNodeName().toLowerCase().equals("message")) {
-                errorMessage = _extractXmlChildText(node);
-                continue;
-            }
-            
-            if (node.getNodeName().toLowerCase().equals("requestid")) {
-                requestId = _extractXmlChildText(node);
-                continue;
-            }
-            
-            if (node.getNodeName().toLowerCase().equals("hostid")) {
-                hostId = _extractXmlChildText(node);
-                continue;
-            }
-        }
-        
-        // Try to instantiate an exception
-        // This could use a static mapping, but exceptions are rare
-        // conditions and there's enough ugly generated code in here as it is.
         try {
-            Constructor<? extends S3ServerException> construct;
-            Class<? extends S3ServerException> cls;
-        	final Class<?> loadedClass;
+            reader.nextTag();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+
+                if (name.equalsIgnoreCase("code")) {
+                    code = reader.getElementText();
+                } else if (name.equalsIgnoreCase("message")) {
+                    errorMessage = reader.getElementText();
+                } else if (name.equalsIgnoreCase("requestid")) {
+                    requestId = reader.getElementText();
+                } else if (name.equalsIgnoreCase("hostid")) {
+                    hostId = reader.getElementText();
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } catch (XMLStreamException e) {
+            // A document truncated after its error code is still usable.
+            if (code == null) {
+                throw e;
+            }
+        } finally {
+            reader.close();
+        }
 
-            // This Class.forName('$') usage for static subclasses is broken, but necessary. See:
-            //     http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4378381
-            loadedClass = Class.forName("com.threerings.s3.client.S3ServerException$" + code + "Exception");
-            cls = loadedClass.asSubclass(S3ServerException.class);
+        ExceptionFactory factory = code == null ? null : FACTORIES.get(code);
+        if (factory == null) {
+            return new S3ServerException("An unhandled S3 error code was returned: " + code, requestId, hostId);
+        }
 
-            // Grab the constructor
-            construct = cls.getConstructor(new Class[] {String.class, String.class, String.class});
+        return factory.newException(errorMessage, requestId, hostId);
+    }
 
-            return construct.newInstance(new Object[] {errorMessage, requestId, hostId});
-        } catch (Exception e) {
-            return new S3ServerException("An unhandled S3 error code was returned: " + code, requestId, hostId);
-        }                
+    /**
+     * Skip the current element and all of its children, leaving the reader on
+     * the element's end tag.
+     */
+    private static void skipElement (XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
     }
 
     /** Get the Amazon S3 request ID. */
@@ -187,6 +217,254 @@ public class S3ServerException extends S3Exception
     /** Amazon S3 Host ID */
     private String _hostId;
 
+    /** Instantiates the S3ServerException subclass for a single S3 error code. */
+    private static interface ExceptionFactory {
+        public S3ServerException newException (String message, String requestId, String hostId);
+    }
+
+    /** S3 error code to exception factory table. */
+    private static final Map<String,ExceptionFactory> FACTORIES = new HashMap<String,ExceptionFactory>();
+
+    /** Shared StAX factory. Configured once, and safe for concurrent reader creation. */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        // The following was autogenerated from the list of exceptions below
+        // using the included genfactories.awk:
+        //     awk -F '\t' -f genfactories.awk <allerrors.txt
+        FACTORIES.put("AccessDenied", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new AccessDeniedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("AccountProblem", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new AccountProblemException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("AllAccessDisabled", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new AllAccessDisabledException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("AmbiguousGrantByEmailAddress", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new AmbiguousGrantByEmailAddressException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("OperationAborted", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new OperationAbortedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("BadDigest", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new BadDigestException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("BucketAlreadyExists", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new BucketAlreadyExistsException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("BucketNotEmpty", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new BucketNotEmptyException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("CredentialsNotSupported", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new CredentialsNotSupportedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("EntityTooLarge", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new EntityTooLargeException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("IncompleteBody", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new IncompleteBodyException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InternalError", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InternalErrorException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidAccessKeyId", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidAccessKeyIdException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidAddressingHeader", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidAddressingHeaderException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidArgument", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidArgumentException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidBucketName", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidBucketNameException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidDigest", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidDigestException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidRange", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidRangeException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidSecurity", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidSecurityException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidSOAPRequest", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidSOAPRequestException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidStorageClass", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidStorageClassException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidTargetBucketForLogging", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidTargetBucketForLoggingException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("KeyTooLong", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new KeyTooLongException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("InvalidURI", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new InvalidURIException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MalformedACLError", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MalformedACLErrorException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MalformedXMLError", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MalformedXMLErrorException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MaxMessageLengthExceeded", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MaxMessageLengthExceededException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MetadataTooLarge", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MetadataTooLargeException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MethodNotAllowed", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MethodNotAllowedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MissingAttachment", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MissingAttachmentException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MissingContentLength", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MissingContentLengthException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MissingSecurityElement", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MissingSecurityElementException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("MissingSecurityHeader", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new MissingSecurityHeaderException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("NoLoggingStatusForKey", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new NoLoggingStatusForKeyException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("NoSuchBucket", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new NoSuchBucketException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("NoSuchKey", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new NoSuchKeyException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("NotImplemented", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new NotImplementedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("NotSignedUp", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new NotSignedUpException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("PreconditionFailed", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new PreconditionFailedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("RequestTimeout", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new RequestTimeoutException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("RequestTimeTooSkewed", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new RequestTimeTooSkewedException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("RequestTorrentOfBucketError", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new RequestTorrentOfBucketErrorException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("SignatureDoesNotMatch", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new SignatureDoesNotMatchException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("ServiceUnavailable", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new ServiceUnavailableException(message, requestId, hostId);
+            }
+        });
+        FACTORIES.put("SlowDown", new ExceptionFactory() {
+            public S3ServerException newException (String message, String requestId, String hostId) {
+                return new SlowDownException(message, requestId, hostId);
+            }
+        });
+    }
+
 
     // The following was autogenerated from the list of exceptions, copied from
     // http://docs.amazonwebservices.com/AmazonS3/2006-03-01/ErrorCodeList.html
@@ -665,4 +943,26 @@ public class S3ServerException extends S3Exception
             super(message, requestId, hostId);
         }
     }
-}
\ No newline at end of file
+
+    /** Service is unable to handle request.  */
+    public static class ServiceUnavailableException extends S3ServerException {
+        public ServiceUnavailableException (String message) {
+            this(message, null, null);
+        }
+
+        public ServiceUnavailableException (String message, String requestId, String hostId) {
+            super(message, requestId, hostId);
+        }
+    }
+
+    /** Please reduce your request rate.  */
+    public static class SlowDownException extends S3ServerException {
+        public SlowDownException (String message) {
+            this(message, null, null);
+        }
+
+        public SlowDownException (String message, String requestId, String hostId) {
+            super(message, requestId, hostId);
+        }
+    }
+}
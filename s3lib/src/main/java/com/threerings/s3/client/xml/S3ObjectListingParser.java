@@ -0,0 +1,714 @@
+/* 
+ * S3ObjectListingParser vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client.xml;
+
+import com.threerings.s3.client.S3ObjectEntry;
+import com.threerings.s3.client.S3ObjectVisitor;
+import com.threerings.s3.client.S3Owner;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Parses S3 GET bucket XML responses with a pull (StAX) parser. Produces the same
+ * results as {@link S3ObjectListingHandler}, without the per-document SAX reader
+ * setup, per-element text buffers, or SimpleDateFormat timestamp parsing.
+ *
+ * Repeated values (storage classes and owners) are interned, so that large
+ * listings share a single instance of each.
+ *
+ * Entries and common prefixes may either be collected into lists, or delivered to an
+ * {@link S3ObjectVisitor} as soon as each is parsed.
+ *
+ * Both version 1 and version 2 (list-type=2) responses are accepted. Version 2
+ * responses omit each entry's Owner unless it was requested with fetch-owner;
+ * a parser constructed with requireOwner false accepts such entries, leaving
+ * their owner null.
+ *
+ * Instances are not thread-safe, but may be re-used to parse any number of documents.
+ * See http://docs.amazonwebservices.com/AmazonS3/2006-03-01/ListingKeysResponse.html
+ */
+public class S3ObjectListingParser {
+    /**
+     * Create a parser that requires every entry to include an Owner.
+     */
+    public S3ObjectListingParser () {
+        this(true);
+    }
+
+    /**
+     * Create a new parser.
+     *
+     * @param requireOwner If true, entries without an Owner are rejected. If false,
+     *  such entries are returned with a null owner.
+     */
+    public S3ObjectListingParser (boolean requireOwner) {
+        _requireOwner = requireOwner;
+    }
+
+    /**
+     * Parse a GET bucket XML response, collecting all entries and common prefixes.
+     * Any previously parsed results are discarded.
+     *
+     * @param input The response document.
+     * @throws SAXException If the document is malformed or a required element is missing.
+     * @throws IOException If reading from the input stream fails.
+     */
+    public void parse (InputStream input)
+        throws IOException, SAXException
+    {
+        parse(input, null);
+    }
+
+    /**
+     * Parse a GET bucket XML response, delivering each entry and common prefix to
+     * the given visitor as it is parsed. Entries and common prefixes are not
+     * retained, and {@link #getObjectEntries()} and {@link #getCommonPrefixes()}
+     * will return empty lists. Any previously parsed results are discarded.
+     *
+     * @param input The response document.
+     * @param visitor Listing visitor, or null to collect all entries and common
+     *  prefixes.
+     * @throws SAXException If the document is malformed or a required element is missing.
+     * @throws IOException If reading from the input stream fails.
+     */
+    public void parse (InputStream input, S3ObjectVisitor visitor)
+        throws IOException, SAXException
+    {
+        XMLStreamReader reader;
+
+        reset();
+        _visitor = visitor;
+
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(input);
+        } catch (XMLStreamException xse) {
+            throw translateException(xse);
+        }
+
+        try {
+            parseDocument(reader);
+        } catch (XMLStreamException xse) {
+            throw translateException(xse);
+        } finally {
+            _visitor = null;
+            try {
+                reader.close();
+            } catch (XMLStreamException xse) {
+                // Nothing to be done, and the underlying stream remains open.
+            }
+        }
+    }
+
+    public String getBucketName () {
+        return _bucketName;
+    }
+
+    public String getPrefix () {
+        return _prefix;
+    }
+
+    public String getMarker () {
+        return _marker;
+    }
+
+    public String getDelimiter () {
+        return _delimiter;
+    }
+
+    public int getMaxKeys () {
+        return _maxKeys;
+    }
+
+    public boolean getTruncated () {
+        return _truncated;
+    }
+
+    public String getNextMarker () {
+        return _nextMarker;
+    }
+
+    /** Returns the version 2 KeyCount, or -1 if not supplied. */
+    public int getKeyCount () {
+        return _keyCount;
+    }
+
+    /** Returns the version 2 request-echoed continuation token, or null. */
+    public String getContinuationToken () {
+        return _continuationToken;
+    }
+
+    /** Returns the version 2 next continuation token, or null. */
+    public String getNextContinuationToken () {
+        return _nextContinuationToken;
+    }
+
+    /** Returns the version 2 request-echoed start-after key, or null. */
+    public String getStartAfter () {
+        return _startAfter;
+    }
+
+    public List<S3ObjectEntry> getObjectEntries () {
+        return _entries;
+    }
+
+    public List<String> getCommonPrefixes () {
+        return _commonPrefixes;
+    }
+
+    /** Returns the last listed object key, or null if no objects were listed. */
+    public String getLastKey () {
+        return _lastKey;
+    }
+
+    /** Returns the last listed common prefix, or null if no common prefixes were listed. */
+    public String getLastCommonPrefix () {
+        return _lastCommonPrefix;
+    }
+
+    /**
+     * Parse an S3 ISO 8601 timestamp (eg, 2007-04-02T19:01:28.000Z), returning the
+     * time in milliseconds since the epoch. Fractional seconds are optional and
+     * truncated to milliseconds, and an explicit +hh:mm/-hh:mm zone offset is accepted
+     * in place of 'Z'.
+     */
+    public static long parseTimestamp (String text)
+        throws SAXException
+    {
+        final int length = text.length();
+        int pos;
+
+        if (length < 20 || text.charAt(4) != '-' || text.charAt(7) != '-' ||
+            text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            throw new SAXException("Unable to parse date: " + text);
+        }
+
+        final int year = parseDigits(text, 0, 4);
+        final int month = parseDigits(text, 5, 2);
+        final int day = parseDigits(text, 8, 2);
+        final int hour = parseDigits(text, 11, 2);
+        final int minute = parseDigits(text, 14, 2);
+        final int second = parseDigits(text, 17, 2);
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 ||
+            hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            throw new SAXException("Unable to parse date: " + text);
+        }
+
+        /* Optional fractional seconds. */
+        pos = 19;
+        int millis = 0;
+        if (text.charAt(pos) == '.') {
+            final int start = ++pos;
+            int scale = 100;
+            while (pos < length && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+                millis += (text.charAt(pos) - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+
+            if (pos == start) {
+                throw new SAXException("Unable to parse date: " + text);
+            }
+        }
+
+        /* Zone designator. */
+        long offset;
+        if (pos == length - 1 && text.charAt(pos) == 'Z') {
+            offset = 0L;
+        } else if (pos == length - 6 && (text.charAt(pos) == '+' || text.charAt(pos) == '-') &&
+            text.charAt(pos + 3) == ':')
+        {
+            final int offsetHours = parseDigits(text, pos + 1, 2);
+            final int offsetMinutes = parseDigits(text, pos + 4, 2);
+            if (offsetHours < 0 || offsetMinutes < 0) {
+                throw new SAXException("Unable to parse date: " + text);
+            }
+
+            offset = (offsetHours * 60L + offsetMinutes) * 60L * 1000L;
+            if (text.charAt(pos) == '-') {
+                offset = -offset;
+            }
+        } else {
+            throw new SAXException("Unable to parse date: " + text);
+        }
+
+        final long days = daysSinceEpoch(year, month, day);
+        return ((days * 24L + hour) * 60L + minute) * 60L * 1000L + second * 1000L + millis - offset;
+    }
+
+    /** Clear all parsed state. */
+    private void reset () {
+        _bucketName = null;
+        _prefix = null;
+        _marker = null;
+        _delimiter = null;
+        _maxKeys = 0;
+        _truncated = false;
+        _nextMarker = null;
+        _keyCount = -1;
+        _continuationToken = null;
+        _nextContinuationToken = null;
+        _startAfter = null;
+        _lastKey = null;
+        _lastCommonPrefix = null;
+
+        /* The lists are handed off to the caller, and thus can not be re-used. */
+        _entries = new ArrayList<S3ObjectEntry>();
+        _commonPrefixes = new ArrayList<String>();
+    }
+
+    /** Parse the ListBucketResult document. */
+    private void parseDocument (XMLStreamReader reader)
+        throws XMLStreamException, SAXException
+    {
+        /* Find the document element. */
+        reader.nextTag();
+        if (element(reader) != Element.LIST_BUCKET_RESULT) {
+            throw new UnsupportedElementException(reader.getLocalName());
+        }
+
+        /* Walk the ListBucketResult children. */
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (element(reader)) {
+                case CONTENTS:
+                    S3ObjectEntry entry = parseContents(reader);
+                    _lastKey = entry.getKey();
+                    if (_visitor != null) {
+                        _visitor.visitEntry(entry);
+                    } else {
+                        _entries.add(entry);
+                    }
+                    break;
+                case COMMON_PREFIXES:
+                    parseCommonPrefixes(reader);
+                    break;
+                case NAME:
+                    _bucketName = getElementString(reader);
+                    break;
+                case PREFIX:
+                    _prefix = getElementString(reader);
+                    break;
+                case MARKER:
+                    _marker = getElementString(reader);
+                    break;
+                case MAX_KEYS:
+                    _maxKeys = getElementInteger(reader);
+                    break;
+                case IS_TRUNCATED:
+                    /* Will not throw an exception, simply returns false. */
+                    _truncated = Boolean.parseBoolean(getElementString(reader));
+                    break;
+                case NEXT_MARKER:
+                    _nextMarker = getElementString(reader);
+                    break;
+                case DELIMITER:
+                    _delimiter = getElementString(reader);
+                    break;
+                case KEY_COUNT:
+                    _keyCount = getElementInteger(reader);
+                    break;
+                case CONTINUATION_TOKEN:
+                    _continuationToken = getElementString(reader);
+                    break;
+                case NEXT_CONTINUATION_TOKEN:
+                    _nextContinuationToken = getElementString(reader);
+                    break;
+                case START_AFTER:
+                    _startAfter = getElementString(reader);
+                    break;
+                default:
+                    throw new UnsupportedElementException(reader.getLocalName());
+            }
+        }
+
+        if (_bucketName == null) {
+            throw new MissingElementException("Name");
+        }
+    }
+
+    /** Parse a single Contents element, returning the validated entry. */
+    private S3ObjectEntry parseContents (XMLStreamReader reader)
+        throws XMLStreamException, SAXException
+    {
+        String key = null;
+        Date lastModified = null;
+        String eTag = null;
+        long size = -1;
+        String storageClass = null;
+        String ownerId = null;
+        String ownerDisplayName = null;
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (element(reader)) {
+                case KEY:
+                    key = getElementString(reader);
+                    break;
+                case LAST_MODIFIED:
+                    lastModified = new Date(parseTimestamp(getElementString(reader)));
+                    break;
+                case ETAG:
+                    /* ETags are in "hex checksum" format. We strip the leading
+                     * and trailing " */
+                    String value = getElementString(reader);
+                    eTag = value.substring(1, value.length() - 1);
+                    break;
+                case SIZE:
+                    size = getElementLongInteger(reader);
+                    break;
+                case STORAGE_CLASS:
+                    storageClass = intern(getElementString(reader));
+                    break;
+                case OWNER:
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        switch (element(reader)) {
+                            case ID:
+                                ownerId = getElementString(reader);
+                                break;
+                            case DISPLAY_NAME:
+                                ownerDisplayName = getElementString(reader);
+                                break;
+                            default:
+                                throw new UnsupportedElementException(reader.getLocalName());
+                        }
+                    }
+                    break;
+                default:
+                    throw new UnsupportedElementException(reader.getLocalName());
+            }
+        }
+
+        if (key == null) {
+            throw new MissingElementException("Key");
+        }
+
+        if (lastModified == null) {
+            throw new MissingElementException("LastModified");
+        }
+
+        if (eTag == null) {
+            throw new MissingElementException("ETag");
+        }
+
+        if (size == -1) {
+            throw new MissingElementException("Size");
+        }
+
+        if (ownerId == null) {
+            if (_requireOwner) {
+                throw new MissingElementException("Owner ID");
+            }
+
+            /* Version 2 listings omit the owner unless requested. */
+            return new S3ObjectEntry(key, lastModified, eTag, size, storageClass, null);
+        }
+
+        /* Display name might be missing. If so, we provide the ownerId */
+        if (ownerDisplayName == null) {
+            ownerDisplayName = ownerId;
+        }
+
+        return new S3ObjectEntry(key, lastModified, eTag, size, storageClass,
+            internOwner(ownerId, ownerDisplayName));
+    }
+
+    /** Parse a single CommonPrefixes element. */
+    private void parseCommonPrefixes (XMLStreamReader reader)
+        throws XMLStreamException, SAXException
+    {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (element(reader) == Element.PREFIX) {
+                String prefix = getElementString(reader);
+                _lastCommonPrefix = prefix;
+                if (_visitor != null) {
+                    _visitor.visitCommonPrefix(prefix);
+                } else {
+                    _commonPrefixes.add(prefix);
+                }
+            } else {
+                throw new UnsupportedElementException(reader.getLocalName());
+            }
+        }
+    }
+
+    /** Retrieve the current element's text value, leaving the reader on the element's end tag. */
+    private static String getElementString (XMLStreamReader reader)
+        throws XMLStreamException, SAXException
+    {
+        String text = reader.getElementText();
+
+        /* Sanity check the element text length */
+        if (text.length() > MAX_TEXT_LENGTH) {
+            throw new SAXException("Ridiculously large XML text field.");
+        }
+
+        return text;
+    }
+
+    /** Retrieve the current element's integer value. */
+    private static int getElementInteger (XMLStreamReader reader)
+        throws XMLStreamException, SAXException
+    {
+        String text = getElementString(reader);
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException nfe) {
+            throw new SAXException("Error parsing integer: " + text, nfe);
+        }
+    }
+
+    /** Retrieve the current element's long integer value. */
+    private static long getElementLongInteger (XMLStreamReader reader)
+        throws XMLStreamException, SAXException
+    {
+        String text = getElementString(reader);
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException nfe) {
+            throw new SAXException("Error parsing long integer: " + text, nfe);
+        }
+    }
+
+    /** Map the reader's current element to its Element constant. */
+    private static Element element (XMLStreamReader reader) {
+        Element element = ELEMENTS.get(reader.getLocalName());
+        if (element == null) {
+            return Element.UNKNOWN;
+        }
+        return element;
+    }
+
+    /**
+     * Parse a fixed-width run of decimal digits, returning -1 if a non-digit
+     * character is found.
+     */
+    private static int parseDigits (String text, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Return the number of days between 1970-01-01 and the given proleptic
+     * Gregorian date.
+     */
+    private static long daysSinceEpoch (long year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /** Return a shared instance of the given string, if the intern table has room for it. */
+    private static String intern (String value) {
+        String interned = INTERNED_STRINGS.get(value);
+        if (interned != null) {
+            return interned;
+        }
+
+        if (INTERNED_STRINGS.size() >= MAX_INTERNED) {
+            return value;
+        }
+
+        interned = INTERNED_STRINGS.putIfAbsent(value, value);
+        return interned != null ? interned : value;
+    }
+
+    /** Return a shared S3Owner instance for the given owner, if the intern table has room for it. */
+    private static S3Owner internOwner (String id, String displayName) {
+        S3Owner owner = INTERNED_OWNERS.get(id);
+        if (owner != null && owner.getDisplayName().equals(displayName)) {
+            return owner;
+        }
+
+        owner = new S3Owner(id, displayName);
+        if (INTERNED_OWNERS.size() < MAX_INTERNED) {
+            INTERNED_OWNERS.put(id, owner);
+        }
+        return owner;
+    }
+
+    /** Convert a StAX exception to a SAXException, re-throwing any wrapped IOException. */
+    private static SAXException translateException (XMLStreamException xse)
+        throws IOException
+    {
+        if (xse.getNestedException() instanceof IOException) {
+            throw (IOException) xse.getNestedException();
+        }
+        return new SAXException("Error parsing XML: " + xse.getMessage(), xse);
+    }
+
+    /** Known ListBucketResult element names. */
+    private static enum Element {
+        LIST_BUCKET_RESULT("ListBucketResult"),
+        NAME("Name"),
+        PREFIX("Prefix"),
+        MARKER("Marker"),
+        MAX_KEYS("MaxKeys"),
+        IS_TRUNCATED("IsTruncated"),
+        NEXT_MARKER("NextMarker"),
+        DELIMITER("Delimiter"),
+        KEY_COUNT("KeyCount"),
+        CONTINUATION_TOKEN("ContinuationToken"),
+        NEXT_CONTINUATION_TOKEN("NextContinuationToken"),
+        START_AFTER("StartAfter"),
+        CONTENTS("Contents"),
+        KEY("Key"),
+        LAST_MODIFIED("LastModified"),
+        ETAG("ETag"),
+        SIZE("Size"),
+        STORAGE_CLASS("StorageClass"),
+        OWNER("Owner"),
+        ID("ID"),
+        DISPLAY_NAME("DisplayName"),
+        COMMON_PREFIXES("CommonPrefixes"),
+        UNKNOWN(null);
+
+        Element (String name) {
+            _name = name;
+        }
+
+        /** XML element local name. */
+        private final String _name;
+    }
+
+    /** ListBucketResult.Name */
+    private String _bucketName;
+
+    /** ListBucketResult.Prefix */
+    private String _prefix;
+
+    /** ListBucketResult.Marker */
+    private String _marker;
+
+    /** ListBucketResult.Delimiter */
+    private String _delimiter;
+
+    /** ListBucketResult.MaxKeys */
+    private int _maxKeys;
+
+    /** ListBucketResult.IsTruncated */
+    private boolean _truncated;
+
+    /** ListBucketResult.NextMarker */
+    private String _nextMarker;
+
+    /** ListBucketResult.KeyCount (version 2), or -1 */
+    private int _keyCount;
+
+    /** ListBucketResult.ContinuationToken (version 2) */
+    private String _continuationToken;
+
+    /** ListBucketResult.NextContinuationToken (version 2) */
+    private String _nextContinuationToken;
+
+    /** ListBucketResult.StartAfter (version 2) */
+    private String _startAfter;
+
+    /** All ListBucketResult.Contents */
+    private List<S3ObjectEntry> _entries;
+
+    /** All ListBucketResult.CommonPrefixes */
+    private List<String> _commonPrefixes;
+
+    /** Last ListBucketResult.Contents.Key */
+    private String _lastKey;
+
+    /** Last ListBucketResult.CommonPrefixes.Prefix */
+    private String _lastCommonPrefix;
+
+    /** Listing visitor, or null if entries and prefixes are being collected. */
+    private S3ObjectVisitor _visitor;
+
+    /** If true, entries without an Owner are rejected. */
+    private final boolean _requireOwner;
+
+    /** Maximum permitted element text length. */
+    private static final int MAX_TEXT_LENGTH = 16384;
+
+    /** Maximum number of entries held by each intern table. */
+    private static final int MAX_INTERNED = 1024;
+
+    /** Element local name to Element mapping. */
+    private static final Map<String,Element> ELEMENTS = new HashMap<String,Element>();
+
+    /** Interned storage class strings. */
+    private static final ConcurrentHashMap<String,String> INTERNED_STRINGS =
+        new ConcurrentHashMap<String,String>();
+
+    /** Interned owners, by owner ID. */
+    private static final ConcurrentHashMap<String,S3Owner> INTERNED_OWNERS =
+        new ConcurrentHashMap<String,S3Owner>();
+
+    /** Shared StAX factory. Configured once, and safe for concurrent reader creation. */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static {
+        for (Element element : Element.values()) {
+            if (element._name != null) {
+                ELEMENTS.put(element._name, element);
+            }
+        }
+
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+}
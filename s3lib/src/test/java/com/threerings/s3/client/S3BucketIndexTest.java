@@ -0,0 +1,193 @@
+/* 
+ * S3BucketIndexTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3BucketIndexTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _indexFile = File.createTempFile("S3BucketIndexTest", ".idx");
+
+        List<S3ObjectEntry> entries = new ArrayList<S3ObjectEntry>();
+        for (String key : KEYS) {
+            entries.add(createEntry(key));
+        }
+        _index = write(_indexFile, "test-bucket", "logs/", null, entries);
+    }
+
+    @After
+    public void tearDown () {
+        _indexFile.delete();
+    }
+
+    @Test
+    public void testLookup ()
+        throws Exception
+    {
+        assertEquals(KEYS.length, _index.size());
+        assertEquals("test-bucket", _index.getBucketName());
+        assertEquals("logs/", _index.getPrefix());
+
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(i, _index.find(KEYS[i]));
+            assertEquals(KEYS[i], _index.getKey(i));
+            assertEquals(KEYS[i].length(), _index.getSize(KEYS[i]));
+            assertEquals(1175540488000L + KEYS[i].length(), _index.getLastModified(i));
+        }
+
+        assertFalse(_index.contains("logs/2009/01"));
+        assertEquals(-1L, _index.getSize("logs/2009/01"));
+        assertEquals(-1, _index.find("a"));
+        assertEquals(-KEYS.length - 1, _index.find("zzz"));
+    }
+
+    @Test
+    public void testPrefixRange ()
+        throws Exception
+    {
+        assertEquals(1, _index.startOf("logs/2009/"));
+        assertEquals(4, _index.endOf("logs/2009/"));
+        assertEquals(4, _index.startOf("logs/2010/"));
+        assertEquals(4, _index.endOf("logs/2010/"));
+        assertEquals(0, _index.startOf(""));
+        assertEquals(KEYS.length, _index.endOf(""));
+    }
+
+    @Test
+    public void testReopenAndAppend ()
+        throws Exception
+    {
+        List<S3ObjectEntry> entries = new ArrayList<S3ObjectEntry>();
+        entries.add(createEntry("logs/\u00ff/next"));
+
+        S3BucketIndex appended = write(_indexFile, "test-bucket", "logs/", _index, entries);
+        assertEquals(KEYS.length + 1, appended.size());
+        assertEquals(KEYS.length, appended.find("logs/\u00ff/next"));
+
+        /* The existing entries are carried over. */
+        S3BucketIndex reopened = S3BucketIndex.open(_indexFile);
+        assertEquals(KEYS.length + 1, reopened.size());
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(KEYS[i], reopened.getKey(i));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testUnsortedEntries ()
+        throws Exception
+    {
+        List<S3ObjectEntry> entries = new ArrayList<S3ObjectEntry>();
+        entries.add(createEntry("logs/a"));
+        entries.add(createEntry("logs/"));
+        write(_indexFile, "test-bucket", "logs/", null, entries);
+    }
+
+    @Test
+    public void testWindowedEntries ()
+        throws Exception
+    {
+        /* Map the entry table four entries at a time; the last window is partial. */
+        S3BucketIndex index = new S3BucketIndex(_indexFile, 4);
+
+        assertEquals(KEYS.length, index.size());
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(i, index.find(KEYS[i]));
+            assertEquals(KEYS[i], index.getKey(i));
+            assertEquals(KEYS[i].length(), index.getSize(i));
+            assertEquals(1175540488000L + KEYS[i].length(), index.getLastModified(i));
+        }
+
+        /* Appending copies every window. */
+        List<S3ObjectEntry> entries = new ArrayList<S3ObjectEntry>();
+        entries.add(createEntry("logs/\u00ff/next"));
+        S3BucketIndex appended = write(_indexFile, "test-bucket", "logs/", index, entries);
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(KEYS[i], appended.getKey(i));
+        }
+    }
+
+    /**
+     * Write an index file from the given sorted entries, optionally preceded by
+     * all of the entries of an existing index.
+     */
+    private static S3BucketIndex write (File file, String bucketName, String prefix,
+        S3BucketIndex base, List<S3ObjectEntry> entries)
+        throws IOException
+    {
+        S3BucketIndex.Writer writer = new S3BucketIndex.Writer(file, bucketName, prefix);
+        try {
+            if (base != null) {
+                writer.addIndex(base);
+            }
+
+            for (S3ObjectEntry entry : entries) {
+                writer.add(entry);
+            }
+            return writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Create a test entry. */
+    private static S3ObjectEntry createEntry (String key) {
+        return new S3ObjectEntry(key, new Date(1175540488000L + key.length()),
+            "65a8e27d8879283831b664bd8b7f0ad4", key.length(), "STANDARD", null);
+    }
+
+    /** Index file. */
+    private File _indexFile;
+
+    /** Test index. */
+    private S3BucketIndex _index;
+
+    /** Test keys, in UTF-8 byte order. */
+    private static final String[] KEYS = {
+        "logs/",
+        "logs/2009/03/10.log",
+        "logs/2009/03/11.log",
+        "logs/2009/\u00e9t\u00e9.log",
+        "logs/2011/01/01.log",
+        "logs/\u00ff"
+    };
+}
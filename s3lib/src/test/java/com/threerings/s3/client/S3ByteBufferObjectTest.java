@@ -0,0 +1,89 @@
+/* 
+ * S3ByteBufferObjectTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ByteBufferObjectTest
+{
+    @Test
+    public void testHeapBuffer ()
+        throws Exception
+    {
+        checkObject(new S3ByteBufferObject("aKey", ByteBuffer.wrap(TEST_DATA.getBytes("utf8"))));
+    }
+
+    @Test
+    public void testDirectBuffer ()
+        throws Exception
+    {
+        byte[] data = TEST_DATA.getBytes("utf8");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+        buffer.put(data);
+        buffer.flip();
+
+        checkObject(new S3ByteBufferObject("aKey", buffer));
+
+        /* The source buffer is left untouched. */
+        assertEquals(0, buffer.position());
+        assertEquals(data.length, buffer.limit());
+    }
+
+    protected void checkObject (S3ByteBufferObject obj)
+        throws Exception
+    {
+        assertEquals(TEST_DATA.length(), obj.length());
+        assertEquals(TEST_DATA_MD5, new String(Hex.encodeHex(obj.getMD5())));
+        assertTrue(obj.isReplayable());
+
+        /* Each stream reads the complete data. */
+        for (int i = 0; i < 2; i++) {
+            InputStream input = obj.getInputStream();
+            assertEquals(TEST_DATA, new String(IOUtils.toByteArray(input), "utf8"));
+            assertEquals(-1, input.read());
+        }
+    }
+
+    /** Test data. */
+    protected static final String TEST_DATA = "Hello, World!";
+    
+    /** Pre-computed MD5 Checksum for test data. */
+    protected static final String TEST_DATA_MD5 = "65a8e27d8879283831b664bd8b7f0ad4";
+}
@@ -0,0 +1,223 @@
+/* 
+ * S3CircuitBreakerTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3CircuitBreakerTest {
+    @Test
+    public void testOpensOnFailureRate ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 0.5, 1000, 1.0, 10, 4, 60000, 1);
+
+        breaker.acquire(ENDPOINT, "bucket").complete(null);
+        breaker.acquire(ENDPOINT, "bucket").complete(null);
+        breaker.acquire(ENDPOINT, "bucket").complete(networkError());
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT, "bucket"));
+
+        /* Two failures in four requests reaches the threshold. */
+        breaker.acquire(ENDPOINT, "bucket").complete(networkError());
+        assertEquals(S3CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT, "bucket"));
+
+        try {
+            breaker.acquire(ENDPOINT, "other");
+            fail("Open breaker admitted a request");
+        } catch (S3ClientException.CircuitOpenException e) {
+            // Expected
+        }
+
+        /* Other endpoints are unaffected. */
+        breaker.acquire("https://other:443", "bucket").complete(null);
+    }
+
+    @Test
+    public void testClientErrorsAreNotFailures ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 0.5, 1000, 1.0, 10, 2, 60000, 1);
+
+        for (int i = 0; i < 10; i++) {
+            breaker.acquire(ENDPOINT, null).complete(
+                new S3ServerException.NoSuchKeyException("missing", null, null));
+        }
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT, null));
+
+        assertTrue(S3CircuitBreaker.isFailure(
+            new S3ServerException.ServiceUnavailableException("down", null, null)));
+        assertTrue(S3CircuitBreaker.isFailure(new S3ServerException("unknown", null, null)));
+        assertFalse(S3CircuitBreaker.isFailure(
+            new S3ServerException.AccessDeniedException("denied", null, null)));
+        assertFalse(S3CircuitBreaker.isFailure(new S3ClientException("client")));
+    }
+
+    @Test
+    public void testOpensOnSlowCalls ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 1.0, 1000, 0.5, 10, 2, 60000, 1);
+        long slow = System.nanoTime() + 2000L * 1000L * 1000L;
+
+        breaker.acquire(ENDPOINT, null).complete(false, slow);
+        breaker.acquire(ENDPOINT, null).complete(false, slow);
+        assertEquals(S3CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT, null));
+    }
+
+    @Test
+    public void testHalfOpenProbes ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 0.5, 1000, 1.0, 10, 1, 0, 2);
+
+        breaker.acquire(ENDPOINT, null).complete(networkError());
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT, null));
+
+        /* Only two probes are admitted. */
+        S3CircuitBreaker.Call p1 = breaker.acquire(ENDPOINT, null);
+        S3CircuitBreaker.Call p2 = breaker.acquire(ENDPOINT, null);
+        try {
+            breaker.acquire(ENDPOINT, null);
+            fail("Half-open breaker admitted too many probes");
+        } catch (S3ClientException.CircuitOpenException e) {
+            // Expected
+        }
+
+        /* A failed probe re-opens the breaker. */
+        p1.complete(null);
+        p2.complete(networkError());
+
+        /* Both probes must now succeed to close the breaker. */
+        p1 = breaker.acquire(ENDPOINT, null);
+        p2 = breaker.acquire(ENDPOINT, null);
+        p1.complete(null);
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT, null));
+        p2.complete(null);
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT, null));
+    }
+
+    @Test
+    public void testPerBucket ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker(true, 0.5, 1000, 1.0, 10, 1, 60000, 1);
+
+        breaker.acquire(ENDPOINT, "bad").complete(networkError());
+        assertEquals(S3CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT, "bad"));
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT, "good"));
+        breaker.acquire(ENDPOINT, "good").complete(null);
+    }
+
+    @Test
+    public void testStaleCallsIgnored ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 0.5, 1000, 1.0, 10, 1, 0, 1);
+        S3CircuitBreaker.Call stale = breaker.acquire(ENDPOINT, null);
+
+        breaker.acquire(ENDPOINT, null).complete(networkError());
+        S3CircuitBreaker.Call probe = breaker.acquire(ENDPOINT, null);
+
+        /* A call admitted while closed does not count as a probe. */
+        stale.complete(networkError());
+        probe.complete(null);
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT, null));
+    }
+
+    @Test
+    public void testConnectionRejects ()
+        throws Exception
+    {
+        S3Connection conn = new S3Connection("id", "key",
+            S3Utils.createHostConfig("127.0.0.1", 1, Protocol.getProtocol("http")));
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 0.5, 1000, 1.0, 10, 1, 60000, 1);
+        conn.setCircuitBreaker(breaker);
+
+        /* The local port refuses the connection, opening the breaker. */
+        try {
+            conn.getObjectMetadata("bucket", "key");
+            fail("Request succeeded");
+        } catch (S3ClientException.NetworkException e) {
+            // Expected
+        }
+
+        try {
+            conn.getObjectMetadata("bucket", "key");
+            fail("Open breaker admitted a request");
+        } catch (S3ClientException.CircuitOpenException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUncheckedFailure ()
+        throws Exception
+    {
+        S3Connection conn = new S3Connection("id", "key",
+            S3Utils.createHostConfig("127.0.0.1", 1, Protocol.getProtocol("http")));
+        S3CircuitBreaker breaker = new S3CircuitBreaker(false, 0.5, 1000, 1.0, 10, 1, 0, 1);
+        conn.setCircuitBreaker(breaker);
+        conn.setConcurrencyLimiter(new S3ConcurrencyLimiter() {
+            @Override // From S3ConcurrencyLimiter
+            public Permit acquire (String bucketName, String objectKey) {
+                throw new IllegalStateException("failed");
+            }
+        });
+
+        breaker.acquire(LOCAL_ENDPOINT, null).complete(networkError());
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState(LOCAL_ENDPOINT, null));
+
+        try {
+            conn.getObjectMetadata("bucket", "key");
+            fail("Request succeeded");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        /* The failed probe did not close the breaker. */
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState(LOCAL_ENDPOINT, null));
+    }
+
+    protected S3Exception networkError () {
+        return new S3ClientException.NetworkException("failed", new IOException("failed"));
+    }
+
+    /** Test endpoint. */
+    protected static final String ENDPOINT = "https://s3.amazonaws.com:443";
+
+    /** Local test endpoint, as reported by HostConfiguration. */
+    protected static final String LOCAL_ENDPOINT = "http://127.0.0.1:1";
+}
@@ -0,0 +1,163 @@
+/* 
+ * S3ColumnarListingTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ColumnarListingTest {
+    @Before
+    public void setUp () {
+        /* Use a tiny key heap page size, to exercise keys spanning pages. */
+        _listing = new S3ColumnarListing(6);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            _listing.add(createEntry(i));
+        }
+    }
+
+    @Test
+    public void testCursor () {
+        S3ColumnarListing.Cursor cursor = _listing.cursor();
+        int count = 0;
+
+        while (cursor.next()) {
+            assertEqualEntries(createEntry(count), cursor.toEntry());
+            assertEquals(count, cursor.index());
+            count++;
+        }
+
+        assertEquals(ENTRY_COUNT, count);
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testSeek () {
+        S3ColumnarListing.Cursor cursor = _listing.cursor();
+        int[] indexes = { 500, 3, 17, 16, 15, 999, 0, 501, 502, 600 };
+
+        for (int index : indexes) {
+            cursor.seek(index);
+            assertEquals(index, cursor.index());
+            assertEquals(createEntry(index).getKey(), cursor.getKey());
+        }
+
+        /* Iteration continues from the sought position. */
+        cursor.seek(997);
+        assertTrue(cursor.next());
+        assertEquals(createEntry(998).getKey(), cursor.getKey());
+    }
+
+    @Test
+    public void testEntryList () {
+        List<S3ObjectEntry> entries = _listing.asEntryList();
+        assertEquals(ENTRY_COUNT, entries.size());
+        assertEqualEntries(createEntry(42), entries.get(42));
+        assertEqualEntries(createEntry(42), _listing.getEntry(42));
+    }
+
+    @Test
+    public void testETagDigest () {
+        S3ColumnarListing.Cursor cursor = _listing.cursor();
+        byte[] digest = new byte[16];
+
+        /* Plain MD5 */
+        cursor.seek(2);
+        assertTrue(cursor.getETagDigest(digest, 0));
+        assertEquals((byte) 0xde, digest[0]);
+
+        /* Multipart ETag */
+        cursor.seek(7);
+        assertFalse(cursor.getETagDigest(digest, 0));
+        assertEquals(createEntry(7).getETag(), cursor.getETag());
+    }
+
+    @Test
+    public void testTrimToSize () {
+        _listing.trimToSize();
+        assertEqualEntries(createEntry(ENTRY_COUNT - 1), _listing.getEntry(ENTRY_COUNT - 1));
+
+        /* Appending after trimming must still work. */
+        _listing.add(createEntry(ENTRY_COUNT));
+        assertEqualEntries(createEntry(ENTRY_COUNT), _listing.getEntry(ENTRY_COUNT));
+    }
+
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testInvalidIndex () {
+        _listing.getEntry(ENTRY_COUNT);
+    }
+
+    /** Generate a test entry. */
+    private static S3ObjectEntry createEntry (int index) {
+        String eTag;
+        if (index % 7 == 0 && index > 0) {
+            eTag = "9b2cf535f27731c974343645a3985328-" + index;
+        } else {
+            eTag = String.format("de%030x", index);
+        }
+
+        String storageClass = index % 5 == 0 ? null : (index % 2 == 0 ? "STANDARD" : "GLACIER");
+        S3Owner owner = index % 11 == 0 ? null : OWNERS[index % OWNERS.length];
+
+        return new S3ObjectEntry(String.format("logs/2009/\u00e9t\u00e9/%06d.log", index),
+            new Date(1175540488000L + index), eTag, index * 1031L, storageClass, owner);
+    }
+
+    /** Validate that two entries are equal. */
+    private static void assertEqualEntries (S3ObjectEntry expected, S3ObjectEntry actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getLastModified(), actual.getLastModified());
+        assertEquals(expected.getETag(), actual.getETag());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getStorageClass(), actual.getStorageClass());
+        if (expected.getOwner() == null) {
+            assertNull(actual.getOwner());
+        } else {
+            assertEquals(expected.getOwner().getId(), actual.getOwner().getId());
+            assertEquals(expected.getOwner().getDisplayName(), actual.getOwner().getDisplayName());
+        }
+    }
+
+    /** Test listing. */
+    private S3ColumnarListing _listing;
+
+    /** Number of test entries. */
+    private static final int ENTRY_COUNT = 1000;
+
+    /** Test owners. */
+    private static final S3Owner[] OWNERS = {
+        new S3Owner("a59a930aa2b83ac8f7164e4a541d4d5f67ef3c87750011cc82bda1f5827d1ebd", "landonfuller"),
+        new S3Owner("1e0a1d2f8bf1bde1e3bb3e4e1e6b8e8f9d3f2c1b0a9f8e7d6c5b4a3928171605", "other")
+    };
+}
@@ -0,0 +1,269 @@
+/* 
+ * S3ConcurrencyLimiterTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ConcurrencyLimiterTest {
+    @Test
+    public void testFailFast ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 2, 1, 8, 0);
+
+        S3ConcurrencyLimiter.Permit p1 = limiter.acquire("bucket", "a");
+        limiter.acquire("bucket", "b");
+        assertEquals(2, limiter.getInFlight("bucket", null));
+
+        try {
+            limiter.acquire("bucket", "c");
+            fail("Limit was not enforced");
+        } catch (S3ClientException.ConcurrencyLimitException e) {
+            // Expected
+        }
+
+        /* Other buckets are unaffected. */
+        limiter.acquire("other", "a");
+
+        p1.release(S3ConcurrencyLimiter.Outcome.ERROR);
+        limiter.acquire("bucket", "c");
+    }
+
+    @Test
+    public void testPrefixPartitions ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 1, 1, 8, 4);
+
+        limiter.acquire("bucket", "logs/1");
+        limiter.acquire("bucket", "data/1");
+        assertEquals(1, limiter.getInFlight("bucket", "logs/2"));
+        assertEquals(1, limiter.getInFlight("bucket", "data/2"));
+
+        try {
+            limiter.acquire("bucket", "logs/2");
+            fail("Limit was not enforced");
+        } catch (S3ClientException.ConcurrencyLimitException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testIdlePartitionsDiscarded ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 1, 1, 8, 4);
+        S3ConcurrencyLimiter.Permit held = limiter.acquire("bucket", "busy/1");
+
+        for (int i = 0; i < S3ConcurrencyLimiter.MAX_PARTITIONS * 4; i++) {
+            String key = String.format("%04x/1", i);
+            limiter.acquire("bucket", key).release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        }
+        assertTrue(limiter.getPartitionCount() <= S3ConcurrencyLimiter.MAX_PARTITIONS + 1);
+
+        /* A partition with a request in flight is retained. */
+        assertEquals(1, limiter.getInFlight("bucket", "busy/2"));
+        held.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        assertEquals(0, limiter.getInFlight("bucket", "busy/2"));
+    }
+
+    @Test
+    public void testMultiplicativeDecrease ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 16, 2, 64, 0);
+        List<S3ConcurrencyLimiter.Permit> permits = new ArrayList<S3ConcurrencyLimiter.Permit>();
+
+        for (int i = 0; i < 4; i++) {
+            permits.add(limiter.acquire("bucket", null));
+        }
+
+        /* Requests issued before the decrease only reduce the limit once. */
+        for (S3ConcurrencyLimiter.Permit permit : permits) {
+            permit.release(S3ConcurrencyLimiter.Outcome.DROPPED);
+        }
+        assertEquals(8, limiter.getLimit("bucket", null));
+
+        /* A request issued after the decrease reduces it again. */
+        limiter.acquire("bucket", null).release(S3ConcurrencyLimiter.Outcome.DROPPED);
+        assertEquals(4, limiter.getLimit("bucket", null));
+
+        /* Never below the minimum. */
+        for (int i = 0; i < 8; i++) {
+            limiter.acquire("bucket", null).release(S3ConcurrencyLimiter.Outcome.DROPPED);
+        }
+        assertEquals(2, limiter.getLimit("bucket", null));
+    }
+
+    @Test
+    public void testAdditiveIncrease ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 4, 1, 6, 0);
+
+        /* Keep the limit saturated; each full round of successes adds about one. */
+        for (int round = 0; round < 4; round++) {
+            int limit = limiter.getLimit("bucket", null);
+            List<S3ConcurrencyLimiter.Permit> permits = new ArrayList<S3ConcurrencyLimiter.Permit>();
+            for (int i = 0; i < limit; i++) {
+                permits.add(limiter.acquire("bucket", null));
+            }
+            for (S3ConcurrencyLimiter.Permit permit : permits) {
+                permit.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+            }
+        }
+
+        assertEquals(6, limiter.getLimit("bucket", null));
+    }
+
+    @Test
+    public void testIdleNoIncrease ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 8, 1, 64, 0);
+
+        /* A single request at a time doesn't justify a larger limit. */
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire("bucket", null).release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        }
+        assertEquals(8, limiter.getLimit("bucket", null));
+    }
+
+    @Test
+    public void testSlowResponsesNoIncrease ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 2, 1, 64, 0);
+        long now;
+
+        /* Establish a fast baseline. */
+        S3ConcurrencyLimiter.Permit p1 = limiter.acquire("bucket", null);
+        S3ConcurrencyLimiter.Permit p2 = limiter.acquire("bucket", null);
+        p1.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        p2.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        int limit = limiter.getLimit("bucket", null);
+
+        /* Responses far slower than the baseline don't raise the limit. */
+        for (int i = 0; i < 10; i++) {
+            p1 = limiter.acquire("bucket", null);
+            p2 = limiter.acquire("bucket", null);
+            now = System.nanoTime() + 5L * 1000L * 1000L * 1000L;
+            p1.release(S3ConcurrencyLimiter.Outcome.SUCCESS, now);
+            p2.release(S3ConcurrencyLimiter.Outcome.SUCCESS, now);
+        }
+        assertEquals(limit, limiter.getLimit("bucket", null));
+    }
+
+    @Test
+    public void testQueue ()
+        throws Exception
+    {
+        final S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.QUEUE, 1, 1, 1, 0);
+        final S3ConcurrencyLimiter.Permit permit = limiter.acquire("bucket", null);
+        final boolean[] acquired = new boolean[1];
+
+        Thread waiter = new Thread() {
+            public void run () {
+                try {
+                    limiter.acquire("bucket", null).release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+                    synchronized (acquired) {
+                        acquired[0] = true;
+                    }
+                } catch (S3ClientException e) {
+                    // Leave acquired false
+                }
+            }
+        };
+        waiter.start();
+
+        Thread.sleep(100);
+        synchronized (acquired) {
+            assertFalse(acquired[0]);
+        }
+
+        permit.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        waiter.join(5000);
+        synchronized (acquired) {
+            assertTrue(acquired[0]);
+        }
+    }
+
+    @Test
+    public void testReleaseOnce ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(
+            S3ConcurrencyLimiter.Policy.FAIL_FAST, 2, 1, 2, 0);
+        S3ConcurrencyLimiter.Permit permit = limiter.acquire("bucket", null);
+        limiter.acquire("bucket", null);
+
+        permit.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        permit.release(S3ConcurrencyLimiter.Outcome.SUCCESS);
+        assertEquals(1, limiter.getInFlight("bucket", null));
+    }
+
+    @Test
+    public void testOutcomeFor () {
+        assertEquals(S3ConcurrencyLimiter.Outcome.DROPPED, S3ConcurrencyLimiter.outcomeFor(
+            new S3ServerException.SlowDownException("slow down")));
+        assertEquals(S3ConcurrencyLimiter.Outcome.DROPPED, S3ConcurrencyLimiter.outcomeFor(
+            new S3ServerException.ServiceUnavailableException("unavailable")));
+        assertEquals(S3ConcurrencyLimiter.Outcome.DROPPED, S3ConcurrencyLimiter.outcomeFor(
+            new S3ClientException.NetworkException("timeout", new SocketTimeoutException())));
+        assertEquals(S3ConcurrencyLimiter.Outcome.ERROR, S3ConcurrencyLimiter.outcomeFor(
+            new S3ClientException.NetworkException("reset", new IOException())));
+        assertEquals(S3ConcurrencyLimiter.Outcome.ERROR, S3ConcurrencyLimiter.outcomeFor(
+            new S3ServerException.InternalErrorException("internal")));
+        assertEquals(S3ConcurrencyLimiter.Outcome.SUCCESS, S3ConcurrencyLimiter.outcomeFor(
+            new S3ServerException.NoSuchKeyException("missing")));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidLimits () {
+        new S3ConcurrencyLimiter(S3ConcurrencyLimiter.Policy.QUEUE, 10, 1, 5, 0);
+    }
+}
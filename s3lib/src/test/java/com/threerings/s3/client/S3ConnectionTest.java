@@ -39,6 +39,7 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -213,6 +214,45 @@ public class S3ConnectionTest {
         assertNull(listing.getNextMarker());
     }
 
+    /**
+     * Test version 2 bucket listing with continuation tokens and start-after.
+     */
+    @Test
+    public void testListObjectsV2 ()
+        throws Exception
+    {
+        S3ObjectListing listing;
+        S3ByteArrayObject obj1;
+        S3ByteArrayObject obj2;
+        S3ByteArrayObject obj3;
+
+        /* Upload three objects. */
+        obj1 = new S3ByteArrayObject("A", new byte[0]);
+        obj2 = new S3ByteArrayObject("B", new byte[0]);
+        obj3 = new S3ByteArrayObject("C", new byte[0]);
+        _conn.putObject(_testBucketName, obj1, AccessControlList.StandardPolicy.PRIVATE);
+        _conn.putObject(_testBucketName, obj2, AccessControlList.StandardPolicy.PRIVATE);
+        _conn.putObject(_testBucketName, obj3, AccessControlList.StandardPolicy.PRIVATE);
+
+        /* Skip "A", and list one key. Owners are not requested. */
+        listing = _conn.listObjectsV2(_testBucketName, null, null, "A", 1, null, false, null);
+        assertEquals(1, listing.getEntries().size());
+        assertEquals(1, listing.getKeyCount());
+        assertEquals("A", listing.getStartAfter());
+        assertTrue("Listing is not truncated", listing.truncated());
+        assertEquals("B", listing.getEntries().get(0).getKey());
+        assertNull(listing.getEntries().get(0).getOwner());
+        assertNull(listing.getNextMarker());
+        assertNotNull(listing.getNextContinuationToken());
+
+        /* Continue with the token. */
+        listing = _conn.listObjectsV2(_testBucketName, null, listing.getNextContinuationToken(), 1, null);
+        assertEquals(1, listing.getEntries().size());
+        assertEquals("C", listing.getEntries().get(0).getKey());
+        assertTrue("Listing is truncated", !listing.truncated());
+        assertNull(listing.getNextContinuationToken());
+    }
+
     /**
      * Test bucket listing with a prefix and delimiter
      */
@@ -323,6 +363,41 @@ public class S3ConnectionTest {
         assertEquals(TEST_DATA, output.toString("utf8"));
     }
 
+    @Test
+    public void testGetObjectRange ()
+        throws Exception
+    {
+        _conn.putObject(_testBucketName, _fileObj, AccessControlList.StandardPolicy.PRIVATE);
+
+        /* Fetch a range from the middle of the object, and the remainder. */
+        S3Object obj = _conn.getObject(_testBucketName, _fileObj.getKey(), 2, 5);
+        assertEquals(5, obj.length());
+        assertEquals(TEST_DATA.substring(2, 7), readString(obj));
+
+        obj = _conn.getObject(_testBucketName, _fileObj.getKey(), 2, -1);
+        assertEquals(TEST_DATA.substring(2), readString(obj));
+
+        /* The digest is the complete object's. */
+        assertTrue(Arrays.equals(_fileObj.getMD5(), obj.getMD5()));
+    }
+
+    /** Read an object's data as a UTF-8 string. */
+    protected static String readString (S3Object obj)
+        throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream input = obj.getInputStream();
+        byte[] data = new byte[1024];
+        int nread;
+
+        while ((nread = input.read(data)) > 0) {
+            output.write(data, 0, nread);
+        }
+        input.close();
+
+        return output.toString("utf8");
+    }
+
     @Test
     public void testGetObjectMetadata ()
     	throws Exception
@@ -0,0 +1,179 @@
+/* 
+ * S3RetryPolicyTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3RetryPolicyTest {
+    @Before
+    public void setUp () {
+        _policy = new S3RetryPolicy(3, 10, 100, new S3RetryBudget());
+    }
+
+    @Test
+    public void testClassifyServerErrors () {
+        assertTrue(_policy.isRetryable(new S3ServerException.SlowDownException("slow down")));
+        assertTrue(_policy.isRetryable(new S3ServerException.ServiceUnavailableException("unavailable")));
+        assertTrue(_policy.isRetryable(new S3ServerException.InternalErrorException("internal")));
+        assertTrue(_policy.isRetryable(new S3ServerException.RequestTimeoutException("timeout")));
+        assertTrue(_policy.isRetryable(new S3ServerException("unknown code")));
+
+        assertFalse(_policy.isRetryable(new S3ServerException.AccessDeniedException("denied")));
+        assertFalse(_policy.isRetryable(new S3ServerException.NoSuchBucketException("no bucket")));
+        assertFalse(_policy.isRetryable(new S3ServerException.SignatureDoesNotMatchException("signature")));
+    }
+
+    @Test
+    public void testClassifyClientErrors () {
+        assertTrue(_policy.isRetryable(
+            new S3ClientException.NetworkException("timeout", new SocketTimeoutException())));
+        assertTrue(_policy.isRetryable(
+            new S3ClientException.NetworkException("reset", new IOException())));
+
+        assertFalse(_policy.isRetryable(
+            new S3ClientException.NetworkException("dns", new UnknownHostException())));
+        assertFalse(_policy.isRetryable(new S3ClientException.InvalidURIException("bad uri")));
+        assertFalse(_policy.isRetryable(new S3ClientException.ConcurrencyLimitException("limit")));
+    }
+
+    @Test
+    public void testNextDelay () {
+        long delay = 0;
+        for (int i = 0; i < 100; i++) {
+            long next = _policy.nextDelay(delay);
+            assertTrue("Delay below base: " + next, next >= 10);
+            assertTrue("Delay above max: " + next, next <= 100);
+            assertTrue("Delay above 3x previous: " + next, next <= Math.max(10, delay) * 3);
+            delay = next;
+        }
+    }
+
+    @Test
+    public void testMaxRetries ()
+        throws Exception
+    {
+        S3RetryPolicy.Operation operation = _policy.begin();
+        S3Exception error = new S3ServerException.InternalErrorException("internal");
+
+        for (int i = 0; i < 3; i++) {
+            operation.retryOrThrow(error);
+        }
+        assertEquals(3, operation.getRetryCount());
+
+        try {
+            operation.retryOrThrow(error);
+            fail("Retried beyond the maximum");
+        } catch (S3Exception e) {
+            assertSame(error, e);
+        }
+    }
+
+    @Test
+    public void testPermanentError ()
+        throws Exception
+    {
+        S3RetryPolicy.Operation operation = _policy.begin();
+        S3Exception error = new S3ServerException.AccessDeniedException("denied");
+
+        try {
+            operation.retryOrThrow(error);
+            fail("Retried a permanent error");
+        } catch (S3Exception e) {
+            assertSame(error, e);
+        }
+        assertEquals(0, operation.getRetryCount());
+    }
+
+    @Test
+    public void testBudget ()
+        throws Exception
+    {
+        S3RetryBudget budget = new S3RetryBudget(0.5, 0.0, 2);
+        S3RetryPolicy policy = new S3RetryPolicy(10, 0, 0, budget);
+        S3Exception error = new S3ServerException.SlowDownException("slow down");
+
+        /* The budget starts full, and each operation's deposit is capped. */
+        S3RetryPolicy.Operation operation = policy.begin();
+        operation.retryOrThrow(error);
+        operation.retryOrThrow(error);
+        assertEquals(0, budget.getAvailable());
+
+        try {
+            operation.retryOrThrow(error);
+            fail("Retried beyond the budget");
+        } catch (S3Exception e) {
+            assertSame(error, e);
+        }
+
+        /* Two new operations earn another retry. */
+        policy.begin();
+        operation = policy.begin();
+        operation.retryOrThrow(error);
+        assertEquals(0, budget.getAvailable());
+    }
+
+    @Test
+    public void testBudgetRefill ()
+        throws Exception
+    {
+        S3RetryBudget budget = new S3RetryBudget(0.0, 1000.0, 1);
+
+        assertTrue(budget.tryWithdraw());
+        Thread.sleep(10);
+        assertTrue(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testInterrupted ()
+        throws Exception
+    {
+        S3RetryPolicy.Operation operation = new S3RetryPolicy(3, 1000, 1000, new S3RetryBudget()).begin();
+        S3Exception error = new S3ServerException.InternalErrorException("internal");
+
+        Thread.currentThread().interrupt();
+        try {
+            operation.retryOrThrow(error);
+            fail("Retried after interruption");
+        } catch (S3Exception e) {
+            assertSame(error, e);
+        }
+        assertTrue(Thread.interrupted());
+    }
+
+    /** Policy under test. */
+    private S3RetryPolicy _policy;
+}
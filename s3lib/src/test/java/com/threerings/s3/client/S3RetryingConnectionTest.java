@@ -0,0 +1,179 @@
+/* 
+ * S3RetryingConnectionTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Exercises retry behavior against a port with no listener, which
+ * reliably refuses every connection.
+ */
+public class S3RetryingConnectionTest {
+    @Before
+    public void setUp () {
+        S3Connection base = new S3Connection("id", "key",
+            S3Utils.createHostConfig("127.0.0.1", 1, Protocol.getProtocol("http")));
+
+        _conn = new S3RetryingConnection(base, new S3RetryPolicy(2, 0, 0, new S3RetryBudget()));
+        _retries = new ArrayList<Boolean>();
+        _conn.setListener(new S3RetryingConnection.Listener() {
+            public void attemptCompleted (S3RetryingConnection.RequestType type, String bucketName,
+                String objectKey, long latency, S3Exception error, boolean willRetry)
+            {
+                assertNotNull(error);
+                assertTrue(latency >= 0);
+                _retries.add(willRetry);
+            }
+        });
+    }
+
+    @Test
+    public void testGetRetried ()
+        throws Exception
+    {
+        try {
+            _conn.getObject("bucket", "key");
+            fail("Connection succeeded");
+        } catch (S3ClientException.NetworkException e) {
+            // Expected
+        }
+
+        S3RetryingConnection.Statistics stats = _conn.getStatistics();
+        assertEquals(3, stats.getAttempts(S3RetryingConnection.RequestType.GET));
+        assertEquals(3, stats.getFailures(S3RetryingConnection.RequestType.GET));
+        assertEquals(0, stats.getAttempts(S3RetryingConnection.RequestType.PUT));
+        assertEquals(3, _conn.getLastAttempts());
+
+        assertEquals(3, _retries.size());
+        assertTrue(_retries.get(0));
+        assertTrue(_retries.get(1));
+        assertFalse(_retries.get(2));
+    }
+
+    @Test
+    public void testReplayablePutRetried ()
+        throws Exception
+    {
+        try {
+            _conn.putObject("bucket", new S3ByteArrayObject("key", new byte[16]));
+            fail("Connection succeeded");
+        } catch (S3ClientException.NetworkException e) {
+            // Expected
+        }
+
+        assertEquals(3, _conn.getStatistics().getAttempts(S3RetryingConnection.RequestType.PUT));
+    }
+
+    @Test
+    public void testStreamPutNotRetried ()
+        throws Exception
+    {
+        S3Object object = new S3StreamObject("key", 16, new byte[16],
+            new ByteArrayInputStream(new byte[16]));
+        assertFalse(object.isReplayable());
+
+        try {
+            _conn.putObject("bucket", object);
+            fail("Connection succeeded");
+        } catch (S3ClientException.NetworkException e) {
+            // Expected
+        }
+
+        assertEquals(1, _conn.getStatistics().getAttempts(S3RetryingConnection.RequestType.PUT));
+        assertEquals(1, _retries.size());
+        assertFalse(_retries.get(0));
+    }
+
+    @Test
+    public void testListRetried ()
+        throws Exception
+    {
+        try {
+            _conn.listObjects("bucket", "prefix", null, 0, null);
+            fail("Connection succeeded");
+        } catch (S3ClientException.NetworkException e) {
+            // Expected
+        }
+
+        assertEquals(3, _conn.getStatistics().getAttempts(S3RetryingConnection.RequestType.LIST));
+    }
+
+    @Test
+    public void testForwardsToWrappedConnection ()
+        throws Exception
+    {
+        final S3Object stored = new S3ByteArrayObject("key", new byte[16]);
+        final AtomicInteger heads = new AtomicInteger();
+        S3Connection base = new S3Connection("id", "key",
+            S3Utils.createHostConfig("127.0.0.1", 1, Protocol.getProtocol("http"))) {
+            @Override // From S3Connection
+            public S3Object getObjectMetadata (String bucketName, String objectKey)
+                throws S3Exception
+            {
+                if (heads.incrementAndGet() == 1) {
+                    throw S3ServerException.exceptionForStatus(503);
+                }
+                return stored;
+            }
+        };
+        S3RetryingConnection conn = new S3RetryingConnection(base,
+            new S3RetryPolicy(2, 0, 0, new S3RetryBudget()));
+
+        /* The wrapped connection's override serves every attempt. */
+        assertSame(stored, conn.getObjectMetadata("bucket", "key"));
+        assertEquals(2, heads.get());
+        assertEquals(2, conn.getStatistics().getAttempts(S3RetryingConnection.RequestType.HEAD));
+        assertEquals(2, conn.getLastAttempts());
+
+        /* Limiters and breakers are installed on the wrapped connection. */
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter();
+        conn.setConcurrencyLimiter(limiter);
+        assertSame(limiter, base.getConcurrencyLimiter());
+        assertSame(limiter, conn.getConcurrencyLimiter());
+    }
+
+    /** Connection under test. */
+    private S3RetryingConnection _conn;
+
+    /** Reported retry decisions, in order. */
+    private List<Boolean> _retries;
+}
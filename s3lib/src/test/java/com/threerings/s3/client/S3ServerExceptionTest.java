@@ -0,0 +1,191 @@
+/* 
+ * S3ServerExceptionTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ServerExceptionTest {
+    @Test
+    public void testExceptionForS3Error ()
+        throws Exception
+    {
+        S3ServerException e = S3ServerException.exceptionForS3Error(
+            errorDocument("NoSuchKey", "The specified key does not exist."));
+
+        assertEquals(S3ServerException.NoSuchKeyException.class, e.getClass());
+        assertEquals("The specified key does not exist.", e.getMessage());
+        assertEquals("4442587FB7D0A2F9", e.getRequestId());
+        assertEquals("eftixk72aD6Ap51TnqcoF8eFidJG9Z", e.getHostId());
+    }
+
+    @Test
+    public void testExceptionForS3ErrorStream ()
+        throws Exception
+    {
+        String document = errorDocument("SlowDown", "Please reduce your request rate.");
+        S3ServerException e = S3ServerException.exceptionForS3Error(
+            new ByteArrayInputStream(document.getBytes("utf8")));
+
+        assertEquals(S3ServerException.SlowDownException.class, e.getClass());
+        assertEquals("Please reduce your request rate.", e.getMessage());
+        assertEquals("4442587FB7D0A2F9", e.getRequestId());
+    }
+
+    @Test
+    public void testExceptionForStatus ()
+        throws Exception
+    {
+        assertEquals(S3ServerException.NoSuchKeyException.class,
+            S3ServerException.exceptionForStatus(404).getClass());
+        assertEquals(S3ServerException.AccessDeniedException.class,
+            S3ServerException.exceptionForStatus(403).getClass());
+        assertEquals(S3ServerException.InternalErrorException.class,
+            S3ServerException.exceptionForStatus(500).getClass());
+        assertEquals(S3ServerException.SlowDownException.class,
+            S3ServerException.exceptionForStatus(503).getClass());
+        assertNull(S3ServerException.exceptionForStatus(400));
+    }
+
+    @Test
+    public void testBodilessErrorResponse ()
+        throws Exception
+    {
+        S3RetryPolicy policy = new S3RetryPolicy(3);
+        S3Exception e;
+
+        /* A HEAD of a missing key. */
+        e = S3Connection.exceptionForErrorResponse(404, new byte[0]);
+        assertEquals(S3ServerException.NoSuchKeyException.class, e.getClass());
+        assertFalse(policy.isRetryable(e));
+
+        /* A throttled HEAD is retried. */
+        e = S3Connection.exceptionForErrorResponse(503, new byte[0]);
+        assertTrue(policy.isRetryable(e));
+        assertEquals(S3ConcurrencyLimiter.Outcome.DROPPED, S3ConcurrencyLimiter.outcomeFor(e));
+
+        /* Unidentified status codes remain generic. */
+        e = S3Connection.exceptionForErrorResponse(400, new byte[0]);
+        assertEquals(S3Exception.class, e.getClass());
+
+        /* Error documents take precedence over the status code. */
+        e = S3Connection.exceptionForErrorResponse(404,
+            errorDocument("NoSuchBucket", "The specified bucket does not exist.").getBytes("utf8"));
+        assertEquals(S3ServerException.NoSuchBucketException.class, e.getClass());
+    }
+
+    @Test
+    public void testUnknownElements ()
+        throws Exception
+    {
+        String document = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<Error><Code>SignatureDoesNotMatch</Code>" +
+            "<StringToSignBytes>47 45 54</StringToSignBytes>" +
+            "<Nested><Child>value</Child></Nested>" +
+            "<Message>Signature mismatch</Message></Error>";
+        S3ServerException e = S3ServerException.exceptionForS3Error(document);
+
+        assertEquals(S3ServerException.SignatureDoesNotMatchException.class, e.getClass());
+        assertEquals("Signature mismatch", e.getMessage());
+        assertNull(e.getRequestId());
+    }
+
+    @Test
+    public void testUnhandledCode ()
+        throws Exception
+    {
+        S3ServerException e = S3ServerException.exceptionForS3Error(
+            errorDocument("NoSuchCode", "Unknown"));
+
+        assertEquals(S3ServerException.class, e.getClass());
+        assertEquals("4442587FB7D0A2F9", e.getRequestId());
+    }
+
+    @Test
+    public void testMalformedDocument ()
+        throws Exception
+    {
+        S3ServerException e = S3ServerException.exceptionForS3Error("<Error><Code>NoSuchKey");
+        assertEquals(S3ServerException.class, e.getClass());
+
+        e = S3ServerException.exceptionForS3Error("");
+        assertEquals(S3ServerException.class, e.getClass());
+    }
+
+    @Test
+    public void testErrorResponseMessage ()
+        throws Exception
+    {
+        /* A signature error, truncated within its string to sign. */
+        String document = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<Error><Code>SignatureDoesNotMatch</Code><Message>Signature mismatch</Message>" +
+            "<StringToSign>GET\n\n";
+        S3Exception e = S3Connection.exceptionForErrorResponse(403, document.getBytes("utf8"));
+        assertEquals(S3ServerException.SignatureDoesNotMatchException.class, e.getClass());
+        assertEquals("Signature mismatch", e.getMessage());
+
+        /* An unparseable body is reported with the exception. */
+        e = S3Connection.exceptionForErrorResponse(500, "Internal proxy failure".getBytes("utf8"));
+        assertEquals(S3ServerException.class, e.getClass());
+        assertTrue(e.getMessage().contains("Internal proxy failure"));
+    }
+
+    /**
+     * Every S3ServerException subclass must be reachable through its error code.
+     */
+    @Test
+    public void testAllCodesRegistered ()
+        throws Exception
+    {
+        for (Class<?> cls : S3ServerException.class.getDeclaredClasses()) {
+            if (!S3ServerException.class.isAssignableFrom(cls)) {
+                continue;
+            }
+
+            String name = cls.getSimpleName();
+            String code = name.substring(0, name.length() - "Exception".length());
+            S3ServerException e = S3ServerException.exceptionForS3Error(errorDocument(code, "message"));
+            assertEquals(cls, e.getClass());
+        }
+    }
+
+    /** Build an S3 error document. */
+    private static String errorDocument (String code, String message) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<Error><Code>" + code + "</Code><Message>" + message + "</Message>" +
+            "<Resource>/mybucket/myfoto.jpg</Resource>" +
+            "<RequestId>4442587FB7D0A2F9</RequestId>" +
+            "<HostId>eftixk72aD6Ap51TnqcoF8eFidJG9Z</HostId></Error>";
+    }
+}
@@ -0,0 +1,330 @@
+/* 
+ * S3ObjectListingParserTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client.xml;
+
+import com.threerings.s3.client.S3ObjectEntry;
+import com.threerings.s3.client.S3ObjectListing;
+import com.threerings.s3.client.S3ObjectVisitor;
+import com.threerings.s3.client.S3Owner;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SimpleTimeZone;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.XMLReaderFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ObjectListingParserTest {
+    @Test
+    public void testParse ()
+        throws Exception
+    {
+        S3ObjectListingParser p = new S3ObjectListingParser();
+        p.parse(new ByteArrayInputStream(S3ObjectListingHandlerTest.TEST_DATA.getBytes("utf8")));
+
+        /* Validate the result. */
+        assertEquals("test-bucket", p.getBucketName());
+        assertEquals("aPrefix", p.getPrefix());
+        assertEquals("aMarker", p.getMarker());
+        assertEquals(".", p.getDelimiter());
+        assertEquals(1000, p.getMaxKeys());
+        assertEquals(false, p.getTruncated());
+
+        List<S3ObjectEntry> entries = p.getObjectEntries();
+        assertEquals(1, entries.size());
+
+        List<String> prefixes = p.getCommonPrefixes();
+        assertEquals(1, prefixes.size());
+
+        S3ObjectEntry entry = entries.get(0);
+        S3Owner owner = entry.getOwner();
+
+        assertEquals("aKey", entry.getKey());
+        assertEquals("65a8e27d8879283831b664bd8b7f0ad4", entry.getETag());
+        assertEquals(13, entry.getSize());
+        assertEquals("STANDARD", entry.getStorageClass());
+        assertEquals(1175540488000L, entry.getLastModified().getTime());
+
+        assertEquals("a59a930aa2b83ac8f7164e4a541d4d5f67ef3c87750011cc82bda1f5827d1ebd", owner.getId());
+        assertEquals("landonfuller", owner.getDisplayName());
+
+        assertEquals("/foobar", prefixes.get(0));
+    }
+
+    /**
+     * Parse a full page with both the SAX handler and the pull parser, and
+     * verify that the results are identical.
+     */
+    @Test
+    public void testMatchesHandler ()
+        throws Exception
+    {
+        String document = generateListing(1000);
+
+        XMLReader xr = XMLReaderFactory.createXMLReader();
+        S3ObjectListingHandler h = new S3ObjectListingHandler();
+        xr.setContentHandler(h);
+        xr.setErrorHandler(h);
+        xr.parse(new InputSource(new StringReader(document)));
+
+        S3ObjectListingParser p = new S3ObjectListingParser();
+        p.parse(new ByteArrayInputStream(document.getBytes("utf8")));
+
+        assertEquals(h.getBucketName(), p.getBucketName());
+        assertEquals(h.getPrefix(), p.getPrefix());
+        assertEquals(h.getMarker(), p.getMarker());
+        assertEquals(h.getDelimiter(), p.getDelimiter());
+        assertEquals(h.getMaxKeys(), p.getMaxKeys());
+        assertEquals(h.getTruncated(), p.getTruncated());
+        assertEquals(h.getNextMarker(), p.getNextMarker());
+        assertEquals(h.getCommonPrefixes(), p.getCommonPrefixes());
+
+        assertEquals(h.getObjectEntries().size(), p.getObjectEntries().size());
+        for (int i = 0; i < h.getObjectEntries().size(); i++) {
+            S3ObjectEntry expected = h.getObjectEntries().get(i);
+            S3ObjectEntry actual = p.getObjectEntries().get(i);
+
+            assertEquals(expected.getKey(), actual.getKey());
+            assertEquals(expected.getLastModified(), actual.getLastModified());
+            assertEquals(expected.getETag(), actual.getETag());
+            assertEquals(expected.getSize(), actual.getSize());
+            assertEquals(expected.getStorageClass(), actual.getStorageClass());
+            assertEquals(expected.getOwner().getId(), actual.getOwner().getId());
+            assertEquals(expected.getOwner().getDisplayName(), actual.getOwner().getDisplayName());
+        }
+    }
+
+    /**
+     * Entries must be delivered to the visitor, and not retained, while the
+     * pagination state is still computed.
+     */
+    @Test
+    public void testVisitor ()
+        throws Exception
+    {
+        final List<String> keys = new ArrayList<String>();
+        final List<String> prefixes = new ArrayList<String>();
+        S3ObjectVisitor visitor = new S3ObjectVisitor() {
+            public void visitEntry (S3ObjectEntry entry) {
+                keys.add(entry.getKey());
+            }
+
+            public void visitCommonPrefix (String prefix) {
+                prefixes.add(prefix);
+            }
+        };
+
+        S3ObjectListing listing = new S3ObjectListing(
+            new ByteArrayInputStream(generateListing(100).getBytes("utf8")), visitor);
+
+        assertEquals(100, keys.size());
+        assertEquals(0, prefixes.size());
+        assertEquals(0, listing.getEntries().size());
+        assertEquals(0, listing.getCommonPrefixes().size());
+
+        /* S3 does not supply a NextMarker without a delimiter; it must be
+         * derived from the last visited key. */
+        assertTrue(listing.truncated());
+        assertEquals(keys.get(keys.size() - 1), listing.getNextMarker());
+
+        /* Common prefixes */
+        S3ObjectListingParser p = new S3ObjectListingParser();
+        p.parse(new ByteArrayInputStream(S3ObjectListingHandlerTest.TEST_DATA.getBytes("utf8")), visitor);
+        assertEquals("/foobar", prefixes.get(0));
+        assertEquals("/foobar", p.getLastCommonPrefix());
+        assertEquals("aKey", p.getLastKey());
+    }
+
+    /**
+     * Repeated storage classes and owners must be shared.
+     */
+    @Test
+    public void testInterning ()
+        throws Exception
+    {
+        S3ObjectListingParser p = new S3ObjectListingParser();
+        p.parse(new ByteArrayInputStream(generateListing(2).getBytes("utf8")));
+
+        S3ObjectEntry first = p.getObjectEntries().get(0);
+        S3ObjectEntry second = p.getObjectEntries().get(1);
+        assertSame(first.getStorageClass(), second.getStorageClass());
+        assertSame(first.getOwner(), second.getOwner());
+    }
+
+    @Test
+    public void testParseTimestamp ()
+        throws Exception
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+
+        String[] dates = {
+            "1970-01-01T00:00:00.000Z",
+            "2007-04-02T19:01:28.000Z",
+            "2000-02-29T23:59:59.999Z",
+            "2100-03-01T00:00:00.001Z",
+            "1969-12-31T23:59:59.500Z"
+        };
+
+        for (String date : dates) {
+            assertEquals(date, format.parse(date).getTime(), S3ObjectListingParser.parseTimestamp(date));
+        }
+
+        /* Optional fractional seconds, and zone offsets. */
+        assertEquals(1175540488000L, S3ObjectListingParser.parseTimestamp("2007-04-02T19:01:28Z"));
+        assertEquals(1175540488123L, S3ObjectListingParser.parseTimestamp("2007-04-02T19:01:28.123456Z"));
+        assertEquals(1175540488000L, S3ObjectListingParser.parseTimestamp("2007-04-02T21:01:28.000+02:00"));
+    }
+
+    @Test(expected=SAXException.class)
+    public void testParseInvalidTimestamp ()
+        throws Exception
+    {
+        S3ObjectListingParser.parseTimestamp("2007-04-02 19:01:28.000Z");
+    }
+
+    @Test
+    public void testParseVersion2 ()
+        throws Exception
+    {
+        S3ObjectListingParser parser = new S3ObjectListingParser(false);
+        String document =
+            "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+            "<Name>test-bucket</Name><Prefix>logs/</Prefix><KeyCount>1</KeyCount>" +
+            "<MaxKeys>1</MaxKeys><IsTruncated>true</IsTruncated>" +
+            "<ContinuationToken>1ueGcxLPRx1Tr</ContinuationToken>" +
+            "<NextContinuationToken>1xRmb3bG0FU2e</NextContinuationToken>" +
+            "<StartAfter>logs/a</StartAfter>" +
+            "<Contents><Key>logs/b</Key><LastModified>2009-03-10T10:10:10.000Z</LastModified>" +
+            "<ETag>&quot;d41d8cd98f00b204e9800998ecf8427e&quot;</ETag><Size>0</Size>" +
+            "<StorageClass>STANDARD</StorageClass></Contents>" +
+            "</ListBucketResult>";
+
+        parser.parse(new ByteArrayInputStream(document.getBytes("utf8")));
+
+        assertEquals("test-bucket", parser.getBucketName());
+        assertEquals(1, parser.getKeyCount());
+        assertTrue(parser.getTruncated());
+        assertEquals("1ueGcxLPRx1Tr", parser.getContinuationToken());
+        assertEquals("1xRmb3bG0FU2e", parser.getNextContinuationToken());
+        assertEquals("logs/a", parser.getStartAfter());
+        assertNull(parser.getNextMarker());
+
+        assertEquals(1, parser.getObjectEntries().size());
+        S3ObjectEntry entry = parser.getObjectEntries().get(0);
+        assertEquals("logs/b", entry.getKey());
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", entry.getETag());
+        assertNull(entry.getOwner());
+    }
+
+    @Test
+    public void testVersion1Defaults ()
+        throws Exception
+    {
+        S3ObjectListingParser parser = new S3ObjectListingParser();
+        parser.parse(new ByteArrayInputStream(generateListing(1).getBytes("utf8")));
+
+        assertEquals(-1, parser.getKeyCount());
+        assertNull(parser.getContinuationToken());
+        assertNull(parser.getNextContinuationToken());
+        assertNull(parser.getStartAfter());
+    }
+
+    @Test(expected=MissingElementException.class)
+    public void testMissingOwner ()
+        throws Exception
+    {
+        String document =
+            "<ListBucketResult><Name>test-bucket</Name>" +
+            "<Contents><Key>a</Key><LastModified>2009-03-10T10:10:10.000Z</LastModified>" +
+            "<ETag>&quot;d41d8cd98f00b204e9800998ecf8427e&quot;</ETag><Size>0</Size></Contents>" +
+            "</ListBucketResult>";
+        new S3ObjectListingParser().parse(new ByteArrayInputStream(document.getBytes("utf8")));
+    }
+
+    @Test(expected=MissingElementException.class)
+    public void testMissingName ()
+        throws Exception
+    {
+        String document = "<ListBucketResult><IsTruncated>false</IsTruncated></ListBucketResult>";
+        new S3ObjectListingParser().parse(new ByteArrayInputStream(document.getBytes("utf8")));
+    }
+
+    @Test(expected=UnsupportedElementException.class)
+    public void testUnsupportedElement ()
+        throws Exception
+    {
+        String document = "<ListAllMyBucketsResult></ListAllMyBucketsResult>";
+        new S3ObjectListingParser().parse(new ByteArrayInputStream(document.getBytes("utf8")));
+    }
+
+    /**
+     * Generate a realistic, truncated ListBucketResult page with the given
+     * number of entries.
+     */
+    public static String generateListing (int count) {
+        StringBuilder doc = new StringBuilder(count * 400);
+
+        doc.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        doc.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        doc.append("<Name>test-bucket</Name><Prefix>logs/</Prefix><Marker></Marker>");
+        doc.append("<MaxKeys>").append(count).append("</MaxKeys><IsTruncated>true</IsTruncated>");
+
+        for (int i = 0; i < count; i++) {
+            doc.append("<Contents>");
+            doc.append("<Key>logs/2009/03/").append(10 + (i % 20)).append("/web&amp;app-")
+                .append(i).append(".log.gz</Key>");
+            doc.append("<LastModified>2009-03-").append(10 + (i % 20)).append("T")
+                .append(10 + (i % 14)).append(":").append(10 + (i % 50)).append(":")
+                .append(10 + (i % 49)).append(".").append(100 + (i % 900)).append("Z</LastModified>");
+            doc.append("<ETag>&quot;").append(String.format("%032x", i * 7919L)).append("&quot;</ETag>");
+            doc.append("<Size>").append(i * 1031L).append("</Size>");
+            doc.append("<Owner><ID>a59a930aa2b83ac8f7164e4a541d4d5f67ef3c87750011cc82bda1f5827d1ebd</ID>");
+            doc.append("<DisplayName>landonfuller</DisplayName></Owner>");
+            doc.append("<StorageClass>STANDARD</StorageClass>");
+            doc.append("</Contents>");
+        }
+
+        doc.append("</ListBucketResult>");
+        return doc.toString();
+    }
+}
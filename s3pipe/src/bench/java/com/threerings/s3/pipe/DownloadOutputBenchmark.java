@@ -0,0 +1,149 @@
+/* 
+ * DownloadOutputBenchmark vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.nio.channels.FileChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the download output loop writing 64 KB arrays to a PrintStream,
+ * as System.out is, against the same loop writing to a ChannelOutputStream
+ * over the file's channel. Each operation writes a 64 MB stream to a
+ * temporary file, rewinding it afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DownloadOutputBenchmark {
+    @Setup
+    public void setUp ()
+        throws Exception
+    {
+        _data = ParallelUploadTest.testData(STREAM_SIZE);
+        _file = File.createTempFile("s3pipe", ".bench");
+        _fileOutput = new FileOutputStream(_file);
+        _channel = _fileOutput.getChannel();
+        _printStream = new PrintStream(_fileOutput);
+        _channelStream = new ChannelOutputStream(_channel);
+    }
+
+    @TearDown
+    public void tearDown ()
+        throws Exception
+    {
+        _fileOutput.close();
+        _file.delete();
+    }
+
+    @Benchmark
+    public long printStream ()
+        throws Exception
+    {
+        return copy(_printStream);
+    }
+
+    @Benchmark
+    public long channelStream ()
+        throws Exception
+    {
+        return copy(_channelStream);
+    }
+
+    /**
+     * Copy the stream to the given output with the download loop's buffer,
+     * and rewind the file.
+     */
+    private long copy (OutputStream output)
+        throws Exception
+    {
+        InputStream input = new ByteArrayInputStream(_data);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        int nread;
+
+        while ((nread = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, nread);
+            written += nread;
+        }
+        output.flush();
+
+        _channel.position(0);
+        return written;
+    }
+
+    /** Stream data. */
+    private byte[] _data;
+
+    /** Temporary output file. */
+    private File _file;
+
+    /** Output file stream. */
+    private FileOutputStream _fileOutput;
+
+    /** Output file channel. */
+    private FileChannel _channel;
+
+    /** PrintStream over the output file, as System.out. */
+    private PrintStream _printStream;
+
+    /** ChannelOutputStream over the output file. */
+    private ChannelOutputStream _channelStream;
+
+    /** Benchmark stream size. */
+    private static final int STREAM_SIZE = 64 * 1024 * 1024;
+
+    /** Download loop buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+}
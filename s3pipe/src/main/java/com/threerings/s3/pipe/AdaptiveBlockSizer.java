@@ -0,0 +1,149 @@
+/* 
+ * AdaptiveBlockSizer vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+/*
+ * Chooses upload block sizes from observed upload performance.
+ *
+ * The sizer aims for blocks that take roughly TARGET_DURATION to upload, based
+ * on a moving average of per-block throughput: on a fast link, blocks grow
+ * until per-request overhead is negligible, and on a slow one they shrink so
+ * that a retried block costs little. Block sizes change by at most a factor
+ * of two per completed block, and are halved whenever an upload attempt
+ * fails. Sizes always remain within the configured bounds.
+ *
+ * AdaptiveBlockSizer instances are thread-safe.
+ */
+class AdaptiveBlockSizer {
+    /**
+     * Instantiate a new sizer.
+     * @param initialSize: Initial block size, in bytes.
+     * @param minSize: Minimum block size, in bytes.
+     * @param maxSize: Maximum block size, in bytes.
+     */
+    public AdaptiveBlockSizer (int initialSize, int minSize, int maxSize) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid block size bounds: " + minSize + " - " + maxSize);
+        }
+
+        _minSize = minSize;
+        _maxSize = maxSize;
+        _size = clamp(initialSize);
+    }
+
+
+    /**
+     * Returns the size of the next block.
+     */
+    public synchronized int getBlockSize () {
+        return _size;
+    }
+
+
+    /** Returns the minimum block size. */
+    public int getMinSize () {
+        return _minSize;
+    }
+
+
+    /** Returns the maximum block size. */
+    public int getMaxSize () {
+        return _maxSize;
+    }
+
+
+    /**
+     * Record a successfully uploaded block.
+     * @param length: Block length, in bytes.
+     * @param duration: Upload duration, in milliseconds.
+     */
+    public synchronized void blockUploaded (int length, long duration) {
+        /* Short (eg, trailing) blocks are dominated by request overhead. */
+        if (length < _size / 2) {
+            return;
+        }
+
+        double throughput = (double)length / Math.max(duration, 1);
+        if (_throughput == 0) {
+            _throughput = throughput;
+        } else {
+            _throughput = _throughput * (1 - SMOOTHING) + throughput * SMOOTHING;
+        }
+
+        long target = (long)(_throughput * TARGET_DURATION);
+        target = Math.max(_size / 2, Math.min(target, (long)_size * 2));
+        _size = clamp(target);
+    }
+
+
+    /**
+     * Record a failed upload attempt.
+     */
+    public synchronized void uploadFailed () {
+        _size = clamp(_size / 2);
+        _throughput /= 2;
+    }
+
+
+    /**
+     * Round the size down to GRANULARITY, and clamp it to the configured
+     * bounds.
+     */
+    private int clamp (long size) {
+        if (size > GRANULARITY) {
+            size -= size % GRANULARITY;
+        }
+        return (int)Math.max(_minSize, Math.min(size, _maxSize));
+    }
+
+
+    /** Minimum block size. */
+    private final int _minSize;
+
+    /** Maximum block size. */
+    private final int _maxSize;
+
+    /** Next block size. */
+    private int _size;
+
+    /** Moving average of throughput, in bytes per millisecond. */
+    private double _throughput;
+
+    /** Target per-block upload duration, in milliseconds. */
+    private static final long TARGET_DURATION = 4000;
+
+    /** Weight given to each new throughput sample. */
+    private static final double SMOOTHING = 0.25;
+
+    /** Block sizes are multiples of this size, in bytes. */
+    private static final int GRANULARITY = 64 * 1024;
+}
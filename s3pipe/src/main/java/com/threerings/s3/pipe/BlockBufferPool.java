@@ -0,0 +1,172 @@
+/* 
+ * BlockBufferPool vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * A bounded pool of reusable block buffers.
+ *
+ * Buffers are allocated lazily, up to the pool's capacity; once the capacity
+ * is reached, acquire() blocks until a buffer is released. Recycling buffers
+ * avoids a constant stream of large allocations, and the capacity places a
+ * strict upper bound on the memory used for blocks.
+ *
+ * Buffers are allocated at the size requested, up to the pool's block size,
+ * so that a pool sized for the largest possible block only holds buffers that
+ * large if blocks actually grow to that size. A free buffer that is smaller
+ * than requested is dropped, and replaced with a new allocation.
+ *
+ * BlockBufferPool instances are thread-safe.
+ */
+class BlockBufferPool {
+    /**
+     * Instantiate a new pool.
+     * @param blocksize: Maximum buffer size, in bytes.
+     * @param capacity: Maximum number of buffers.
+     * @param direct: If true, allocate direct (off-heap) buffers.
+     */
+    public BlockBufferPool (int blocksize, int capacity, boolean direct) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Pool capacity must be at least 1: " + capacity);
+        }
+
+        _blocksize = blocksize;
+        _capacity = capacity;
+        _direct = direct;
+        _free = new LinkedBlockingQueue<ByteBuffer>(capacity);
+    }
+
+
+    /**
+     * Acquire a cleared buffer of the pool's block size, blocking until one is
+     * available.
+     */
+    public ByteBuffer acquire ()
+        throws InterruptedException
+    {
+        return acquire(_blocksize);
+    }
+
+
+    /**
+     * Acquire a cleared buffer with a capacity of at least the given size,
+     * blocking until one is available.
+     * @param size: Required capacity, in bytes. May not exceed the pool's block size.
+     */
+    public ByteBuffer acquire (int size)
+        throws InterruptedException
+    {
+        if (size > _blocksize) {
+            throw new IllegalArgumentException("Requested buffer size " + size +
+                " exceeds the pool's block size of " + _blocksize);
+        }
+
+        ByteBuffer buffer = _free.poll();
+        if (buffer == null) {
+            synchronized (this) {
+                if (_allocated < _capacity) {
+                    _allocated++;
+                    return allocate(size);
+                }
+            }
+            buffer = _free.take();
+        }
+
+        /* Replace a buffer allocated while blocks were smaller. */
+        if (buffer.capacity() < size) {
+            buffer = allocate(size);
+        }
+        return buffer;
+    }
+
+
+    /**
+     * Return a buffer to the pool. The buffer must have been acquired from
+     * this pool, and must not be used after it is released.
+     */
+    public void release (ByteBuffer buffer) {
+        buffer.clear();
+        if (!_free.offer(buffer)) {
+            throw new IllegalStateException("Buffer released to a full pool");
+        }
+    }
+
+
+    /** Allocate a new buffer of the given size. */
+    private ByteBuffer allocate (int size) {
+        return _direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+
+    /** Returns the number of buffers allocated. */
+    public synchronized int getAllocated () {
+        return _allocated;
+    }
+
+
+    /** Returns the maximum number of buffers. */
+    public int getCapacity () {
+        return _capacity;
+    }
+
+
+    /** Returns the maximum buffer size, in bytes. */
+    public int getBlocksize () {
+        return _blocksize;
+    }
+
+
+    /** Returns true if the pool allocates direct buffers. */
+    public boolean isDirect () {
+        return _direct;
+    }
+
+
+    /** Maximum buffer size. */
+    private final int _blocksize;
+
+    /** Maximum number of buffers. */
+    private final int _capacity;
+
+    /** Allocate direct buffers? */
+    private final boolean _direct;
+
+    /** Number of buffers allocated. */
+    private int _allocated = 0;
+
+    /** Released buffers. */
+    private final BlockingQueue<ByteBuffer> _free;
+}
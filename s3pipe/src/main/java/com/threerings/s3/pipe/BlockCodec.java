@@ -0,0 +1,194 @@
+/* 
+ * BlockCodec vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3ByteBufferObject;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Map;
+
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Block compression codecs.
+ *
+ * Each codec has a name, recorded in the stream info record and in the
+ * metadata of each block it was applied to. Codecs that share a name differ
+ * only in how hard they try to compress, and are decoded identically.
+ */
+enum BlockCodec {
+    /** Blocks are stored raw. */
+    NONE("none", 0),
+
+    /** zlib deflate, at the default compression level. */
+    DEFLATE("deflate", Deflater.DEFAULT_COMPRESSION),
+
+    /** zlib deflate, at the fastest compression level. */
+    DEFLATE_FAST("deflate", Deflater.BEST_SPEED);
+
+    BlockCodec (String name, int level) {
+        _name = name;
+        _level = level;
+    }
+
+    /**
+     * Returns the codec's recorded name.
+     */
+    public String getName () {
+        return _name;
+    }
+
+    /**
+     * Returns the codec used to decode blocks recorded with the given name,
+     * or null if the name is not supported. A null name denotes a raw block.
+     */
+    public static BlockCodec forName (String name) {
+        if (name == null || name.equals(NONE._name)) {
+            return NONE;
+        } else if (name.equals(DEFLATE._name)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Encode the input buffer's remaining data into the output buffer, which
+     * must have a backing array. The input buffer is not modified.
+     *
+     * @return true if the data was encoded, and the output buffer has been
+     *  flipped for reading. false if the encoded data would not be smaller
+     *  than the input, in which case the block should be stored raw.
+     */
+    public boolean encode (ByteBuffer input, ByteBuffer output) {
+        if (this == NONE) {
+            return false;
+        }
+
+        ByteBuffer in = input.duplicate();
+        Deflater deflater = new Deflater(_level);
+        byte[] chunk = null;
+        byte[] out = output.array();
+        int base = output.arrayOffset();
+        int limit = Math.min(output.capacity(), in.remaining() - 1);
+        int written = 0;
+        boolean finishing = false;
+
+        try {
+            while (true) {
+                /* Feed the deflater. */
+                if (deflater.needsInput()) {
+                    int len = Math.min(CHUNK_SIZE, in.remaining());
+                    if (len > 0) {
+                        if (in.hasArray()) {
+                            deflater.setInput(in.array(), in.arrayOffset() + in.position(), len);
+                            in.position(in.position() + len);
+                        } else {
+                            /* Direct buffer, copy out a chunk. */
+                            if (chunk == null) {
+                                chunk = new byte[CHUNK_SIZE];
+                            }
+                            in.get(chunk, 0, len);
+                            deflater.setInput(chunk, 0, len);
+                        }
+                    } else if (!finishing) {
+                        deflater.finish();
+                        finishing = true;
+                    }
+                }
+
+                if (deflater.finished()) {
+                    break;
+                }
+
+                /* Give up if the output is no smaller than the input. */
+                if (written >= limit) {
+                    return false;
+                }
+                written += deflater.deflate(out, base + written, limit - written);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        output.clear();
+        output.limit(written);
+        return true;
+    }
+
+    /**
+     * Create the S3 object for a block, encoding it if possible, and recording
+     * the codec in the given metadata if it was applied.
+     *
+     * @param data Raw block data.
+     * @param md5 MD5 digest of the raw data, or null to compute it.
+     * @param encoded Encoding buffer, or null to store the block raw.
+     * @param metadata Block metadata, assigned to the returned object.
+     */
+    public S3ByteBufferObject createObject (String key, ByteBuffer data, byte[] md5,
+        ByteBuffer encoded, Map<String,String> metadata)
+    {
+        S3ByteBufferObject obj;
+
+        if (encoded != null && encode(data, encoded)) {
+            metadata.put(RemoteStream.BLOCK_KEY_CODEC, _name);
+            obj = new S3ByteBufferObject(key, encoded);
+        } else {
+            obj = new S3ByteBufferObject(key, data, md5);
+        }
+
+        obj.setMetadata(metadata);
+        return obj;
+    }
+
+    /**
+     * Returns a stream that decodes the given encoded stream.
+     */
+    public InputStream decode (InputStream input) {
+        if (this == NONE) {
+            return input;
+        }
+        return new InflaterInputStream(input);
+    }
+
+    /** Recorded codec name. */
+    private final String _name;
+
+    /** Compression level. */
+    private final int _level;
+
+    /** Input chunk size. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+}
@@ -0,0 +1,315 @@
+/* 
+ * BlockManifest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The blocks that make up a completed (version 2) block stream: each
+ * block's decoded length, and the MD5 digest of its stored data, in block id
+ * order. Given the manifest, readers know the number of blocks and the
+ * offset of each up front, without listing or probing for the end of the
+ * stream. A manifest may also record the SHA-256 digest of the complete
+ * stream.
+ *
+ * Manifests are stored in a compact binary form, in network byte order:
+ *
+ *   magic        4 bytes, "S3PB"
+ *   version      1 byte, 1
+ *   flags        1 byte, FLAG_STREAM_DIGEST if the stream digest follows
+ *   block count  4 bytes
+ *   blocks       per block, a 4 byte length and a 16 byte MD5 digest
+ *   digest       32 bytes, if FLAG_STREAM_DIGEST is set
+ *
+ * Blocks may be set in any order as their uploads complete, but a manifest
+ * may only be written once every block up to the last has been set.
+ * Setting blocks is thread-safe.
+ */
+class BlockManifest {
+    /** A single block's record. */
+    public static class Entry {
+        public Entry (int length, byte[] md5) {
+            _length = length;
+            _md5 = md5;
+        }
+
+        /** Returns the block's decoded length, in bytes. */
+        public int getLength () {
+            return _length;
+        }
+
+        /** Returns the MD5 digest of the block's stored (encoded) data. */
+        public byte[] getMD5 () {
+            return _md5;
+        }
+
+        /** Block length. */
+        private final int _length;
+
+        /** Stored data digest. */
+        private final byte[] _md5;
+    }
+
+
+    /**
+     * Parse a manifest.
+     * @throws RemoteStreamException.InvalidInfoRecordException if the manifest is invalid.
+     */
+    public static BlockManifest read (InputStream input)
+        throws IOException, RemoteStreamException
+    {
+        DataInputStream data = new DataInputStream(input);
+        BlockManifest manifest = new BlockManifest();
+        byte[] magic = new byte[MAGIC.length];
+        int flags;
+        int count;
+
+        try {
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || data.readUnsignedByte() != FORMAT_VERSION) {
+                throw new RemoteStreamException.InvalidInfoRecordException("Unsupported block manifest.");
+            }
+
+            flags = data.readUnsignedByte();
+            count = data.readInt();
+            if (count < 0) {
+                throw new RemoteStreamException.InvalidInfoRecordException(
+                    "Invalid block manifest count: " + count);
+            }
+
+            for (int i = 0; i < count; i++) {
+                int length = data.readInt();
+                byte[] md5 = new byte[MD5_LENGTH];
+                data.readFully(md5);
+                manifest.set(i, length, md5);
+            }
+
+            if ((flags & FLAG_STREAM_DIGEST) != 0) {
+                byte[] digest = new byte[STREAM_DIGEST_LENGTH];
+                data.readFully(digest);
+                manifest.setStreamDigest(digest);
+            }
+        } catch (EOFException eof) {
+            throw new RemoteStreamException.InvalidInfoRecordException("Truncated block manifest.");
+        }
+
+        if (data.read() >= 0) {
+            throw new RemoteStreamException.InvalidInfoRecordException(
+                "Unexpected data following block manifest.");
+        }
+
+        return manifest;
+    }
+
+
+    /**
+     * Record a block.
+     * @param length: The block's decoded length.
+     * @param md5: The MD5 digest of the block's stored data.
+     */
+    public synchronized void set (long blockId, int length, byte[] md5) {
+        if (blockId < 0 || blockId > Integer.MAX_VALUE || md5.length != MD5_LENGTH) {
+            throw new IllegalArgumentException("Invalid block " + blockId);
+        }
+
+        while (_entries.size() <= blockId) {
+            _entries.add(null);
+        }
+        _entries.set((int)blockId, new Entry(length, md5));
+        _offsets = null;
+    }
+
+
+    /**
+     * Returns the number of blocks.
+     */
+    public synchronized int getBlockCount () {
+        return _entries.size();
+    }
+
+
+    /**
+     * Returns the given block's record, or null if it has not been set.
+     */
+    public synchronized Entry getEntry (int blockId) {
+        return _entries.get(blockId);
+    }
+
+
+    /**
+     * Returns the stream offset of the given block. Offsets may be requested
+     * for, and up to, the block count, which gives the stream length.
+     */
+    public synchronized long getOffset (int blockId) {
+        if (_offsets == null) {
+            long offset = 0;
+            _offsets = new long[_entries.size() + 1];
+            for (int i = 0; i < _entries.size(); i++) {
+                _offsets[i] = offset;
+                offset += requireEntry(i).getLength();
+            }
+            _offsets[_entries.size()] = offset;
+        }
+
+        return _offsets[blockId];
+    }
+
+
+    /**
+     * Returns the id of the block containing the given stream offset, or -1
+     * if the offset is beyond the end of the stream.
+     */
+    public synchronized int findBlock (long offset) {
+        int low = 0;
+        int high = _entries.size() - 1;
+
+        if (offset < 0 || offset >= getLength()) {
+            return -1;
+        }
+
+        /* Find the last block that starts at or before the offset. */
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getOffset(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return high;
+    }
+
+
+    /**
+     * Returns the total stream length, in bytes.
+     */
+    public synchronized long getLength () {
+        return getOffset(_entries.size());
+    }
+
+
+    /**
+     * Returns the SHA-256 digest of the complete stream, or null if it was
+     * not recorded.
+     */
+    public synchronized byte[] getStreamDigest () {
+        return _streamDigest;
+    }
+
+
+    /**
+     * Record the SHA-256 digest of the complete stream.
+     */
+    public synchronized void setStreamDigest (byte[] digest) {
+        if (digest != null && digest.length != STREAM_DIGEST_LENGTH) {
+            throw new IllegalArgumentException("Invalid stream digest length: " + digest.length);
+        }
+        _streamDigest = digest;
+    }
+
+
+    /**
+     * Serialize the manifest.
+     */
+    public synchronized byte[] toByteArray () {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+
+        try {
+            data.write(MAGIC);
+            data.writeByte(FORMAT_VERSION);
+            data.writeByte(_streamDigest != null ? FLAG_STREAM_DIGEST : 0);
+            data.writeInt(_entries.size());
+            for (int i = 0; i < _entries.size(); i++) {
+                Entry entry = requireEntry(i);
+                data.writeInt(entry.getLength());
+                data.write(entry.getMD5());
+            }
+            if (_streamDigest != null) {
+                data.write(_streamDigest);
+            }
+            data.close();
+        } catch (IOException ioe) {
+            // Can't happen writing to memory.
+            throw new RuntimeException(ioe);
+        }
+
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Returns the given block's record, which must have been set.
+     */
+    private Entry requireEntry (int blockId) {
+        Entry entry = _entries.get(blockId);
+        if (entry == null) {
+            throw new IllegalStateException("Block " + blockId + " has not been recorded.");
+        }
+        return entry;
+    }
+
+
+    /** Block records, by block id. */
+    private final List<Entry> _entries = new ArrayList<Entry>();
+
+    /** Block offsets, computed on demand. */
+    private long[] _offsets;
+
+    /** Complete stream digest, or null. */
+    private byte[] _streamDigest;
+
+    /** Manifest magic. */
+    private static final byte[] MAGIC = { 'S', '3', 'P', 'B' };
+
+    /** Manifest format version. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Flag set if the stream digest is recorded. */
+    private static final int FLAG_STREAM_DIGEST = 0x01;
+
+    /** MD5 digest length. */
+    private static final int MD5_LENGTH = 16;
+
+    /** SHA-256 digest length. */
+    private static final int STREAM_DIGEST_LENGTH = 32;
+}
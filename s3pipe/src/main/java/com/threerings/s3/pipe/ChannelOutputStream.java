@@ -0,0 +1,179 @@
+/* 
+ * ChannelOutputStream vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * An unsynchronized output stream that gathers writes into a large direct
+ * buffer, and writes it to a channel once full.
+ *
+ * Writing stdout through System.out takes the PrintStream's lock on every
+ * write, and each write of a heap array to a file descriptor is copied by the
+ * JDK into a temporary direct buffer of its own before the system call. This
+ * stream copies the data once, into its direct buffer, and hands the channel
+ * a few large writes instead of many small ones. Direct buffers passed to
+ * write(ByteBuffer) are written to the channel without copying once any
+ * buffered data has been written.
+ *
+ * The channel is not closed by flush(); close() flushes and closes it.
+ * ChannelOutputStream is not thread-safe.
+ */
+class ChannelOutputStream extends OutputStream {
+    /**
+     * Instantiate a new stream with the default buffer size.
+     * @param channel: Destination channel.
+     */
+    public ChannelOutputStream (WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Instantiate a new stream.
+     * @param channel: Destination channel.
+     * @param bufferSize: Size of the direct write buffer, in bytes.
+     */
+    public ChannelOutputStream (WritableByteChannel channel, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1: " + bufferSize);
+        }
+
+        _channel = channel;
+        _buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override // From OutputStream
+    public void write (int b)
+        throws IOException
+    {
+        if (!_buffer.hasRemaining()) {
+            drain();
+        }
+        _buffer.put((byte)b);
+    }
+
+    @Override // From OutputStream
+    public void write (byte[] b, int off, int len)
+        throws IOException
+    {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0) {
+            int count;
+
+            if (!_buffer.hasRemaining()) {
+                drain();
+            }
+
+            count = Math.min(len, _buffer.remaining());
+            _buffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Write the remaining contents of the given buffer. Direct buffers are
+     * written to the channel as they are; heap buffers are gathered into the
+     * direct write buffer.
+     */
+    public void write (ByteBuffer src)
+        throws IOException
+    {
+        if (!src.isDirect()) {
+            if (src.hasArray()) {
+                write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            } else {
+                while (src.hasRemaining()) {
+                    write(src.get());
+                }
+            }
+            return;
+        }
+
+        /* Preserve ordering with any buffered data. */
+        drain();
+        while (src.hasRemaining()) {
+            _channel.write(src);
+        }
+    }
+
+    @Override // From OutputStream
+    public void flush ()
+        throws IOException
+    {
+        drain();
+    }
+
+    @Override // From OutputStream
+    public void close ()
+        throws IOException
+    {
+        try {
+            drain();
+        } finally {
+            _channel.close();
+        }
+    }
+
+    /**
+     * Write any buffered data to the channel.
+     */
+    private void drain ()
+        throws IOException
+    {
+        _buffer.flip();
+        try {
+            while (_buffer.hasRemaining()) {
+                _channel.write(_buffer);
+            }
+        } finally {
+            _buffer.compact();
+        }
+    }
+
+    /** Destination channel. */
+    private final WritableByteChannel _channel;
+
+    /** Direct write buffer. */
+    private final ByteBuffer _buffer;
+
+    /** Default buffer size. */
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+}
@@ -0,0 +1,147 @@
+/* 
+ * ChunkIndex vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * A local index of the chunks known to exist remotely, used to skip remote
+ * existence checks during deduplicated uploads.
+ *
+ * The index is a text file containing one chunk digest per line; chunks are
+ * appended as they are uploaded or found to exist. The index is trusted: if
+ * chunks are deleted remotely, the index must be deleted as well.
+ *
+ * ChunkIndex instances are thread-safe.
+ */
+class ChunkIndex {
+    /**
+     * Instantiate an in-memory index.
+     */
+    public ChunkIndex () {
+        _writer = null;
+    }
+
+
+    /**
+     * Load the index from the given file, creating it if necessary.
+     */
+    public ChunkIndex (File file)
+        throws IOException
+    {
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), INDEX_ENCODING));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0) {
+                        _digests.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        _writer = new OutputStreamWriter(new FileOutputStream(file, true), INDEX_ENCODING);
+    }
+
+
+    /**
+     * Returns true if the chunk with the given digest is known to exist.
+     */
+    public boolean contains (String digest) {
+        return _digests.contains(digest);
+    }
+
+
+    /**
+     * Record that the chunk with the given digest exists.
+     */
+    public void add (String digest)
+        throws IOException
+    {
+        synchronized (this) {
+            if (!_digests.add(digest) || _writer == null) {
+                return;
+            }
+
+            _writer.write(digest);
+            _writer.write('\n');
+            _writer.flush();
+        }
+    }
+
+
+    /**
+     * Returns the number of known chunks.
+     */
+    public int size () {
+        return _digests.size();
+    }
+
+
+    /**
+     * Close the index file, if any.
+     */
+    public synchronized void close ()
+        throws IOException
+    {
+        if (_writer != null) {
+            _writer.close();
+            _writer = null;
+        }
+    }
+
+
+    /** Index file writer, or null. */
+    private Writer _writer;
+
+    /** Known chunk digests. */
+    private final Set<String> _digests = Collections.synchronizedSet(new HashSet<String>());
+
+    /** Index file encoding. */
+    private static final String INDEX_ENCODING = "ascii";
+}
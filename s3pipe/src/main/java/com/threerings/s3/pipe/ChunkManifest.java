@@ -0,0 +1,234 @@
+/* 
+ * ChunkManifest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The ordered list of content-addressed chunks that make up a chunked stream.
+ *
+ * Manifests are stored as text: a header line, followed by one
+ * "<digest> <length>" line per chunk.
+ */
+class ChunkManifest {
+    /** A single chunk reference. */
+    public static class Entry {
+        public Entry (String digest, int length) {
+            _digest = digest;
+            _length = length;
+        }
+
+        /** Returns the chunk's hex-encoded SHA-256 digest. */
+        public String getDigest () {
+            return _digest;
+        }
+
+        /** Returns the chunk's length, in bytes. */
+        public int getLength () {
+            return _length;
+        }
+
+        /** Chunk digest. */
+        private final String _digest;
+
+        /** Chunk length. */
+        private final int _length;
+    }
+
+
+    /**
+     * Parse a manifest.
+     * @throws RemoteStreamException.InvalidInfoRecordException if the manifest is invalid.
+     */
+    public static ChunkManifest read (InputStream input)
+        throws IOException, RemoteStreamException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, MANIFEST_ENCODING));
+        ChunkManifest manifest = new ChunkManifest();
+        String line;
+
+        if (!HEADER.equals(reader.readLine())) {
+            throw new RemoteStreamException.InvalidInfoRecordException("Unsupported chunk manifest.");
+        }
+
+        while ((line = reader.readLine()) != null) {
+            int sep = line.indexOf(' ');
+            if (sep < 0) {
+                throw new RemoteStreamException.InvalidInfoRecordException(
+                    "Invalid chunk manifest entry: " + line);
+            }
+
+            try {
+                manifest.add(line.substring(0, sep), Integer.parseInt(line.substring(sep + 1)));
+            } catch (NumberFormatException nfe) {
+                throw new RemoteStreamException.InvalidInfoRecordException(
+                    "Invalid chunk manifest entry: " + line);
+            }
+        }
+
+        return manifest;
+    }
+
+
+    /**
+     * Append a chunk reference.
+     */
+    public void add (String digest, int length) {
+        _entries.add(new Entry(digest, length));
+        _length += length;
+        _offsets = null;
+    }
+
+
+    /**
+     * Returns the chunk references, in stream order.
+     */
+    public List<Entry> getEntries () {
+        return _entries;
+    }
+
+
+    /**
+     * Returns the stream offset of the given chunk.
+     */
+    public long getOffset (int index) {
+        return offsets()[index];
+    }
+
+
+    /**
+     * Returns the index of the chunk containing the given stream offset, or -1
+     * if the offset is beyond the end of the stream.
+     */
+    public int indexOf (long offset) {
+        long[] offsets = offsets();
+        int low = 0;
+        int high = _entries.size() - 1;
+
+        if (offset < 0 || offset >= _length) {
+            return -1;
+        }
+
+        /* Find the last chunk that starts at or before the offset. */
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return high;
+    }
+
+
+    /**
+     * Returns the total stream length, in bytes.
+     */
+    public long getLength () {
+        return _length;
+    }
+
+
+    /**
+     * Serialize the manifest.
+     */
+    public byte[] toByteArray () {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        try {
+            Writer writer = new OutputStreamWriter(data, MANIFEST_ENCODING);
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Entry entry : _entries) {
+                writer.write(entry.getDigest());
+                writer.write(' ');
+                writer.write(Integer.toString(entry.getLength()));
+                writer.write('\n');
+            }
+            writer.close();
+        } catch (UnsupportedEncodingException uee) {
+            // ascii must always be available.
+            throw new RuntimeException("Missing a standard encoding", uee);
+        } catch (IOException ioe) {
+            // Can't happen writing to memory.
+            throw new RuntimeException(ioe);
+        }
+
+        return data.toByteArray();
+    }
+
+
+    /**
+     * Returns the chunks' stream offsets, computing them if the manifest has
+     * changed.
+     */
+    private long[] offsets () {
+        if (_offsets == null) {
+            long[] offsets = new long[_entries.size()];
+            long start = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = start;
+                start += _entries.get(i).getLength();
+            }
+            _offsets = offsets;
+        }
+        return _offsets;
+    }
+
+
+    /** Chunk references. */
+    private final List<Entry> _entries = new ArrayList<Entry>();
+
+    /** Total stream length. */
+    private long _length;
+
+    /** Chunk offsets, or null if not yet computed. */
+    private long[] _offsets;
+
+    /** Manifest header. */
+    private static final String HEADER = "s3pipe-chunks 1";
+
+    /** Manifest encoding. */
+    private static final String MANIFEST_ENCODING = "ascii";
+}
@@ -0,0 +1,398 @@
+/* 
+ * ChunkedUploadStreamer vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.acl.AccessControlList;
+import com.threerings.s3.client.S3ClientException;
+import com.threerings.s3.client.S3Connection;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ServerException;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * Uploads streams as a manifest of deduplicated, content-addressed chunks.
+ *
+ * The stream is split into content-defined chunks by a ContentChunker, and
+ * each chunk is stored under its SHA-256 digest. Chunks that already exist,
+ * either according to the local ChunkIndex or to a HEAD request, are not
+ * uploaded again; as chunk boundaries follow the content, unchanged regions
+ * of an incremental dump produce chunks that already exist. Once all chunks
+ * are stored, the stream's manifest is written.
+ *
+ * Up to parallelism chunks are checked and uploaded concurrently, and
+ * memory use is bounded by (parallelism + 2) * maximum chunk size, plus a
+ * further parallelism buffers if a codec is set.
+ */
+class ChunkedUploadStreamer {
+    /*
+     * Instantiate a new chunked stream uploader. Chunks vary between a quarter
+     * and four times the average chunk size.
+     * @param connect: S3 Connection.
+     * @param bucket: Destination S3 bucket.
+     * @param chunkSize: Average chunk size, in bytes.
+     * @param parallelism: Maximum number of concurrent chunk uploads.
+     */
+    public ChunkedUploadStreamer (S3Connection connection, String bucket,
+        int chunkSize, int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+
+        _connection = connection;
+        _bucket = bucket;
+        _chunkSize = chunkSize;
+        _parallelism = parallelism;
+    }
+
+
+    /**
+     * Set the codec used to compress chunks. Defaults to BlockCodec.NONE.
+     */
+    public void setCodec (BlockCodec codec) {
+        _codec = codec;
+    }
+
+
+    /**
+     * Set the index of chunks known to exist. Defaults to an empty in-memory
+     * index.
+     */
+    public void setIndex (ChunkIndex index) {
+        _index = index;
+    }
+
+
+    /**
+     * Upload a stream, using the given streamName.
+     * @param streamName: Arbitrary stream name.
+     * @param inputData: Stream to upload.
+     * @param retry: Number of times to retry failed S3 operations.
+     * @throws RemoteStreamException.StreamExistsException Thrown if the given stream
+     *  currently exists.
+     * @throws S3Exception Thrown if an S3 error occurs.
+     */
+    public void upload (final String streamName, InputStream inputData, int maxRetry)
+        throws S3Exception, RemoteStreamException
+    {
+        final S3Connection connection = S3RetryHandler.wrap(_connection, maxRetry);
+        final AtomicReference<S3Exception> failure = new AtomicReference<S3Exception>();
+        final Semaphore uploadSlots = new Semaphore(_parallelism);
+        final Thread uploadThread = Thread.currentThread();
+        final BlockBufferPool pool;
+        final BlockBufferPool encodePool;
+        final AtomicInteger uploaded = new AtomicInteger();
+        Set<String> submitted = new HashSet<String>();
+        ChunkManifest manifest = new ChunkManifest();
+        ContentChunker chunker;
+        ExecutorService uploaders;
+        MessageDigest sha;
+        RemoteStream stream;
+        boolean interrupted = false;
+
+        chunker = new ContentChunker(inputData, Math.max(1, _chunkSize / 4), _chunkSize, _chunkSize * 4);
+        pool = new BlockBufferPool(chunker.getMaxSize(), _parallelism + 1, false);
+        encodePool = (_codec != BlockCodec.NONE) ?
+            new BlockBufferPool(chunker.getMaxSize(), _parallelism, false) : null;
+
+        _chunks.set(0);
+        _uploadedChunks.set(0);
+        _uploadedBytes.set(0);
+
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsa) {
+            // SHA-256 is a required algorithm.
+            throw new RuntimeException(nsa);
+        }
+
+        /* Instantiate a stream reference and create the stream info record */
+        try {
+            stream = new RemoteStream(connection, _bucket, streamName);
+            if (stream.getStreamInfo() != null) {
+                throw new RemoteStreamException.StreamExistsException("Stream \"" +
+                    streamName + "\" exits.");
+            }
+            stream.putStreamInfo(_codec, true);
+        } catch (S3Exception s3e) {
+            throw new RemoteStreamException("S3 failure creating stream info record for '" +
+                streamName + "': " + s3e.getMessage());      
+        }
+
+        uploaders = Executors.newFixedThreadPool(_parallelism, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, streamName + " Upload " + _threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+            /** Thread id counter. */
+            private final AtomicInteger _threadId = new AtomicInteger();
+        });
+
+        /*
+         * Cut the stream into chunks, add each to the manifest, and hand any
+         * not known to exist off to the uploaders.
+         */
+        try {
+            while (true) {
+                final ByteBuffer chunk = pool.acquire();
+                final String digest;
+
+                if (failure.get() != null || !chunker.nextChunk(chunk)) {
+                    pool.release(chunk);
+                    break;
+                }
+
+                sha.update(chunk.duplicate());
+                digest = new String(Hex.encodeHex(sha.digest()));
+                manifest.add(digest, chunk.remaining());
+                _chunks.incrementAndGet();
+
+                /* Skip chunks that are known to exist, or are already being uploaded. */
+                if (_index.contains(digest) || !submitted.add(digest)) {
+                    pool.release(chunk);
+                    continue;
+                }
+
+                /* Wait for an upload slot. */
+                try {
+                    uploadSlots.acquire();
+                } catch (InterruptedException ie) {
+                    pool.release(chunk);
+                    throw ie;
+                }
+
+                uploaders.execute(new Runnable() {
+                    public void run () {
+                        try {
+                            uploadChunk(connection, digest, chunk, encodePool);
+                            uploaded.incrementAndGet();
+                        } catch (S3Exception s3e) {
+                            /* Report the first failure, and stop chunking. */
+                            if (failure.compareAndSet(null, s3e)) {
+                                System.err.println("S3 failure uploading chunk '" +
+                                    digest + "': " + s3e.getMessage());
+                                uploadThread.interrupt();
+                            }
+                        } finally {
+                            pool.release(chunk);
+                            uploadSlots.release();
+                        }
+                    }
+                });
+            }
+
+            /* Honor an interrupt delivered while reading the input. */
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            /* Wait for the outstanding uploads to complete. */
+            uploaders.shutdown();
+            while (!uploaders.awaitTermination(5, TimeUnit.SECONDS)) {
+                // Keep waiting
+            }
+        } catch (InterruptedException ie) {
+            /* Thrown on upload failure, handled below. Otherwise we were
+             * interrupted; claim the failure, so that the cancelled uploads
+             * don't interrupt us in turn. */
+            interrupted = failure.compareAndSet(null,
+                new S3ClientException("Interrupted uploading stream", ie));
+        } catch (InterruptedIOException iioe) {
+            /* The input stream was interrupted; as above. */
+            interrupted = failure.compareAndSet(null,
+                new S3ClientException("Interrupted uploading stream", iioe));
+        } catch (IOException ioe) {
+            throw new RemoteStreamException("Failure reading input stream: " + ioe);
+        } finally {
+            /* Cancel any outstanding uploads. */
+            uploaders.shutdownNow();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new RemoteStreamException("Interrupted uploading stream '" + streamName + "'");
+        }
+
+        /* Check for error and exit */
+        if (failure.get() != null) {
+            /* Clear an interrupt delivered by a failed uploader. */
+            Thread.interrupted();
+            throw failure.get();
+        }
+
+        if (uploaded.get() != submitted.size()) {
+            throw new RemoteStreamException("Only " + uploaded.get() + " of " + submitted.size() +
+                " chunks of '" + streamName + "' were uploaded");
+        }
+
+        /* All chunks are stored; write the manifest. */
+        try {
+            stream.putManifest(manifest);
+        } catch (S3Exception s3e) {
+            throw new RemoteStreamException("S3 failure writing chunk manifest for '" +
+                streamName + "': " + s3e.getMessage(), s3e);
+        }
+    }
+
+
+    /** Returns the number of chunks in the last uploaded stream. */
+    public long getChunkCount () {
+        return _chunks.get();
+    }
+
+
+    /** Returns the number of chunks uploaded, rather than found to exist. */
+    public long getUploadedChunkCount () {
+        return _uploadedChunks.get();
+    }
+
+
+    /** Returns the number of raw bytes uploaded, rather than found to exist. */
+    public long getUploadedBytes () {
+        return _uploadedBytes.get();
+    }
+
+
+    /**
+     * Upload a single chunk, unless it already exists.
+     * @param encodePool: Pool of encoding buffers, or null if no codec is set.
+     */
+    private void uploadChunk (S3Connection connection, String digest, ByteBuffer chunk,
+        BlockBufferPool encodePool)
+        throws S3Exception
+    {
+        String key = RemoteStream.chunkKey(digest);
+        Map<String,String> metadata = new HashMap<String,String>();
+        ByteBuffer encoded = null;
+        int length = chunk.remaining();
+
+        /* Check whether the chunk exists remotely. */
+        try {
+            S3Object existing = connection.getObjectMetadata(_bucket, key);
+            if (existing != null) {
+                recordChunk(digest);
+                return;
+            }
+        } catch (S3ServerException.NoSuchKeyException nsk) {
+            // Upload it.
+        }
+
+        try {
+            if (encodePool != null) {
+                try {
+                    encoded = encodePool.acquire();
+                } catch (InterruptedException ie) {
+                    throw new S3ClientException.NetworkException("Interrupted awaiting encoding buffer", ie);
+                }
+            }
+
+            metadata.put(RemoteStream.BLOCK_KEY_LENGTH, Integer.toString(length));
+            connection.putObject(_bucket, _codec.createObject(key, chunk, null, encoded, metadata),
+                AccessControlList.StandardPolicy.PRIVATE);
+        } finally {
+            if (encoded != null) {
+                encodePool.release(encoded);
+            }
+        }
+
+        _uploadedChunks.incrementAndGet();
+        _uploadedBytes.addAndGet(length);
+        recordChunk(digest);
+    }
+
+
+    /**
+     * Record a stored chunk in the index.
+     */
+    private void recordChunk (String digest) {
+        try {
+            _index.add(digest);
+        } catch (IOException ioe) {
+            /* The index is only an optimization. */
+            System.err.println("Failure updating chunk index: " + ioe.getMessage());
+        }
+    }
+
+
+    /** S3 Connection. */
+    private final S3Connection _connection;
+
+    /** S3 Bucket. */
+    private final String _bucket;
+
+    /** Average chunk size. */
+    private final int _chunkSize;
+
+    /** Maximum number of concurrent chunk uploads. */
+    private final int _parallelism;
+
+    /** Chunk codec. */
+    private BlockCodec _codec = BlockCodec.NONE;
+
+    /** Known chunks. */
+    private ChunkIndex _index = new ChunkIndex();
+
+    /** Chunks in the stream. */
+    private final AtomicLong _chunks = new AtomicLong();
+
+    /** Chunks uploaded. */
+    private final AtomicLong _uploadedChunks = new AtomicLong();
+
+    /** Raw bytes uploaded. */
+    private final AtomicLong _uploadedBytes = new AtomicLong();
+}
@@ -0,0 +1,199 @@
+/* 
+ * ContentChunker vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+
+/*
+ * Splits a stream into content-defined chunks.
+ *
+ * Chunk boundaries are chosen with a gear rolling hash: a boundary is cut
+ * wherever the hash of the preceding bytes matches a fixed pattern, subject
+ * to minimum and maximum chunk sizes. As boundaries depend only on nearby
+ * content, an insertion or deletion shifts only the chunks around it, and
+ * unchanged data elsewhere in the stream produces identical chunks.
+ *
+ * Input is buffered two maximum-size chunks at a time. Chunks are consumed
+ * from a read offset, and the remaining data is only moved to the front of
+ * the buffer when it is refilled, so each byte is copied at most once.
+ *
+ * ContentChunker instances are not thread-safe.
+ */
+class ContentChunker {
+    /**
+     * Instantiate a new chunker.
+     * @param input: Input stream.
+     * @param minSize: Minimum chunk size, in bytes.
+     * @param avgSize: Target average chunk size, in bytes. Rounded down to a
+     *  power of two.
+     * @param maxSize: Maximum chunk size, in bytes.
+     */
+    public ContentChunker (InputStream input, int minSize, int avgSize, int maxSize) {
+        if (minSize < 1 || avgSize < minSize || maxSize < avgSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes: " + minSize + ", " +
+                avgSize + ", " + maxSize);
+        }
+
+        _input = input;
+        _minSize = minSize;
+        _maxSize = maxSize;
+        _shift = 64 - (31 - Integer.numberOfLeadingZeros(avgSize));
+        _buffer = new byte[maxSize * 2];
+    }
+
+
+    /**
+     * Read the next chunk into the given buffer, which must have room for a
+     * maximum-size chunk. The buffer is cleared, filled, and flipped.
+     *
+     * @return false if the end of the stream has been reached, and no data
+     *  was read.
+     */
+    public boolean nextChunk (ByteBuffer chunk)
+        throws IOException
+    {
+        int cut;
+
+        /* Refill once less than a maximum-size chunk is buffered. */
+        if (!_eof && _length - _offset < _maxSize) {
+            fill();
+        }
+        if (_length == _offset) {
+            return false;
+        }
+
+        cut = findBoundary();
+
+        chunk.clear();
+        chunk.put(_buffer, _offset, cut);
+        chunk.flip();
+
+        _offset += cut;
+        return true;
+    }
+
+
+    /** Returns the maximum chunk size. */
+    public int getMaxSize () {
+        return _maxSize;
+    }
+
+
+    /**
+     * Move the remaining data to the front of the buffer, and fill the buffer
+     * from the input stream, until it is full or EOF is reached.
+     */
+    private void fill ()
+        throws IOException
+    {
+        if (_offset > 0) {
+            System.arraycopy(_buffer, _offset, _buffer, 0, _length - _offset);
+            _length -= _offset;
+            _offset = 0;
+        }
+
+        while (!_eof && _length < _buffer.length) {
+            int len = _input.read(_buffer, _length, _buffer.length - _length);
+            if (len < 0) {
+                _eof = true;
+            } else {
+                _length += len;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the length of the chunk at the read offset.
+     */
+    private int findBoundary () {
+        int available = Math.min(_length - _offset, _maxSize);
+        long hash = 0;
+
+        if (available <= _minSize) {
+            return available;
+        }
+
+        /* Skip the minimum chunk size, warming the hash on the bytes preceding it. */
+        for (int i = Math.max(0, _minSize - 64); i < _minSize; i++) {
+            hash = (hash << 1) + GEAR[_buffer[_offset + i] & 0xFF];
+        }
+
+        for (int i = _minSize; i < available; i++) {
+            hash = (hash << 1) + GEAR[_buffer[_offset + i] & 0xFF];
+            if ((hash >>> _shift) == 0) {
+                return i + 1;
+            }
+        }
+
+        return available;
+    }
+
+
+    /** Data input stream. */
+    private final InputStream _input;
+
+    /** Minimum chunk size. */
+    private final int _minSize;
+
+    /** Maximum chunk size. */
+    private final int _maxSize;
+
+    /** Boundaries are cut where the hash's high bits, above this shift, are zero. */
+    private final int _shift;
+
+    /** Buffered input. */
+    private final byte[] _buffer;
+
+    /** Offset of the first unconsumed byte of buffered input. */
+    private int _offset;
+
+    /** End of the buffered input. */
+    private int _length;
+
+    /** EOF reached? */
+    private boolean _eof;
+
+    /** Gear hash table. The seed is fixed, as boundaries must be stable across runs. */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5333706970654c4cL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+}
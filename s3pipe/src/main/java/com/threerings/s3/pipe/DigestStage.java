@@ -0,0 +1,143 @@
+/* 
+ * DigestStage vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Computes a message digest on its own thread, so that digesting runs
+ * concurrently with the caller's I/O.
+ *
+ * Each update() copies the given data and queues it for digesting; at most
+ * MAX_PENDING updates are queued at once, after which update() blocks. The
+ * digest() call waits for the queued updates to complete, and returns and
+ * resets the digest, as MessageDigest.digest() does.
+ *
+ * A DigestStage computes one digest at a time, and is not thread-safe.
+ */
+class DigestStage {
+    /**
+     * Instantiate a new digest stage.
+     * @param algorithm: Digest algorithm.
+     * @param threadName: Name of the digest thread.
+     */
+    public DigestStage (String algorithm, final String threadName) {
+        try {
+            _digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            /* This should never be missing. */
+            throw new RuntimeException("Missing " + algorithm + " algorithm!", e);
+        }
+
+        _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * Queue a copy of the given data to be digested, blocking while
+     * MAX_PENDING updates are outstanding.
+     */
+    public void update (byte[] data, int offset, int length)
+        throws InterruptedException
+    {
+        final byte[] copy = new byte[length];
+
+        System.arraycopy(data, offset, copy, 0, length);
+        _pending.acquire();
+        _executor.execute(new Runnable() {
+            public void run () {
+                try {
+                    _digest.update(copy);
+                } finally {
+                    _pending.release();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Wait for all queued updates to complete, and return the digest.
+     * The digest is reset for further use.
+     */
+    public byte[] digest ()
+        throws InterruptedException
+    {
+        Future<byte[]> result = _executor.submit(new Callable<byte[]>() {
+            public byte[] call () {
+                return _digest.digest();
+            }
+        });
+
+        try {
+            return result.get();
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+
+    /**
+     * Discard any queued updates, and stop the digest thread.
+     */
+    public void close () {
+        _executor.shutdownNow();
+    }
+
+
+    /** Maximum number of queued updates. */
+    private static final int MAX_PENDING = 8;
+
+    /** Message digest, only accessed from the digest thread. */
+    private final MessageDigest _digest;
+
+    /** Digest thread. */
+    private final ExecutorService _executor;
+
+    /** Queued update permits. */
+    private final Semaphore _pending = new Semaphore(MAX_PENDING);
+}
@@ -31,33 +31,89 @@
 
 package com.threerings.s3.pipe;
 
+import com.threerings.s3.client.S3ClientException;
 import com.threerings.s3.client.S3Connection;
 import com.threerings.s3.client.S3Exception;
 import com.threerings.s3.client.S3Object;
 import com.threerings.s3.client.S3ServerException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
 /*
  * Downloads a series of S3Objects and re-assembles them as a stream.
+ *
+ * Compressed blocks are decoded transparently; each block's checksum is
+ * validated against its stored (encoded) data.
+ *
+ * Version 2 block streams list their blocks in a block manifest; exactly the
+ * listed blocks are fetched, each is checked against its manifest entry, and
+ * the complete stream is checked against the stream digest, if recorded.
+ * Streams without a manifest end at the first missing block.
+ *
+ * With a prefetch window greater than one, up to that many blocks (or chunks)
+ * are downloaded concurrently ahead of the block being written. Each fetch
+ * thread buffers its block in memory, verifies its checksum, and decodes it,
+ * so that verification of several blocks proceeds concurrently with writing.
+ * Blocks are written to the output strictly in order, and a block that fails
+ * verification is never written. Memory use is bounded by (prefetch + 1)
+ * times the largest block, stored and decoded.
+ *
+ * With a window of one, each block is streamed directly from S3 to the
+ * output, and digests are computed by DigestStages running alongside the
+ * writer; a block's checksum is validated once it has been written.
  */
 class DownloadStreamer {
     /*
-     * Instantiate a new stream downloader.
+     * Instantiate a new stream downloader that fetches one block at a time.
      * @param connect: S3 Connection.
      * @param bucket: Destination S3 bucket.
      */
     public DownloadStreamer (S3Connection connection, String bucket)
     {
+        this(connection, bucket, 1);
+    }
+
+    /*
+     * Instantiate a new stream downloader.
+     * @param connect: S3 Connection.
+     * @param bucket: Destination S3 bucket.
+     * @param prefetch: Maximum number of blocks to download concurrently.
+     */
+    public DownloadStreamer (S3Connection connection, String bucket, int prefetch)
+    {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("Prefetch window must be at least 1: " + prefetch);
+        }
+
         _connection = connection;
         _bucket = bucket;
+        _prefetch = prefetch;
     }
 
     /**
@@ -66,101 +122,197 @@ class DownloadStreamer {
     public void download (String streamName, OutputStream output, int maxRetry)
         throws S3Exception, RemoteStreamException
     {
+        S3Connection connection = S3RetryHandler.wrap(_connection, maxRetry);
+        long started = System.currentTimeMillis();
         RemoteStream stream;
         RemoteStreamInfo info;
+        BlockFetcher fetcher;
 
-        stream = new RemoteStream(_connection, _bucket, streamName);
+        _bytesWritten = 0;
+        stream = new RemoteStream(connection, _bucket, streamName);
 
         /* Fetch the stream info record. The caller must handle any RemoteStreamExceptions */
         try {
-            S3RetryHandler retry = new S3RetryHandler(maxRetry);
-            S3Exception retryError = null;
-
-            do {
-                /* Log the last error. */
-                if (retryError != null) {
-                    System.err.println("S3 error occured creating stream info record, retrying: " +
-                        retryError.getMessage());                    
-                }
-
-                try {
-                    /* Fetch the stream info */
-                    info = stream.getStreamInfo();
-                    
-                    if (info == null) {
-                        throw new RemoteStreamException.NoSuchStreamException("Stream \"" + streamName +
-                            "\" does not exist.");
-                    }             
-                } catch (S3Exception s3e) {
-                    /* Let the retry handler check the exception */
-                    retryError = s3e;
-                    continue;
-                }
-
-                break;
-            } while (retry.shouldRetry(retryError));
+            info = stream.getStreamInfo();
         } catch (S3Exception s3e) {
             throw new RemoteStreamException("S3 failure fetching stream info record for '" +
                 streamName + "': " + s3e.getMessage(), s3e);            
         }
 
+        if (info == null) {
+            throw new RemoteStreamException.NoSuchStreamException("Stream \"" + streamName +
+                "\" does not exist.");
+        }
+
+        /* Version 2 block streams are planned from their block manifest. */
+        BlockManifest manifest = null;
+        if (!info.isChunked() && info.getVersion() >= 2) {
+            try {
+                manifest = stream.getBlockManifest();
+            } catch (S3Exception s3e) {
+                throw new RemoteStreamException("S3 failure fetching block manifest for '" +
+                    streamName + "': " + s3e.getMessage(), s3e);
+            }
+        }
+
         /*
          * Download the blocks from S3.
          */
         byte[] buffer = new byte[BUFFER_SIZE];
-        for (long blockId = 0; ; blockId++) {
-            /* Fetch the next remote block, write it to the output stream */
-            try {
-                S3Object block;
-                MessageDigest blockDigest;
-                InputStream input;
-                boolean eof;
-                int nread;
+        fetcher = new BlockFetcher(connection, streamName);
+        if (_prefetch == 1) {
+            _blockStage = new DigestStage("md5", streamName + " Verify");
+            _contentStage = new DigestStage("SHA-256", streamName + " Content Verify");
+        }
+        if (manifest != null && manifest.getStreamDigest() != null) {
+            _streamStage = new DigestStage("SHA-256", streamName + " Stream Verify");
+        }
+        try {
+            if (info.isChunked()) {
+                downloadChunks(stream, fetcher, output, buffer);
+            } else {
+                downloadBlocks(stream, manifest, fetcher, output, buffer);
+            }
 
-                /* Fetch the block from the remote host. */
-                block = fetchRemoteBlock(stream, blockId, maxRetry);
-                if (block == null) {
-                    /* No more blocks, exit */
-                    break;
+            /* Verify the complete stream, if its digest was recorded. */
+            if (_streamStage != null && !Arrays.equals(_streamStage.digest(),
+                manifest.getStreamDigest()))
+            {
+                throw new RemoteStreamException("Stream \"" + streamName + "\" digest invalid.");
+            }
+        } catch (InterruptedException ie) {
+            throw new RemoteStreamException("Interrupted awaiting stream digest", ie);
+        } finally {
+            fetcher.close();
+            if (_blockStage != null) {
+                _blockStage.close();
+                _contentStage.close();
+                _blockStage = null;
+                _contentStage = null;
+            }
+            if (_streamStage != null) {
+                _streamStage.close();
+                _streamStage = null;
+            }
+        }
+
+        /* We're done, flush the output. */
+        try {
+            output.flush();            
+        } catch (IOException e) {
+            throw new RemoteStreamException("Error flushing output stream: " + e.getMessage(), e);
+        }
+
+        _elapsed = System.currentTimeMillis() - started;
+    }
+
+    /**
+     * Download part of the given streamName, starting at the given stream
+     * offset. The range is read through a RemoteStreamChannel, and only the
+     * blocks it covers are fetched.
+     * @param offset: Stream offset of the first byte to download.
+     * @param length: Maximum number of bytes to download, or -1 to download
+     *  to the end of the stream.
+     */
+    public void download (String streamName, OutputStream output, int maxRetry, long offset,
+        long length)
+        throws S3Exception, RemoteStreamException
+    {
+        S3Connection connection = S3RetryHandler.wrap(_connection, maxRetry);
+        long started = System.currentTimeMillis();
+        SeekableByteChannel channel;
+        ByteBuffer buffer;
+
+        _bytesWritten = 0;
+        channel = new RemoteStream(connection, _bucket, streamName).openChannel();
+        if (channel == null) {
+            throw new RemoteStreamException.NoSuchStreamException("Stream \"" + streamName +
+                "\" does not exist.");
+        }
+
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            channel.position(offset);
+            while (length < 0 || _bytesWritten < length) {
+                if (length >= 0) {
+                    buffer.limit((int)Math.min(BUFFER_SIZE, length - _bytesWritten));
                 }
 
-                /* Set up the message digest context. */
-                try {
-                    blockDigest = MessageDigest.getInstance("md5");                    
-                } catch (NoSuchAlgorithmException e) {
-                    /* This should never be missing. */
-                    throw new RuntimeException("Missing MD5 algorithm!", e);
+                if (channel.read(buffer) < 0) {
+                    break;
                 }
 
-                /* Read blocks from the input stream until EOF is detected. */
-                input = block.getInputStream();
-                eof = false;
-                while (!eof) {
+                output.write(buffer.array(), 0, buffer.position());
+                _bytesWritten += buffer.position();
+                buffer.clear();
+            }
+
+            output.flush();
+        } catch (IOException ioe) {
+            throw new RemoteStreamException("Failure downloading stream range: " +
+                ioe.getMessage(), ioe);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // Nothing to do.
+            }
+        }
+
+        _elapsed = System.currentTimeMillis() - started;
+    }
 
-                    /* Keep reading into byte buffer as long as it's less than 3/4ths full. */
-                    nread = 0;
-                    while (buffer.length - nread > (BUFFER_SIZE / 4)) {
-                        int len;
+    /**
+     * Returns the number of bytes written to the output by the last download.
+     */
+    public long getBytesWritten () {
+        return _bytesWritten;
+    }
 
-                        len = input.read(buffer, nread, buffer.length - nread);
+    /**
+     * Returns the duration of the last completed download, in milliseconds.
+     */
+    public long getElapsedTime () {
+        return _elapsed;
+    }
 
-                        if (len < 0) {
-                            /* Exit the loop, EOF. */
-                            eof = true;
-                            break;
-                        }
+    /**
+     * Download a stream's sequentially numbered blocks: those listed by its
+     * block manifest, or, if it has none, those up to the first missing block
+     * id.
+     */
+    private void downloadBlocks (RemoteStream stream, BlockManifest manifest, BlockFetcher fetcher,
+        OutputStream output, byte[] buffer)
+        throws S3Exception, RemoteStreamException
+    {
+        long count = (manifest != null) ? manifest.getBlockCount() : -1;
+        long nextFetch = 0;
+
+        for (long blockId = 0; blockId != count; blockId++) {
+            /* Keep the prefetch window full. */
+            while (fetcher.hasCapacity() && nextFetch != count) {
+                fetcher.fetch(stream.streamBlockKey(nextFetch++), false);
+            }
+
+            /* Fetch the next remote block, write it to the output stream */
+            try {
+                FetchedBlock block;
 
-                        nread += len;
+                /* Fetch the block from the remote host. */
+                block = fetcher.next();
+                if (block == null) {
+                    if (manifest != null) {
+                        throw new RemoteStreamException("S3 block " + blockId + " is missing.");
                     }
 
-                    /* Byte buffer full, update the digest and write it out */
-                    blockDigest.update(buffer, 0, nread);
-                    output.write(buffer, 0, nread);
+                    /* No more blocks, exit */
+                    break;
                 }
 
-                /* EOF reached, validate the digest. We do this AFTER we've streamed out the data. */
-                if (!Arrays.equals(blockDigest.digest(), block.getMD5())) {
-                    throw new RemoteStreamException("S3 block " + Long.toString(blockId) + " checksum invalid.");
+                if (manifest == null) {
+                    writeBlock(block, "S3 block " + Long.toString(blockId), false, output, buffer);
+                } else {
+                    writeListedBlock(block, manifest.getEntry((int)blockId), blockId, output, buffer);
                 }
             } catch (S3Exception e) {
                 throw new RemoteStreamException("S3 failure fetching stream block " + Long.toString(blockId) +
@@ -170,50 +322,514 @@ class DownloadStreamer {
                     Long.toString(blockId) + ": " + e.getMessage(), e);
             }
         }
+    }
+
+    /**
+     * Download the chunks listed in a chunked stream's manifest, validating
+     * each chunk's content digest.
+     */
+    private void downloadChunks (RemoteStream stream, BlockFetcher fetcher, OutputStream output,
+        byte[] buffer)
+        throws S3Exception, RemoteStreamException
+    {
+        ChunkManifest manifest;
 
-        /* We're done, flush the output. */
         try {
-            output.flush();            
-        } catch (IOException e) {
-            throw new RemoteStreamException("Error flushing output stream: " + e.getMessage(), e);
+            manifest = stream.getManifest();
+        } catch (S3Exception e) {
+            throw new RemoteStreamException("S3 failure fetching chunk manifest: " + e.getMessage(), e);
+        }
+
+        if (manifest == null) {
+            throw new RemoteStreamException("Stream \"" + stream.getStreamName() +
+                "\" is incomplete: missing chunk manifest.");
+        }
+
+        Iterator<ChunkManifest.Entry> fetched = manifest.getEntries().iterator();
+        for (ChunkManifest.Entry entry : manifest.getEntries()) {
+            String name = "Chunk " + entry.getDigest();
+
+            /* Keep the prefetch window full. */
+            while (fetcher.hasCapacity() && fetched.hasNext()) {
+                fetcher.fetch(RemoteStream.chunkKey(fetched.next().getDigest()), true);
+            }
+
+            try {
+                FetchedBlock chunk;
+                byte[] digest;
+
+                chunk = fetcher.next();
+                if (chunk == null) {
+                    throw new RemoteStreamException(name + " is missing.");
+                }
+
+                digest = writeBlock(chunk, name, true, output, buffer);
+                if (!entry.getDigest().equals(new String(Hex.encodeHex(digest)))) {
+                    throw new RemoteStreamException(name + " content digest invalid.");
+                }
+            } catch (S3Exception e) {
+                throw new RemoteStreamException("S3 failure fetching " + name + ": " + e.getMessage(), e);
+            } catch (IOException e) {
+                throw new RemoteStreamException("Fatal IO error handling " + name + ": " +
+                    e.getMessage(), e);
+            }
         }
     }
 
     /**
-     * Restartable block-fetching.
-     * @return null if the blockId does not exist.
+     * Write a block listed by the stream's block manifest, validating it
+     * against its manifest entry.
      */
-    private S3Object fetchRemoteBlock (RemoteStream stream, Long blockId, int maxRetry)
-        throws S3Exception
+    private void writeListedBlock (FetchedBlock block, BlockManifest.Entry entry, long blockId,
+        OutputStream output, byte[] buffer)
+        throws S3Exception, RemoteStreamException, IOException
     {
-        /* Fetch the next block, with a retry */
-        S3Object object = null;
-        S3RetryHandler retry = new S3RetryHandler(maxRetry);
-        S3Exception retryError = null;
+        String name = "S3 block " + Long.toString(blockId);
+        long written = _bytesWritten;
 
-        do {
-            /* Log the last error. */
-            if (retryError != null) {
-                System.err.println("S3 error fetching stream block " + Long.toString(blockId) 
-                    + ", retrying: " + retryError);                    
+        if (!Arrays.equals(block.getObject().getMD5(), entry.getMD5())) {
+            throw new RemoteStreamException(name + " does not match the stream's block manifest.");
+        }
+
+        writeBlock(block, name, false, output, buffer);
+
+        if (_bytesWritten - written != entry.getLength()) {
+            throw new RemoteStreamException(name + " length invalid: expected " + entry.getLength() +
+                " bytes, read " + (_bytesWritten - written) + ".");
+        }
+    }
+
+    /**
+     * Write a fetched block or chunk to the output stream, validating its
+     * checksum against its stored (encoded) data.
+     *
+     * @param name Block description, used in error messages.
+     * @param content If true, compute the SHA-256 digest of the decoded data.
+     * @return The decoded data's SHA-256 digest, or null if not requested.
+     */
+    private byte[] writeBlock (FetchedBlock block, String name, boolean content,
+        OutputStream output, byte[] buffer)
+        throws S3Exception, RemoteStreamException, IOException
+    {
+        if (block.getCodec() == null) {
+            throw new RemoteStreamException(name + " codec is not supported: " +
+                block.getObject().getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        }
+
+        if (!block.isBuffered()) {
+            return streamBlock(block.getObject(), block.getCodec(), name, content, output, buffer);
+        }
+
+        /* The block was verified and decoded by its fetch thread. */
+        if (!block.isChecksumValid()) {
+            throw new RemoteStreamException(name + " checksum invalid.");
+        }
+        if (block.getDecodeError() != null) {
+            throw block.getDecodeError();
+        }
+
+        if (_streamStage != null) {
+            try {
+                _streamStage.update(block.getData(), 0, block.getLength());
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException("Interrupted awaiting stream digest");
             }
+        }
+        output.write(block.getData(), 0, block.getLength());
+        _bytesWritten += block.getLength();
+        return block.getContentDigest();
+    }
+
+    /**
+     * Decode a block or chunk as it is read from S3, and write it to the
+     * output stream. The encoded and decoded data are digested by the
+     * digest stages as they are read, and the block's checksum is validated
+     * once it has been written.
+     */
+    private byte[] streamBlock (S3Object block, BlockCodec codec, String name, boolean content,
+        OutputStream output, byte[] buffer)
+        throws S3Exception, RemoteStreamException, IOException
+    {
+        InputStream encoded;
+        InputStream input;
+        byte[] blockDigest;
+        byte[] contentDigest = null;
+        boolean eof;
+        int nread;
+
+        /* Read blocks from the input stream until EOF is detected, digesting the
+         * encoded data as it is read. */
+        encoded = new StagedDigestInputStream(block.getInputStream(), _blockStage);
+        input = codec.decode(encoded);
+        eof = false;
+        try {
+            while (!eof) {
+
+                /* Keep reading into byte buffer as long as it's less than 3/4ths full. */
+                nread = 0;
+                while (buffer.length - nread > (BUFFER_SIZE / 4)) {
+                    int len;
+
+                    len = input.read(buffer, nread, buffer.length - nread);
+
+                    if (len < 0) {
+                        /* Exit the loop, EOF. */
+                        eof = true;
+                        break;
+                    }
+
+                    nread += len;
+                }
+
+                /* Byte buffer full, write it out */
+                if (content) {
+                    _contentStage.update(buffer, 0, nread);
+                }
+                if (_streamStage != null) {
+                    _streamStage.update(buffer, 0, nread);
+                }
+                output.write(buffer, 0, nread);
+                _bytesWritten += nread;
+            }
+
+            /* Digest any encoded data that follows the end of the compressed data. */
+            while (encoded.read(buffer) >= 0) {
+                // Keep draining
+            }
+            input.close();
+
+            blockDigest = _blockStage.digest();
+            if (content) {
+                contentDigest = _contentStage.digest();
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted awaiting block digest");
+        }
+
+        /* EOF reached, validate the digest. We do this AFTER we've streamed out the data. */
+        if (!Arrays.equals(blockDigest, block.getMD5())) {
+            throw new RemoteStreamException(name + " checksum invalid.");
+        }
+
+        return contentDigest;
+    }
+
+    /**
+     * Passes the data read from the underlying stream to a DigestStage.
+     */
+    private static class StagedDigestInputStream extends FilterInputStream {
+        public StagedDigestInputStream (InputStream input, DigestStage stage) {
+            super(input);
+            _stage = stage;
+        }
+
+        @Override // From FilterInputStream
+        public int read ()
+            throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override // From FilterInputStream
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            int nread = in.read(b, off, len);
+            if (nread > 0) {
+                try {
+                    _stage.update(b, off, nread);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Interrupted awaiting block digest");
+                }
+            }
+            return nread;
+        }
+
+        @Override // From FilterInputStream
+        public long skip (long n)
+            throws IOException
+        {
+            /* Skipped data must still be digested. */
+            byte[] b = new byte[(int)Math.min(n, BUFFER_SIZE)];
+            int nread = read(b, 0, b.length);
+            return nread < 0 ? 0 : nread;
+        }
+
+        @Override // From FilterInputStream
+        public boolean markSupported () {
+            return false;
+        }
+
+        /** Digest stage. */
+        private final DigestStage _stage;
+    }
+
+    /**
+     * A fetched block. Streamed blocks are read from S3 as they are written;
+     * buffered blocks have been read, verified and decoded by their fetch
+     * thread.
+     */
+    private static class FetchedBlock {
+        /** Create a streamed block. */
+        public FetchedBlock (S3Object object, BlockCodec codec) {
+            _object = object;
+            _codec = codec;
+            _buffered = false;
+        }
+
+        /** Create a buffered block. */
+        public FetchedBlock (S3Object object, BlockCodec codec, boolean checksumValid,
+            byte[] data, int length, byte[] contentDigest, IOException decodeError)
+        {
+            _object = object;
+            _codec = codec;
+            _buffered = true;
+            _checksumValid = checksumValid;
+            _data = data;
+            _length = length;
+            _contentDigest = contentDigest;
+            _decodeError = decodeError;
+        }
+
+        /** Returns the S3 object. Buffered blocks' data has been consumed. */
+        public S3Object getObject () {
+            return _object;
+        }
+
+        /** Returns the block's codec, or null if it is not supported. */
+        public BlockCodec getCodec () {
+            return _codec;
+        }
+
+        /** Returns true if the block has been read into memory. */
+        public boolean isBuffered () {
+            return _buffered;
+        }
+
+        /** Returns true if a buffered block's stored data matched its checksum. */
+        public boolean isChecksumValid () {
+            return _checksumValid;
+        }
+
+        /** Returns a buffered block's decoded data. */
+        public byte[] getData () {
+            return _data;
+        }
+
+        /** Returns the length of a buffered block's decoded data. */
+        public int getLength () {
+            return _length;
+        }
+
+        /** Returns a buffered block's content digest, if computed. */
+        public byte[] getContentDigest () {
+            return _contentDigest;
+        }
+
+        /** Returns the error encountered decoding a buffered block, if any. */
+        public IOException getDecodeError () {
+            return _decodeError;
+        }
+
+        /** S3 object. */
+        private final S3Object _object;
+
+        /** Block codec. */
+        private final BlockCodec _codec;
+
+        /** Buffered? */
+        private final boolean _buffered;
+
+        /** Checksum valid? */
+        private boolean _checksumValid;
+
+        /** Decoded data. */
+        private byte[] _data;
+
+        /** Decoded data length. */
+        private int _length;
+
+        /** SHA-256 digest of the decoded data, or null. */
+        private byte[] _contentDigest;
+
+        /** Decoding error, or null. */
+        private IOException _decodeError;
+    }
+
+    /**
+     * Fetches a sequence of objects, in order, keeping up to the prefetch
+     * window's worth downloading concurrently. Missing objects are returned
+     * as null.
+     */
+    private class BlockFetcher {
+        public BlockFetcher (S3Connection connection, final String streamName) {
+            _fetchConnection = connection;
+            if (_prefetch > 1) {
+                _executor = Executors.newFixedThreadPool(_prefetch, new ThreadFactory() {
+                    public Thread newThread (Runnable r) {
+                        Thread thread = new Thread(r, streamName + " Download " + _threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                    /** Thread id counter. */
+                    private final AtomicInteger _threadId = new AtomicInteger();
+                });
+            } else {
+                _executor = null;
+            }
+        }
+
+        /** Returns true if another object may be queued for fetching. */
+        public boolean hasCapacity () {
+            return _pending.size() < _prefetch;
+        }
+
+        /**
+         * Queue the given key to be fetched.
+         * @param content: If true, compute the SHA-256 digest of buffered blocks.
+         */
+        public void fetch (final String key, final boolean content) {
+            FutureTask<FetchedBlock> task = new FutureTask<FetchedBlock>(new Callable<FetchedBlock>() {
+                public FetchedBlock call ()
+                    throws S3Exception
+                {
+                    return fetchBlock(key, _executor != null, content);
+                }
+            });
+
+            /* Without a prefetch window, the fetch is run by next(). */
+            if (_executor != null) {
+                _executor.execute(task);
+            }
+            _pending.add(task);
+        }
+
+        /**
+         * Return the next block in sequence, waiting for it to be fetched,
+         * or null if it does not exist.
+         */
+        public FetchedBlock next ()
+            throws S3Exception
+        {
+            FutureTask<FetchedBlock> task = _pending.removeFirst();
+
+            if (_executor == null) {
+                task.run();
+            }
+
+            try {
+                return task.get();
+            } catch (InterruptedException ie) {
+                throw new S3ClientException.NetworkException("Interrupted awaiting download", ie);
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof S3Exception) {
+                    throw (S3Exception)ee.getCause();
+                } else if (ee.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)ee.getCause();
+                }
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+
+        /** Cancel any outstanding fetches. */
+        public void close () {
+            if (_executor != null) {
+                _executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Fetch a block, or return null if it does not exist. If buffered,
+         * the block's data is read into memory, verified and decoded.
+         */
+        protected FetchedBlock fetchBlock (String key, boolean buffered, boolean content)
+            throws S3Exception
+        {
+            S3Object object;
+            BlockCodec codec;
+            ByteArrayOutputStream data;
+            InputStream input;
+            byte[] encoded;
 
             try {
-                object = _connection.getObject(_bucket, stream.streamBlockKey(blockId));
-                return object; // Succeeded
+                object = _fetchConnection.getObject(_bucket, key);
             } catch (S3ServerException.NoSuchKeyException nsk) {
-                /* Block doesn't exist, we're done. */
+                /* Object doesn't exist. */
                 return null;
-            } catch (S3Exception s3e) {
-                /* Let the retry handler check the exception */
-                retryError = s3e;
-                continue;
             }
-        } while (retry.shouldRetry(retryError));
 
-        // Must be unreachable
-        assert(false);
-        return object;
+            /* Unsupported codecs are reported by the writer. */
+            codec = BlockCodec.forName(object.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+            if (!buffered || codec == null) {
+                return new FetchedBlock(object, codec);
+            }
+
+            /* Read in the data. */
+            data = new ByteArrayOutputStream((int)Math.max(0, object.length()));
+            input = object.getInputStream();
+            try {
+                IOUtils.copy(input, data);
+            } catch (IOException ioe) {
+                throw new S3ClientException.NetworkException("Failure reading " + key + ": " +
+                    ioe.getMessage(), ioe);
+            } finally {
+                try {
+                    input.close();
+                } catch (IOException ioe) {
+                    // Nothing to do.
+                }
+            }
+            encoded = data.toByteArray();
+
+            /* Verify the stored data. */
+            if (!Arrays.equals(digest("md5", encoded, encoded.length), object.getMD5())) {
+                return new FetchedBlock(object, codec, false, null, 0, null, null);
+            }
+
+            /* Decode it, replacing the stored data. */
+            if (codec != BlockCodec.NONE) {
+                data.reset();
+                try {
+                    IOUtils.copy(codec.decode(new ByteArrayInputStream(encoded)), data);
+                } catch (IOException ioe) {
+                    return new FetchedBlock(object, codec, true, null, 0, null, ioe);
+                }
+                encoded = data.toByteArray();
+                return new FetchedBlock(object, codec, true, encoded, encoded.length,
+                    content ? digest("SHA-256", encoded, encoded.length) : null, null);
+            }
+
+            return new FetchedBlock(object, codec, true, encoded, encoded.length,
+                content ? digest("SHA-256", encoded, encoded.length) : null, null);
+        }
+
+        /** S3 Connection. */
+        private final S3Connection _fetchConnection;
+
+        /** Fetcher threads, or null if objects are fetched as needed. */
+        private final ExecutorService _executor;
+
+        /** Outstanding fetches, in order. */
+        private final LinkedList<FutureTask<FetchedBlock>> _pending = new LinkedList<FutureTask<FetchedBlock>>();
+    }
+
+    /**
+     * Return the digest of the given data.
+     */
+    private static byte[] digest (String algorithm, byte[] data, int length) {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            /* This should never be missing. */
+            throw new RuntimeException("Missing " + algorithm + " algorithm!", e);
+        }
+
+        md.update(data, 0, length);
+        return md.digest();
     }
 
     /** Maximum network buffer size (64k). */
@@ -224,4 +840,22 @@ class DownloadStreamer {
 
     /** S3 Bucket. */
     private String _bucket;
+
+    /** Maximum number of concurrent block downloads. */
+    private final int _prefetch;
+
+    /** Stored data digest stage, used when streaming blocks. */
+    private DigestStage _blockStage;
+
+    /** Decoded data digest stage, used when streaming blocks. */
+    private DigestStage _contentStage;
+
+    /** Complete stream digest stage, used if the stream's digest was recorded. */
+    private DigestStage _streamStage;
+
+    /** Bytes written by the last download. */
+    private long _bytesWritten;
+
+    /** Duration of the last download, in milliseconds. */
+    private long _elapsed;
 }
@@ -0,0 +1,647 @@
+/* 
+ * FileDownloader vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3Connection;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ObjectEntry;
+import com.threerings.s3.client.S3ServerException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * Downloads a stream directly into a local file.
+ *
+ * As the file may be written in any order, the stream's blocks (or chunks)
+ * are fetched concurrently, and each is written at its offset within the
+ * stream with positional writes as it arrives, verifying its checksum as it
+ * is written. Block offsets are taken from the stream's block manifest, its
+ * fixed block size, the blocks' offset metadata, or, for older raw streams,
+ * the listed block sizes; the file is sized to the stream length before any
+ * block is written.
+ *
+ * Completed blocks are recorded in a state file next to the target, which is
+ * removed once the download completes. An interrupted download may be
+ * resumed, fetching only the blocks that had not been recorded. Blocks are
+ * recorded once written, but the file is not forced to disk, so resuming
+ * recovers from an interrupted process rather than from a system failure.
+ */
+class FileDownloader {
+    /**
+     * Instantiate a new file downloader.
+     * @param connection: S3 connection.
+     * @param bucket: Source S3 bucket.
+     * @param parallel: Maximum number of blocks to download concurrently.
+     */
+    public FileDownloader (S3Connection connection, String bucket, int parallel)
+    {
+        if (parallel < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallel);
+        }
+
+        _connection = connection;
+        _bucket = bucket;
+        _parallel = parallel;
+    }
+
+    /**
+     * Download the given stream into the target file, replacing its contents.
+     * @param resume: If true, and the state file of an interrupted download of
+     *  the same stream exists, only fetch the blocks it does not record.
+     */
+    public void download (final String streamName, File target, int maxRetry, boolean resume)
+        throws S3Exception, RemoteStreamException
+    {
+        final S3Connection connection = S3RetryHandler.wrap(_connection, maxRetry);
+        long started = System.currentTimeMillis();
+        final AtomicReference<RemoteStreamException> failure = new AtomicReference<RemoteStreamException>();
+        final Semaphore slots = new Semaphore(_parallel);
+        final FileChannel channel;
+        final RestoreState state;
+        final Thread downloadThread = Thread.currentThread();
+        RemoteStream stream;
+        RemoteStreamInfo info;
+        List<Segment> segments;
+        ExecutorService downloaders;
+        RandomAccessFile file = null;
+        File stateFile;
+        boolean interrupted = false;
+        long length;
+
+        _bytesWritten.set(0);
+        stream = new RemoteStream(connection, _bucket, streamName);
+        try {
+            info = stream.getStreamInfo();
+        } catch (S3Exception s3e) {
+            throw new RemoteStreamException("S3 failure fetching stream info record for '" +
+                streamName + "': " + s3e.getMessage(), s3e);
+        }
+
+        if (info == null) {
+            throw new RemoteStreamException.NoSuchStreamException("Stream \"" + streamName +
+                "\" does not exist.");
+        }
+
+        /* Locate the stream's blocks. */
+        segments = new ArrayList<Segment>();
+        try {
+            length = info.isChunked() ? locateChunks(stream, segments) :
+                locateBlocks(connection, stream, info, segments);
+        } catch (S3Exception s3e) {
+            throw new RemoteStreamException("S3 failure listing stream blocks for '" +
+                streamName + "': " + s3e.getMessage(), s3e);
+        }
+
+        /* Load the state of an interrupted download, or start afresh. */
+        stateFile = new File(target.getPath() + STATE_SUFFIX);
+        try {
+            state = new RestoreState(stateFile, info, segments.size(), resume && target.exists());
+        } catch (IOException ioe) {
+            throw new RemoteStreamException("Failure opening download state file " + stateFile +
+                ": " + ioe.getMessage(), ioe);
+        }
+
+        try {
+            try {
+                file = new RandomAccessFile(target, "rw");
+                if (state.getCompleted().isEmpty()) {
+                    file.setLength(0);
+                }
+                file.setLength(length);
+            } catch (IOException ioe) {
+                throw new RemoteStreamException("Failure opening " + target + ": " + ioe.getMessage(), ioe);
+            }
+            channel = file.getChannel();
+
+            downloaders = Executors.newFixedThreadPool(_parallel, new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, streamName + " Download " + _threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+                /** Thread id counter. */
+                private final AtomicInteger _threadId = new AtomicInteger();
+            });
+
+            /* Hand each block that has not been completed to the downloaders. */
+            try {
+                for (int i = 0; i < segments.size(); i++) {
+                    if (state.getCompleted().get(i)) {
+                        continue;
+                    }
+
+                    slots.acquire();
+                    if (failure.get() != null) {
+                        slots.release();
+                        break;
+                    }
+
+                    final int index = i;
+                    final Segment segment = segments.get(i);
+                    downloaders.execute(new Runnable() {
+                        public void run () {
+                            try {
+                                downloadSegment(connection, segment, channel, failure);
+                                state.complete(index);
+                            } catch (RemoteStreamException e) {
+                                reportFailure(e);
+                            } catch (S3Exception e) {
+                                reportFailure(new RemoteStreamException("S3 failure fetching " +
+                                    segment.name + ": " + e.getMessage(), e));
+                            } catch (IOException e) {
+                                reportFailure(new RemoteStreamException("Fatal IO error handling " +
+                                    segment.name + ": " + e.getMessage(), e));
+                            } finally {
+                                slots.release();
+                            }
+                        }
+
+                        /** Report the first failure, and stop queueing blocks. */
+                        private void reportFailure (RemoteStreamException e) {
+                            if (failure.compareAndSet(null, e)) {
+                                downloadThread.interrupt();
+                            }
+                        }
+                    });
+                }
+
+                /* Wait for the outstanding downloads to complete. */
+                downloaders.shutdown();
+                while (!downloaders.awaitTermination(5, TimeUnit.SECONDS)) {
+                    // Keep waiting
+                }
+            } catch (InterruptedException ie) {
+                /* Thrown on download failure, handled below. Otherwise we were
+                 * interrupted; record the failure, so that the outstanding
+                 * downloads stop. */
+                interrupted = failure.compareAndSet(null,
+                    new RemoteStreamException("Interrupted downloading '" + streamName + "'", ie));
+            } finally {
+                /* Wait for the outstanding downloads, which stop early once a
+                 * failure is recorded. They are not interrupted, as an interrupt
+                 * during a write closes the shared channel. */
+                downloaders.shutdown();
+                RemoteStream.awaitTermination(downloaders);
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw failure.get();
+            }
+
+            /* Clear an interrupt delivered by a failed downloader. */
+            if (failure.get() != null) {
+                Thread.interrupted();
+                throw failure.get();
+            }
+
+            try {
+                file.close();
+                file = null;
+            } catch (IOException ioe) {
+                throw new RemoteStreamException("Failure closing " + target + ": " + ioe.getMessage(), ioe);
+            }
+        } finally {
+            state.close();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ioe) {
+                    // Nothing to do.
+                }
+            }
+        }
+
+        /* The download is complete; the state is no longer needed. */
+        stateFile.delete();
+        _elapsed = System.currentTimeMillis() - started;
+    }
+
+    /**
+     * Returns the number of bytes written to the file by the last download.
+     * Blocks completed by an earlier, interrupted download are not counted.
+     */
+    public long getBytesWritten () {
+        return _bytesWritten.get();
+    }
+
+    /**
+     * Returns the duration of the last completed download, in milliseconds.
+     */
+    public long getElapsedTime () {
+        return _elapsed;
+    }
+
+    /**
+     * Fetch a block, writing its decoded data at its stream offset, and
+     * verify it.
+     * @param failure: The download's failure; the block is abandoned once one is recorded.
+     */
+    private void downloadSegment (S3Connection connection, Segment segment, FileChannel channel,
+        AtomicReference<RemoteStreamException> failure)
+        throws S3Exception, RemoteStreamException, IOException
+    {
+        S3Object object;
+        DigestInputStream encoded;
+        InputStream input;
+        MessageDigest content = null;
+        BlockCodec codec;
+        long offset;
+        long length;
+        long position;
+        byte[] buffer;
+        int nread;
+
+        try {
+            object = connection.getObject(_bucket, segment.key);
+        } catch (S3ServerException.NoSuchKeyException nsk) {
+            throw new RemoteStreamException(segment.name + " is missing.");
+        }
+
+        if (segment.md5 != null && !Arrays.equals(object.getMD5(), segment.md5)) {
+            object.getInputStream().close();
+            throw new RemoteStreamException(segment.name +
+                " does not match the stream's block manifest.");
+        }
+
+        codec = BlockCodec.forName(object.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        if (codec == null) {
+            object.getInputStream().close();
+            throw new RemoteStreamException(segment.name + " codec is not supported: " +
+                object.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        }
+
+        /* Blocks without a known offset record their own. */
+        offset = segment.offset;
+        if (offset < 0) {
+            String recorded = object.getMetadata().get(RemoteStream.BLOCK_KEY_OFFSET);
+            if (recorded == null) {
+                object.getInputStream().close();
+                throw new RemoteStreamException(segment.name + " does not record its offset.");
+            }
+            offset = Long.parseLong(recorded);
+        }
+
+        if (segment.digest != null) {
+            content = newDigest("SHA-256");
+        }
+
+        /* Write the decoded data at its offset, digesting it as it is read. */
+        encoded = new DigestInputStream(object.getInputStream(), newDigest("md5"));
+        input = codec.decode(encoded);
+        buffer = new byte[BUFFER_SIZE];
+        position = offset;
+        try {
+            while ((nread = input.read(buffer)) >= 0) {
+                if (failure.get() != null) {
+                    throw new RemoteStreamException(segment.name + " download cancelled.");
+                }
+
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, nread);
+                if (content != null) {
+                    content.update(buffer, 0, nread);
+                }
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                _bytesWritten.addAndGet(nread);
+            }
+
+            /* Digest any encoded data that follows the end of the compressed data. */
+            while (encoded.read(buffer) >= 0) {
+                // Keep draining
+            }
+        } finally {
+            input.close();
+        }
+
+        if (!Arrays.equals(encoded.getMessageDigest().digest(), object.getMD5())) {
+            throw new RemoteStreamException(segment.name + " checksum invalid.");
+        }
+
+        if (content != null && !segment.digest.equals(new String(Hex.encodeHex(content.digest())))) {
+            throw new RemoteStreamException(segment.name + " content digest invalid.");
+        }
+
+        /* Check the decoded length against the expected or recorded length. */
+        length = segment.length;
+        if (length < 0 && object.getMetadata().get(RemoteStream.BLOCK_KEY_LENGTH) != null) {
+            length = Long.parseLong(object.getMetadata().get(RemoteStream.BLOCK_KEY_LENGTH));
+        }
+        if (length >= 0 && position - offset != length) {
+            throw new RemoteStreamException(segment.name + " length invalid: expected " +
+                length + " bytes, read " + (position - offset) + ".");
+        }
+    }
+
+    /**
+     * Locate a chunked stream's chunks through its manifest.
+     * @return The stream length.
+     */
+    private long locateChunks (RemoteStream stream, List<Segment> segments)
+        throws S3Exception, RemoteStreamException
+    {
+        ChunkManifest manifest = stream.getManifest();
+        long offset = 0;
+
+        if (manifest == null) {
+            throw new RemoteStreamException("Stream \"" + stream.getStreamName() +
+                "\" is incomplete: missing chunk manifest.");
+        }
+
+        for (ChunkManifest.Entry entry : manifest.getEntries()) {
+            segments.add(new Segment(RemoteStream.chunkKey(entry.getDigest()), "Chunk " +
+                entry.getDigest(), offset, entry.getLength(), null, entry.getDigest()));
+            offset += entry.getLength();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Locate a block stream's sequentially numbered blocks, up to the first
+     * missing block id.
+     * @return The stream length.
+     */
+    private long locateBlocks (S3Connection connection, RemoteStream stream, RemoteStreamInfo info,
+        List<Segment> segments)
+        throws S3Exception, RemoteStreamException
+    {
+        SortedMap<Long,S3ObjectEntry> blocks;
+        List<S3ObjectEntry> entries = new ArrayList<S3ObjectEntry>();
+        BlockManifest manifest = null;
+        S3ObjectEntry entry;
+        String offset;
+        String length;
+        long position;
+
+        /* Completed version 2 streams list their blocks in their manifest. */
+        if (info.getVersion() >= 2) {
+            manifest = stream.getBlockManifest();
+        }
+
+        if (manifest != null) {
+            for (int i = 0; i < manifest.getBlockCount(); i++) {
+                BlockManifest.Entry block = manifest.getEntry(i);
+                segments.add(new Segment(stream.streamBlockKey(i), "S3 block " + i,
+                    manifest.getOffset(i), block.getLength(), block.getMD5(), null));
+            }
+            return manifest.getLength();
+        }
+
+        blocks = stream.getBlocks();
+        while ((entry = blocks.get((long)entries.size())) != null) {
+            entries.add(entry);
+        }
+
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        /* The last block's position gives the stream length. */
+        S3Object last = connection.getObjectMetadata(_bucket, entries.get(entries.size() - 1).getKey());
+        offset = last.getMetadata().get(RemoteStream.BLOCK_KEY_OFFSET);
+        length = last.getMetadata().get(RemoteStream.BLOCK_KEY_LENGTH);
+
+        if (offset != null && length != null) {
+            /* Blocks are found at a fixed interval, or at their recorded offsets. */
+            int blockSize = info.getBlockSize();
+            for (int i = 0; i < entries.size(); i++) {
+                segments.add(new Segment(entries.get(i).getKey(), "S3 block " + i,
+                    blockSize > 0 ? (long)i * blockSize : -1,
+                    blockSize > 0 && i < entries.size() - 1 ? blockSize : -1, null, null));
+            }
+            return Long.parseLong(offset) + Long.parseLong(length);
+        }
+
+        /* Older streams' blocks do not record their positions; raw blocks are located by size. */
+        if (info.getCodec() != BlockCodec.NONE) {
+            throw new RemoteStreamException("Stream \"" + stream.getStreamName() +
+                "\" blocks do not record their positions.");
+        }
+
+        position = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            segments.add(new Segment(entries.get(i).getKey(), "S3 block " + i, position,
+                entries.get(i).getSize(), null, null));
+            position += entries.get(i).getSize();
+        }
+        return position;
+    }
+
+    /**
+     * Return a new digest of the given algorithm.
+     */
+    private static MessageDigest newDigest (String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            /* This should never be missing. */
+            throw new RuntimeException("Missing " + algorithm + " algorithm!", e);
+        }
+    }
+
+    /** A block or chunk, and its position within the stream. */
+    private static class Segment {
+        public Segment (String key, String name, long offset, long length, byte[] md5,
+            String digest)
+        {
+            this.key = key;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.md5 = md5;
+            this.digest = digest;
+        }
+
+        /** S3 key. */
+        public final String key;
+
+        /** Description, used in error messages. */
+        public final String name;
+
+        /** Stream offset, or -1 if recorded by the block. */
+        public final long offset;
+
+        /** Decoded length, or -1 if unknown. */
+        public final long length;
+
+        /** Stored data MD5 digest listed by the block manifest, or null. */
+        public final byte[] md5;
+
+        /** Chunk content digest, or null. */
+        public final String digest;
+    }
+
+    /**
+     * The blocks completed by a file download. The state file records the
+     * stream's creation date and block count, followed by the index of each
+     * completed block, one per line.
+     */
+    private static class RestoreState {
+        /**
+         * Open the state file, loading the completed blocks if resuming a
+         * download of the same stream.
+         */
+        public RestoreState (File file, RemoteStreamInfo info, int count, boolean resume)
+            throws IOException
+        {
+            String header = HEADER + " " + info.getCreationDate().getTime() + " " + count;
+
+            _completed = new BitSet(count);
+            if (resume && file.exists()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), STATE_ENCODING));
+                try {
+                    if (header.equals(reader.readLine())) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            try {
+                                int index = Integer.parseInt(line);
+                                if (index >= 0 && index < count) {
+                                    _completed.set(index);
+                                }
+                            } catch (NumberFormatException nfe) {
+                                /* A partially written record. */
+                                break;
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            /* Rewrite the state, dropping any partially written record. */
+            _output = new FileOutputStream(file);
+            write(header);
+            for (int i = _completed.nextSetBit(0); i >= 0; i = _completed.nextSetBit(i + 1)) {
+                write(Integer.toString(i));
+            }
+        }
+
+        /** Returns the completed blocks. */
+        public BitSet getCompleted () {
+            return _completed;
+        }
+
+        /** Record a completed block. */
+        public synchronized void complete (int index)
+            throws IOException
+        {
+            write(Integer.toString(index));
+        }
+
+        /** Close the state file. */
+        public synchronized void close () {
+            try {
+                _output.close();
+            } catch (IOException ioe) {
+                // Nothing to do.
+            }
+        }
+
+        /** Write a line to the state file. */
+        private void write (String line)
+            throws IOException
+        {
+            _output.write((line + "\n").getBytes(STATE_ENCODING));
+            _output.flush();
+        }
+
+        /** Completed blocks. */
+        private final BitSet _completed;
+
+        /** State file output. */
+        private final OutputStream _output;
+
+        /** State file header. */
+        private static final String HEADER = "s3pipe-restore 1";
+
+        /** State file encoding. */
+        private static final String STATE_ENCODING = "ascii";
+    }
+
+    /** Suffix appended to the target file name to name its state file. */
+    static final String STATE_SUFFIX = ".s3pipe-state";
+
+    /** Write buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** S3 bucket. */
+    private final String _bucket;
+
+    /** Maximum number of concurrent block downloads. */
+    private final int _parallel;
+
+    /** Bytes written by the last download. */
+    private final AtomicLong _bytesWritten = new AtomicLong();
+
+    /** Duration of the last download, in milliseconds. */
+    private long _elapsed;
+}
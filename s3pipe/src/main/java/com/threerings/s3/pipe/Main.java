@@ -40,7 +40,9 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.security.Security;
@@ -61,8 +63,53 @@ final public class Main {
             public void run (Main app)
                 throws S3Exception, RemoteStreamException
             {
-                UploadStreamer streamer = new UploadStreamer(app.connection, app.bucketName, app.blockSize);
-                streamer.upload(app.streamName, System.in, app.maxRetry);
+                if (app.dedup) {
+                    uploadChunked(app);
+                    return;
+                }
+
+                UploadStreamer streamer = new UploadStreamer(app.connection, app.bucketName, app.blockSize,
+                    app.parallel, app.directBuffers);
+                streamer.setCodec(app.codec);
+                if (app.adaptive) {
+                    streamer.setAdaptiveBlocksize(app.minBlockSize, app.maxBlockSize);
+                }
+
+                /* Read stdin directly, rather than through System.in's buffer, so that it
+                 * can be read through its channel, and mapped or seeked if it is a file. */
+                streamer.upload(app.streamName, new FileInputStream(FileDescriptor.in), app.maxRetry,
+                    app.resume);
+            }
+
+            /** Upload a deduplicated, chunked stream. */
+            private void uploadChunked (Main app)
+                throws S3Exception, RemoteStreamException
+            {
+                ChunkedUploadStreamer streamer = new ChunkedUploadStreamer(app.connection, app.bucketName,
+                    app.blockSize, app.parallel);
+                ChunkIndex index = null;
+
+                streamer.setCodec(app.codec);
+                if (app.chunkIndexFile != null) {
+                    try {
+                        index = new ChunkIndex(app.chunkIndexFile);
+                    } catch (IOException e) {
+                        throw new RemoteStreamException("Failure reading chunk index: " + e.getMessage(), e);
+                    }
+                    streamer.setIndex(index);
+                }
+
+                try {
+                    streamer.upload(app.streamName, System.in, app.maxRetry);
+                } finally {
+                    if (index != null) {
+                        try {
+                            index.close();
+                        } catch (IOException e) {
+                            System.err.println("Failure closing chunk index: " + e.getMessage());
+                        }
+                    }
+                }
             }
         },
 
@@ -73,8 +120,38 @@ final public class Main {
             public void run (Main app)
                 throws S3Exception, RemoteStreamException
             {
-                DownloadStreamer streamer = new DownloadStreamer(app.connection, app.bucketName);
-                streamer.download(app.streamName, System.out, app.maxRetry);
+                /* Files may be written in any order. */
+                if (app.outputFile != null) {
+                    FileDownloader downloader = new FileDownloader(app.connection, app.bucketName,
+                        app.prefetch);
+                    downloader.download(app.streamName, app.outputFile, app.maxRetry, app.resume);
+                    if (app.stats) {
+                        reportThroughput(downloader.getBytesWritten(), downloader.getElapsedTime());
+                    }
+                    return;
+                }
+
+                DownloadStreamer streamer = new DownloadStreamer(app.connection, app.bucketName, app.prefetch);
+
+                /* Write stdout's channel directly, bypassing System.out. */
+                ChannelOutputStream output = new ChannelOutputStream(
+                    new FileOutputStream(FileDescriptor.out).getChannel());
+                if (app.offset > 0 || app.length >= 0) {
+                    streamer.download(app.streamName, output, app.maxRetry, app.offset, app.length);
+                } else {
+                    streamer.download(app.streamName, output, app.maxRetry);
+                }
+
+                if (app.stats) {
+                    reportThroughput(streamer.getBytesWritten(), streamer.getElapsedTime());
+                }
+            }
+
+            /** Report the download throughput on stderr. */
+            private void reportThroughput (long bytes, long elapsed) {
+                elapsed = Math.max(1, elapsed);
+                System.err.println("Downloaded " + bytes + " bytes in " + (elapsed / 1000.0) +
+                    " seconds (" + (bytes * 1000 / elapsed / 1024) + " KB/s).");
             }
         },
 
@@ -95,11 +172,14 @@ final public class Main {
             public void run (Main app)
                 throws S3Exception, RemoteStreamException
             {
-                List<RemoteStreamInfo> list = RemoteStream.getAllStreams(app.connection, app.bucketName);
-                for (RemoteStreamInfo info : list) {
-                    System.out.println("Stream: '" + info.getName() + "'" + " " +
-                        "    Created: " + info.getCreationDate());
-                }
+                /* Print each stream as its info record arrives. */
+                RemoteStream.getAllStreams(app.connection, app.bucketName, LIST_PARALLELISM,
+                    new RemoteStream.StreamHandler() {
+                        public void handleStream (RemoteStreamInfo info) {
+                            System.out.println("Stream: '" + info.getName() + "'" + " " +
+                                "    Created: " + info.getCreationDate());
+                        }
+                    });
             }
 
             @Override
@@ -182,6 +262,37 @@ final public class Main {
                 throw new CmdLineException("Unknown command " + arguments.get(0));
             }
 
+            if (parallel < 1) {
+                throw new CmdLineException("Option \"--parallel\" must be at least 1.");
+            }
+
+            if (prefetch < 1) {
+                throw new CmdLineException("Option \"--prefetch\" must be at least 1.");
+            }
+
+            if (offset < 0) {
+                throw new CmdLineException("Option \"--offset\" must not be negative.");
+            }
+
+            if (adaptive && (minBlockSize < 1 || maxBlockSize < minBlockSize)) {
+                throw new CmdLineException("Option \"--max-blocksize\" must be at least \"--min-blocksize\".");
+            }
+
+            if (outputFile != null && (offset > 0 || length >= 0)) {
+                throw new CmdLineException("Option \"--output\" can not be used with \"--offset\" or \"--length\".");
+            }
+
+            if (resume && dedup) {
+                throw new CmdLineException("Option \"--resume\" can not be used with \"--dedup\".");
+            }
+
+            /* Map the codec string to the BlockCodec enum. */
+            try {
+                codec = BlockCodec.valueOf(codecName.toUpperCase(Locale.US).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new CmdLineException("Unknown codec " + codecName);
+            }
+
             /* Validate settings. */
             command.validate(this);
         } catch (CmdLineException cle) {
@@ -190,7 +301,7 @@ final public class Main {
             parser.printUsage(System.err);
             System.err.println("\nCommands:");
             System.err.println("  upload\t\t: Read a stream from stdin, and write to S3.");
-            System.err.println("  download\t\t: Read a stream from S3, and write to stdout.");
+            System.err.println("  download\t\t: Read a stream from S3, and write to stdout or --output.");
             System.err.println("  list\t\t\t: List all streams within the bucket.");
             System.err.println("  delete\t\t: Delete the specified stream.");
             System.err.println("  createbucket\t\t: Create the specified bucket.");
@@ -206,7 +317,7 @@ final public class Main {
 
         try {
             loadProperties();
-            connection = new S3Connection(awsId, awsKey);
+            connection = S3RetryHandler.wrap(new S3Connection(awsId, awsKey), maxRetry);
             command.run(this);
         } catch (S3Exception e) {
             System.err.println(e.getMessage());
@@ -261,6 +372,26 @@ final public class Main {
         blockSize = newBlockSize * 1024;
     }
 
+    /**
+     * Set the minimum adaptive block size, in bytes.
+     */
+    @SuppressWarnings("unused")
+    @Option(name="--min-blocksize", usage="Specify the minimum block size, in kilobytes, " +
+        "in adaptive mode. Defaults to 1 megabyte.", metaVar="<size>")
+    private void setMinBlocksize (int newBlockSize) {
+        minBlockSize = newBlockSize * 1024;
+    }
+
+    /**
+     * Set the maximum adaptive block size, in bytes.
+     */
+    @SuppressWarnings("unused")
+    @Option(name="--max-blocksize", usage="Specify the maximum block size, in kilobytes, " +
+        "in adaptive mode. Defaults to 32 megabytes.", metaVar="<size>")
+    private void setMaxBlocksize (int newBlockSize) {
+        maxBlockSize = newBlockSize * 1024;
+    }
+
     /** S3 Connection. */
     private S3Connection connection;
 
@@ -284,12 +415,79 @@ final public class Main {
 
     /** Maximum number of retries. */
     @Option(name="--retry", usage="Specify the number of S3 retry attempts before exiting, " +
-        "in the event of S3 and/or network failure. Defaults to 30.", metaVar="<count>")
+        "in the event of transient S3 and/or network failure. Defaults to 30.", metaVar="<count>")
     private int maxRetry = 30;
 
+    /** Number of concurrent block transfers. */
+    @Option(name="--parallel", usage="Specify the number of blocks to upload concurrently. " +
+        "Defaults to 1.", metaVar="<count>")
+    private int parallel = 1;
+
+    /** Number of concurrent block downloads. */
+    @Option(name="--prefetch", usage="Specify the number of blocks to download concurrently, " +
+        "ahead of the output. Defaults to 1.", metaVar="<count>")
+    private int prefetch = 1;
+
+    /** Stream offset at which to start downloading. */
+    @Option(name="--offset", usage="Specify the stream offset, in bytes, at which to start " +
+        "downloading. Defaults to 0.", metaVar="<bytes>")
+    private long offset = 0;
+
+    /** Number of bytes to download. */
+    @Option(name="--length", usage="Specify the number of bytes to download. Defaults to the " +
+        "rest of the stream.", metaVar="<bytes>")
+    private long length = -1;
+
+    /** Report transfer statistics. */
+    @Option(name="--stats", usage="Report the download throughput on stderr.")
+    private boolean stats = false;
+
+    /** Use direct (off-heap) block buffers. */
+    @Option(name="--direct-buffers", usage="Buffer upload blocks outside of the Java heap.")
+    private boolean directBuffers = false;
+
+    /** Block codec name. */
+    @Option(name="--codec", usage="Specify the codec used to compress uploaded blocks: none, " +
+        "deflate, or deflate-fast. Defaults to none.", metaVar="<codec>")
+    private String codecName = "none";
+
+    /** Block codec. */
+    private BlockCodec codec;
+
+    /** Upload deduplicated, content-defined chunks. */
+    @Option(name="--dedup", usage="Upload the stream as content-defined chunks of around the block " +
+        "size, skipping chunks that already exist in the bucket.")
+    private boolean dedup = false;
+
+    /** Local chunk index. */
+    @Option(name="--chunk-index", usage="Specify a local index of the chunks stored in the bucket, " +
+        "used to skip existence checks when uploading with --dedup.", metaVar="<file>")
+    private File chunkIndexFile;
+
+    /** Download target file. */
+    @Option(name="--output", usage="Download the stream into the given file, rather than stdout, " +
+        "fetching --prefetch blocks at once in any order.", metaVar="<file>")
+    private File outputFile;
+
+    /** Resume an interrupted upload or file download. */
+    @Option(name="--resume", usage="Resume an interrupted upload of the same input, continuing " +
+        "after the stream's last uploaded block, or an interrupted download to an --output file.")
+    private boolean resume = false;
+
     /** Block size, in bytes. Default to 5 megabytes. */
     private int blockSize = 5 * 1024 * 1024;
 
+    /** Adapt block sizes to upload performance. */
+    @Option(name="--adaptive", usage="Adapt the upload block size to the observed throughput " +
+        "and error rate, starting from the block size.")
+    private boolean adaptive = false;
+
+    /** Minimum adaptive block size, in bytes. Default to 1 megabyte. */
+    private int minBlockSize = 1024 * 1024;
+
+    /** Maximum adaptive block size, in bytes. Default to 32 megabytes. */
+    private int maxBlockSize = 32 * 1024 * 1024;
+
     /** All non-option arguments. */
     @Argument
     private List<String> arguments = new ArrayList<String>();
@@ -305,4 +503,7 @@ final public class Main {
     
     /** Standard C99 EXIT_FAILURE value. */
     private static final int EXIT_FAILURE = 1;
+
+    /** Number of stream info records fetched concurrently when listing. */
+    private static final int LIST_PARALLELISM = 16;
 }
@@ -31,10 +31,17 @@
 
 package com.threerings.s3.pipe;
 
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -44,10 +51,63 @@ import java.util.concurrent.TimeUnit;
 /*
  * The QueuedStreamReader buffers input from the given stream into byte[] blocks,
  * placing them in the supplied blocking queue.
+ *
+ * If a BlockBufferPool is supplied, blocks are read into buffers acquired from
+ * the pool, and the consumer must release each block back to the pool once it
+ * is finished with it. Otherwise, a new heap buffer is allocated per block.
+ *
+ * The MD5 digest of each block is computed incrementally on the reader thread
+ * as data arrives, and is available from readDigestedBlock().
+ *
+ * If an AdaptiveBlockSizer is supplied, it determines the size of each block,
+ * and the reader's blocksize is the maximum block size.
+ *
+ * If the input is a FileInputStream, data is read through its FileChannel,
+ * so that direct buffers are filled without an intermediate heap copy. If it
+ * is a regular file, blocks are instead memory-mapped slices of the file, and
+ * are never drawn from the pool; consumers should return blocks with
+ * releaseBlock(), which handles both cases.
  */
 class QueuedStreamReader
     implements Runnable
 {
+    /** A block of data, and its MD5 digest. */
+    public static class Block {
+        public Block (ByteBuffer data, byte[] md5) {
+            this(data, md5, false);
+        }
+
+        public Block (ByteBuffer data, byte[] md5, boolean mapped) {
+            _data = data;
+            _md5 = md5;
+            _mapped = mapped;
+        }
+
+        /** Returns the block data. */
+        public ByteBuffer getData () {
+            return _data;
+        }
+
+        /** Returns the MD5 digest of the block data. */
+        public byte[] getMD5 () {
+            return _md5;
+        }
+
+        /** Returns true if the block data is a memory-mapped slice of the input file. */
+        public boolean isMapped () {
+            return _mapped;
+        }
+
+        /** Block data. */
+        private final ByteBuffer _data;
+
+        /** MD5 digest. */
+        private final byte[] _md5;
+
+        /** Memory-mapped? */
+        private final boolean _mapped;
+    }
+
     /**
      * Instantiate a new reader.
      * @param input: Input stream.
@@ -55,9 +115,68 @@ class QueuedStreamReader
      * @param queueSize: Total queue size.
      */
     public QueuedStreamReader (InputStream input, int blocksize, int queueSize) {
+        this(input, blocksize, queueSize, null);
+    }
+
+    /**
+     * Instantiate a new reader, reading blocks into buffers acquired from
+     * the given pool. The pool's buffers must be at least blocksize bytes.
+     * @param input: Input stream.
+     * @param blocksize: Block size, in bytes.
+     * @param queueSize: Total queue size.
+     * @param pool: Buffer pool, or null to allocate a buffer per block.
+     */
+    public QueuedStreamReader (InputStream input, int blocksize, int queueSize,
+        BlockBufferPool pool)
+    {
+        this(input, blocksize, queueSize, pool, null);
+    }
+
+    /**
+     * Instantiate a new reader, reading variable-size blocks as determined by
+     * the given sizer.
+     * @param input: Input stream.
+     * @param blocksize: Maximum block size, in bytes.
+     * @param queueSize: Total queue size.
+     * @param pool: Buffer pool, or null to allocate a buffer per block.
+     * @param sizer: Block sizer, or null to read blocksize blocks.
+     */
+    public QueuedStreamReader (InputStream input, int blocksize, int queueSize,
+        BlockBufferPool pool, AdaptiveBlockSizer sizer)
+    {
+        if (pool != null && pool.getBlocksize() < blocksize) {
+            throw new IllegalArgumentException("Pool buffers are smaller than the block size");
+        }
+
         _input = input;
         _blocksize = blocksize;
-        _queue = new LinkedBlockingQueue<ByteBuffer>(queueSize);
+        _queue = new LinkedBlockingQueue<Block>(queueSize);
+        _pool = pool;
+        _sizer = sizer;
+
+        /* Read files through their channel, mapping regular files. */
+        if (input instanceof FileInputStream) {
+            _fileChannel = ((FileInputStream)input).getChannel();
+            _channel = _fileChannel;
+            _mapped = isRegularFile(_fileChannel);
+        } else {
+            _fileChannel = null;
+            _mapped = false;
+        }
+    }
+
+
+    /**
+     * Returns true if the channel is a seekable, non-empty file that can be
+     * mapped, rather than a pipe, socket or terminal.
+     */
+    private static boolean isRegularFile (FileChannel channel) {
+        try {
+            return channel.size() > channel.position();
+        } catch (IOException ioe) {
+            /* Not seekable. */
+            return false;
+        }
     }
 
 
@@ -77,33 +196,104 @@ class QueuedStreamReader
      */
     private void readStream ()
     {
+        MessageDigest md;
         boolean eof = false;
 
+        try {
+            md = MessageDigest.getInstance("md5");
+        } catch (NoSuchAlgorithmException nsa) {
+            // If MD5 isn't available, we're in trouble.
+            throw new RuntimeException(nsa);
+        }
+
         while (!eof) {
             ByteBuffer block;
-            byte[] backing;
+            int blocksize;
             int read;
-            
-            block = ByteBuffer.allocate(_blocksize);
-            assert(block.hasArray()); // Always true with allocate()
-            backing = block.array();
+
+            /* Determine the block size. */
+            blocksize = _blocksize;
+            if (_sizer != null) {
+                blocksize = Math.min(_sizer.getBlockSize(), _blocksize);
+            }
+
+            /* Map the next block of a regular file. */
+            if (_mapped) {
+                if (Thread.interrupted()) {
+                    return;
+                }
+
+                try {
+                    block = mapBlock(blocksize);
+                } catch (IOException ioe) {
+                    /* Save the exception and exit. */
+                    _streamError = ioe;
+                    return;
+                }
+
+                /* A short block marks the end of the file. */
+                eof = block.remaining() < blocksize;
+                md.update(block.duplicate());
+
+                try {
+                    _queue.put(new Block(block, md.digest(), true));
+                } catch (InterruptedException ie) {
+                    /* Exit on interrupt */
+                    return;
+                }
+                continue;
+            }
+
+            /* Fetch an empty block. */
+            if (_pool != null) {
+                try {
+                    block = _pool.acquire(blocksize);
+                } catch (InterruptedException ie) {
+                    /* Exit on interrupt */
+                    return;
+                }
+            } else {
+                block = ByteBuffer.allocate(blocksize);
+            }
+            block.limit(blocksize);
 
             /* Read in one complete block */
             read = 0;
-            while (_blocksize - read > 0) {
+            while (blocksize - read > 0) {
                 int len;
 
                 /* If we've been interrupted, exit the thread. */
                 if (Thread.interrupted()) {
+                    discardBlock(block);
                     return;
                 }
 
                 /* Read in more data. */
                 try {
-                    len = _input.read(backing, read, _blocksize - read);
+                    if (block.hasArray()) {
+                        len = _input.read(block.array(), block.arrayOffset() + read,
+                            blocksize - read);
+                        if (len > 0) {
+                            md.update(block.array(), block.arrayOffset() + read, len);
+                            block.position(read + len);
+                        }
+                    } else {
+                        /* Direct buffer; read via a channel. */
+                        if (_channel == null) {
+                            _channel = Channels.newChannel(_input);
+                        }
+                        len = _channel.read(block);
+                        if (len > 0) {
+                            ByteBuffer chunk = block.duplicate();
+                            chunk.limit(block.position());
+                            chunk.position(read);
+                            md.update(chunk);
+                        }
+                    }
                 } catch (IOException ioe) {
                     /* Save the exception and exit. */
                     _streamError = ioe;
+                    discardBlock(block);
                     return;
                 }
 
@@ -121,15 +311,55 @@ class QueuedStreamReader
             }
 
             /* Block complete, add it to the queue. */
-            block.limit(read);
+            block.flip();
 
             try {
-                _queue.put(block);                    
+                _queue.put(new Block(block, md.digest()));                    
             } catch (InterruptedException ie) {
                 /* Exit on interrupt */
+                discardBlock(block);
                 return;
             }
         } 
+
+        _eof = true;
+    }
+
+
+    /**
+     * Map the next block of the input file, advancing the file's position.
+     */
+    private ByteBuffer mapBlock (int blocksize)
+        throws IOException
+    {
+        long position = _fileChannel.position();
+        long length = Math.min(blocksize, Math.max(0, _fileChannel.size() - position));
+        ByteBuffer block = _fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+        _fileChannel.position(position + length);
+        return block;
+    }
+
+
+    /**
+     * Return a block read from the queue to the pool, once the consumer is
+     * finished with it. Mapped blocks are not pooled, and are simply
+     * dropped.
+     */
+    public void releaseBlock (Block block) {
+        if (!block.isMapped()) {
+            discardBlock(block.getData());
+        }
+    }
+
+
+    /**
+     * Return an unqueued block to the pool, if any.
+     */
+    private void discardBlock (ByteBuffer block) {
+        if (_pool != null) {
+            _pool.release(block);
+        }
     }
 
 
@@ -140,7 +370,21 @@ class QueuedStreamReader
     public ByteBuffer readBlock ()
         throws InterruptedException
     {
-        ByteBuffer block;
+        Block block = readDigestedBlock();
+        return block == null ? null : block.getData();
+    }
+
+
+    /**
+     * Read a block and its MD5 digest off the queue, or return null if
+     * end-of-file has been reached. Also returns null, leaving the interrupt
+     * status set, if the calling thread is interrupted; use {@link #reachedEOF()}
+     * to determine whether the stream was read in full.
+     */
+    public Block readDigestedBlock ()
+        throws InterruptedException
+    {
+        Block block;
 
         /* Loop until _finished == true and the queue is emptied. */
         while (_finished == false || (_finished == true && !_queue.isEmpty())) {
@@ -157,6 +401,7 @@ class QueuedStreamReader
                 }
             } catch (InterruptedException ie) {
                 /* Exit the loop. */
+                Thread.currentThread().interrupt();
                 break;
             }            
         }
@@ -171,6 +416,15 @@ class QueuedStreamReader
     }
 
 
+    /**
+     * Returns true if the reader reached the end of the input stream, rather
+     * than stopping on an error or interrupt.
+     */
+    public boolean reachedEOF () {
+        return _eof;
+    }
+
+
     /**
      * Returns the stream error, null if none.
      */
@@ -186,12 +440,30 @@ class QueuedStreamReader
     /** Finished reading? */
     private boolean _finished = false;
 
+    /** Reached the end of the input stream? */
+    private volatile boolean _eof = false;
+
     /** Data block size. */
     private final int _blocksize;
     
     /** Block queue. */
-    private final BlockingQueue<ByteBuffer> _queue;
+    private final BlockingQueue<Block> _queue;
     
     /* Data input stream. */
     private final InputStream _input;
+
+    /** Channel over the input stream, used to read into direct buffers. */
+    private ReadableByteChannel _channel;
+
+    /** The input file's channel, or null if the input is not a FileInputStream. */
+    private final FileChannel _fileChannel;
+
+    /** Map blocks from the input file? */
+    private final boolean _mapped;
+
+    /** Block buffer pool, or null. */
+    private final BlockBufferPool _pool;
+
+    /** Block sizer, or null. */
+    private final AdaptiveBlockSizer _sizer;
 }
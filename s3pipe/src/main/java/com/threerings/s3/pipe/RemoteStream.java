@@ -40,13 +40,31 @@ import com.threerings.s3.client.S3ObjectEntry;
 import com.threerings.s3.client.S3ObjectListing;
 import com.threerings.s3.client.S3ServerException;
 
+import java.io.InputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import java.nio.channels.SeekableByteChannel;
+
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.binary.Base64;
 
@@ -67,43 +85,166 @@ import org.apache.commons.codec.binary.Base64;
  *
  * We base64-encode the stream name to ensure that it does not contain any "." delimiters.
  *
+ * Chunked streams instead store a manifest (stream.<name>.manifest) of
+ * content-addressed chunks (chunk.<digest>), which are shared between all
+ * streams in the bucket. Deleting a stream does not delete its chunks.
+ *
+ * Version 2 block streams are completed by a binary block manifest
+ * (stream.<name>.blocks) recording each block's length and checksum. Version 1
+ * streams, and streams whose upload did not complete, have none; their end
+ * is found at the first missing block.
+ *
  * @todo: Investigate the atomicity of ACLs and their potential use for locking.
  */
 public class RemoteStream {
 
     /**
-     * Returns a list of all remote streams.
+     * Receives remote stream info records as they are fetched. Calls are
+     * serialized, but may be made from any thread.
+     */
+    public interface StreamHandler {
+        /** Handle a stream's info record. */
+        public void handleStream (RemoteStreamInfo info);
+    }
+
+    /**
+     * Returns a list of all remote streams, in listing order.
      */
     static public List<RemoteStreamInfo> getAllStreams (S3Connection connection,
         String bucketName)
         throws S3Exception, RemoteStreamException
     {
-        List<RemoteStreamInfo> streams;
+        final List<RemoteStreamInfo> streams = new ArrayList<RemoteStreamInfo>();
+
+        getAllStreams(connection, bucketName, 1, new StreamHandler() {
+            public void handleStream (RemoteStreamInfo info) {
+                streams.add(info);
+            }
+        });
+
+        return streams;
+    }
+
+    /**
+     * Fetch the info records of all remote streams, passing each to the
+     * handler as it arrives.
+     *
+     * Info records are fetched with HEAD requests, up to parallel at once,
+     * while the bucket listing continues to be paged through; with a
+     * parallelism of 1, records are handled in listing order. Invalid records
+     * are reported on stderr, and skipped, as are streams deleted since they
+     * were listed. Listing stops at the first S3 failure, which is thrown once
+     * the outstanding requests have exited; the handler is never called after
+     * this method returns.
+     */
+    static public void getAllStreams (final S3Connection connection, final String bucketName,
+        int parallel, final StreamHandler handler)
+        throws S3Exception, RemoteStreamException
+    {
+        final AtomicReference<S3Exception> failure = new AtomicReference<S3Exception>();
+        final Semaphore slots = new Semaphore(parallel);
+        ExecutorService fetchers;
         S3ObjectListing listing;
         String marker = null;
+        boolean listed = false;
 
-        streams = new ArrayList<RemoteStreamInfo>();
-        do {
+        if (parallel < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallel);
+        }
 
-            /* Get a listing of all common prefixes: STREAM_PREFIX.<encoded stream name>. */
-            listing = connection.listObjects(bucketName, STREAM_PREFIX + FIELD_DELIMETER,
-                marker, 1000, FIELD_DELIMETER);
+        fetchers = Executors.newFixedThreadPool(parallel, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, bucketName + " List " + _threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
 
-            /* For each prefix, extract the stream info. */
-            for (String prefix : listing.getCommonPrefixes()) {
-                try {
-                    RemoteStreamInfo info = getStreamInfo(connection, bucketName, prefix + INFO_FIELD);
-                    streams.add(info);
-                } catch (RemoteStreamException e) {
-                    System.err.println("Skipping invalid remote stream " + prefix + INFO_FIELD +
-                        ": " + e.getMessage());
+            /** Thread id counter. */
+            private final AtomicInteger _threadId = new AtomicInteger();
+        });
+
+        try {
+            do {
+                /* Get a listing of all common prefixes: STREAM_PREFIX.<encoded stream name>. */
+                listing = connection.listObjects(bucketName, STREAM_PREFIX + FIELD_DELIMETER,
+                    marker, 1000, FIELD_DELIMETER);
+
+                /* For each prefix, fetch the stream info, while listing continues. */
+                for (String prefix : listing.getCommonPrefixes()) {
+                    final String infoKey = prefix + INFO_FIELD;
+
+                    slots.acquire();
+                    if (failure.get() != null) {
+                        slots.release();
+                        break;
+                    }
+
+                    fetchers.execute(new Runnable() {
+                        public void run () {
+                            try {
+                                RemoteStreamInfo info = getStreamInfo(connection, bucketName, infoKey);
+
+                                /* The stream may have been deleted since it was listed. */
+                                if (info != null && failure.get() == null) {
+                                    synchronized (handler) {
+                                        handler.handleStream(info);
+                                    }
+                                }
+                            } catch (RemoteStreamException e) {
+                                System.err.println("Skipping invalid remote stream " + infoKey +
+                                    ": " + e.getMessage());
+                            } catch (S3Exception e) {
+                                /* Report the first failure, and stop listing. */
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                slots.release();
+                            }
+                        }
+                    });
                 }
+
+                marker = listing.getNextMarker();
+            } while (listing.truncated() && failure.get() == null);
+            listed = true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RemoteStreamException("Interrupted listing streams", ie);
+        } finally {
+            /* Complete the outstanding requests, or cancel them on failure,
+             * and wait for them to exit. */
+            if (listed && failure.get() == null) {
+                fetchers.shutdown();
+            } else {
+                fetchers.shutdownNow();
             }
+            awaitTermination(fetchers);
+        }
 
-            marker = listing.getNextMarker();
-        } while (listing.truncated());
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
 
-        return streams;
+    /**
+     * Wait for the executor's threads to exit, preserving the caller's
+     * interrupt status.
+     */
+    static void awaitTermination (ExecutorService executor) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -120,8 +261,8 @@ public class RemoteStream {
             S3Object object;
             Map<String,String> metadata;
 
-            /* Fetch the object. */
-            object = connection.getObject(bucketName, infoKey);
+            /* Fetch the object's metadata; the record has no content. */
+            object = connection.getObjectMetadata(bucketName, infoKey);
             metadata = object.getMetadata();
 
             /* Extract the version and ensure we support it */
@@ -132,7 +273,7 @@ public class RemoteStream {
                     "Stream missing version number.");
             }
             version = Integer.parseInt(versionString);
-            if (version != VERSION) {
+            if (version < MIN_VERSION || version > VERSION) {
                 throw new RemoteStreamException.UnsupportedVersionException(
                     "Stream record version is not supported: " + versionString + ".");
             }
@@ -153,7 +294,27 @@ public class RemoteStream {
             }
             created = new Date(Long.parseLong(createdString));
 
-            return new RemoteStreamInfo(name, version, created);
+            /* Extract the block codec. Streams without one are uncompressed. */
+            BlockCodec codec;
+            if ((codec = BlockCodec.forName(metadata.get(INFO_KEY_CODEC))) == null) {
+                throw new RemoteStreamException.UnsupportedVersionException(
+                    "Stream block codec is not supported: " + metadata.get(INFO_KEY_CODEC) + ".");
+            }
+
+            /* Extract the layout. */
+            String layout = metadata.get(INFO_KEY_LAYOUT);
+            if (layout != null && !layout.equals(LAYOUT_CHUNKED)) {
+                throw new RemoteStreamException.UnsupportedVersionException(
+                    "Stream layout is not supported: " + layout + ".");
+            }
+
+            /* Extract the block size. Streams without one have variable, or unrecorded, block sizes. */
+            int blockSize = 0;
+            if (metadata.get(INFO_KEY_BLOCKSIZE) != null) {
+                blockSize = Integer.parseInt(metadata.get(INFO_KEY_BLOCKSIZE));
+            }
+
+            return new RemoteStreamInfo(name, version, created, codec, layout != null, blockSize);
 
         } catch (S3ServerException.NoSuchKeyException nsk) {
             return null;
@@ -190,6 +351,41 @@ public class RemoteStream {
      */
     public void putStreamInfo ()
         throws S3Exception, RemoteStreamException
+    {
+        putStreamInfo(BlockCodec.NONE);
+    }
+
+
+    /**
+     * Initialize remote stream info record, recording the codec used to
+     * compress the stream's blocks.
+     */
+    public void putStreamInfo (BlockCodec codec)
+        throws S3Exception, RemoteStreamException
+    {
+        putStreamInfo(codec, false);
+    }
+
+
+    /**
+     * Initialize remote stream info record, recording the block codec and
+     * whether the stream is chunked.
+     */
+    public void putStreamInfo (BlockCodec codec, boolean chunked)
+        throws S3Exception, RemoteStreamException
+    {
+        putStreamInfo(codec, chunked, 0);
+    }
+
+
+    /**
+     * Initialize remote stream info record, recording the block codec,
+     * whether the stream is chunked, and the stream's fixed block size, if
+     * any.
+     * @param blockSize: Size of all but the last block, or 0 if block sizes vary.
+     */
+    public void putStreamInfo (BlockCodec codec, boolean chunked, int blockSize)
+        throws S3Exception, RemoteStreamException
     {
         Map<String,String> metadata = new HashMap<String,String>();
         S3ByteArrayObject infoObject = new S3ByteArrayObject(streamInfoKey(), new byte[0], S3Object.DEFAULT_MIME_TYPE);
@@ -203,6 +399,21 @@ public class RemoteStream {
         /* Set the creation date. */
         metadata.put(INFO_KEY_CTIME, Long.toString(new Date().getTime()));
 
+        /* Set the block codec. */
+        if (codec != BlockCodec.NONE) {
+            metadata.put(INFO_KEY_CODEC, codec.getName());
+        }
+
+        /* Set the layout. */
+        if (chunked) {
+            metadata.put(INFO_KEY_LAYOUT, LAYOUT_CHUNKED);
+        }
+
+        /* Set the block size. */
+        if (blockSize > 0) {
+            metadata.put(INFO_KEY_BLOCKSIZE, Integer.toString(blockSize));
+        }
+
         /* Upload the info object. */
         infoObject.setMetadata(metadata);
         _connection.putObject(_bucketName, infoObject, AccessControlList.StandardPolicy.PRIVATE);
@@ -222,6 +433,113 @@ public class RemoteStream {
         return getStreamInfo(_connection, _bucketName, streamInfoKey());
     }
 
+    /**
+     * Upload the stream's chunk manifest.
+     */
+    public void putManifest (ChunkManifest manifest)
+        throws S3Exception
+    {
+        S3ByteArrayObject object = new S3ByteArrayObject(manifestKey(), manifest.toByteArray());
+        _connection.putObject(_bucketName, object, AccessControlList.StandardPolicy.PRIVATE);
+    }
+
+    /**
+     * Fetch the stream's chunk manifest, or null if none exists.
+     */
+    public ChunkManifest getManifest ()
+        throws S3Exception, RemoteStreamException
+    {
+        S3Object object;
+        InputStream input;
+
+        try {
+            object = _connection.getObject(_bucketName, manifestKey());
+        } catch (S3ServerException.NoSuchKeyException nsk) {
+            return null;
+        }
+
+        input = object.getInputStream();
+        try {
+            return ChunkManifest.read(input);
+        } catch (IOException ioe) {
+            throw new RemoteStreamException("Failure reading chunk manifest: " + ioe.getMessage(), ioe);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Upload the stream's block manifest, completing a version 2 block stream.
+     */
+    public void putBlockManifest (BlockManifest manifest)
+        throws S3Exception
+    {
+        S3ByteArrayObject object = new S3ByteArrayObject(blockManifestKey(), manifest.toByteArray());
+        _connection.putObject(_bucketName, object, AccessControlList.StandardPolicy.PRIVATE);
+    }
+
+    /**
+     * Fetch the stream's block manifest, or null if none exists: the stream
+     * is a version 1 stream, or its upload did not complete.
+     */
+    public BlockManifest getBlockManifest ()
+        throws S3Exception, RemoteStreamException
+    {
+        S3Object object;
+        DigestInputStream input;
+        BlockManifest manifest;
+
+        try {
+            object = _connection.getObject(_bucketName, blockManifestKey());
+        } catch (S3ServerException.NoSuchKeyException nsk) {
+            return null;
+        }
+
+        try {
+            input = new DigestInputStream(object.getInputStream(), MessageDigest.getInstance("md5"));
+        } catch (NoSuchAlgorithmException e) {
+            /* This should never be missing. */
+            throw new RuntimeException("Missing MD5 algorithm!", e);
+        }
+
+        try {
+            manifest = BlockManifest.read(input);
+        } catch (IOException ioe) {
+            throw new RemoteStreamException("Failure reading block manifest: " + ioe.getMessage(), ioe);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // Nothing to do.
+            }
+        }
+
+        if (!Arrays.equals(input.getMessageDigest().digest(), object.getMD5())) {
+            throw new RemoteStreamException("Block manifest checksum invalid.");
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Open a read-only, seekable channel over the stream's data.
+     * Will return null if the stream is not found.
+     */
+    public SeekableByteChannel openChannel ()
+        throws S3Exception, RemoteStreamException
+    {
+        RemoteStreamInfo info = getStreamInfo();
+        if (info == null) {
+            return null;
+        }
+
+        return new RemoteStreamChannel(_connection, _bucketName, this, info);
+    }
+
     /**
      * Delete the remote stream data, retrying if failures are encountered.
      * @param maxRetry: Maximum number of times to retry deleting.
@@ -229,35 +547,48 @@ public class RemoteStream {
     public void delete (int maxRetry)
         throws S3Exception
     {
+        S3Connection connection = S3RetryHandler.wrap(_connection, maxRetry);
         S3ObjectListing listing;
         String marker = null;
-        S3RetryHandler retry = new S3RetryHandler(maxRetry);
-        S3Exception retryError = null;
 
         do {
-            /* Log the last error. */
-            if (retryError != null) {
-                System.err.println("S3 failure deleting stream '" + _streamName + "', retrying: " + retryError);                   
+            /* List and delete all stream keys. */
+            listing = connection.listObjects(_bucketName, streamPrefix(), marker, 1000, null);
+
+            for (S3ObjectEntry entry : listing.getEntries()) {
+                connection.deleteObject(_bucketName, entry.getKey());
             }
 
-            try {
-                do {
-                    /* List and delete all stream keys. */
-                    listing = _connection.listObjects(_bucketName, streamPrefix(), marker, 1000, null);
+            marker = listing.getNextMarker();
+        } while (listing.truncated());
+    }
 
-                    for (S3ObjectEntry entry : listing.getEntries()) {
-                        _connection.deleteObject(_bucketName, entry.getKey());
-                    }
+    /**
+     * List the stream's data blocks, by block id.
+     */
+    public SortedMap<Long,S3ObjectEntry> getBlocks ()
+        throws S3Exception
+    {
+        SortedMap<Long,S3ObjectEntry> blocks = new TreeMap<Long,S3ObjectEntry>();
+        String prefix = streamPrefix() + BLOCK_FIELD + FIELD_DELIMETER;
+        S3ObjectListing listing;
+        String marker = null;
 
-                    marker = listing.getNextMarker();
-                } while (listing.truncated());
-            } catch (S3Exception e) {
-                /* Let the retry handler check the exception */
-                retryError = e;
-                continue;
+        do {
+            listing = _connection.listObjects(_bucketName, prefix, marker, 1000, null);
+
+            for (S3ObjectEntry entry : listing.getEntries()) {
+                try {
+                    blocks.put(Long.valueOf(entry.getKey().substring(prefix.length())), entry);
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Skipping invalid stream block " + entry.getKey());
+                }
             }
-            break;
-        } while (retry.shouldRetry(retryError));
+
+            marker = listing.getNextMarker();
+        } while (listing.truncated());
+
+        return blocks;
     }
 
     /**
@@ -287,6 +618,32 @@ public class RemoteStream {
             Long.toString(blockId);
     }
 
+    /**
+     * Return the S3 key for the stream's chunk manifest.
+     */
+    public String manifestKey () {
+        /* stream.<encoded stream name>.manifest */
+        return STREAM_PREFIX + FIELD_DELIMETER + _encodedStreamName +
+            FIELD_DELIMETER + MANIFEST_FIELD;
+    }
+
+    /**
+     * Return the S3 key for the stream's block manifest.
+     */
+    public String blockManifestKey () {
+        /* stream.<encoded stream name>.blocks */
+        return STREAM_PREFIX + FIELD_DELIMETER + _encodedStreamName +
+            FIELD_DELIMETER + BLOCKS_FIELD;
+    }
+
+    /**
+     * Return the S3 key for the chunk with the given digest.
+     */
+    public static String chunkKey (String digest) {
+        /* chunk.<digest> */
+        return CHUNK_PREFIX + FIELD_DELIMETER + digest;
+    }
+
     /**
      * Return the stream name.
      */
@@ -308,7 +665,10 @@ public class RemoteStream {
     private final String _encodedStreamName;
 
     /** Data structure version. Used to support backwards compatibility*/
-    protected static final int VERSION = 1;
+    protected static final int VERSION = 2;
+
+    /** Oldest readable stream version. Version 1 streams have no block manifest. */
+    protected static final int MIN_VERSION = 1;
 
     /** Key to stream name. */
     private static final String INFO_KEY_NAME = "name";
@@ -319,6 +679,27 @@ public class RemoteStream {
     /** Key to stream creation date. */
     private static final String INFO_KEY_CTIME = "ctime";
 
+    /** Key to stream layout. Absent for block streams. */
+    private static final String INFO_KEY_LAYOUT = "layout";
+
+    /** Chunked stream layout. */
+    private static final String LAYOUT_CHUNKED = "chunked";
+
+    /** Key to stream block size. Absent if block sizes vary. */
+    private static final String INFO_KEY_BLOCKSIZE = "blocksize";
+
+    /** Key to stream block codec. */
+    private static final String INFO_KEY_CODEC = "codec";
+
+    /** Key to an individual block's codec. Absent if the block is stored raw. */
+    static final String BLOCK_KEY_CODEC = "codec";
+
+    /** Key to an individual block's offset within the stream. */
+    static final String BLOCK_KEY_OFFSET = "offset";
+
+    /** Key to an individual block's raw (unencoded) length. */
+    static final String BLOCK_KEY_LENGTH = "length";
+
     /** Stream prefix. All stream-related keys will be prepended with this
       * prefix. */
     private static final String STREAM_PREFIX = "stream";
@@ -332,6 +713,15 @@ public class RemoteStream {
     /** Info data field. */
     private static final String INFO_FIELD = "info";
 
+    /** Chunk manifest field. */
+    private static final String MANIFEST_FIELD = "manifest";
+
+    /** Block manifest field. */
+    private static final String BLOCKS_FIELD = "blocks";
+
+    /** Chunk prefix. Chunks are shared by all streams, and are keyed by digest. */
+    private static final String CHUNK_PREFIX = "chunk";
+
     /** Character set encoding used for base64'd stream names. */
     private static final String NAME_ENCODING = "utf-8";
 }
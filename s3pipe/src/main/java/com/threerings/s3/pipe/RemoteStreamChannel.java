@@ -0,0 +1,714 @@
+/* 
+ * RemoteStreamChannel vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3Connection;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ObjectEntry;
+import com.threerings.s3.client.S3ServerException;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/*
+ * A read-only, seekable channel over a remote stream.
+ *
+ * Byte offsets are mapped to blocks by the block size recorded in the stream's
+ * info record, if any. Streams uploaded with variable block sizes are located
+ * by a binary search over the blocks' recorded offsets, and older streams by
+ * the sizes of their (raw) blocks. Chunked streams are located through their
+ * manifest.
+ *
+ * Reads that start within a raw block use a range GET of the remainder of the
+ * block. As only complete blocks can be verified, reads from the start of a
+ * block, and reads of compressed blocks (which must be fetched and decoded in
+ * full), are checked against the block's checksum once the end of the block
+ * has been read; a mismatch fails the read with an IOException.
+ *
+ * The channel is not thread-safe.
+ */
+class RemoteStreamChannel
+    implements SeekableByteChannel
+{
+    /**
+     * Instantiate a new channel.
+     * @param connection: S3 connection.
+     * @param bucket: S3 bucket.
+     * @param stream: Remote stream.
+     * @param info: The stream's info record.
+     */
+    public RemoteStreamChannel (S3Connection connection, String bucket, RemoteStream stream,
+        RemoteStreamInfo info)
+    {
+        _connection = connection;
+        _bucket = bucket;
+        _stream = stream;
+        _info = info;
+    }
+
+
+    // From interface SeekableByteChannel
+    public int read (ByteBuffer dst)
+        throws IOException
+    {
+        checkOpen();
+
+        while (true) {
+            int nread;
+
+            /* Open the block containing the current position. */
+            if (_input == null || _inputPosition != _position) {
+                closeBlock();
+                if (!openBlock()) {
+                    return -1;
+                }
+            }
+
+            /* Read from the current block. */
+            nread = readInput(dst);
+            if (nread < 0) {
+                /* End of the block; verify it, and move on to the next. */
+                finishBlock();
+
+                /* Only the last of a stream's fixed size blocks is short. */
+                if (_info.getBlockSize() > 0 && _inputPosition < _blockStart + _info.getBlockSize()) {
+                    _length = _inputPosition;
+                }
+                continue;
+            }
+
+            _position += nread;
+            _inputPosition += nread;
+            return nread;
+        }
+    }
+
+
+    // From interface SeekableByteChannel
+    public int write (ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+
+    // From interface SeekableByteChannel
+    public long position ()
+        throws IOException
+    {
+        checkOpen();
+        return _position;
+    }
+
+
+    // From interface SeekableByteChannel
+    public SeekableByteChannel position (long newPosition)
+        throws IOException
+    {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+
+        _position = newPosition;
+        return this;
+    }
+
+
+    // From interface SeekableByteChannel
+    public long size ()
+        throws IOException
+    {
+        checkOpen();
+
+        try {
+            if (_info.isChunked()) {
+                return manifest().getLength();
+            }
+
+            return blockIndex().getLength();
+        } catch (S3Exception e) {
+            throw new IOException("S3 failure determining stream size: " + e.getMessage(), e);
+        }
+    }
+
+
+    // From interface SeekableByteChannel
+    public SeekableByteChannel truncate (long size) {
+        throw new NonWritableChannelException();
+    }
+
+
+    // From interface Channel
+    public boolean isOpen () {
+        return _open;
+    }
+
+
+    // From interface Channel
+    public void close () {
+        closeBlock();
+        _open = false;
+    }
+
+
+    /**
+     * Open the block containing the current position.
+     * @return false if the position is at or beyond the end of the stream.
+     */
+    private boolean openBlock ()
+        throws IOException
+    {
+        Segment segment;
+        long skip;
+
+        try {
+            segment = locate(_position);
+        } catch (S3Exception e) {
+            throw new IOException("S3 failure locating offset " + _position + " of stream \"" +
+                _stream.getStreamName() + "\": " + e.getMessage(), e);
+        }
+
+        if (segment == null || (_length >= 0 && _position >= _length)) {
+            return false;
+        }
+
+        _blockStart = segment.start;
+        skip = _position - segment.start;
+        try {
+            if (skip > 0 && _info.getCodec() == BlockCodec.NONE && openRange(segment, skip)) {
+                return true;
+            }
+        } catch (S3ServerException.InvalidRangeException ire) {
+            /* The position is beyond the end of the stream. */
+            return false;
+        } catch (S3Exception e) {
+            throw new IOException("S3 failure fetching " + _blockName + ": " + e.getMessage(), e);
+        }
+
+        try {
+            if (!openComplete(segment)) {
+                return false;
+            }
+        } catch (S3Exception e) {
+            throw new IOException("S3 failure fetching " + _blockName + ": " + e.getMessage(), e);
+        }
+
+        /* Read up to the position within the block, digesting the skipped data. */
+        if (skip > 0) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (skip > 0) {
+                int nread = _input.read(buffer, 0, (int)Math.min(buffer.length, skip));
+                if (nread < 0) {
+                    /* The position is beyond the end of the stream. */
+                    finishBlock();
+                    return false;
+                }
+                skip -= nread;
+            }
+        }
+
+        _inputPosition = _position;
+        return true;
+    }
+
+
+    /**
+     * Open a range of a raw block, from the given offset to the end of the
+     * block.
+     * @return false if the block is not stored raw, or does not exist.
+     * @throws S3ServerException.InvalidRangeException if the offset is beyond
+     *  the end of the block.
+     */
+    private boolean openRange (Segment segment, long offset)
+        throws S3Exception
+    {
+        S3Object block;
+
+        _blockName = segment.name;
+        try {
+            block = _connection.getObject(_bucket, segment.key, offset, -1);
+        } catch (S3ServerException.NoSuchKeyException nsk) {
+            return false;
+        }
+
+        /* An encoded block must be fetched and decoded in full. */
+        if (block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC) != null) {
+            closeQuietly(block.getInputStream());
+            return false;
+        }
+
+        _input = block.getInputStream();
+        _inputPosition = _position;
+        return true;
+    }
+
+
+    /**
+     * Open a complete block, decoding it and digesting its stored data for
+     * verification.
+     * @return false if the block does not exist.
+     */
+    private boolean openComplete (Segment segment)
+        throws S3Exception, IOException
+    {
+        S3Object block;
+        BlockCodec codec;
+
+        _blockName = segment.name;
+        try {
+            block = _connection.getObject(_bucket, segment.key);
+        } catch (S3ServerException.NoSuchKeyException nsk) {
+            if (_info.isChunked()) {
+                throw new IOException(_blockName + " is missing.");
+            }
+            return false;
+        }
+
+        codec = BlockCodec.forName(block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        if (codec == null) {
+            closeQuietly(block.getInputStream());
+            throw new IOException(_blockName + " codec is not supported: " +
+                block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        }
+
+        _encoded = new DigestInputStream(block.getInputStream(), newDigest());
+        _expectedMD5 = block.getMD5();
+        _input = codec.decode(_encoded);
+        return true;
+    }
+
+
+    /**
+     * Read from the current block into the given buffer.
+     */
+    private int readInput (ByteBuffer dst)
+        throws IOException
+    {
+        if (dst.hasArray()) {
+            int nread = _input.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (nread > 0) {
+                dst.position(dst.position() + nread);
+            }
+            return nread;
+        } else {
+            byte[] buffer = new byte[Math.min(dst.remaining(), BUFFER_SIZE)];
+            int nread = _input.read(buffer);
+            if (nread > 0) {
+                dst.put(buffer, 0, nread);
+            }
+            return nread;
+        }
+    }
+
+
+    /**
+     * Close the current block, which has been read to its end, verifying its
+     * checksum if it was read in full.
+     */
+    private void finishBlock ()
+        throws IOException
+    {
+        if (_encoded != null) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            /* Digest any encoded data that follows the end of the compressed data. */
+            while (_encoded.read(buffer) >= 0) {
+                // Keep draining
+            }
+
+            if (!Arrays.equals(_encoded.getMessageDigest().digest(), _expectedMD5)) {
+                closeBlock();
+                throw new IOException(_blockName + " checksum invalid.");
+            }
+        }
+
+        /* Continue at the next block. */
+        closeBlock();
+    }
+
+
+    /**
+     * Close the current block, if any, without verifying it.
+     */
+    private void closeBlock () {
+        if (_input != null) {
+            closeQuietly(_input);
+        }
+        if (_encoded != null) {
+            closeQuietly(_encoded);
+        }
+        _input = null;
+        _encoded = null;
+        _expectedMD5 = null;
+    }
+
+
+    /**
+     * Locate the block containing the given stream offset.
+     * @return null if the offset is known to be beyond the end of the stream.
+     */
+    private Segment locate (long offset)
+        throws S3Exception, IOException
+    {
+        /* Chunked streams are located through their manifest. */
+        if (_info.isChunked()) {
+            ChunkManifest manifest = manifest();
+            int index = manifest.indexOf(offset);
+            if (index < 0) {
+                return null;
+            }
+
+            ChunkManifest.Entry entry = manifest.getEntries().get(index);
+            return new Segment(RemoteStream.chunkKey(entry.getDigest()),
+                "Chunk " + entry.getDigest(), manifest.getOffset(index));
+        }
+
+        /* Fixed size blocks are located directly. */
+        if (_info.getBlockSize() > 0) {
+            long blockId = offset / _info.getBlockSize();
+            return new Segment(_stream.streamBlockKey(blockId), "S3 block " + blockId,
+                blockId * _info.getBlockSize());
+        }
+
+        return blockIndex().locate(offset);
+    }
+
+
+    /**
+     * Returns the stream's chunk manifest.
+     */
+    private ChunkManifest manifest ()
+        throws S3Exception, IOException
+    {
+        if (_manifest == null) {
+            try {
+                _manifest = _stream.getManifest();
+            } catch (RemoteStreamException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            if (_manifest == null) {
+                throw new IOException("Stream \"" + _stream.getStreamName() +
+                    "\" is incomplete: missing chunk manifest.");
+            }
+        }
+
+        return _manifest;
+    }
+
+
+    /**
+     * Returns the stream's block index.
+     */
+    private BlockIndex blockIndex ()
+        throws S3Exception, IOException
+    {
+        if (_index == null) {
+            _index = new BlockIndex();
+        }
+        return _index;
+    }
+
+
+    /**
+     * Return a new MD5 digest.
+     */
+    private static MessageDigest newDigest () {
+        try {
+            return MessageDigest.getInstance("md5");
+        } catch (NoSuchAlgorithmException e) {
+            /* This should never be missing. */
+            throw new RuntimeException("Missing MD5 algorithm!", e);
+        }
+    }
+
+
+    /**
+     * Close a stream, ignoring any error.
+     */
+    private static void closeQuietly (InputStream input) {
+        try {
+            input.close();
+        } catch (IOException ioe) {
+            // Nothing to do.
+        }
+    }
+
+
+    /**
+     * Throw ClosedChannelException if the channel has been closed.
+     */
+    private void checkOpen ()
+        throws ClosedChannelException
+    {
+        if (!_open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+
+    /** A block or chunk, and its offset within the stream. */
+    private static class Segment {
+        public Segment (String key, String name, long start) {
+            this.key = key;
+            this.name = name;
+            this.start = start;
+        }
+
+        /** S3 key. */
+        public final String key;
+
+        /** Description, used in error messages. */
+        public final String name;
+
+        /** Stream offset of the first byte. */
+        public final long start;
+    }
+
+
+    /**
+     * The committed blocks of a block stream, and their offsets. Offsets are
+     * given by the stream's block manifest, if it has one, or read from the
+     * blocks' metadata as they are needed; blocks that do not record their
+     * offsets must be stored raw, and are located by their stored sizes.
+     */
+    private class BlockIndex {
+        public BlockIndex ()
+            throws S3Exception, IOException
+        {
+            SortedMap<Long,S3ObjectEntry> blocks;
+            BlockManifest manifest = null;
+            long count;
+
+            /* Completed version 2 streams list their blocks' positions in their manifest. */
+            if (_info.getVersion() >= 2) {
+                try {
+                    manifest = _stream.getBlockManifest();
+                } catch (RemoteStreamException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+
+            if (manifest != null) {
+                count = manifest.getBlockCount();
+                _keys = new String[(int)count];
+                _offsets = new long[(int)count + 1];
+                for (int i = 0; i < count; i++) {
+                    _keys[i] = _stream.streamBlockKey(i);
+                    _offsets[i] = manifest.getOffset(i);
+                }
+                _offsets[(int)count] = manifest.getLength();
+                return;
+            }
+
+            blocks = _stream.getBlocks();
+            for (count = 0; blocks.containsKey(count); count++) {
+                // Count the contiguous blocks
+            }
+
+            _keys = new String[(int)count];
+            for (int i = 0; i < count; i++) {
+                _keys[i] = blocks.get((long)i).getKey();
+            }
+
+            /* Blocks that do not record their position are located by their sizes. */
+            if (count > 0 && recordedPosition(0) == null) {
+                if (_info.getCodec() != BlockCodec.NONE) {
+                    throw new IOException("Stream \"" + _stream.getStreamName() +
+                        "\" blocks do not record their positions.");
+                }
+
+                long start = 0;
+                _offsets = new long[(int)count + 1];
+                for (int i = 0; i < count; i++) {
+                    _offsets[i] = start;
+                    start += blocks.get((long)i).getSize();
+                }
+                _offsets[(int)count] = start;
+            }
+        }
+
+        /** Returns the length of the stream. */
+        public long getLength ()
+            throws S3Exception, IOException
+        {
+            if (_keys.length == 0) {
+                return 0;
+            } else if (_offsets != null) {
+                return _offsets[_keys.length];
+            }
+
+            long[] last = requirePosition(_keys.length - 1);
+            return last[0] + last[1];
+        }
+
+        /**
+         * Return the block containing the given offset, or null if it is
+         * beyond the end of the stream.
+         */
+        public Segment locate (long offset)
+            throws S3Exception, IOException
+        {
+            int low = 0;
+            int high = _keys.length - 1;
+
+            /* Find the last block that starts at or before the offset. */
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (start(mid) <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            if (high < 0 || offset >= getLength()) {
+                return null;
+            }
+
+            return new Segment(_keys[high], "S3 block " + high, start(high));
+        }
+
+        /** Returns the offset of the given block. */
+        private long start (int blockId)
+            throws S3Exception, IOException
+        {
+            return _offsets != null ? _offsets[blockId] : requirePosition(blockId)[0];
+        }
+
+        /** Returns the recorded offset and length of the given block. */
+        private long[] requirePosition (int blockId)
+            throws S3Exception, IOException
+        {
+            long[] position = recordedPosition(blockId);
+            if (position == null) {
+                throw new IOException("S3 block " + blockId + " does not record its position.");
+            }
+            return position;
+        }
+
+        /**
+         * Returns the recorded offset and length of the given block, or null
+         * if it is not recorded.
+         */
+        private long[] recordedPosition (int blockId)
+            throws S3Exception
+        {
+            long[] position = _positions.get(blockId);
+            if (position == null && !_positions.containsKey(blockId)) {
+                Map<String,String> metadata = _connection.getObjectMetadata(_bucket,
+                    _keys[blockId]).getMetadata();
+                String offset = metadata.get(RemoteStream.BLOCK_KEY_OFFSET);
+                String length = metadata.get(RemoteStream.BLOCK_KEY_LENGTH);
+
+                if (offset != null && length != null) {
+                    position = new long[] { Long.parseLong(offset), Long.parseLong(length) };
+                }
+                _positions.put(blockId, position);
+            }
+
+            return position;
+        }
+
+        /** Committed block keys. */
+        private final String[] _keys;
+
+        /** Block offsets given by the manifest or by block sizes, or null if recorded by the blocks. */
+        private long[] _offsets;
+
+        /** Recorded block offsets and lengths, by block id. */
+        private final Map<Integer,long[]> _positions = new HashMap<Integer,long[]>();
+    }
+
+
+    /** Read buffer size, used for direct buffers. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** S3 bucket. */
+    private final String _bucket;
+
+    /** Remote stream. */
+    private final RemoteStream _stream;
+
+    /** Stream info record. */
+    private final RemoteStreamInfo _info;
+
+    /** Channel position. */
+    private long _position;
+
+    /** Open? */
+    private boolean _open = true;
+
+    /** Decoded data of the current block, or null. */
+    private InputStream _input;
+
+    /** Stream offset of the next byte of _input. */
+    private long _inputPosition;
+
+    /** Stream offset of the current block. */
+    private long _blockStart;
+
+    /** Stream length, once the last block has been read, or -1. */
+    private long _length = -1;
+
+    /** Digested, stored data of the current block, or null if it is being read in part. */
+    private DigestInputStream _encoded;
+
+    /** The current block's stored MD5 digest. */
+    private byte[] _expectedMD5;
+
+    /** Description of the current block, used in error messages. */
+    private String _blockName;
+
+    /** Chunk manifest, if chunked. */
+    private ChunkManifest _manifest;
+
+    /** Block index, if required. */
+    private BlockIndex _index;
+}
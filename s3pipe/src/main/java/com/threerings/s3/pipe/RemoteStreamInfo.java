@@ -38,9 +38,28 @@ import java.util.Date;
  */
 class RemoteStreamInfo {
     public RemoteStreamInfo (String name, int version, Date created) {
+        this(name, version, created, BlockCodec.NONE);
+    }
+
+    public RemoteStreamInfo (String name, int version, Date created, BlockCodec codec) {
+        this(name, version, created, codec, false);
+    }
+
+    public RemoteStreamInfo (String name, int version, Date created, BlockCodec codec,
+        boolean chunked)
+    {
+        this(name, version, created, codec, chunked, 0);
+    }
+
+    public RemoteStreamInfo (String name, int version, Date created, BlockCodec codec,
+        boolean chunked, int blockSize)
+    {
         _name = name;
         _version = version;
         _creationDate = created;
+        _codec = codec;
+        _chunked = chunked;
+        _blockSize = blockSize;
     }
 
     /**
@@ -61,6 +80,30 @@ class RemoteStreamInfo {
         return _creationDate;
     }
 
+    /**
+     * Get the codec used to compress the stream's blocks. Individual blocks
+     * that did not compress are stored raw.
+     */
+    public BlockCodec getCodec () {
+        return _codec;
+    }
+
+    /**
+     * Returns true if the stream is stored as a manifest of content-addressed
+     * chunks, rather than as numbered blocks.
+     */
+    public boolean isChunked () {
+        return _chunked;
+    }
+
+    /**
+     * Get the size of the stream's blocks, all but the last of which are
+     * the same size. Returns 0 if the block size varies, or was not recorded.
+     */
+    public int getBlockSize () {
+        return _blockSize;
+    }
+
     /** Remote stream name. */
     private final String _name;
 
@@ -69,4 +112,13 @@ class RemoteStreamInfo {
 
     /** Remote stream version. */
     private final int _version;
+
+    /** Block codec. */
+    private final BlockCodec _codec;
+
+    /** Chunked layout? */
+    private final boolean _chunked;
+
+    /** Fixed block size, or 0. */
+    private final int _blockSize;
 }
\ No newline at end of file
@@ -31,49 +31,46 @@
 
 package com.threerings.s3.pipe;
 
+import com.threerings.s3.client.S3Connection;
 import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3RetryBudget;
+import com.threerings.s3.client.S3RetryPolicy;
+import com.threerings.s3.client.S3RetryingConnection;
 
 /**
  * Retry on non-fatal S3 Exceptions.
+ *
+ * Provides s3pipe's retrying connections, which retry transient failures with
+ * jittered exponential backoff as determined by an S3RetryPolicy, and log each
+ * retried failure. All connections share a single process-wide retry budget.
  */
-class S3RetryHandler {
-
+class S3RetryHandler implements S3RetryingConnection.Listener {
     /**
-     * Initialize the retry handler with the provided maximum retry count.
+     * Return a connection that retries failed S3 operations at most maxRetry
+     * times. If the given connection already retries failures, it is returned
+     * unmodified.
      */
-    protected S3RetryHandler (int maxRetry) {
-        _maxRetry = maxRetry;
+    public static S3Connection wrap (S3Connection connection, int maxRetry) {
+        if (connection instanceof S3RetryingConnection) {
+            return connection;
+        }
+
+        S3RetryingConnection retrying = new S3RetryingConnection(connection, new S3RetryPolicy(maxRetry,
+            S3RetryPolicy.DEFAULT_BASE_DELAY, S3RetryPolicy.DEFAULT_MAX_DELAY, SHARED_BUDGET));
+        retrying.setListener(new S3RetryHandler());
+        return retrying;
     }
 
-    /**
-     * Returns true if the exception is transient and the caller
-     * should retry. Otherwise, throws the provided exception.
-     * Sleeps for 1 second before returning true.
-     */
-    protected boolean shouldRetry (S3Exception exception)
-        throws S3Exception
+    // From interface S3RetryingConnection.Listener
+    public void attemptCompleted (S3RetryingConnection.RequestType type, String bucketName,
+        String objectKey, long latency, S3Exception error, boolean willRetry)
     {
-        /*
-         * For now, all exceptions are blindly retried.
-         * @todo Implement a transient flag for S3Exceptions to determine
-         *  whether an operation should be retried.
-         */
-         _retryCount++;
-         if (_retryCount > _maxRetry) {
-             throw exception;
-         } else {
-             try {
-                 Thread.sleep(1000);             
-             } catch (InterruptedException e) {
-                 // Ignore
-             }
-             return true;
-         }
+        if (error != null && willRetry) {
+            System.err.println("S3 failure on " + type + " of '" + (objectKey != null ? objectKey : bucketName) +
+                "', retrying: " + error);
+        }
     }
 
-    /** Maximum number of retry attempts. */
-    private final int _maxRetry;
-
-    /** Current number of attempts. */
-    private int _retryCount = 0;
+    /** Retry budget shared by all connections. */
+    private static final S3RetryBudget SHARED_BUDGET = new S3RetryBudget();
 }
@@ -32,19 +32,62 @@
 package com.threerings.s3.pipe;
 
 import com.threerings.s3.client.acl.AccessControlList;
-import com.threerings.s3.client.S3ByteArrayObject;
+import com.threerings.s3.client.S3ByteBufferObject;
+import com.threerings.s3.client.S3ClientException;
 import com.threerings.s3.client.S3Connection;
 import com.threerings.s3.client.S3Exception;
 import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ObjectEntry;
+import com.threerings.s3.client.S3RetryingConnection;
 
+import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.IOException;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
 /*
  * Uploads streams as a series of S3Objects.
  * UploadStreams are re-usable, but not thread-safe.
  *
+ * Blocks are assigned sequential block ids in the order they are read, and
+ * up to parallelism blocks are uploaded concurrently. Block buffers are
+ * recycled through a BlockBufferPool sized for the QUEUE_SIZE blocks buffered
+ * by the reader, the parallelism blocks held by in-flight uploads, and the
+ * block being read, so memory use is strictly bounded by
+ * (QUEUE_SIZE + parallelism + 1) * blocksize. If the input is a regular file,
+ * blocks are instead mapped directly from the file (see QueuedStreamReader),
+ * and the pool goes unused.
+ *
+ * In adaptive mode, an AdaptiveBlockSizer picks each block's size from the
+ * observed upload throughput and failures, and the maximum block size takes
+ * the place of blocksize in the bound above. Each block records its stream
+ * offset and raw length in its metadata.
+ *
+ * If a BlockCodec is set, each block is compressed on its upload thread
+ * before being sent, into one of a further parallelism buffers. Blocks that
+ * do not compress are stored raw.
+ *
  * @todo Implement data blocking on a sub-object level. That is, each S3Object
  *  is composed of n number of blocks. This will allow us to checksum, compress,
  *  or PKE sign smaller blocks, refetching those blocks (using HTTP range support)
@@ -53,7 +96,7 @@ import java.nio.ByteBuffer;
  */
 class UploadStreamer {
     /*
-     * Instantiate a new stream uploader.
+     * Instantiate a new stream uploader that uploads one block at a time.
      * S3 transactions are expensive -- the block size should be large.
      * @param connect: S3 Connection.
      * @param bucket: Destination S3 bucket.
@@ -62,14 +105,55 @@ class UploadStreamer {
     public UploadStreamer (S3Connection connection, String bucket,
         int blocksize)
     {
+        this(connection, bucket, blocksize, 1);
+    }
+
+    /*
+     * Instantiate a new stream uploader.
+     * @param connect: S3 Connection.
+     * @param bucket: Destination S3 bucket.
+     * @param blocksize: Upload block size, in bytes.
+     * @param parallelism: Maximum number of concurrent block uploads.
+     */
+    public UploadStreamer (S3Connection connection, String bucket,
+        int blocksize, int parallelism)
+    {
+        this(connection, bucket, blocksize, parallelism, false);
+    }
+
+    /*
+     * Instantiate a new stream uploader.
+     * @param connect: S3 Connection.
+     * @param bucket: Destination S3 bucket.
+     * @param blocksize: Upload block size, in bytes.
+     * @param parallelism: Maximum number of concurrent block uploads.
+     * @param directBuffers: If true, blocks are buffered off-heap.
+     */
+    public UploadStreamer (S3Connection connection, String bucket,
+        int blocksize, int parallelism, boolean directBuffers)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+
         _connection = connection;
         _bucket = bucket;
         _blocksize = blocksize;
+        _parallelism = parallelism;
+        _directBuffers = directBuffers;
     }
 
 
     /**
      * Upload a stream, using the given streamName.
+     *
+     * The upload stops at the first block that fails to upload (after
+     * retries); reading of the input stream is halted, and outstanding block
+     * uploads are cancelled.
+     *
+     * Once every block has been uploaded, the stream is completed with its
+     * block manifest.
+     *
      * @param streamName: Arbitrary stream name.
      * @param inputData: Stream to upload.
      * @param retry: Number of times to retry failed S3 operations.
@@ -80,143 +164,645 @@ class UploadStreamer {
     public void upload (String streamName, InputStream inputData, int maxRetry)
         throws S3Exception, RemoteStreamException
     {
-        QueuedStreamReader reader;
-        Thread readerThread;
-        RemoteStream stream;
+        upload(streamName, inputData, maxRetry, false);
+    }
 
-        /* Create and start the stream reader. */
-        reader = new QueuedStreamReader(inputData, _blocksize, QUEUE_SIZE);
-        readerThread = new Thread(reader, streamName + " Queue");
-        readerThread.start();
 
-        /* Instantiate a stream reference and create the stream info record */
+    /**
+     * Upload a stream, using the given streamName, optionally resuming an
+     * earlier, interrupted upload of the same input.
+     *
+     * When resuming, the stream's committed blocks -- those preceding the
+     * first missing block id -- are retained. The input is advanced past
+     * them (by seeking, if it is a FileInputStream over a regular file), and
+     * the last committed blocks are read back from the input and verified
+     * against their stored ETags before uploading continues from the next
+     * block id. Blocks following the first missing block are left over from
+     * out-of-order parallel uploads, and are deleted. If the stream does
+     * not exist, it is created.
+     *
+     * @param streamName: Arbitrary stream name.
+     * @param inputData: Stream to upload.
+     * @param retry: Number of times to retry failed S3 operations.
+     * @param resume: If true, resume uploading an existing stream.
+     * @throws RemoteStreamException.StreamExistsException Thrown if the given stream
+     *  currently exists, and resume is false.
+     * @throws S3Exception Thrown if an S3 error occurs.
+     */
+    public void upload (final String streamName, InputStream inputData, int maxRetry,
+        boolean resume)
+        throws S3Exception, RemoteStreamException
+    {
+        final S3Connection connection = S3RetryHandler.wrap(_connection, maxRetry);
+        final AtomicReference<S3Exception> failure = new AtomicReference<S3Exception>();
+        final Semaphore uploadSlots = new Semaphore(_parallelism);
+        final Thread uploadThread = Thread.currentThread();
+        final Thread readerThread;
+        final BlockBufferPool pool;
+        final BlockBufferPool encodePool;
+        final AdaptiveBlockSizer sizer;
+        final int maxBlocksize;
+        ExecutorService uploaders;
+        final QueuedStreamReader reader;
+        RemoteStream stream;
+        ResumePoint start;
+        final BlockManifest manifest;
+        final AtomicLong uploaded = new AtomicLong();
+        MessageDigest streamDigest;
+        boolean interrupted = false;
+        long blocks = 0;
+
+        /* Instantiate a stream reference and create the stream info record,
+         * or find where the previous upload stopped. */
+        stream = new RemoteStream(connection, _bucket, streamName);
         try {
-            stream = new RemoteStream(_connection, _bucket, streamName);
-            createInfoRecord(stream, maxRetry);
+            if (resume) {
+                start = resumeStream(connection, stream, inputData);
+                if (start == null) {
+                    /* Nothing left to upload. */
+                    return;
+                }
+            } else {
+                createInfoRecord(stream);
+                start = new ResumePoint(0, 0, new BlockManifest());
+            }
         } catch (S3Exception s3e) {
             throw new RemoteStreamException("S3 failure creating stream info record for '" +
                 streamName + "': " + s3e.getMessage());      
         }
 
+        /* Record the uploaded blocks, and digest the stream if it is read in full. */
+        manifest = start.manifest;
+        streamDigest = (start.blockId == 0) ? newDigest("SHA-256") : null;
+
+        /* Set up adaptive block sizing. */
+        if (_maxBlocksize > 0) {
+            sizer = new AdaptiveBlockSizer(_blocksize, _minBlocksize, _maxBlocksize);
+            maxBlocksize = _maxBlocksize;
+        } else {
+            sizer = null;
+            maxBlocksize = _blocksize;
+        }
+
+        /* Create and start the stream reader. */
+        pool = new BlockBufferPool(maxBlocksize, QUEUE_SIZE + _parallelism + 1, _directBuffers);
+        reader = new QueuedStreamReader(inputData, maxBlocksize, QUEUE_SIZE, pool, sizer);
+        encodePool = (_codec != BlockCodec.NONE) ? new BlockBufferPool(maxBlocksize, _parallelism, false) : null;
+        readerThread = new Thread(reader, streamName + " Queue");
+        readerThread.start();
+
+        uploaders = Executors.newFixedThreadPool(_parallelism, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, streamName + " Upload " + _threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+            /** Thread id counter. */
+            private final AtomicInteger _threadId = new AtomicInteger();
+        });
+
         /*
-         * Read blocks off the queue, upload the block,
-         * and increment the block ID accordingly.
+         * Read blocks off the queue, assign each the next block ID, and hand
+         * it off to the uploaders, waiting for a free upload slot.
          */
         try {
-            ByteBuffer block;
-            long blockId = 0;
+            QueuedStreamReader.Block block;
+            long blockId = start.blockId;
+            long offset = start.offset;
 
-            while ((block = reader.readBlock()) != null) {
-                byte[] data;
-                int length;
-                
-                /*
-                 * Get access to the byte[] data.
-                 */
-                length = block.limit();
-                if (!block.hasArray()) {
-                    /* No backing array, copy the data. */
-                    data = new byte[length];
-                    block.get(data);
-                } else {
-                    /* Backing array, no copying required. */
-                    data = block.array();
+            while ((block = reader.readDigestedBlock()) != null) {
+                /* Digest the stream, in order. */
+                if (streamDigest != null) {
+                    streamDigest.update(block.getData().duplicate());
+                }
+
+                /* Wait for an upload slot. */
+                try {
+                    uploadSlots.acquire();
+                } catch (InterruptedException ie) {
+                    reader.releaseBlock(block);
+                    throw ie;
+                }
+
+                if (failure.get() != null) {
+                    uploadSlots.release();
+                    reader.releaseBlock(block);
+                    break;
                 }
 
                 /*
-                 * Upload the S3 Object.
+                 * Upload the block. The block is returned to the pool once
+                 * the upload has completed.
                  */
-                S3ByteArrayObject obj = new S3ByteArrayObject(
-                    stream.streamBlockKey(blockId), data, 0, length);
+                final QueuedStreamReader.Block data = block;
+                final String key = stream.streamBlockKey(blockId);
+                final long blockOffset = offset;
+                final long uploadId = blockId;
+                int length = data.getData().remaining();
 
-                try {
-                    uploadObject(obj, maxRetry);
-                } catch (S3Exception s3e) {
-                    System.err.println("S3 failure uploading '" +
-                        obj.getKey() + "': " + s3e.getMessage());
-                    readerThread.interrupt();
-                    throw s3e;
-                }
+                uploaders.execute(new Runnable() {
+                    public void run () {
+                        try {
+                            uploadBlock(connection, key, data, uploadId, blockOffset, manifest,
+                                encodePool, sizer);
+                            uploaded.incrementAndGet();
+                        } catch (S3Exception s3e) {
+                            /* Report the first failure, and stop reading. */
+                            if (failure.compareAndSet(null, s3e)) {
+                                System.err.println("S3 failure uploading '" +
+                                    key + "': " + s3e.getMessage());
+                                readerThread.interrupt();
+                                uploadThread.interrupt();
+                            }
+                        } finally {
+                            reader.releaseBlock(data);
+                            uploadSlots.release();
+                        }
+                    }
+                });
 
                 /*
-                 * Increment the block id.
+                 * Increment the block id and offset.
                  */
                 blockId++;
+                offset += length;
+                blocks++;
+            }
+
+            /* The reader stops early, leaving the interrupt status set, if we're interrupted. */
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            /* Wait for the outstanding uploads to complete. */
+            uploaders.shutdown();
+            while (!uploaders.awaitTermination(5, TimeUnit.SECONDS)) {
+                // Keep waiting
             }
         } catch (InterruptedException ie) {
-            // This will exit our loop, which is sufficient.
+            /* Thrown on upload failure, handled below. Otherwise we were
+             * interrupted; claim the failure, so that the cancelled uploads
+             * don't interrupt us in turn. */
+            interrupted = failure.compareAndSet(null,
+                new S3ClientException("Interrupted uploading stream", ie));
+        } finally {
+            /* Cancel any outstanding uploads. */
+            uploaders.shutdownNow();
+        }
+
+        if (interrupted) {
+            readerThread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new RemoteStreamException("Interrupted uploading stream '" + streamName + "'");
         }
 
         /* Check for error and exit */
+        if (failure.get() != null) {
+            readerThread.interrupt();
+
+            /* Clear an interrupt delivered by a failed uploader. */
+            Thread.interrupted();
+            throw failure.get();
+        }
+
         if (reader.getStreamError() != null) {
             throw new RemoteStreamException("Failure reading input stream: " + reader.getStreamError());
         }
+
+        /* Only a stream that was read and uploaded in full is complete. */
+        if (!reader.reachedEOF()) {
+            throw new RemoteStreamException("Input stream for '" + streamName + "' was not read in full");
+        }
+        if (uploaded.get() != blocks) {
+            throw new RemoteStreamException("Only " + uploaded.get() + " of " + blocks +
+                " blocks of '" + streamName + "' were uploaded");
+        }
+
+        /* Complete the stream with its block manifest. */
+        if (streamDigest != null) {
+            manifest.setStreamDigest(streamDigest.digest());
+        }
+        stream.putBlockManifest(manifest);
+    }
+
+    /**
+     * Set the codec used to compress blocks. Defaults to BlockCodec.NONE.
+     */
+    public void setCodec (BlockCodec codec) {
+        _codec = codec;
+    }
+
+
+    /**
+     * Enable adaptive block sizing. Block sizes start at the configured
+     * blocksize, and vary between the given bounds.
+     * @param minBlocksize: Minimum block size, in bytes.
+     * @param maxBlocksize: Maximum block size, in bytes.
+     */
+    public void setAdaptiveBlocksize (int minBlocksize, int maxBlocksize) {
+        if (minBlocksize < 1 || maxBlocksize < minBlocksize) {
+            throw new IllegalArgumentException("Invalid block size bounds: " + minBlocksize +
+                " - " + maxBlocksize);
+        }
+
+        _minBlocksize = minBlocksize;
+        _maxBlocksize = maxBlocksize;
+    }
+
+
+    /**
+     * Returns the block size recorded in the stream info record: the
+     * configured block size, or 0 if block sizes vary.
+     */
+    private int fixedBlocksize () {
+        return _maxBlocksize > 0 ? 0 : _blocksize;
+    }
+
+
+    /**
+     * Encode and upload a single block, recording it in the manifest once
+     * uploaded.
+     * @param offset: The block's offset within the stream.
+     * @param manifest: The stream's block manifest.
+     * @param encodePool: Pool of encoding buffers, or null if no codec is set.
+     * @param sizer: Block sizer to notify of the upload's performance, or null.
+     */
+    private void uploadBlock (S3Connection connection, String key,
+        QueuedStreamReader.Block block, long blockId, long offset, BlockManifest manifest,
+        BlockBufferPool encodePool, AdaptiveBlockSizer sizer)
+        throws S3Exception
+    {
+        Map<String,String> metadata = new HashMap<String,String>();
+        S3ByteBufferObject obj;
+        ByteBuffer encoded = null;
+        int length = block.getData().remaining();
+        long started;
+
+        /* Record the block's position within the stream. */
+        metadata.put(RemoteStream.BLOCK_KEY_OFFSET, Long.toString(offset));
+        metadata.put(RemoteStream.BLOCK_KEY_LENGTH, Integer.toString(length));
+
+        try {
+            if (encodePool != null) {
+                try {
+                    encoded = encodePool.acquire(length);
+                } catch (InterruptedException ie) {
+                    throw new S3ClientException.NetworkException("Interrupted awaiting encoding buffer", ie);
+                }
+            }
+
+            /* Compress the block if possible. Raw blocks use the digest computed by the reader. */
+            obj = _codec.createObject(key, block.getData(), block.getMD5(), encoded, metadata);
+
+            started = System.currentTimeMillis();
+            try {
+                connection.putObject(_bucket, obj, AccessControlList.StandardPolicy.PRIVATE);
+            } catch (S3Exception s3e) {
+                if (sizer != null) {
+                    sizer.uploadFailed();
+                }
+                throw s3e;
+            }
+            manifest.set(blockId, length, obj.getMD5());
+
+            /* Report the upload's performance. A block that needed retrying
+             * counts as a single failure. */
+            if (sizer != null) {
+                int attempts = (connection instanceof S3RetryingConnection) ?
+                    ((S3RetryingConnection)connection).getLastAttempts() : 1;
+                if (attempts > 1) {
+                    sizer.uploadFailed();
+                } else {
+                    sizer.blockUploaded(length, System.currentTimeMillis() - started);
+                }
+            }
+        } finally {
+            if (encoded != null) {
+                encodePool.release(encoded);
+            }
+        }
     }
 
+
     /**
      * Check if the stream exists, and if not, create the stream info record.
      * If the stream does exist, throw an exception -- streams are never
      * overwritten.
      */
-    private void createInfoRecord (RemoteStream stream, int maxRetry)
+    private void createInfoRecord (RemoteStream stream)
+        throws S3Exception, RemoteStreamException
+    {
+        /* Check if the stream exists */
+        if (stream.getStreamInfo() != null) {
+            throw new RemoteStreamException.StreamExistsException("Stream \"" +
+                stream.getStreamName() + "\" exits.");
+        }
+
+        /* Create the stream info record. */
+        stream.putStreamInfo(_codec, false, fixedBlocksize());
+    }
+
+
+    /**
+     * Find the point at which an interrupted upload stopped, and advance the
+     * input past the stream's committed blocks, verifying the last
+     * VERIFY_BLOCKS of them against the input. Returns null if the stream's
+     * upload already completed.
+     */
+    private ResumePoint resumeStream (S3Connection connection, RemoteStream stream,
+        InputStream input)
         throws S3Exception, RemoteStreamException
     {
-        S3RetryHandler retry = new S3RetryHandler(maxRetry);
-        S3Exception retryError = null;
+        SortedMap<Long,S3ObjectEntry> blocks;
+        RemoteStreamInfo info;
+        long committed;
+        long position;
+        long first;
+
+        /* Nothing to resume; start a new stream. */
+        info = stream.getStreamInfo();
+        if (info == null) {
+            stream.putStreamInfo(_codec, false, fixedBlocksize());
+            return new ResumePoint(0, 0, new BlockManifest());
+        }
+
+        if (info.isChunked()) {
+            throw new RemoteStreamException("Stream \"" + stream.getStreamName() +
+                "\" is chunked, and can not be resumed.");
+        }
+
+        /* Readers compute block offsets from a recorded block size. */
+        if (info.getBlockSize() > 0 && info.getBlockSize() != fixedBlocksize()) {
+            throw new RemoteStreamException("Stream \"" + stream.getStreamName() +
+                "\" was uploaded with a different block size, and can not be resumed.");
+        }
+
+        /* A stream with a block manifest was uploaded in full. */
+        if (stream.getBlockManifest() != null) {
+            System.err.println("Stream \"" + stream.getStreamName() + "\" is already complete.");
+            return null;
+        }
+
+        /* Find the committed blocks. */
+        blocks = stream.getBlocks();
+        for (committed = 0; blocks.containsKey(committed); committed++) {
+            // Count the contiguous blocks
+        }
 
-        do {
-            /* Log the last error. */
-            if (retryError != null) {
-                System.err.println("S3 error occured creating stream info record, retrying: " +
-                    retryError.getMessage());                    
+        /* Delete any blocks uploaded out of order. */
+        for (S3ObjectEntry entry : blocks.tailMap(committed).values()) {
+            connection.deleteObject(_bucket, entry.getKey());
+        }
+
+        /* Skip and verify the committed blocks. */
+        position = 0;
+        first = Math.max(0, committed - VERIFY_BLOCKS);
+        for (long blockId = first; blockId < committed; blockId++) {
+            S3ObjectEntry entry = blocks.get(blockId);
+            S3Object block = connection.getObjectMetadata(_bucket, entry.getKey());
+            Map<String,String> metadata = block.getMetadata();
+            String offsetString = metadata.get(RemoteStream.BLOCK_KEY_OFFSET);
+            String lengthString = metadata.get(RemoteStream.BLOCK_KEY_LENGTH);
+            long offset;
+            long length;
+
+            if (offsetString != null && lengthString != null) {
+                offset = Long.parseLong(offsetString);
+                length = Long.parseLong(lengthString);
+            } else if (info.getCodec() == BlockCodec.NONE &&
+                metadata.get(RemoteStream.BLOCK_KEY_CODEC) == null)
+            {
+                /* Blocks without position records are stored raw. */
+                offset = 0;
+                for (S3ObjectEntry preceding : blocks.headMap(blockId).values()) {
+                    offset += preceding.getSize();
+                }
+                length = entry.getSize();
+            } else {
+                throw new RemoteStreamException("Stream block " + blockId +
+                    " does not record its position, and can not be resumed.");
             }
 
             try {
-                /* Check if the stream exists */
-                if (stream.getStreamInfo() != null) {
-                    throw new RemoteStreamException.StreamExistsException("Stream \"" +
-                        stream.getStreamName() + "\" exits.");
+                if (blockId == first) {
+                    if (skipInput(input, offset) < offset) {
+                        throw new RemoteStreamException("Input ends before the uploaded stream.");
+                    }
+                    position = offset;
+                } else if (offset != position) {
+                    throw new RemoteStreamException("Stream block " + blockId + " is at offset " +
+                        offset + ", expected " + position + ".");
                 }
 
-                /* Create the stream info record. */
-                stream.putStreamInfo();
-                break;
-            } catch (S3Exception s3e) {
-                /* Let the retry handler check the exception */
-                retryError = s3e;
-                continue;
+                verifyBlock(connection, entry, block, input, length, blockId);
+                position += length;
+            } catch (IOException ioe) {
+                throw new RemoteStreamException("Failure reading input stream: " + ioe.getMessage(), ioe);
             }
-        } while (retry.shouldRetry(retryError));
+        }
+
+        if (committed > 0) {
+            System.err.println("Resuming stream \"" + stream.getStreamName() + "\" at block " +
+                committed + ", offset " + position + ".");
+        }
+
+        return new ResumePoint(committed, position,
+            describeBlocks(connection, info, blocks, committed));
     }
 
 
     /**
-     * Upload the S3 object, with a simple retry.
+     * Record a resumed stream's committed blocks in a new block manifest.
+     * Block lengths are given by the stream's fixed block size, by the sizes
+     * of raw blocks, or by the blocks' recorded lengths. The last committed
+     * block may be the stream's short final block, and is always measured.
      */
-    private void uploadObject (S3Object object, int maxRetry)
-        throws S3Exception
+    private BlockManifest describeBlocks (S3Connection connection, RemoteStreamInfo info,
+        SortedMap<Long,S3ObjectEntry> blocks, long committed)
+        throws S3Exception, RemoteStreamException
     {
-        S3RetryHandler retry = new S3RetryHandler(maxRetry);
-        S3Exception retryError = null;
+        BlockManifest manifest = new BlockManifest();
+
+        for (long blockId = 0; blockId < committed; blockId++) {
+            S3ObjectEntry entry = blocks.get(blockId);
+            long length;
 
-        do {
-            /* Log the last error. */
-            if (retryError != null) {
-                System.err.println("S3 failure uploading '" + object.getKey() + "', retrying: " + retryError);                   
+            if (info.getBlockSize() > 0 && blockId < committed - 1) {
+                length = info.getBlockSize();
+            } else if (info.getCodec() == BlockCodec.NONE) {
+                length = entry.getSize();
+            } else {
+                String recorded = connection.getObjectMetadata(_bucket, entry.getKey())
+                    .getMetadata().get(RemoteStream.BLOCK_KEY_LENGTH);
+                if (recorded == null) {
+                    throw new RemoteStreamException("Stream block " + blockId +
+                        " does not record its length, and can not be resumed.");
+                }
+                length = Long.parseLong(recorded);
             }
 
             try {
-                _connection.putObject(_bucket, object, AccessControlList.StandardPolicy.PRIVATE);                            
-            } catch (S3Exception e) {
-                /* Let the retry handler check the exception */
-                retryError = e;
-                continue;
+                manifest.set(blockId, (int)length, Hex.decodeHex(entry.getETag().toCharArray()));
+            } catch (DecoderException de) {
+                throw new RemoteStreamException("Stream block " + blockId + " has an invalid ETag: " +
+                    entry.getETag());
             }
-            break;
-        } while (retry.shouldRetry(retryError));
+        }
+
+        return manifest;
     }
 
 
+    /**
+     * Read a committed block's data from the input, and verify it against
+     * the block's ETag. Encoded blocks are fetched and decoded for
+     * comparison.
+     */
+    private void verifyBlock (S3Connection connection, S3ObjectEntry entry, S3Object block,
+        InputStream input, long length, long blockId)
+        throws S3Exception, RemoteStreamException, IOException
+    {
+        byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+        MessageDigest inputDigest = newDigest();
+        BlockCodec codec;
+        long remaining;
+
+        /* Digest the block's data from the input. */
+        remaining = length;
+        while (remaining > 0) {
+            int len = input.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (len < 0) {
+                throw new RemoteStreamException("Input ends within uploaded stream block " + blockId + ".");
+            }
+            inputDigest.update(buffer, 0, len);
+            remaining -= len;
+        }
+
+        codec = BlockCodec.forName(block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        if (codec == null) {
+            throw new RemoteStreamException("Stream block " + blockId + " codec is not supported: " +
+                block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        }
+
+        if (codec == BlockCodec.NONE) {
+            /* Raw blocks' ETags are the MD5 digest of their data. */
+            String digest = new String(Hex.encodeHex(inputDigest.digest()));
+            if (!digest.equalsIgnoreCase(entry.getETag())) {
+                throw new RemoteStreamException("Input does not match uploaded stream block " +
+                    blockId + ".");
+            }
+        } else {
+            /* Decode the stored block and compare its digest. */
+            MessageDigest blockDigest = newDigest();
+            InputStream decoded = codec.decode(connection.getObject(_bucket, entry.getKey()).getInputStream());
+            int len;
+
+            try {
+                while ((len = decoded.read(buffer)) >= 0) {
+                    blockDigest.update(buffer, 0, len);
+                }
+            } finally {
+                decoded.close();
+            }
+
+            if (!Arrays.equals(inputDigest.digest(), blockDigest.digest())) {
+                throw new RemoteStreamException("Input does not match uploaded stream block " +
+                    blockId + ".");
+            }
+        }
+    }
+
+
+    /**
+     * Skip count bytes of input, seeking if the input is a regular file.
+     * @return The number of bytes skipped, less than count if end-of-file
+     *  was reached.
+     */
+    static long skipInput (InputStream input, long count)
+        throws IOException
+    {
+        byte[] buffer;
+        long skipped;
+
+        if (input instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream)input).getChannel();
+            long position;
+
+            try {
+                position = channel.position();
+            } catch (IOException ioe) {
+                /* Not seekable (eg, a pipe); read through instead. */
+                position = -1;
+            }
+
+            if (position >= 0) {
+                long target = Math.min(position + count, Math.max(position, channel.size()));
+                channel.position(target);
+                return target - position;
+            }
+        }
+
+        buffer = new byte[VERIFY_BUFFER_SIZE];
+        skipped = 0;
+        while (skipped < count) {
+            int len = input.read(buffer, 0, (int)Math.min(buffer.length, count - skipped));
+            if (len < 0) {
+                break;
+            }
+            skipped += len;
+        }
+
+        return skipped;
+    }
+
+
+    /**
+     * Return a new MD5 digest.
+     */
+    private static MessageDigest newDigest () {
+        return newDigest("md5");
+    }
+
+
+    /**
+     * Return a new digest of the given algorithm.
+     */
+    private static MessageDigest newDigest (String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsa) {
+            /* This should never be missing. */
+            throw new RuntimeException("Missing " + algorithm + " algorithm!", nsa);
+        }
+    }
+
+
+    /** The block id and stream offset at which an upload begins. */
+    private static class ResumePoint {
+        public ResumePoint (long blockId, long offset, BlockManifest manifest) {
+            this.blockId = blockId;
+            this.offset = offset;
+            this.manifest = manifest;
+        }
+
+        /** First block id. */
+        public final long blockId;
+
+        /** Stream offset. */
+        public final long offset;
+
+        /** Manifest of the committed blocks. */
+        public final BlockManifest manifest;
+    }
+
+
+    /** Number of committed blocks verified when resuming. */
+    private static final int VERIFY_BLOCKS = 2;
+
+    /** Read buffer size used when skipping and verifying input. */
+    private static final int VERIFY_BUFFER_SIZE = 64 * 1024;
+
     /** Queue size. */
     private static final int QUEUE_SIZE = 4;
 
@@ -228,4 +814,19 @@ class UploadStreamer {
 
     /** Read block size. */
     private final int _blocksize;
+
+    /** Maximum number of concurrent block uploads. */
+    private final int _parallelism;
+
+    /** Use direct (off-heap) block buffers? */
+    private final boolean _directBuffers;
+
+    /** Block codec. */
+    private BlockCodec _codec = BlockCodec.NONE;
+
+    /** Minimum adaptive block size, in bytes. */
+    private int _minBlocksize;
+
+    /** Maximum adaptive block size, in bytes, or 0 if adaptive sizing is disabled. */
+    private int _maxBlocksize;
 }
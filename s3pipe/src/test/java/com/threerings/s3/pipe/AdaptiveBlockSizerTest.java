@@ -0,0 +1,137 @@
+/* 
+ * AdaptiveBlockSizerTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.util.Arrays;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AdaptiveBlockSizerTest {
+    @Test
+    public void testGrowOnFastUploads () {
+        AdaptiveBlockSizer sizer = new AdaptiveBlockSizer(MB, MB, 16 * MB);
+
+        /* 1MB in 10ms is far quicker than the target; each block doubles the size. */
+        sizer.blockUploaded(MB, 10);
+        assertEquals(2 * MB, sizer.getBlockSize());
+        sizer.blockUploaded(2 * MB, 10);
+        assertEquals(4 * MB, sizer.getBlockSize());
+
+        for (int i = 0; i < 10; i++) {
+            sizer.blockUploaded(sizer.getBlockSize(), 10);
+        }
+        assertEquals(16 * MB, sizer.getBlockSize());
+    }
+
+    @Test
+    public void testShrinkOnSlowUploads () {
+        AdaptiveBlockSizer sizer = new AdaptiveBlockSizer(8 * MB, MB, 16 * MB);
+
+        /* 8MB in 64 seconds; halve the size. */
+        sizer.blockUploaded(8 * MB, 64000);
+        assertEquals(4 * MB, sizer.getBlockSize());
+
+        for (int i = 0; i < 10; i++) {
+            sizer.blockUploaded(sizer.getBlockSize(), 64000);
+        }
+        assertEquals(MB, sizer.getBlockSize());
+    }
+
+    @Test
+    public void testShrinkOnFailure () {
+        AdaptiveBlockSizer sizer = new AdaptiveBlockSizer(8 * MB, MB, 16 * MB);
+        sizer.uploadFailed();
+        assertEquals(4 * MB, sizer.getBlockSize());
+        sizer.uploadFailed();
+        sizer.uploadFailed();
+        sizer.uploadFailed();
+        assertEquals(MB, sizer.getBlockSize());
+    }
+
+    @Test
+    public void testShortBlocksIgnored () {
+        AdaptiveBlockSizer sizer = new AdaptiveBlockSizer(8 * MB, MB, 16 * MB);
+        sizer.blockUploaded(100, 1000);
+        assertEquals(8 * MB, sizer.getBlockSize());
+    }
+
+    @Test
+    public void testInitialSizeClamped () {
+        assertEquals(MB, new AdaptiveBlockSizer(1, MB, 2 * MB).getBlockSize());
+        assertEquals(2 * MB, new AdaptiveBlockSizer(64 * MB, MB, 2 * MB).getBlockSize());
+    }
+
+    @Test
+    public void testAdaptiveUpload ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(256 * 1024);
+
+        UploadStreamer uploader = new UploadStreamer(conn, "bucket", 4096, 2);
+        uploader.setAdaptiveBlocksize(1024, 64 * 1024);
+        uploader.upload("test stream", new ByteArrayInputStream(data), 0);
+
+        /* Blocks grew, and recorded their offsets and lengths. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        long offset = 0;
+        int maxLength = 0;
+        for (long blockId = 0; ; blockId++) {
+            S3Object block = conn.getObjects().get(stream.streamBlockKey(blockId));
+            if (block == null) {
+                break;
+            }
+
+            int length = Integer.parseInt(block.getMetadata().get(RemoteStream.BLOCK_KEY_LENGTH));
+            assertEquals(offset, Long.parseLong(block.getMetadata().get(RemoteStream.BLOCK_KEY_OFFSET)));
+            assertEquals(block.length(), length);
+            offset += length;
+            maxLength = Math.max(maxLength, length);
+        }
+        assertEquals(data.length, offset);
+        assertTrue(maxLength > 4096);
+
+        /* The stream downloads as usual. */
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new DownloadStreamer(conn, "bucket").download("test stream", output, 0);
+        assertTrue(Arrays.equals(data, output.toByteArray()));
+    }
+
+    /** One megabyte. */
+    protected static final int MB = 1024 * 1024;
+}
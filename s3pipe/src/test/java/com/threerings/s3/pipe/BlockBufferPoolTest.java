@@ -0,0 +1,143 @@
+/* 
+ * BlockBufferPoolTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BlockBufferPoolTest {
+    @Test
+    public void testRecycle ()
+        throws Exception
+    {
+        BlockBufferPool pool = new BlockBufferPool(16, 2, false);
+
+        ByteBuffer b1 = pool.acquire();
+        ByteBuffer b2 = pool.acquire();
+        assertNotSame(b1, b2);
+        assertEquals(2, pool.getAllocated());
+        assertEquals(16, b1.capacity());
+
+        /* Released buffers are cleared and reused. */
+        b1.put((byte)1);
+        b1.flip();
+        pool.release(b1);
+
+        ByteBuffer b3 = pool.acquire();
+        assertSame(b1, b3);
+        assertEquals(0, b3.position());
+        assertEquals(16, b3.limit());
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void testSizedBuffers ()
+        throws Exception
+    {
+        BlockBufferPool pool = new BlockBufferPool(16, 2, false);
+
+        /* Buffers are allocated at the requested size. */
+        ByteBuffer b1 = pool.acquire(4);
+        assertEquals(4, b1.capacity());
+        pool.release(b1);
+        assertSame(b1, pool.acquire(2));
+        pool.release(b1);
+
+        /* A free buffer that is too small is replaced. */
+        ByteBuffer b2 = pool.acquire(8);
+        assertEquals(8, b2.capacity());
+        assertEquals(1, pool.getAllocated());
+
+        try {
+            pool.acquire(32);
+            fail("Acquired a buffer larger than the block size");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBounded ()
+        throws Exception
+    {
+        final BlockBufferPool pool = new BlockBufferPool(16, 1, true);
+        final ByteBuffer b1 = pool.acquire();
+        assertTrue(b1.isDirect());
+
+        /* Release the buffer from another thread, once we're blocked. */
+        Thread releaser = new Thread() {
+            @Override
+            public void run () {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                pool.release(b1);
+            }
+        };
+        releaser.start();
+
+        assertSame(b1, pool.acquire());
+        assertEquals(1, pool.getAllocated());
+        releaser.join();
+    }
+
+    @Test
+    public void testPooledReader ()
+        throws Exception
+    {
+        BlockBufferPool pool = new BlockBufferPool(4, 2, true);
+        byte[] data = ParallelUploadTest.testData(10);
+        QueuedStreamReader reader = new QueuedStreamReader(
+            new ByteArrayInputStream(data), 4, 1, pool);
+        new Thread(reader).start();
+
+        /* Each block must be released before a third can be read. */
+        int offset = 0;
+        ByteBuffer block;
+        while ((block = reader.readBlock()) != null) {
+            while (block.hasRemaining()) {
+                assertEquals(data[offset++], block.get());
+            }
+            pool.release(block);
+        }
+        assertEquals(data.length, offset);
+
+        /* The consumer may release a block before the reader needs another. */
+        assertTrue(pool.getAllocated() <= 2);
+    }
+}
@@ -0,0 +1,149 @@
+/* 
+ * BlockCodecTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BlockCodecTest {
+    @Test
+    public void testRoundTrip ()
+        throws Exception
+    {
+        byte[] data = compressibleData(100 * 1024);
+        ByteBuffer encoded = ByteBuffer.allocate(data.length);
+
+        for (BlockCodec codec : new BlockCodec[] { BlockCodec.DEFLATE, BlockCodec.DEFLATE_FAST }) {
+            assertTrue(codec.encode(ByteBuffer.wrap(data), encoded));
+            assertTrue(encoded.remaining() < data.length / 4);
+
+            byte[] decoded = IOUtils.toByteArray(codec.decode(new ByteArrayInputStream(
+                encoded.array(), 0, encoded.limit())));
+            assertTrue(Arrays.equals(data, decoded));
+        }
+    }
+
+    @Test
+    public void testDirectInput ()
+        throws Exception
+    {
+        byte[] data = compressibleData(200 * 1024);
+        ByteBuffer input = ByteBuffer.allocateDirect(data.length);
+        ByteBuffer encoded = ByteBuffer.allocate(data.length);
+        input.put(data);
+        input.flip();
+
+        assertTrue(BlockCodec.DEFLATE.encode(input, encoded));
+        assertEquals(0, input.position());
+
+        byte[] decoded = IOUtils.toByteArray(BlockCodec.DEFLATE.decode(new ByteArrayInputStream(
+            encoded.array(), 0, encoded.limit())));
+        assertTrue(Arrays.equals(data, decoded));
+    }
+
+    @Test
+    public void testIncompressible ()
+        throws Exception
+    {
+        byte[] data = new byte[64 * 1024];
+        new Random(42).nextBytes(data);
+
+        assertFalse(BlockCodec.DEFLATE.encode(ByteBuffer.wrap(data), ByteBuffer.allocate(data.length)));
+        assertFalse(BlockCodec.NONE.encode(ByteBuffer.wrap(data), ByteBuffer.allocate(data.length)));
+    }
+
+    @Test
+    public void testForName () {
+        assertEquals(BlockCodec.NONE, BlockCodec.forName(null));
+        assertEquals(BlockCodec.DEFLATE, BlockCodec.forName(BlockCodec.DEFLATE_FAST.getName()));
+        assertNull(BlockCodec.forName("lzma"));
+    }
+
+    @Test
+    public void testCompressedStream ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] raw = new byte[BLOCK_SIZE];
+        new Random(42).nextBytes(raw);
+
+        /* Two compressible blocks, one incompressible block, and a short tail. */
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(compressibleData(BLOCK_SIZE * 2));
+        input.write(raw);
+        input.write(compressibleData(100));
+        byte[] data = input.toByteArray();
+
+        UploadStreamer uploader = new UploadStreamer(conn, "bucket", BLOCK_SIZE, 2);
+        uploader.setCodec(BlockCodec.DEFLATE_FAST);
+        uploader.upload("test stream", new ByteArrayInputStream(data), 0);
+
+        /* Only compressible blocks are compressed. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        S3Object block = conn.getObject("bucket", stream.streamBlockKey(0));
+        assertEquals("deflate", block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        assertTrue(block.length() < BLOCK_SIZE);
+        block = conn.getObject("bucket", stream.streamBlockKey(2));
+        assertNull(block.getMetadata().get(RemoteStream.BLOCK_KEY_CODEC));
+        assertEquals(BLOCK_SIZE, block.length());
+        assertEquals(BlockCodec.DEFLATE, stream.getStreamInfo().getCodec());
+
+        /* The stream is decoded transparently. */
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new DownloadStreamer(conn, "bucket").download("test stream", output, 0);
+        assertTrue(Arrays.equals(data, output.toByteArray()));
+    }
+
+    protected static byte[] compressibleData (int length) {
+        byte[] data = new byte[length];
+        byte[] text = "INSERT INTO backups VALUES (42, 'compressible');\n".getBytes();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = text[i % text.length];
+        }
+        return data;
+    }
+
+    /** Test block size. */
+    protected static final int BLOCK_SIZE = 16 * 1024;
+}
@@ -0,0 +1,292 @@
+/* 
+ * BlockManifestTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.nio.channels.SeekableByteChannel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BlockManifestTest {
+    @Test
+    public void testSerialize ()
+        throws Exception
+    {
+        BlockManifest manifest = new BlockManifest();
+        byte[] digest = new byte[32];
+        Arrays.fill(digest, (byte)7);
+
+        /* Blocks may be recorded out of order. */
+        manifest.set(1, 200, md5(1));
+        manifest.set(0, 100, md5(0));
+        manifest.set(2, 50, md5(2));
+        manifest.setStreamDigest(digest);
+
+        /* Header, three 20 byte entries, and the stream digest. */
+        byte[] data = manifest.toByteArray();
+        assertEquals(10 + 3 * 20 + 32, data.length);
+
+        BlockManifest read = BlockManifest.read(new ByteArrayInputStream(data));
+        assertEquals(3, read.getBlockCount());
+        assertEquals(350, read.getLength());
+        assertEquals(100, read.getOffset(1));
+        assertEquals(200, read.getEntry(1).getLength());
+        assertArrayEquals(md5(2), read.getEntry(2).getMD5());
+        assertArrayEquals(digest, read.getStreamDigest());
+
+        /* Offsets map to blocks. */
+        assertEquals(0, read.findBlock(0));
+        assertEquals(0, read.findBlock(99));
+        assertEquals(1, read.findBlock(100));
+        assertEquals(2, read.findBlock(349));
+        assertEquals(-1, read.findBlock(350));
+
+        /* The stream digest is optional. */
+        manifest.setStreamDigest(null);
+        read = BlockManifest.read(new ByteArrayInputStream(manifest.toByteArray()));
+        assertNull(read.getStreamDigest());
+        assertEquals(3, read.getBlockCount());
+    }
+
+    @Test
+    public void testInvalid ()
+        throws Exception
+    {
+        BlockManifest manifest = new BlockManifest();
+        manifest.set(0, 100, md5(0));
+        byte[] data = manifest.toByteArray();
+
+        /* Truncated */
+        try {
+            BlockManifest.read(new ByteArrayInputStream(data, 0, data.length - 1));
+            fail("Read a truncated manifest");
+        } catch (RemoteStreamException.InvalidInfoRecordException e) {
+            // Expected
+        }
+
+        /* Bad magic */
+        data[0] = 'X';
+        try {
+            BlockManifest.read(new ByteArrayInputStream(data));
+            fail("Read an invalid manifest");
+        } catch (RemoteStreamException.InvalidInfoRecordException e) {
+            // Expected
+        }
+
+        /* Missing blocks can't be written. */
+        manifest.set(2, 100, md5(2));
+        try {
+            manifest.toByteArray();
+            fail("Wrote an incomplete manifest");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUpload ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = BlockCodecTest.compressibleData(BLOCK_SIZE * 10 + 7);
+        UploadStreamer uploader = new UploadStreamer(conn, "bucket", BLOCK_SIZE, 4);
+        uploader.setCodec(BlockCodec.DEFLATE);
+        uploader.upload("test stream", new ByteArrayInputStream(data), 0);
+
+        /* The manifest lists every block, and the stream digest. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        BlockManifest manifest = stream.getBlockManifest();
+        assertEquals(RemoteStream.VERSION, stream.getStreamInfo().getVersion());
+        assertEquals(11, manifest.getBlockCount());
+        assertEquals(data.length, manifest.getLength());
+        for (int i = 0; i < 11; i++) {
+            assertArrayEquals(conn.getObjects().get(stream.streamBlockKey(i)).getMD5(),
+                manifest.getEntry(i).getMD5());
+        }
+        assertNotNull(manifest.getStreamDigest());
+
+        assertArrayEquals(data, download(conn, 1));
+        assertArrayEquals(data, download(conn, 4));
+    }
+
+    @Test
+    public void testResume ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(data), 0);
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        BlockManifest complete = stream.getBlockManifest();
+
+        /* Interrupt the upload after block 4. */
+        for (int i = 5; i <= 10; i++) {
+            conn.deleteObject("bucket", stream.streamBlockKey(i));
+        }
+        conn.deleteObject("bucket", stream.blockManifestKey());
+
+        /* The resumed upload lists the committed blocks, but can't digest the stream. */
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(data), 0, true);
+        BlockManifest resumed = stream.getBlockManifest();
+        assertNull(resumed.getStreamDigest());
+        complete.setStreamDigest(null);
+        assertArrayEquals(complete.toByteArray(), resumed.toByteArray());
+    }
+
+    @Test
+    public void testMissingBlock ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(data), 0);
+
+        /* Without a manifest, the stream would end at the missing block. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        conn.deleteObject("bucket", stream.streamBlockKey(3));
+        for (int prefetch = 1; prefetch <= 4; prefetch += 3) {
+            try {
+                download(conn, prefetch);
+                fail("Downloaded a stream with a missing block");
+            } catch (RemoteStreamException e) {
+                assertEquals("S3 block 3 is missing.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testStreamDigest ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(data), 0);
+
+        /* Record the wrong stream digest. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        BlockManifest manifest = stream.getBlockManifest();
+        manifest.setStreamDigest(new byte[32]);
+        stream.putBlockManifest(manifest);
+
+        for (int prefetch = 1; prefetch <= 4; prefetch += 3) {
+            try {
+                download(conn, prefetch);
+                fail("Downloaded a stream with an invalid digest");
+            } catch (RemoteStreamException e) {
+                assertEquals("Stream \"test stream\" digest invalid.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testVersion1 ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(data), 0);
+
+        /* Rewrite the stream as version 1, without a manifest. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        S3Object info = conn.getObjects().get(stream.streamInfoKey());
+        Map<String,String> metadata = new HashMap<String,String>(info.getMetadata());
+        metadata.put("version", "1");
+        info.setMetadata(metadata);
+        conn.deleteObject("bucket", stream.blockManifestKey());
+
+        assertEquals(1, stream.getStreamInfo().getVersion());
+        assertArrayEquals(data, download(conn, 1));
+        assertArrayEquals(data, download(conn, 4));
+
+        SeekableByteChannel channel = stream.openChannel();
+        assertEquals(data.length, channel.size());
+        channel.close();
+    }
+
+    @Test
+    public void testUnsupportedVersion ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        stream.putStreamInfo();
+
+        S3Object info = conn.getObjects().get(stream.streamInfoKey());
+        Map<String,String> metadata = new HashMap<String,String>(info.getMetadata());
+        metadata.put("version", Integer.toString(RemoteStream.VERSION + 1));
+        info.setMetadata(metadata);
+
+        try {
+            stream.getStreamInfo();
+            fail("Read an unsupported stream version");
+        } catch (RemoteStreamException.UnsupportedVersionException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Download the test stream with the given prefetch window.
+     */
+    protected static byte[] download (MemoryConnection conn, int prefetch)
+        throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new DownloadStreamer(conn, "bucket", prefetch).download("test stream", output, 0);
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns a distinct 16 byte digest.
+     */
+    protected static byte[] md5 (int seed) {
+        byte[] md5 = new byte[16];
+        Arrays.fill(md5, (byte)seed);
+        return md5;
+    }
+
+    /** Test block size. */
+    private static final int BLOCK_SIZE = 8 * 1024;
+}
@@ -0,0 +1,138 @@
+/* 
+ * ChannelOutputStreamTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ChannelOutputStreamTest {
+    @Test
+    public void testWrites ()
+        throws Exception
+    {
+        byte[] data = ParallelUploadTest.testData(100 * 1024);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        ChannelOutputStream output = new ChannelOutputStream(new PartialChannel(written), 4096);
+
+        /* Mix single bytes, small and large arrays, and heap and direct buffers. */
+        output.write(data[0]);
+        output.write(data, 1, 99);
+        output.write(data, 100, 20000);
+        output.write(ByteBuffer.wrap(data, 20100, 100));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(10000);
+        direct.put(data, 20200, 10000);
+        direct.flip();
+        output.write(direct);
+        assertFalse(direct.hasRemaining());
+
+        output.write(data, 30200, data.length - 30200);
+
+        /* Nothing past the last full buffer is written until flushed. */
+        assertTrue(written.size() < data.length);
+        output.flush();
+        assertArrayEquals(data, written.toByteArray());
+    }
+
+    @Test
+    public void testFileChannel ()
+        throws Exception
+    {
+        byte[] data = ParallelUploadTest.testData(3 * 1024 * 1024 + 7);
+        File file = File.createTempFile("s3pipe", ".out");
+        try {
+            ChannelOutputStream output = new ChannelOutputStream(
+                new FileOutputStream(file).getChannel());
+            output.write(data);
+            output.close();
+
+            assertArrayEquals(data, FileUtils.readFileToByteArray(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDownload ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(8 * 1024 * 10 + 7);
+        new UploadStreamer(conn, "bucket", 8 * 1024).upload("test stream", new ByteArrayInputStream(data), 0);
+
+        /* Downloads flush their output once complete. */
+        for (int prefetch = 1; prefetch <= 4; prefetch += 3) {
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            ChannelOutputStream output = new ChannelOutputStream(Channels.newChannel(written));
+            new DownloadStreamer(conn, "bucket", prefetch).download("test stream", output, 0);
+            assertArrayEquals(data, written.toByteArray());
+        }
+    }
+
+    /**
+     * A channel that accepts at most 1000 bytes per write.
+     */
+    protected static class PartialChannel implements WritableByteChannel {
+        public PartialChannel (ByteArrayOutputStream output) {
+            _output = output;
+        }
+
+        public int write (ByteBuffer src) {
+            byte[] data = new byte[Math.min(src.remaining(), 1000)];
+            src.get(data);
+            _output.write(data, 0, data.length);
+            return data.length;
+        }
+
+        public boolean isOpen () {
+            return true;
+        }
+
+        public void close () {
+            // Nothing to do.
+        }
+
+        /** Written data. */
+        protected final ByteArrayOutputStream _output;
+    }
+}
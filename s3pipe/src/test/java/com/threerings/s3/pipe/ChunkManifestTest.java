@@ -0,0 +1,69 @@
+/* 
+ * ChunkManifestTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ChunkManifestTest {
+    @Test
+    public void testIndexOf ()
+        throws Exception
+    {
+        ChunkManifest manifest = new ChunkManifest();
+        manifest.add("a", 100);
+        manifest.add("b", 50);
+        manifest.add("c", 200);
+
+        assertEquals(0, manifest.indexOf(0));
+        assertEquals(0, manifest.indexOf(99));
+        assertEquals(1, manifest.indexOf(100));
+        assertEquals(1, manifest.indexOf(149));
+        assertEquals(2, manifest.indexOf(150));
+        assertEquals(2, manifest.indexOf(349));
+        assertEquals(-1, manifest.indexOf(350));
+        assertEquals(-1, manifest.indexOf(-1));
+        assertEquals(150, manifest.getOffset(2));
+
+        /* Offsets follow additions. */
+        manifest.add("d", 10);
+        assertEquals(3, manifest.indexOf(350));
+        assertEquals(350, manifest.getOffset(3));
+
+        /* A parsed manifest locates its chunks. */
+        manifest = ChunkManifest.read(new ByteArrayInputStream(manifest.toByteArray()));
+        assertEquals(2, manifest.indexOf(200));
+        assertEquals(-1, manifest.indexOf(360));
+    }
+}
@@ -0,0 +1,260 @@
+/* 
+ * ChunkedUploadStreamerTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.acl.AccessControlList;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ServerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ChunkedUploadStreamerTest {
+    @Test
+    public void testChunkBoundaries ()
+        throws Exception
+    {
+        byte[] data = randomData(1024 * 1024, 1);
+        List<Integer> lengths = chunkLengths(data);
+
+        /* Chunks are within bounds, and cover the stream. */
+        int total = 0;
+        for (int i = 0; i < lengths.size(); i++) {
+            int length = lengths.get(i);
+            assertTrue(length <= 64 * 1024);
+            if (i < lengths.size() - 1) {
+                assertTrue(length >= 4 * 1024);
+            }
+            total += length;
+        }
+        assertEquals(data.length, total);
+        assertTrue(lengths.size() > 8);
+
+        /* Inserting data near the start leaves later boundaries intact. */
+        byte[] shifted = new byte[data.length + 100];
+        System.arraycopy(data, 0, shifted, 0, 1000);
+        System.arraycopy(data, 1000, shifted, 1100, data.length - 1000);
+        List<Integer> shiftedLengths = chunkLengths(shifted);
+        assertEquals(lengths.subList(lengths.size() - 5, lengths.size()),
+            shiftedLengths.subList(shiftedLengths.size() - 5, shiftedLengths.size()));
+    }
+
+    @Test
+    public void testShortReads ()
+        throws Exception
+    {
+        byte[] data = randomData(1024 * 1024, 5);
+
+        /* Boundaries don't depend on how the input is delivered. */
+        InputStream input = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override // From FilterInputStream
+            public int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+        assertEquals(chunkLengths(data), chunkLengths(input));
+    }
+
+    @Test
+    public void testDedupUpload ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = randomData(512 * 1024, 2);
+
+        /* Upload a stream, then a modified copy of it. */
+        ChunkedUploadStreamer uploader = new ChunkedUploadStreamer(conn, "bucket", 16 * 1024, 4);
+        uploader.upload("first", new ByteArrayInputStream(data), 0);
+        assertEquals(uploader.getChunkCount(), uploader.getUploadedChunkCount());
+        assertEquals(data.length, uploader.getUploadedBytes());
+
+        byte[] modified = data.clone();
+        modified[data.length / 2] ^= 0xFF;
+        uploader.upload("second", new ByteArrayInputStream(modified), 0);
+
+        /* Only the modified chunk (or two) were uploaded again. */
+        assertTrue(uploader.getUploadedChunkCount() <= 2);
+        assertTrue(uploader.getUploadedBytes() < data.length / 4);
+
+        assertTrue(Arrays.equals(data, download(conn, "first")));
+        assertTrue(Arrays.equals(modified, download(conn, "second")));
+    }
+
+    @Test
+    public void testLocalIndex ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = randomData(128 * 1024, 3);
+        File indexFile = File.createTempFile("s3pipe", "index");
+
+        try {
+            indexFile.delete();
+
+            ChunkIndex index = new ChunkIndex(indexFile);
+            ChunkedUploadStreamer uploader = new ChunkedUploadStreamer(conn, "bucket", 16 * 1024, 2);
+            uploader.setCodec(BlockCodec.DEFLATE);
+            uploader.setIndex(index);
+            uploader.upload("first", new ByteArrayInputStream(data), 0);
+            index.close();
+
+            /* The reloaded index knows every chunk. */
+            index = new ChunkIndex(indexFile);
+            assertEquals(index.size(), conn.getObjects().size() - 2);
+            index.close();
+
+            assertTrue(Arrays.equals(data, download(conn, "first")));
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testIncompleteStream ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        new RemoteStream(conn, "bucket", "partial").putStreamInfo(BlockCodec.NONE, true);
+
+        try {
+            download(conn, "partial");
+            fail("Downloaded a stream without a manifest");
+        } catch (RemoteStreamException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testInterruptFails ()
+        throws Exception
+    {
+        final CountDownLatch uploading = new CountDownLatch(1);
+        MemoryConnection conn = new MemoryConnection() {
+            @Override // From MemoryConnection
+            public void putObject (String bucketName, S3Object object,
+                AccessControlList.StandardPolicy accessPolicy, Map<String,String> headers)
+                throws S3Exception
+            {
+                /* Chunk uploads never complete. */
+                if (object.getKey().startsWith("chunk.")) {
+                    uploading.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ie) {
+                        throw new S3ServerException.RequestTimeoutException("Interrupted", null, null);
+                    }
+                }
+                super.putObject(bucketName, object, accessPolicy, headers);
+            }
+        };
+        final Thread uploadThread = Thread.currentThread();
+
+        /* Interrupt the upload while it waits for the first chunk's upload. */
+        Thread interrupter = new Thread() {
+            public void run () {
+                try {
+                    uploading.await();
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                uploadThread.interrupt();
+            }
+        };
+        interrupter.start();
+
+        ChunkedUploadStreamer uploader = new ChunkedUploadStreamer(conn, "bucket", 16 * 1024, 1);
+        try {
+            uploader.upload("first", new ByteArrayInputStream(randomData(512 * 1024, 4)), 0);
+            fail("Interrupted upload did not fail");
+        } catch (RemoteStreamException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            interrupter.join();
+        }
+
+        /* The stream was left incomplete. */
+        assertNull(new RemoteStream(conn, "bucket", "first").getManifest());
+    }
+
+    protected static List<Integer> chunkLengths (byte[] data)
+        throws Exception
+    {
+        return chunkLengths(new ByteArrayInputStream(data));
+    }
+
+    protected static List<Integer> chunkLengths (InputStream input)
+        throws Exception
+    {
+        ContentChunker chunker = new ContentChunker(input, 4 * 1024, 16 * 1024, 64 * 1024);
+        ByteBuffer chunk = ByteBuffer.allocate(chunker.getMaxSize());
+        List<Integer> lengths = new ArrayList<Integer>();
+
+        while (chunker.nextChunk(chunk)) {
+            lengths.add(chunk.remaining());
+        }
+        return lengths;
+    }
+
+    protected static byte[] download (MemoryConnection conn, String streamName)
+        throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new DownloadStreamer(conn, "bucket").download(streamName, output, 0);
+        return output.toByteArray();
+    }
+
+    protected static byte[] randomData (int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
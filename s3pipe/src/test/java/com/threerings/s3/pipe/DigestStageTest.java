@@ -0,0 +1,82 @@
+/* 
+ * DigestStageTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.security.MessageDigest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DigestStageTest {
+    @Test
+    public void testDigest ()
+        throws Exception
+    {
+        DigestStage stage = new DigestStage("md5", "Test Digest");
+        byte[] data = ParallelUploadTest.testData(1024 * 1024);
+
+        try {
+            /* Digest the data in more pieces than may be queued at once. */
+            for (int offset = 0; offset < data.length; offset += 1000) {
+                stage.update(data, offset, Math.min(1000, data.length - offset));
+            }
+            assertArrayEquals(MessageDigest.getInstance("md5").digest(data), stage.digest());
+
+            /* The digest is reset. */
+            stage.update(data, 0, 10);
+            MessageDigest md = MessageDigest.getInstance("md5");
+            md.update(data, 0, 10);
+            assertArrayEquals(md.digest(), stage.digest());
+        } finally {
+            stage.close();
+        }
+    }
+
+    @Test
+    public void testCopiesData ()
+        throws Exception
+    {
+        DigestStage stage = new DigestStage("SHA-256", "Test Digest");
+        byte[] data = ParallelUploadTest.testData(64);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+        try {
+            /* Changes made after update() are not digested. */
+            byte[] buffer = data.clone();
+            stage.update(buffer, 0, buffer.length);
+            buffer[0]++;
+            assertArrayEquals(expected, stage.digest());
+        } finally {
+            stage.close();
+        }
+    }
+}
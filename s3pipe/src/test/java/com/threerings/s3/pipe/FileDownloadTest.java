@@ -0,0 +1,284 @@
+/* 
+ * FileDownloadTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3ByteBufferObject;
+import com.threerings.s3.client.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FileDownloadTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _conn = new MemoryConnection();
+        _data = ParallelUploadTest.testData(BLOCK_SIZE * 20 + 7);
+        _target = File.createTempFile("s3pipe", ".out");
+        _state = new File(_target.getPath() + FileDownloader.STATE_SUFFIX);
+    }
+
+    @After
+    public void tearDown () {
+        _target.delete();
+        _state.delete();
+    }
+
+    @Test
+    public void testFixedBlocks ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        /* Replace a larger, existing file. */
+        FileUtils.writeByteArrayToFile(_target, new byte[_data.length * 2]);
+
+        _conn.setGetDelay(20);
+        FileDownloader downloader = new FileDownloader(_conn, "bucket", 4);
+        downloader.download("test stream", _target, 0, false);
+
+        assertArrayEquals(_data, FileUtils.readFileToByteArray(_target));
+        assertEquals(_data.length, downloader.getBytesWritten());
+        assertTrue(_conn.getMaxGetsInFlight() > 1);
+        assertTrue(_conn.getMaxGetsInFlight() <= 4);
+        assertFalse(_state.exists());
+    }
+
+    @Test
+    public void testAdaptiveBlocks ()
+        throws Exception
+    {
+        UploadStreamer uploader = new UploadStreamer(_conn, "bucket", BLOCK_SIZE);
+        uploader.setAdaptiveBlocksize(BLOCK_SIZE / 4, BLOCK_SIZE * 4);
+        uploader.upload("test stream", new ByteArrayInputStream(_data), 0);
+
+        checkDownload();
+    }
+
+    @Test
+    public void testCodecBlocks ()
+        throws Exception
+    {
+        _data = BlockCodecTest.compressibleData(BLOCK_SIZE * 20 + 7);
+        UploadStreamer uploader = new UploadStreamer(_conn, "bucket", BLOCK_SIZE);
+        uploader.setCodec(BlockCodec.DEFLATE);
+        uploader.upload("test stream", new ByteArrayInputStream(_data), 0);
+
+        checkDownload();
+    }
+
+    @Test
+    public void testChunks ()
+        throws Exception
+    {
+        new ChunkedUploadStreamer(_conn, "bucket", BLOCK_SIZE, 2).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        checkDownload();
+    }
+
+    @Test
+    public void testLegacyBlocks ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        /* Strip the block size and positions, as recorded by older uploaders. */
+        RemoteStream stream = new RemoteStream(_conn, "bucket", "test stream");
+        stream.putStreamInfo();
+        for (long blockId = 0; blockId <= 20; blockId++) {
+            _conn.getObjects().get(stream.streamBlockKey(blockId)).setMetadata(
+                new HashMap<String,String>());
+        }
+
+        checkDownload();
+    }
+
+    @Test
+    public void testResume ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        /* Blocks are downloaded in order, until the corrupt block 5. */
+        RemoteStream stream = new RemoteStream(_conn, "bucket", "test stream");
+        S3Object original = corruptBlock(stream.streamBlockKey(5));
+        try {
+            new FileDownloader(_conn, "bucket", 1).download("test stream", _target, 0, false);
+            fail("Downloaded a corrupt stream");
+        } catch (RemoteStreamException e) {
+            assertEquals("S3 block 5 checksum invalid.", e.getMessage());
+        }
+        assertTrue(_state.exists());
+
+        /* Resuming skips the completed blocks, including a block corrupted since. */
+        _conn.getObjects().put(original.getKey(), original);
+        corruptBlock(stream.streamBlockKey(0));
+        FileDownloader downloader = new FileDownloader(_conn, "bucket", 2);
+        downloader.download("test stream", _target, 0, true);
+
+        assertArrayEquals(_data, FileUtils.readFileToByteArray(_target));
+        assertEquals(_data.length - BLOCK_SIZE * 5, downloader.getBytesWritten());
+        assertFalse(_state.exists());
+    }
+
+    @Test
+    public void testRestart ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        RemoteStream stream = new RemoteStream(_conn, "bucket", "test stream");
+        S3Object original = corruptBlock(stream.streamBlockKey(5));
+        try {
+            new FileDownloader(_conn, "bucket", 1).download("test stream", _target, 0, false);
+            fail("Downloaded a corrupt stream");
+        } catch (RemoteStreamException e) {
+            // Expected
+        }
+
+        /* Without resuming, every block is downloaded again. */
+        _conn.getObjects().put(original.getKey(), original);
+        FileDownloader downloader = new FileDownloader(_conn, "bucket", 2);
+        downloader.download("test stream", _target, 0, false);
+        assertArrayEquals(_data, FileUtils.readFileToByteArray(_target));
+        assertEquals(_data.length, downloader.getBytesWritten());
+    }
+
+    @Test
+    public void testInterrupt ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        /* Interrupt the download part way through. */
+        final Thread downloadThread = Thread.currentThread();
+        Thread interrupter = new Thread() {
+            public void run () {
+                try {
+                    Thread.sleep(150);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                downloadThread.interrupt();
+            }
+        };
+
+        _conn.setGetDelay(50);
+        interrupter.start();
+        try {
+            new FileDownloader(_conn, "bucket", 2).download("test stream", _target, 0, false);
+            fail("Interrupted download did not fail");
+        } catch (RemoteStreamException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            interrupter.join();
+        }
+        assertTrue(_state.exists());
+
+        /* The completed blocks were kept. */
+        _conn.setGetDelay(0);
+        FileDownloader downloader = new FileDownloader(_conn, "bucket", 2);
+        downloader.download("test stream", _target, 0, true);
+
+        assertArrayEquals(_data, FileUtils.readFileToByteArray(_target));
+        assertTrue(downloader.getBytesWritten() < _data.length);
+        assertFalse(_state.exists());
+    }
+
+    @Test
+    public void testMissingStream ()
+        throws Exception
+    {
+        try {
+            new FileDownloader(_conn, "bucket", 2).download("test stream", _target, 0, false);
+            fail("Downloaded a missing stream");
+        } catch (RemoteStreamException.NoSuchStreamException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Download the stream with several threads, and verify the file.
+     */
+    protected void checkDownload ()
+        throws Exception
+    {
+        new FileDownloader(_conn, "bucket", 4).download("test stream", _target, 0, false);
+        assertArrayEquals(_data, FileUtils.readFileToByteArray(_target));
+    }
+
+    /**
+     * Corrupt the data of the given block, returning the original object.
+     */
+    protected S3Object corruptBlock (String key)
+        throws Exception
+    {
+        S3Object block = _conn.getObjects().get(key);
+        byte[] corrupt = _conn.getData(key);
+        corrupt[0]++;
+        S3ByteBufferObject replacement = new S3ByteBufferObject(key, ByteBuffer.wrap(corrupt), block.getMD5());
+        replacement.setMetadata(block.getMetadata());
+        _conn.getObjects().put(key, replacement);
+        return block;
+    }
+
+    /** In-memory connection. */
+    protected MemoryConnection _conn;
+
+    /** Uploaded data. */
+    protected byte[] _data;
+
+    /** Download target. */
+    protected File _target;
+
+    /** Download state file. */
+    protected File _state;
+
+    /** Test block size. */
+    private static final int BLOCK_SIZE = 8 * 1024;
+}
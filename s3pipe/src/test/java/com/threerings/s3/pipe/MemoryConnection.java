@@ -0,0 +1,394 @@
+/* 
+ * MemoryConnection vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.acl.AccessControlList;
+import com.threerings.s3.client.S3ByteArrayObject;
+import com.threerings.s3.client.S3Connection;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ObjectListing;
+import com.threerings.s3.client.S3ObjectVisitor;
+import com.threerings.s3.client.S3ServerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An in-memory S3 connection, used to test stream handling without network
+ * access.
+ */
+public class MemoryConnection extends S3Connection {
+    public MemoryConnection () {
+        super("id", "key");
+    }
+
+    @Override // From S3Connection
+    public void putObject (String bucketName, S3Object object,
+        AccessControlList.StandardPolicy accessPolicy, Map<String,String> headers)
+        throws S3Exception
+    {
+        int inFlight = _inFlight.incrementAndGet();
+        try {
+            synchronized (this) {
+                _maxInFlight = Math.max(_maxInFlight, inFlight);
+            }
+
+            if (_putDelay > 0) {
+                try {
+                    Thread.sleep(_putDelay);
+                } catch (InterruptedException ie) {
+                    _cancelled.incrementAndGet();
+                    throw new S3ServerException.RequestTimeoutException("Interrupted", null, null);
+                }
+            }
+
+            if (_failKey != null && object.getKey().equals(_failKey)) {
+                throw new S3ServerException.AccessDeniedException("Access denied", null, null);
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            InputStream input = object.getInputStream();
+            try {
+                IOUtils.copy(input, data);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+
+            S3ByteArrayObject stored = new S3ByteArrayObject(object.getKey(), data.toByteArray(),
+                object.getMimeType());
+            stored.setMetadata(new HashMap<String,String>(object.getMetadata()));
+            _objects.put(object.getKey(), stored);
+        } finally {
+            _inFlight.decrementAndGet();
+        }
+    }
+
+    @Override // From S3Connection
+    public S3Object getObject (String bucketName, String objectKey)
+        throws S3Exception
+    {
+        int inFlight = _getsInFlight.incrementAndGet();
+        _gets.incrementAndGet();
+        try {
+            synchronized (this) {
+                _maxGetsInFlight = Math.max(_maxGetsInFlight, inFlight);
+            }
+
+            if (_getDelay > 0) {
+                try {
+                    Thread.sleep(_getDelay);
+                } catch (InterruptedException ie) {
+                    throw new S3ServerException.RequestTimeoutException("Interrupted", null, null);
+                }
+            }
+
+            S3Object object = _objects.get(objectKey);
+            if (object == null) {
+                throw new S3ServerException.NoSuchKeyException("No such key: " + objectKey, null, null);
+            }
+            return object;
+        } finally {
+            _getsInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a range of a stored object. Unlike S3, the returned MD5 is that
+     * of the range.
+     */
+    @Override // From S3Connection
+    public S3Object getObject (String bucketName, String objectKey, long offset, long length)
+        throws S3Exception
+    {
+        byte[] data;
+        try {
+            data = getData(objectKey);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+
+        if (data == null) {
+            throw new S3ServerException.NoSuchKeyException("No such key: " + objectKey, null, null);
+        } else if (offset >= data.length) {
+            throw new S3ServerException.InvalidRangeException("Invalid range: " + offset, null, null);
+        }
+
+        int end = length < 0 ? data.length : (int)Math.min(data.length, offset + length);
+        S3Object stored = _objects.get(objectKey);
+        S3ByteArrayObject object = new S3ByteArrayObject(objectKey, data, (int)offset,
+            end - (int)offset, stored.getMimeType());
+        object.setMetadata(new HashMap<String,String>(stored.getMetadata()));
+        _ranges.incrementAndGet();
+        return object;
+    }
+
+    @Override // From S3Connection
+    public S3Object getObjectMetadata (String bucketName, String objectKey)
+        throws S3Exception
+    {
+        int inFlight = _headsInFlight.incrementAndGet();
+        try {
+            synchronized (this) {
+                _maxHeadsInFlight = Math.max(_maxHeadsInFlight, inFlight);
+            }
+
+            if (_headDelay > 0) {
+                try {
+                    Thread.sleep(_headDelay);
+                } catch (InterruptedException ie) {
+                    throw new S3ServerException.RequestTimeoutException("Interrupted", null, null);
+                }
+            }
+
+            if (_failKey != null && objectKey.equals(_failKey)) {
+                throw new S3ServerException.AccessDeniedException("Access denied", null, null);
+            }
+
+            /* As with S3, a HEAD error has no error document, and is
+             * identified by its status code alone. */
+            S3Object object = _objects.get(objectKey);
+            if (object == null) {
+                throw S3ServerException.exceptionForStatus(HttpStatus.SC_NOT_FOUND);
+            }
+            return object;
+        } finally {
+            _headsInFlight.decrementAndGet();
+        }
+    }
+
+    @Override // From S3Connection
+    public void deleteObject (String bucketName, String objectKey)
+        throws S3Exception
+    {
+        _objects.remove(objectKey);
+    }
+
+    /**
+     * Lists the stored objects with the given prefix, following the marker,
+     * and rolling keys up into common prefixes at the delimiter.
+     */
+    @Override // From S3Connection
+    public S3ObjectListing listObjects (String bucketName, String prefix, String marker,
+        int maxKeys, String delimiter, S3ObjectVisitor visitor)
+        throws S3Exception
+    {
+        StringBuilder entries = new StringBuilder();
+        StringBuilder xml = new StringBuilder();
+        String lastPrefix = null;
+        boolean truncated = false;
+        int count = 0;
+
+        _lists.incrementAndGet();
+        for (String key : new TreeSet<String>(_objects.keySet())) {
+            if (prefix != null && !key.startsWith(prefix)) {
+                continue;
+            } else if (marker != null && key.compareTo(marker) <= 0) {
+                continue;
+            }
+
+            /* Roll the key up into its common prefix. */
+            int index = delimiter == null ? -1 :
+                key.indexOf(delimiter, prefix == null ? 0 : prefix.length());
+            if (index >= 0) {
+                String common = key.substring(0, index + delimiter.length());
+                if (common.equals(lastPrefix) || (marker != null && marker.startsWith(common))) {
+                    continue;
+                }
+                if (count++ == maxKeys) {
+                    truncated = true;
+                    break;
+                }
+                lastPrefix = common;
+                entries.append("<CommonPrefixes><Prefix>").append(common).append("</Prefix></CommonPrefixes>");
+                continue;
+            }
+
+            if (count++ == maxKeys) {
+                truncated = true;
+                break;
+            }
+
+            S3Object object = _objects.get(key);
+            entries.append("<Contents><Key>").append(key).append("</Key>");
+            entries.append("<LastModified>2007-04-02T19:01:28.000Z</LastModified>");
+            entries.append("<ETag>&quot;").append(new String(Hex.encodeHex(object.getMD5()))).append("&quot;</ETag>");
+            entries.append("<Size>").append(object.length()).append("</Size>");
+            entries.append("<Owner><ID>id</ID><DisplayName>owner</DisplayName></Owner>");
+            entries.append("<StorageClass>STANDARD</StorageClass></Contents>");
+        }
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        xml.append("<Name>").append(bucketName).append("</Name>");
+        xml.append("<Prefix>").append(prefix == null ? "" : prefix).append("</Prefix>");
+        xml.append("<Marker>").append(marker == null ? "" : marker).append("</Marker>");
+        xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (delimiter != null) {
+            xml.append("<Delimiter>").append(delimiter).append("</Delimiter>");
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        xml.append(entries);
+        xml.append("</ListBucketResult>");
+
+        try {
+            return new S3ObjectListing(new ByteArrayInputStream(xml.toString().getBytes("utf-8")), visitor);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns the stored objects, by key. */
+    public Map<String,S3Object> getObjects () {
+        return _objects;
+    }
+
+    /** Returns the stored object's data, or null. */
+    public byte[] getData (String objectKey)
+        throws IOException, S3Exception
+    {
+        S3Object object = _objects.get(objectKey);
+        return object == null ? null : IOUtils.toByteArray(object.getInputStream());
+    }
+
+    /** Returns the maximum number of concurrent PUT requests seen. */
+    public synchronized int getMaxInFlight () {
+        return _maxInFlight;
+    }
+
+    /** Returns the number of range GET requests served. */
+    public int getRangeRequests () {
+        return _ranges.get();
+    }
+
+    /** Returns the maximum number of concurrent GET requests seen. */
+    public synchronized int getMaxGetsInFlight () {
+        return _maxGetsInFlight;
+    }
+
+    /** Returns the number of full GET requests served. */
+    public int getGets () {
+        return _gets.get();
+    }
+
+    /** Returns the maximum number of concurrent HEAD requests seen. */
+    public synchronized int getMaxHeadsInFlight () {
+        return _maxHeadsInFlight;
+    }
+
+    /** Returns the number of listing requests served. */
+    public int getLists () {
+        return _lists.get();
+    }
+
+    /** Returns the number of PUT requests interrupted while in flight. */
+    public int getCancelled () {
+        return _cancelled.get();
+    }
+
+    /** Delay each PUT by the given number of milliseconds. */
+    public void setPutDelay (long delay) {
+        _putDelay = delay;
+    }
+
+    /** Delay each GET by the given number of milliseconds. */
+    public void setGetDelay (long delay) {
+        _getDelay = delay;
+    }
+
+    /** Delay each HEAD by the given number of milliseconds. */
+    public void setHeadDelay (long delay) {
+        _headDelay = delay;
+    }
+
+    /** Fail any PUT or HEAD of the given key. */
+    public void setFailKey (String key) {
+        _failKey = key;
+    }
+
+    /** Stored objects. */
+    protected final Map<String,S3Object> _objects = new ConcurrentHashMap<String,S3Object>();
+
+    /** Concurrent PUT requests. */
+    protected final AtomicInteger _inFlight = new AtomicInteger();
+
+    /** Interrupted PUT requests. */
+    protected final AtomicInteger _cancelled = new AtomicInteger();
+
+    /** Maximum concurrent PUT requests. */
+    protected int _maxInFlight;
+
+    /** Concurrent GET requests. */
+    protected final AtomicInteger _getsInFlight = new AtomicInteger();
+
+    /** Maximum concurrent GET requests. */
+    protected int _maxGetsInFlight;
+
+    /** Full GET requests. */
+    protected final AtomicInteger _gets = new AtomicInteger();
+
+    /** Concurrent HEAD requests. */
+    protected final AtomicInteger _headsInFlight = new AtomicInteger();
+
+    /** Maximum concurrent HEAD requests. */
+    protected int _maxHeadsInFlight;
+
+    /** Listing requests. */
+    protected final AtomicInteger _lists = new AtomicInteger();
+
+    /** Range GET requests. */
+    protected final AtomicInteger _ranges = new AtomicInteger();
+
+    /** GET delay, in milliseconds. */
+    protected volatile long _getDelay;
+
+    /** HEAD delay, in milliseconds. */
+    protected volatile long _headDelay;
+
+    /** PUT delay, in milliseconds. */
+    protected volatile long _putDelay;
+
+    /** Key that fails to PUT, or null. */
+    protected volatile String _failKey;
+}
@@ -0,0 +1,238 @@
+/* 
+ * ParallelUploadTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.acl.AccessControlList;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ServerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ParallelUploadTest {
+    @Test
+    public void testParallelUpload ()
+        throws Exception
+    {
+        checkParallelUpload(false);
+    }
+
+    @Test
+    public void testDirectBuffers ()
+        throws Exception
+    {
+        checkParallelUpload(true);
+    }
+
+    protected void checkParallelUpload (boolean directBuffers)
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = testData(BLOCK_SIZE * 20 + 7);
+
+        conn.setPutDelay(20);
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE, 4, directBuffers);
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0);
+
+        /* The uploads overlapped, but never exceeded the configured parallelism. */
+        assertTrue(conn.getMaxInFlight() > 1);
+        assertTrue(conn.getMaxInFlight() <= 4);
+
+        /* Each block was uploaded under its sequential block id. */
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        for (int i = 0; i <= 20; i++) {
+            byte[] block = conn.getData(stream.streamBlockKey(i));
+            assertNotNull("Missing block " + i, block);
+            uploaded.write(block);
+        }
+        assertNull(conn.getData(stream.streamBlockKey(21)));
+        assertTrue(Arrays.equals(data, uploaded.toByteArray()));
+    }
+
+    @Test
+    public void testFailureCancels ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+
+        conn.setPutDelay(50);
+        conn.setFailKey(stream.streamBlockKey(2));
+
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE, 4);
+        try {
+            streamer.upload("test stream", new ByteArrayInputStream(testData(BLOCK_SIZE * 1000)), 0);
+            fail("Upload did not fail");
+        } catch (S3ServerException.AccessDeniedException e) {
+            // Expected
+        }
+
+        /* The upload stopped well short of the end of the stream. */
+        assertNull(conn.getData(stream.streamBlockKey(100)));
+    }
+
+    @Test
+    public void testInterruptFails ()
+        throws Exception
+    {
+        final CountDownLatch uploading = new CountDownLatch(1);
+        MemoryConnection conn = new MemoryConnection() {
+            @Override // From MemoryConnection
+            public void putObject (String bucketName, S3Object object,
+                AccessControlList.StandardPolicy accessPolicy, Map<String,String> headers)
+                throws S3Exception
+            {
+                /* Block uploads never complete. */
+                if (object.getKey().contains(".block.")) {
+                    uploading.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ie) {
+                        throw new S3ServerException.RequestTimeoutException("Interrupted", null, null);
+                    }
+                }
+                super.putObject(bucketName, object, accessPolicy, headers);
+            }
+        };
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        final Thread uploadThread = Thread.currentThread();
+
+        /* Interrupt the upload while it waits for the first block's upload. */
+        Thread interrupter = new Thread() {
+            public void run () {
+                try {
+                    uploading.await();
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                uploadThread.interrupt();
+            }
+        };
+        interrupter.start();
+
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE, 1);
+        try {
+            streamer.upload("test stream", new ByteArrayInputStream(testData(BLOCK_SIZE * 100)), 0);
+            fail("Interrupted upload did not fail");
+        } catch (RemoteStreamException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            interrupter.join();
+        }
+
+        /* The stream was left incomplete. */
+        assertNull(stream.getBlockManifest());
+    }
+
+    @Test
+    public void testInterruptedRead ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        final CountDownLatch reading = new CountDownLatch(1);
+        final Thread uploadThread = Thread.currentThread();
+
+        /* Input that stalls after a few blocks. */
+        InputStream input = new SequenceInputStream(
+            new ByteArrayInputStream(testData(BLOCK_SIZE * 4)), new InputStream() {
+                public int read ()
+                    throws IOException
+                {
+                    reading.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                    return -1;
+                }
+            });
+
+        /* Interrupt the upload while it waits on the stalled reader. */
+        Thread interrupter = new Thread() {
+            public void run () {
+                try {
+                    reading.await();
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                uploadThread.interrupt();
+            }
+        };
+        interrupter.start();
+
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE, 2);
+        try {
+            streamer.upload("test stream", input, 0);
+            fail("Interrupted upload did not fail");
+        } catch (RemoteStreamException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            interrupter.join();
+        }
+
+        /* The partially read stream was not completed. */
+        assertNull(stream.getBlockManifest());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidParallelism () {
+        new UploadStreamer(new MemoryConnection(), "bucket", BLOCK_SIZE, 0);
+    }
+
+    protected static byte[] testData (int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 31 + i / 255);
+        }
+        return data;
+    }
+
+    /** Test block size. */
+    protected static final int BLOCK_SIZE = 1024;
+}
@@ -0,0 +1,133 @@
+/* 
+ * PrefetchDownloadTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3ByteBufferObject;
+import com.threerings.s3.client.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PrefetchDownloadTest {
+    @Test
+    public void testPrefetch ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 20 + 7);
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream", new ByteArrayInputStream(data), 0);
+
+        conn.setGetDelay(20);
+        DownloadStreamer streamer = new DownloadStreamer(conn, "bucket", 4);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        streamer.download("test stream", output, 0);
+
+        /* The downloads overlapped, but the output is in order. */
+        assertArrayEquals(data, output.toByteArray());
+        assertEquals(data.length, streamer.getBytesWritten());
+        assertTrue(conn.getMaxGetsInFlight() > 1);
+        assertTrue(conn.getMaxGetsInFlight() <= 4);
+    }
+
+    @Test
+    public void testPrefetchChunks ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ChunkedUploadStreamerTest.randomData(512 * 1024, 2);
+        new ChunkedUploadStreamer(conn, "bucket", 16 * 1024, 2).upload("test stream",
+            new ByteArrayInputStream(data), 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new DownloadStreamer(conn, "bucket", 4).download("test stream", output, 0);
+        assertArrayEquals(data, output.toByteArray());
+    }
+
+    @Test
+    public void testPrefetchChecksum ()
+        throws Exception
+    {
+        /* Corrupt blocks are verified before they are written. */
+        assertEquals(BLOCK_SIZE * 5, checkCorruptDownload(4));
+    }
+
+    @Test
+    public void testStreamedChecksum ()
+        throws Exception
+    {
+        /* Streamed blocks are verified once they have been written. */
+        assertEquals(BLOCK_SIZE * 6, checkCorruptDownload(1));
+    }
+
+    /**
+     * Download a stream with a corrupt block 5, and return the number of
+     * bytes written before the failure.
+     */
+    protected int checkCorruptDownload (int prefetch)
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 20 + 7);
+        new UploadStreamer(conn, "bucket", BLOCK_SIZE).upload("test stream", new ByteArrayInputStream(data), 0);
+
+        /* Corrupt block 5's data. */
+        String key = new RemoteStream(conn, "bucket", "test stream").streamBlockKey(5);
+        S3Object block = conn.getObjects().get(key);
+        byte[] corrupt = conn.getData(key);
+        corrupt[0]++;
+        S3ByteBufferObject replacement = new S3ByteBufferObject(key, ByteBuffer.wrap(corrupt), block.getMD5());
+        replacement.setMetadata(block.getMetadata());
+        conn.getObjects().put(key, replacement);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            new DownloadStreamer(conn, "bucket", prefetch).download("test stream", output, 0);
+            fail("Downloaded a corrupt stream");
+        } catch (RemoteStreamException e) {
+            assertEquals("S3 block 5 checksum invalid.", e.getMessage());
+        }
+        return output.size();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidPrefetch () {
+        new DownloadStreamer(new MemoryConnection(), "bucket", 0);
+    }
+
+    /** Test block size. */
+    protected static final int BLOCK_SIZE = 16 * 1024;
+}
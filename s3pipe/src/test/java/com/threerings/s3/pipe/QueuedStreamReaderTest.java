@@ -31,14 +31,21 @@
 
 package com.threerings.s3.pipe;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
 import java.io.IOException;
 import java.io.FileOutputStream;
 
 import java.nio.ByteBuffer;
 
+import java.security.MessageDigest;
+
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -101,6 +108,141 @@ public class QueuedStreamReaderTest {
         }
     }
 
+    /**
+     * Test that the reader computes each block's digest, for heap, direct,
+     * and memory-mapped buffers.
+     */
+    @Test
+    public void testBlockDigest ()
+        throws Exception
+    {
+        checkBlockDigest(null, false);
+        checkBlockDigest(new BlockBufferPool(BLOCK_SIZE, 6, true), false);
+        checkBlockDigest(new BlockBufferPool(BLOCK_SIZE, 6, true), true);
+    }
+
+    /**
+     * Test that regular files are mapped, rather than read into pooled
+     * buffers.
+     */
+    @Test
+    public void testMappedFile ()
+        throws Exception
+    {
+        BlockBufferPool pool = new BlockBufferPool(BLOCK_SIZE * 100, 2, false);
+        QueuedStreamReader reader;
+        QueuedStreamReader.Block block;
+        ByteBuffer data = ByteBuffer.allocate((int)_testFile.length());
+        FileInputStream input = new FileInputStream(_testFile);
+
+        /* Start part-way into the file. */
+        input.getChannel().position(BLOCK_SIZE);
+        reader = new QueuedStreamReader(input, BLOCK_SIZE * 100, 4, pool);
+        new Thread(reader).start();
+
+        while ((block = reader.readDigestedBlock()) != null) {
+            assertTrue(block.isMapped());
+            data.put(block.getData());
+            reader.releaseBlock(block);
+        }
+
+        assertNull(reader.getStreamError());
+        assertEquals(0, pool.getAllocated());
+        assertEquals(_testFile.length() - BLOCK_SIZE, data.position());
+    }
+
+    /**
+     * Test that digests of direct buffers cover only the data read, when the
+     * input returns short reads.
+     */
+    @Test
+    public void testShortReadDigest ()
+        throws Exception
+    {
+        BlockBufferPool pool = new BlockBufferPool(1000, 6, true);
+        QueuedStreamReader reader;
+        QueuedStreamReader.Block block;
+        byte[] data = new byte[1000 * 10 + 123];
+        InputStream input;
+        int offset = 0;
+
+        new Random(42).nextBytes(data);
+
+        /* Return at most 7 bytes per read, with nothing available. */
+        input = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override // From FilterInputStream
+            public int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                return super.read(b, off, Math.min(len, 7));
+            }
+
+            @Override // From FilterInputStream
+            public int available () {
+                return 0;
+            }
+        };
+
+        reader = new QueuedStreamReader(input, 1000, 4, pool);
+        new Thread(reader).start();
+
+        while ((block = reader.readDigestedBlock()) != null) {
+            int length = block.getData().remaining();
+            byte[] expected = Arrays.copyOfRange(data, offset, offset + length);
+            byte[] actual = new byte[length];
+
+            assertFalse(block.isMapped());
+            block.getData().duplicate().get(actual);
+            assertTrue(Arrays.equals(expected, actual));
+            assertTrue("Block digest doesn't match block data.", Arrays.equals(
+                MessageDigest.getInstance("md5").digest(expected), block.getMD5()));
+
+            offset += length;
+            reader.releaseBlock(block);
+        }
+
+        assertNull(reader.getStreamError());
+        assertEquals(data.length, offset);
+    }
+
+    protected void checkBlockDigest (BlockBufferPool pool, boolean mapped)
+        throws Exception
+    {
+        QueuedStreamReader reader;
+        QueuedStreamReader.Block block;
+        InputStream input;
+        byte[] expected;
+        int blocks = 0;
+
+        /* Only a bare FileInputStream is mapped. */
+        input = new FileInputStream(_testFile);
+        if (!mapped) {
+            input = new BufferedInputStream(input);
+        }
+
+        expected = MessageDigest.getInstance("md5").digest(TEST_DATA);
+        reader = new QueuedStreamReader(input, BLOCK_SIZE, 4, pool);
+        new Thread(reader).start();
+
+        while ((block = reader.readDigestedBlock()) != null) {
+            /* The trailing block is partial. */
+            if (block.getData().remaining() == BLOCK_SIZE) {
+                assertTrue("Block digest doesn't match test data.",
+                    Arrays.equals(expected, block.getMD5()));
+            } else {
+                assertTrue(Arrays.equals(MessageDigest.getInstance("md5").digest(
+                    Arrays.copyOf(TEST_DATA, block.getData().remaining())), block.getMD5()));
+            }
+            assertEquals(mapped, block.isMapped());
+            blocks++;
+
+            reader.releaseBlock(block);
+        }
+
+        assertNull(reader.getStreamError());
+        assertTrue(blocks > 1);
+    }
+
     /** Temporary test data file. */
     private File _testFile;
 
@@ -0,0 +1,272 @@
+/* 
+ * RemoteStreamChannelTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3ByteBufferObject;
+import com.threerings.s3.client.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RemoteStreamChannelTest {
+    @Before
+    public void setUp () {
+        _conn = new MemoryConnection();
+        _data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+    }
+
+    @Test
+    public void testFixedBlocks ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        checkChannel();
+
+        /* Reads within raw blocks use range requests. */
+        assertTrue(_conn.getRangeRequests() > 0);
+    }
+
+    @Test
+    public void testAdaptiveBlocks ()
+        throws Exception
+    {
+        UploadStreamer uploader = new UploadStreamer(_conn, "bucket", BLOCK_SIZE);
+        uploader.setAdaptiveBlocksize(BLOCK_SIZE / 4, BLOCK_SIZE * 4);
+        uploader.upload("test stream", new ByteArrayInputStream(_data), 0);
+
+        checkChannel();
+    }
+
+    @Test
+    public void testCodecBlocks ()
+        throws Exception
+    {
+        _data = BlockCodecTest.compressibleData(BLOCK_SIZE * 10 + 7);
+        UploadStreamer uploader = new UploadStreamer(_conn, "bucket", BLOCK_SIZE);
+        uploader.setCodec(BlockCodec.DEFLATE);
+        uploader.upload("test stream", new ByteArrayInputStream(_data), 0);
+
+        checkChannel();
+    }
+
+    @Test
+    public void testChunks ()
+        throws Exception
+    {
+        new ChunkedUploadStreamer(_conn, "bucket", BLOCK_SIZE, 2).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        checkChannel();
+    }
+
+    @Test
+    public void testLegacyBlocks ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        /* Strip the block size and positions, as recorded by older uploaders. */
+        RemoteStream stream = new RemoteStream(_conn, "bucket", "test stream");
+        stream.putStreamInfo();
+        for (long blockId = 0; blockId <= 10; blockId++) {
+            _conn.getObjects().get(stream.streamBlockKey(blockId)).setMetadata(
+                new HashMap<String,String>());
+        }
+
+        checkChannel();
+    }
+
+    @Test
+    public void testCorruptBlock ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        /* Corrupt block 2's data. */
+        String key = new RemoteStream(_conn, "bucket", "test stream").streamBlockKey(2);
+        S3Object block = _conn.getObjects().get(key);
+        byte[] corrupt = _conn.getData(key);
+        corrupt[corrupt.length - 1]++;
+        S3ByteBufferObject replacement = new S3ByteBufferObject(key, ByteBuffer.wrap(corrupt), block.getMD5());
+        replacement.setMetadata(block.getMetadata());
+        _conn.getObjects().put(key, replacement);
+
+        /* Reading the whole block fails once its end is reached. */
+        SeekableByteChannel channel = openChannel();
+        channel.position(BLOCK_SIZE * 2);
+        try {
+            readFully(channel, BLOCK_SIZE + 1);
+            fail("Read a corrupt block");
+        } catch (IOException e) {
+            // Expected
+        }
+        channel.close();
+    }
+
+    @Test
+    public void testReadOnly ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        SeekableByteChannel channel = openChannel();
+        try {
+            channel.write(ByteBuffer.allocate(1));
+            fail("Wrote to a read-only channel");
+        } catch (NonWritableChannelException e) {
+            // Expected
+        }
+        channel.close();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testMissingStream ()
+        throws Exception
+    {
+        assertNull(new RemoteStream(_conn, "bucket", "test stream").openChannel());
+    }
+
+    @Test
+    public void testDownloadRange ()
+        throws Exception
+    {
+        new UploadStreamer(_conn, "bucket", BLOCK_SIZE).upload("test stream",
+            new ByteArrayInputStream(_data), 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new DownloadStreamer(_conn, "bucket").download("test stream", output, 0, BLOCK_SIZE + 5,
+            BLOCK_SIZE * 2);
+        assertArrayEquals(Arrays.copyOfRange(_data, BLOCK_SIZE + 5, BLOCK_SIZE * 3 + 5),
+            output.toByteArray());
+
+        /* Ranges are clipped to the end of the stream. */
+        output.reset();
+        new DownloadStreamer(_conn, "bucket").download("test stream", output, 0, _data.length - 3, -1);
+        assertArrayEquals(Arrays.copyOfRange(_data, _data.length - 3, _data.length),
+            output.toByteArray());
+    }
+
+    /**
+     * Verify sequential, seeking, and partial reads of the uploaded stream.
+     */
+    protected void checkChannel ()
+        throws Exception
+    {
+        SeekableByteChannel channel = openChannel();
+
+        /* The size matches, and the whole stream reads sequentially. */
+        assertEquals(_data.length, channel.size());
+        assertArrayEquals(_data, readFully(channel, _data.length + 1));
+        assertEquals(_data.length, channel.position());
+
+        /* Seek into the middle of a block, and across a block boundary. */
+        int offset = BLOCK_SIZE * 3 + 100;
+        channel.position(offset);
+        assertArrayEquals(Arrays.copyOfRange(_data, offset, offset + BLOCK_SIZE),
+            readFully(channel, BLOCK_SIZE));
+
+        /* Seek backwards. */
+        channel.position(5);
+        assertArrayEquals(Arrays.copyOfRange(_data, 5, 105), readFully(channel, 100));
+
+        /* Read the tail, and beyond the end. */
+        channel.position(_data.length - 7);
+        assertArrayEquals(Arrays.copyOfRange(_data, _data.length - 7, _data.length),
+            readFully(channel, 100));
+        channel.position(_data.length + 100);
+        assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+
+        /* Direct buffers are filled, too. */
+        channel.position(offset);
+        ByteBuffer direct = ByteBuffer.allocateDirect(100);
+        while (direct.hasRemaining() && channel.read(direct) >= 0) {
+            // Keep reading
+        }
+        direct.flip();
+        byte[] read = new byte[direct.remaining()];
+        direct.get(read);
+        assertArrayEquals(Arrays.copyOfRange(_data, offset, offset + 100), read);
+
+        channel.close();
+    }
+
+    /**
+     * Open a channel over the test stream.
+     */
+    protected SeekableByteChannel openChannel ()
+        throws Exception
+    {
+        SeekableByteChannel channel = new RemoteStream(_conn, "bucket", "test stream").openChannel();
+        assertNotNull(channel);
+        return channel;
+    }
+
+    /**
+     * Read up to the given number of bytes from the channel, stopping at the
+     * end of the stream.
+     */
+    protected static byte[] readFully (SeekableByteChannel channel, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Keep reading
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /** In-memory connection. */
+    protected MemoryConnection _conn;
+
+    /** Uploaded data. */
+    protected byte[] _data;
+
+    /** Test block size. */
+    private static final int BLOCK_SIZE = 8 * 1024;
+}
@@ -0,0 +1,216 @@
+/* 
+ * ResumeUploadTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import java.nio.channels.SeekableByteChannel;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ResumeUploadTest {
+    @Test
+    public void testResume ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        RemoteStream stream = interruptedUpload(conn, data, BlockCodec.NONE);
+
+        /* Resume; the committed blocks are kept, and the rest re-uploaded. */
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0, true);
+
+        assertArrayEquals(data, ChunkedUploadStreamerTest.download(conn, "test stream"));
+        assertEquals(11, stream.getBlocks().size());
+    }
+
+    @Test
+    public void testResumeFile ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        File file = File.createTempFile("s3pipe", ".test");
+        FileOutputStream output = new FileOutputStream(file);
+        FileInputStream input;
+
+        try {
+            output.write(data);
+            output.close();
+
+            /* Resume from a seekable file. */
+            interruptedUpload(conn, data, BlockCodec.NONE);
+            input = new FileInputStream(file);
+            try {
+                UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+                streamer.upload("test stream", input, 0, true);
+            } finally {
+                input.close();
+            }
+
+            assertArrayEquals(data, ChunkedUploadStreamerTest.download(conn, "test stream"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testResumeCodec ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = BlockCodecTest.compressibleData(BLOCK_SIZE * 10 + 7);
+        interruptedUpload(conn, data, BlockCodec.DEFLATE);
+
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+        streamer.setCodec(BlockCodec.DEFLATE);
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0, true);
+
+        assertArrayEquals(data, ChunkedUploadStreamerTest.download(conn, "test stream"));
+    }
+
+    @Test
+    public void testResumeMismatch ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 10 + 7);
+        interruptedUpload(conn, data, BlockCodec.NONE);
+
+        /* Alter the input within the last committed block. */
+        byte[] altered = data.clone();
+        altered[BLOCK_SIZE * 4 + 1]++;
+
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+        try {
+            streamer.upload("test stream", new ByteArrayInputStream(altered), 0, true);
+            fail("Resumed upload of mismatched input");
+        } catch (RemoteStreamException e) {
+            assertTrue(e.getMessage().contains("block 4"));
+        }
+    }
+
+    @Test
+    public void testResumeNewStream ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 3 + 7);
+
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0, true);
+
+        assertArrayEquals(data, ChunkedUploadStreamerTest.download(conn, "test stream"));
+    }
+
+    @Test
+    public void testResumeComplete ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 3 + 7);
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+        byte[] manifest;
+
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0);
+        manifest = conn.getData(stream.blockManifestKey());
+
+        /* The completed stream is left as it is. */
+        conn.setFailKey(stream.streamBlockKey(3));
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0, true);
+
+        assertArrayEquals(manifest, conn.getData(stream.blockManifestKey()));
+        assertEquals(data.length, stream.getBlockManifest().getLength());
+        assertArrayEquals(data, ChunkedUploadStreamerTest.download(conn, "test stream"));
+    }
+
+    @Test
+    public void testResumeCommitted ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        byte[] data = ParallelUploadTest.testData(BLOCK_SIZE * 3 + 7);
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+        SeekableByteChannel channel;
+
+        /* Every block was committed, but the upload stopped short of its manifest. */
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0);
+        conn.deleteObject("bucket", stream.blockManifestKey());
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0, true);
+
+        /* The rebuilt manifest records the short final block. */
+        BlockManifest manifest = stream.getBlockManifest();
+        assertEquals(7, manifest.getEntry(3).getLength());
+        assertEquals(data.length, manifest.getLength());
+
+        channel = stream.openChannel();
+        try {
+            assertEquals(data.length, channel.size());
+        } finally {
+            channel.close();
+        }
+        assertArrayEquals(data, ChunkedUploadStreamerTest.download(conn, "test stream"));
+    }
+
+    /**
+     * Upload the data, then remove blocks so that blocks 0 through 4 are
+     * committed, and block 7 was uploaded out of order. The interrupted
+     * upload never wrote its block manifest.
+     */
+    protected RemoteStream interruptedUpload (MemoryConnection conn, byte[] data, BlockCodec codec)
+        throws Exception
+    {
+        RemoteStream stream = new RemoteStream(conn, "bucket", "test stream");
+        UploadStreamer streamer = new UploadStreamer(conn, "bucket", BLOCK_SIZE);
+
+        streamer.setCodec(codec);
+        streamer.upload("test stream", new ByteArrayInputStream(data), 0);
+        for (long blockId = 5; blockId <= 10; blockId++) {
+            if (blockId != 7) {
+                conn.deleteObject("bucket", stream.streamBlockKey(blockId));
+            }
+        }
+        conn.deleteObject("bucket", stream.blockManifestKey());
+
+        return stream;
+    }
+
+    /** Test block size. */
+    protected static final int BLOCK_SIZE = 64 * 1024;
+}
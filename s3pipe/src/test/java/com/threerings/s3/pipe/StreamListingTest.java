@@ -0,0 +1,228 @@
+/* 
+ * StreamListingTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3ByteArrayObject;
+import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3ObjectListing;
+import com.threerings.s3.client.S3ServerException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class StreamListingTest {
+    @Test
+    public void testListAcrossPages ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        Set<String> names = createStreams(conn, 1200);
+
+        final Set<String> listed = new HashSet<String>();
+        RemoteStream.getAllStreams(conn, "bucket", 8, new RemoteStream.StreamHandler() {
+            public void handleStream (RemoteStreamInfo info) {
+                assertTrue("Listed twice: " + info.getName(), listed.add(info.getName()));
+            }
+        });
+
+        /* Every stream was listed, over two pages, using HEAD requests alone. */
+        assertEquals(names, listed);
+        assertEquals(2, conn.getLists());
+        assertEquals(0, conn.getGets());
+    }
+
+    @Test
+    public void testBoundedParallelism ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        createStreams(conn, 40);
+
+        final List<RemoteStreamInfo> listed = new ArrayList<RemoteStreamInfo>();
+        conn.setHeadDelay(10);
+        RemoteStream.getAllStreams(conn, "bucket", 4, new RemoteStream.StreamHandler() {
+            public void handleStream (RemoteStreamInfo info) {
+                listed.add(info);
+            }
+        });
+
+        assertEquals(40, listed.size());
+        assertTrue(conn.getMaxHeadsInFlight() > 1);
+        assertTrue(conn.getMaxHeadsInFlight() <= 4);
+    }
+
+    @Test
+    public void testListingOrder ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        createStreams(conn, 20);
+
+        /* The serial listing returns streams in key order. */
+        List<RemoteStreamInfo> streams = RemoteStream.getAllStreams(conn, "bucket");
+        assertEquals(20, streams.size());
+        for (int i = 1; i < streams.size(); i++) {
+            String previous = new RemoteStream(conn, "bucket", streams.get(i - 1).getName()).streamInfoKey();
+            String next = new RemoteStream(conn, "bucket", streams.get(i).getName()).streamInfoKey();
+            assertTrue(previous.compareTo(next) < 0);
+        }
+    }
+
+    @Test
+    public void testSkipsInvalid ()
+        throws Exception
+    {
+        MemoryConnection conn = new MemoryConnection();
+        createStreams(conn, 3);
+
+        /* A record without metadata, and a stream without any record. */
+        conn.putObject("bucket", new S3ByteArrayObject("stream.bogus.info", new byte[0]));
+        conn.putObject("bucket", new S3ByteArrayObject("stream.orphan.block.0", new byte[1]));
+
+        assertEquals(3, RemoteStream.getAllStreams(conn, "bucket").size());
+    }
+
+    @Test
+    public void testDeletedStream ()
+        throws Exception
+    {
+        final String deleted = new RemoteStream(null, "bucket", "stream 3").streamInfoKey();
+
+        /* Delete a stream once it has been listed. */
+        MemoryConnection conn = new MemoryConnection() {
+            @Override // From MemoryConnection
+            public S3ObjectListing listObjects (String bucketName, String prefix, String marker,
+                int maxKeys, String delimiter)
+                throws S3Exception
+            {
+                S3ObjectListing listing = super.listObjects(bucketName, prefix, marker, maxKeys,
+                    delimiter);
+                deleteObject(bucketName, deleted);
+                return listing;
+            }
+        };
+        createStreams(conn, 10);
+
+        List<RemoteStreamInfo> streams = RemoteStream.getAllStreams(conn, "bucket");
+        assertEquals(9, streams.size());
+        for (RemoteStreamInfo info : streams) {
+            assertFalse(info.getName().equals("stream 3"));
+        }
+    }
+
+    @Test
+    public void testFailure ()
+        throws Exception
+    {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final AtomicBoolean returned = new AtomicBoolean();
+        final AtomicBoolean late = new AtomicBoolean();
+        final AtomicInteger handled = new AtomicInteger();
+
+        /* Note the failing HEAD. */
+        MemoryConnection conn = new MemoryConnection() {
+            @Override // From MemoryConnection
+            public S3Object getObjectMetadata (String bucketName, String objectKey)
+                throws S3Exception
+            {
+                try {
+                    return super.getObjectMetadata(bucketName, objectKey);
+                } catch (S3Exception e) {
+                    failed.countDown();
+                    throw e;
+                }
+            }
+        };
+        createStreams(conn, 40);
+
+        /* Fail the second stream in listing order, which is fetched alongside the first. */
+        String second = RemoteStream.getAllStreams(conn, "bucket").get(1).getName();
+        conn.setFailKey(new RemoteStream(conn, "bucket", second).streamInfoKey());
+
+        try {
+            RemoteStream.getAllStreams(conn, "bucket", 4, new RemoteStream.StreamHandler() {
+                public void handleStream (RemoteStreamInfo info) {
+                    if (returned.get()) {
+                        late.set(true);
+                    }
+
+                    /* Remain in the handler until the listing has failed. */
+                    try {
+                        failed.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.incrementAndGet();
+                }
+            });
+            fail("Listing did not fail");
+        } catch (S3ServerException.AccessDeniedException e) {
+            returned.set(true);
+        }
+
+        /* Listing stopped at the failure, and no stream was handled after it returned. */
+        assertTrue(handled.get() < 20);
+        assertFalse(late.get());
+
+        /* The failure does not leave the calling thread interrupted. */
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidParallelism ()
+        throws Exception
+    {
+        RemoteStream.getAllStreams(new MemoryConnection(), "bucket", 0, null);
+    }
+
+    /** Create count empty streams, returning their names. */
+    protected Set<String> createStreams (MemoryConnection conn, int count)
+        throws Exception
+    {
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            String name = "stream " + i;
+            new RemoteStream(conn, "bucket", name).putStreamInfo();
+            names.add(name);
+        }
+        return names;
+    }
+}